@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.api;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import xyz.klinker.messenger.api.entity.ContactBody;
+import xyz.klinker.messenger.api.entity.ConversationBody;
+import xyz.klinker.messenger.api.entity.MessageBody;
+
+/**
+ * Compares the hand written adapters that Api uses with the reflective Gson that it used before,
+ * for the size of a full page of messages, conversations or contacts.
+ *
+ * Run it with ./gradlew :api:jmh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EntityCodecBenchmark {
+
+    @Param({ "reflective", "adapters" })
+    public String codec;
+
+    private Gson gson;
+
+    private MessageBody[] messages;
+    private ConversationBody[] conversations;
+    private ContactBody[] contacts;
+
+    private String messagesJson;
+    private String conversationsJson;
+    private String contactsJson;
+
+    @Setup
+    public void setUp() {
+        if (codec.equals("adapters")) {
+            gson = Api.gson;
+        } else {
+            gson = new GsonBuilder()
+                    .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+                    .setFieldNamingStrategy(Api.fieldNamingStrategy)
+                    .create();
+        }
+
+        Random random = new Random(5000);
+        messages = new MessageBody[5000];
+        conversations = new ConversationBody[5000];
+        contacts = new ContactBody[5000];
+
+        for (int i = 0; i < 5000; i++) {
+            messages[i] = new MessageBody(i, i % 100, i % 2, text(random, 120), 1500000000000L + i,
+                    text(random, 24), true, true, null, null, "-1", null);
+            conversations[i] = new ConversationBody(i, random.nextInt(), random.nextInt(), random.nextInt(),
+                    random.nextInt(), random.nextInt(), false, true, 1500000000000L + i, text(random, 24),
+                    text(random, 24), text(random, 80), null, null, text(random, 24), false, false, false, null);
+            contacts[i] = new ContactBody(i, text(random, 24), text(random, 24), text(random, 24),
+                    random.nextInt(), random.nextInt(), random.nextInt(), random.nextInt());
+        }
+
+        messagesJson = gson.toJson(messages);
+        conversationsJson = gson.toJson(conversations);
+        contactsJson = gson.toJson(contacts);
+    }
+
+    @Benchmark
+    public String encodeMessages() {
+        return gson.toJson(messages);
+    }
+
+    @Benchmark
+    public MessageBody[] decodeMessages() {
+        return gson.fromJson(messagesJson, MessageBody[].class);
+    }
+
+    @Benchmark
+    public String encodeConversations() {
+        return gson.toJson(conversations);
+    }
+
+    @Benchmark
+    public ConversationBody[] decodeConversations() {
+        return gson.fromJson(conversationsJson, ConversationBody[].class);
+    }
+
+    @Benchmark
+    public String encodeContacts() {
+        return gson.toJson(contacts);
+    }
+
+    @Benchmark
+    public ContactBody[] decodeContacts() {
+        return gson.fromJson(contactsJson, ContactBody[].class);
+    }
+
+    // stands in for the base64 of the encrypted data
+    private static String text(Random random, int length) {
+        String characters = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append(characters.charAt(random.nextInt(characters.length())));
+        }
+
+        return text.toString();
+    }
+}
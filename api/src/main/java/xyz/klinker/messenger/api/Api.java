@@ -21,22 +21,18 @@ import com.google.gson.FieldNamingStrategy;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
-import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.lang.reflect.Type;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
-import okhttp3.HttpUrl;
-import okhttp3.Interceptor;
-import okhttp3.MediaType;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.RequestBody;
 import okhttp3.logging.HttpLoggingInterceptor;
-import okio.BufferedSink;
-import okio.GzipSink;
-import okio.Okio;
 import retrofit2.Call;
 import retrofit2.CallAdapter;
 import retrofit2.Response;
@@ -66,7 +62,14 @@ public class Api {
     private static final String API_STAGING_URL = "https://klinkerapps-messenger-staging.herokuapp.com/api/v1/";
     private static final String API_RELEASE_URL = "https://api.messenger.klinkerapps.com/api/v1/";
 
-    private static OkHttpClient.Builder httpClient = new OkHttpClient.Builder();
+    // a sync sends a lot of requests to the same host at once, more than OkHttp's default of 5
+    private static final int MAX_REQUESTS = 32;
+    private static final int MAX_REQUESTS_PER_HOST = 16;
+    private static final int MAX_IDLE_CONNECTIONS = 16;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    private static final ApiMetrics metrics = new ApiMetrics();
+    private static OkHttpClient httpClient;
 
     private static CallAdapter.Factory callAdapterFactory = new CallAdapter.Factory() {
         @Override
@@ -112,30 +115,36 @@ public class Api {
         }
     };
 
-    private static Gson gson = new GsonBuilder()
-            .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
-            .setFieldNamingStrategy(new FieldNamingStrategy() {
-                @Override
-                public String translateName(Field f) {
-                    return separateCamelCase(f.getName(), "_").toLowerCase(Locale.ROOT);
-                }
+    static final FieldNamingStrategy fieldNamingStrategy = new FieldNamingStrategy() {
+        @Override
+        public String translateName(Field f) {
+            return separateCamelCase(f.getName(), "_").toLowerCase(Locale.ROOT);
+        }
 
-                private String separateCamelCase(String name, String separator) {
-                    StringBuilder translation = new StringBuilder();
-                    for (int i = 0; i < name.length(); i++) {
-                        char character = name.charAt(i);
-                        if (Character.isUpperCase(character) && translation.length() != 0) {
-                            translation.append(separator);
-                        }
-                        translation.append(character);
-                    }
-                    return translation.toString();
+        private String separateCamelCase(String name, String separator) {
+            StringBuilder translation = new StringBuilder();
+            for (int i = 0; i < name.length(); i++) {
+                char character = name.charAt(i);
+                if (Character.isUpperCase(character) && translation.length() != 0) {
+                    translation.append(separator);
                 }
-            })
+                translation.append(character);
+            }
+            return translation.toString();
+        }
+    };
+
+    // messages, conversations and contacts are written and read without reflection, everything
+    // else still goes through the naming strategy
+    static final Gson gson = new GsonBuilder()
+            .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+            .setFieldNamingStrategy(fieldNamingStrategy)
+            .registerTypeAdapterFactory(new EntityTypeAdapterFactory())
             .create();
 
     private Retrofit retrofit;
     private String baseUrl;
+    private final Map<Class<?>, Object> services = new ConcurrentHashMap<>();
 
     public enum Environment {
         DEBUG, STAGING, RELEASE
@@ -155,8 +164,38 @@ public class Api {
      * Creates a new API access object that will automatically attach your API key to all
      * requests.
      */
-    private Api(String baseUrl) {
-//        httpClient.addInterceptor(new Interceptor() {
+    Api(String baseUrl) {
+        Retrofit.Builder builder =
+                new Retrofit.Builder()
+                        .baseUrl(baseUrl)
+                        .addConverterFactory(GsonConverterFactory.create(gson));
+                        //.addCallAdapterFactory(callAdapterFactory);
+
+        this.retrofit = builder.client(httpClient()).build();
+        this.baseUrl = baseUrl;
+    }
+
+    /**
+     * Every Api shares the same client, so that they share its connection pool and dispatcher.
+     */
+    private static synchronized OkHttpClient httpClient() {
+        if (httpClient != null) {
+            return httpClient;
+        }
+
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .connectTimeout(15, TimeUnit.SECONDS)
+                .readTimeout(60, TimeUnit.SECONDS)
+                .writeTimeout(60, TimeUnit.SECONDS)
+                .eventListenerFactory(metrics);
+
+//        builder.addInterceptor(new Interceptor() {
 //            @Override
 //            public okhttp3.Response intercept(Chain chain) throws IOException {
 //                Request request = chain.request();
@@ -167,159 +206,140 @@ public class Api {
 //        });
 
         // gzip all bodies, the server should automatically unzip them
-//        httpClient.addInterceptor(new GzipRequestInterceptor());
+        builder.addInterceptor(new GzipRequestInterceptor());
 
         HttpLoggingInterceptor logging = new HttpLoggingInterceptor();
         logging.setLevel(HttpLoggingInterceptor.Level.BODY);
-        //httpClient.addInterceptor(logging);
+        //builder.addInterceptor(logging);
 
-        Retrofit.Builder builder =
-                new Retrofit.Builder()
-                        .baseUrl(baseUrl)
-                        .addConverterFactory(GsonConverterFactory.create(gson));
-                        //.addCallAdapterFactory(callAdapterFactory);
+        httpClient = builder.build();
+        return httpClient;
+    }
 
-        this.retrofit = builder.client(httpClient.build()).build();
-        this.baseUrl = baseUrl;
+    /**
+     * Gets the bytes and latency recorded for each endpoint that has been called.
+     */
+    public static ApiMetrics metrics() {
+        return metrics;
     }
 
     /**
      * Gets a service that can be used for account requests such as signup and login.
      */
     public AccountService account() {
-        return retrofit.create(AccountService.class);
+        return service(AccountService.class);
     }
 
     /**
      * Gets a service that can be used for device requests.
      */
     public DeviceService device() {
-        return retrofit.create(DeviceService.class);
+        return service(DeviceService.class);
     }
 
     /**
      * Gets a service that can be used for message requests.
      */
     public MessageService message() {
-        return retrofit.create(MessageService.class);
+        return service(MessageService.class);
     }
 
     /**
      * Gets a service that can be used for contact requests.
      */
     public ContactService contact() {
-        return retrofit.create(ContactService.class);
+        return service(ContactService.class);
     }
 
     /**
      * Gets a service that can be used for conversation requests.
      */
     public ConversationService conversation() {
-        return retrofit.create(ConversationService.class);
+        return service(ConversationService.class);
     }
 
     /**
      * Gets a service that can be used for draft requests.
      */
     public DraftService draft() {
-        return retrofit.create(DraftService.class);
+        return service(DraftService.class);
     }
 
     /**
      * Gets a service that can be used for scheduled message requests.
      */
     public ScheduledMessageService scheduled() {
-        return retrofit.create(ScheduledMessageService.class);
+        return service(ScheduledMessageService.class);
     }
 
     /**
      * Gets a service that can be used for blacklist requests.
      */
     public BlacklistService blacklist() {
-        return retrofit.create(BlacklistService.class);
+        return service(BlacklistService.class);
     }
 
     /**
      * Gets a service that can be used for template requests.
      */
     public TemplateService template() {
-        return retrofit.create(TemplateService.class);
+        return service(TemplateService.class);
     }
     /**
      * Gets a service that can be used for template requests.
      */
     public PurchaseService purchases() {
-        return retrofit.create(PurchaseService.class);
+        return service(PurchaseService.class);
     }
 
     /**
      * Gets a service that can be used for auto reply requests.
      */
     public AutoReplyService autoReply() {
-        return retrofit.create(AutoReplyService.class);
+        return service(AutoReplyService.class);
     }
 
     /**
      * Gets a service that can be used for folder requests.
      */
     public FolderService folder() {
-        return retrofit.create(FolderService.class);
+        return service(FolderService.class);
     }
 
     /**
      * Gets a service that can be used for beta requests.
      */
     public BetaService beta() {
-        return retrofit.create(BetaService.class);
+        return service(BetaService.class);
     }
 
     /**
      * Gets a service that can be used to activate your account on the web instead of on the device.
      */
     public ActivateService activate() {
-        return retrofit.create(ActivateService.class);
+        return service(ActivateService.class);
     }
 
-    public String baseUrl() {
-        return baseUrl;
-    }
-
-    final class GzipRequestInterceptor implements Interceptor {
-        @Override
-        public okhttp3.Response intercept(Interceptor.Chain chain) throws IOException {
-            Request originalRequest = chain.request();
-            if (originalRequest.body() == null ||
-                    originalRequest.header("Content-Encoding") != null) {
-                return chain.proceed(originalRequest);
+    /**
+     * Retrofit builds a new proxy for the service each time that it is asked for one, so they are
+     * kept after the first time.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T service(Class<T> service) {
+        Object created = services.get(service);
+        if (created == null) {
+            created = retrofit.create(service);
+            Object previous = services.putIfAbsent(service, created);
+            if (previous != null) {
+                created = previous;
             }
-
-            Request compressedRequest = originalRequest.newBuilder()
-                    .header("Content-Encoding", "gzip")
-                    .method(originalRequest.method(), gzip(originalRequest.body()))
-                    .build();
-            return chain.proceed(compressedRequest);
         }
 
-        private RequestBody gzip(final RequestBody body) {
-            return new RequestBody() {
-                @Override
-                public MediaType contentType() {
-                    return body.contentType();
-                }
-
-                @Override
-                public long contentLength() {
-                    return -1; // We don't know the compressed length in advance!
-                }
+        return (T) created;
+    }
 
-                @Override
-                public void writeTo(BufferedSink sink) throws IOException {
-                    BufferedSink gzipSink = Okio.buffer(new GzipSink(sink));
-                    body.writeTo(gzipSink);
-                    gzipSink.close();
-                }
-            };
-        }
+    public String baseUrl() {
+        return baseUrl;
     }
 
 }
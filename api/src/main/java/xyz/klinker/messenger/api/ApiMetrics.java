@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.api;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.HttpUrl;
+
+/**
+ * Keeps track of how many bytes go over the wire for each endpoint, and how long the calls take.
+ *
+ * The byte counts are what was actually sent and received, so they are after the request has
+ * been gzipped and before the response is unzipped. Endpoints are keyed by the method and the
+ * path, with ids in the path replaced by {id}, so "POST messages/remove/{id}".
+ */
+public class ApiMetrics implements EventListener.Factory {
+
+    public static class Endpoint {
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong requestBytes = new AtomicLong();
+        private final AtomicLong responseBytes = new AtomicLong();
+        private final AtomicLong totalMillis = new AtomicLong();
+
+        public long getCalls() {
+            return calls.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        public long getRequestBytes() {
+            return requestBytes.get();
+        }
+
+        public long getResponseBytes() {
+            return responseBytes.get();
+        }
+
+        public long getTotalMillis() {
+            return totalMillis.get();
+        }
+
+        public long getAverageMillis() {
+            long count = calls.get();
+            return count == 0 ? 0 : totalMillis.get() / count;
+        }
+
+        @Override
+        public String toString() {
+            return calls + " calls, " + failures + " failed, " + requestBytes + " bytes sent, " +
+                    responseBytes + " bytes received, " + getAverageMillis() + " ms average";
+        }
+    }
+
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    @Override
+    public EventListener create(Call call) {
+        return new CallListener(endpoint(call));
+    }
+
+    /**
+     * Gets the stats for a single endpoint, eg "POST messages/add". Returns null if it hasn't been
+     * called yet.
+     */
+    public Endpoint get(String endpoint) {
+        return endpoints.get(endpoint);
+    }
+
+    /**
+     * Gets a copy of the stats for every endpoint that has been called.
+     */
+    public Map<String, Endpoint> snapshot() {
+        return new HashMap<>(endpoints);
+    }
+
+    public void reset() {
+        endpoints.clear();
+    }
+
+    private Endpoint endpoint(Call call) {
+        String key = key(call.request().method(), call.request().url());
+        Endpoint endpoint = endpoints.get(key);
+        if (endpoint == null) {
+            endpoints.putIfAbsent(key, new Endpoint());
+            endpoint = endpoints.get(key);
+        }
+
+        return endpoint;
+    }
+
+    static String key(String method, HttpUrl url) {
+        List<String> segments = url.pathSegments();
+        StringBuilder path = new StringBuilder();
+
+        // skip the api/v1 that is on the front of every url
+        int start = segments.size() > 2 && segments.get(0).equals("api") ? 2 : 0;
+        for (int i = start; i < segments.size(); i++) {
+            if (path.length() != 0) {
+                path.append('/');
+            }
+
+            String segment = segments.get(i);
+            path.append(isId(segment) ? "{id}" : segment);
+        }
+
+        return method + " " + path;
+    }
+
+    private static boolean isId(String segment) {
+        if (segment.isEmpty()) {
+            return false;
+        }
+
+        for (int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            if (!Character.isDigit(c) && !(i == 0 && c == '-' && segment.length() > 1)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static class CallListener extends EventListener {
+
+        private final Endpoint endpoint;
+        private long start;
+
+        CallListener(Endpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public void callStart(Call call) {
+            start = System.nanoTime();
+        }
+
+        @Override
+        public void requestBodyEnd(Call call, long byteCount) {
+            endpoint.requestBytes.addAndGet(byteCount);
+        }
+
+        @Override
+        public void responseBodyEnd(Call call, long byteCount) {
+            endpoint.responseBytes.addAndGet(byteCount);
+        }
+
+        @Override
+        public void callEnd(Call call) {
+            finish();
+        }
+
+        @Override
+        public void callFailed(Call call, IOException ioe) {
+            endpoint.failures.incrementAndGet();
+            finish();
+        }
+
+        private void finish() {
+            endpoint.calls.incrementAndGet();
+            endpoint.totalMillis.addAndGet((System.nanoTime() - start) / 1000000);
+        }
+    }
+}
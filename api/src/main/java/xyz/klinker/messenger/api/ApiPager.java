@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.klinker.messenger.api;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import retrofit2.Call;
+import retrofit2.Response;
+import xyz.klinker.messenger.api.entity.PageResponse;
+
+/**
+ * Pages through one of the lists on the API with the continuation token that comes back with each
+ * page. The server finds the next page from where the last one ended, instead of counting past
+ * every row before it, so a page deep into a large history is as quick to get as the first one.
+ * A short page doesn't mean that the list is done either: only a null token does.
+ *
+ * Servers that don't have the keyset endpoints yet return a 404 for them. Then the old limit and
+ * offset endpoint is used instead, and the offset is kept in the token, so that callers don't need
+ * to know which one they are getting. Once a server has returned a 404, the pager goes straight to
+ * the offset endpoint for the rest of the download, instead of asking for the keyset one again.
+ */
+public class ApiPager<T> {
+
+    public interface KeysetRequest<T> {
+        Call<PageResponse<T>> page(String pageToken);
+    }
+
+    public interface OffsetRequest<T> {
+        Call<T[]> list(int offset);
+    }
+
+    public static class Page<T> {
+        public final List<T> items;
+        public final String nextPageToken;
+
+        public Page(List<T> items, String nextPageToken) {
+            this.items = items;
+            this.nextPageToken = nextPageToken;
+        }
+    }
+
+    static final String OFFSET_TOKEN = "offset:";
+
+    private final int pageSize;
+    private final KeysetRequest<T> keyset;
+    private final OffsetRequest<T> offset;
+    private final AtomicBoolean keysetUnsupported;
+
+    public ApiPager(int pageSize, KeysetRequest<T> keyset, OffsetRequest<T> offset) {
+        this(pageSize, keyset, offset, new AtomicBoolean());
+    }
+
+    /**
+     * @param keysetUnsupported set once the server has returned a 404 for the keyset endpoint.
+     *                          Pass the same one to each pager of a download, so that the fallback
+     *                          is only found once, rather than once for every pager.
+     */
+    public ApiPager(int pageSize, KeysetRequest<T> keyset, OffsetRequest<T> offset, AtomicBoolean keysetUnsupported) {
+        this.pageSize = pageSize;
+        this.keyset = keyset;
+        this.offset = offset;
+        this.keysetUnsupported = keysetUnsupported;
+    }
+
+    /**
+     * Gets the page that starts at the token.
+     *
+     * @param pageToken null for the first page, otherwise the token from the page before.
+     * @return the page, or null if the request failed.
+     */
+    public Page<T> fetch(String pageToken) throws IOException {
+        boolean useKeyset = pageToken == null ? !keysetUnsupported.get() : !pageToken.startsWith(OFFSET_TOKEN);
+        if (useKeyset) {
+            Response<PageResponse<T>> response = keyset.page(pageToken).execute();
+            PageResponse<T> body = response.body();
+
+            // only the first page can fall back, a keyset token can't be turned into an offset
+            if (response.code() != 404 || pageToken != null) {
+                return response.isSuccessful() && body != null ?
+                        new Page<>(asList(body.data), body.nextPageToken) : null;
+            }
+
+            keysetUnsupported.set(true);
+        }
+
+        int start = pageToken == null ? 0 : Integer.parseInt(pageToken.substring(OFFSET_TOKEN.length()));
+        T[] items = offset.list(start).execute().body();
+        if (items == null) {
+            return null;
+        }
+
+        String next = items.length < pageSize ? null : OFFSET_TOKEN + (start + items.length);
+        return new Page<>(asList(items), next);
+    }
+
+    private static <T> List<T> asList(T[] items) {
+        return items == null ? Collections.<T>emptyList() : Arrays.asList(items);
+    }
+}
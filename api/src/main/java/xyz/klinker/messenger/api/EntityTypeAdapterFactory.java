@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.api;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import xyz.klinker.messenger.api.entity.AddContactRequest;
+import xyz.klinker.messenger.api.entity.AddConversationRequest;
+import xyz.klinker.messenger.api.entity.AddMessagesRequest;
+import xyz.klinker.messenger.api.entity.ContactBody;
+import xyz.klinker.messenger.api.entity.ConversationBody;
+import xyz.klinker.messenger.api.entity.MessageBody;
+
+/**
+ * Hand written Gson adapters for the entities that get sent and downloaded thousands at a time.
+ * Gson would otherwise go through each of their fields with reflection, and run the naming
+ * strategy on each field's name.
+ *
+ * These write the same json as the reflective adapters did: the fields in the order that they
+ * are declared, with snake_case names, and nulls left out. When reading, unknown fields are
+ * skipped and missing ones are left with the value that Gson would have left them with.
+ */
+class EntityTypeAdapterFactory implements TypeAdapterFactory {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+        Class<? super T> raw = type.getRawType();
+        if (raw == MessageBody.class) {
+            return (TypeAdapter<T>) new MessageBodyAdapter();
+        } else if (raw == ConversationBody.class) {
+            return (TypeAdapter<T>) new ConversationBodyAdapter();
+        } else if (raw == ContactBody.class) {
+            return (TypeAdapter<T>) new ContactBodyAdapter();
+        } else if (raw == AddMessagesRequest.class) {
+            return (TypeAdapter<T>) new AddMessagesRequestAdapter(new MessageBodyAdapter());
+        } else if (raw == AddConversationRequest.class) {
+            return (TypeAdapter<T>) new AddConversationRequestAdapter(new ConversationBodyAdapter());
+        } else if (raw == AddContactRequest.class) {
+            return (TypeAdapter<T>) new AddContactRequestAdapter(new ContactBodyAdapter());
+        } else {
+            return null;
+        }
+    }
+
+    static class MessageBodyAdapter extends TypeAdapter<MessageBody> {
+        @Override
+        public void write(JsonWriter out, MessageBody body) throws IOException {
+            if (body == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            out.name("device_id").value(body.deviceId);
+            out.name("device_conversation_id").value(body.deviceConversationId);
+            out.name("message_type").value(body.messageType);
+            out.name("data").value(body.data);
+            out.name("timestamp").value(body.timestamp);
+            out.name("mime_type").value(body.mimeType);
+            out.name("read").value(body.read);
+            out.name("seen").value(body.seen);
+            out.name("message_from").value(body.messageFrom);
+            out.name("color").value(body.color);
+            out.name("sent_device").value(body.sentDevice);
+            out.name("sim_stamp").value(body.simStamp);
+            out.endObject();
+        }
+
+        @Override
+        public MessageBody read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            MessageBody body = new MessageBody(0, 0, 0, null, 0, null, false, false, null, null, null, null);
+            body.sentDevice = null;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "device_id": body.deviceId = nextLong(in, body.deviceId); break;
+                    case "device_conversation_id": body.deviceConversationId = nextLong(in, body.deviceConversationId); break;
+                    case "message_type": body.messageType = nextInt(in, body.messageType); break;
+                    case "data": body.data = nextString(in); break;
+                    case "timestamp": body.timestamp = nextLong(in, body.timestamp); break;
+                    case "mime_type": body.mimeType = nextString(in); break;
+                    case "read": body.read = nextBoolean(in, body.read); break;
+                    case "seen": body.seen = nextBoolean(in, body.seen); break;
+                    case "message_from": body.messageFrom = nextString(in); break;
+                    case "color": body.color = nextInteger(in); break;
+                    case "sent_device": body.sentDevice = nextLongObject(in); break;
+                    case "sim_stamp": body.simStamp = nextString(in); break;
+                    default: in.skipValue(); break;
+                }
+            }
+            in.endObject();
+
+            return body;
+        }
+    }
+
+    static class ConversationBodyAdapter extends TypeAdapter<ConversationBody> {
+        @Override
+        public void write(JsonWriter out, ConversationBody body) throws IOException {
+            if (body == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            out.name("device_id").value(body.deviceId);
+            out.name("color").value(body.color);
+            out.name("color_dark").value(body.colorDark);
+            out.name("color_light").value(body.colorLight);
+            out.name("color_accent").value(body.colorAccent);
+            out.name("led_color").value(body.ledColor);
+            out.name("pinned").value(body.pinned);
+            out.name("read").value(body.read);
+            out.name("timestamp").value(body.timestamp);
+            out.name("title").value(body.title);
+            out.name("phone_numbers").value(body.phoneNumbers);
+            out.name("snippet").value(body.snippet);
+            out.name("ringtone").value(body.ringtone);
+            out.name("image_uri").value(body.imageUri);
+            out.name("id_matcher").value(body.idMatcher);
+            out.name("mute").value(body.mute);
+            out.name("archive").value(body.archive);
+            out.name("private_notifications").value(body.privateNotifications);
+            out.name("folder_id").value(body.folderId);
+            out.endObject();
+        }
+
+        @Override
+        public ConversationBody read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            ConversationBody body = new ConversationBody(0, 0, 0, 0, 0, 0, false, false, 0, null,
+                    null, null, null, null, null, false, false, false, null);
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "device_id": body.deviceId = nextLong(in, body.deviceId); break;
+                    case "color": body.color = nextInt(in, body.color); break;
+                    case "color_dark": body.colorDark = nextInt(in, body.colorDark); break;
+                    case "color_light": body.colorLight = nextInt(in, body.colorLight); break;
+                    case "color_accent": body.colorAccent = nextInt(in, body.colorAccent); break;
+                    case "led_color": body.ledColor = nextInt(in, body.ledColor); break;
+                    case "pinned": body.pinned = nextBoolean(in, body.pinned); break;
+                    case "read": body.read = nextBoolean(in, body.read); break;
+                    case "timestamp": body.timestamp = nextLong(in, body.timestamp); break;
+                    case "title": body.title = nextString(in); break;
+                    case "phone_numbers": body.phoneNumbers = nextString(in); break;
+                    case "snippet": body.snippet = nextString(in); break;
+                    case "ringtone": body.ringtone = nextString(in); break;
+                    case "image_uri": body.imageUri = nextString(in); break;
+                    case "id_matcher": body.idMatcher = nextString(in); break;
+                    case "mute": body.mute = nextBoolean(in, body.mute); break;
+                    case "archive": body.archive = nextBoolean(in, body.archive); break;
+                    case "private_notifications": body.privateNotifications = nextBoolean(in, body.privateNotifications); break;
+                    case "folder_id": body.folderId = nextLongObject(in); break;
+                    default: in.skipValue(); break;
+                }
+            }
+            in.endObject();
+
+            return body;
+        }
+    }
+
+    static class ContactBodyAdapter extends TypeAdapter<ContactBody> {
+        @Override
+        public void write(JsonWriter out, ContactBody body) throws IOException {
+            if (body == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            out.name("device_id").value(body.deviceId);
+            out.name("phone_number").value(body.phoneNumber);
+            out.name("id_matcher").value(body.idMatcher);
+            out.name("name").value(body.name);
+            out.name("contact_type").value(body.contactType);
+            out.name("color").value(body.color);
+            out.name("color_dark").value(body.colorDark);
+            out.name("color_light").value(body.colorLight);
+            out.name("color_accent").value(body.colorAccent);
+            out.endObject();
+        }
+
+        @Override
+        public ContactBody read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            ContactBody body = new ContactBody(0, null, null, null, 0, 0, 0, 0, 0);
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "device_id": body.deviceId = nextLong(in, body.deviceId); break;
+                    case "phone_number": body.phoneNumber = nextString(in); break;
+                    case "id_matcher": body.idMatcher = nextString(in); break;
+                    case "name": body.name = nextString(in); break;
+                    case "contact_type": body.contactType = nextInt(in, body.contactType); break;
+                    case "color": body.color = nextInt(in, body.color); break;
+                    case "color_dark": body.colorDark = nextInt(in, body.colorDark); break;
+                    case "color_light": body.colorLight = nextInt(in, body.colorLight); break;
+                    case "color_accent": body.colorAccent = nextInt(in, body.colorAccent); break;
+                    default: in.skipValue(); break;
+                }
+            }
+            in.endObject();
+
+            return body;
+        }
+    }
+
+    static class AddMessagesRequestAdapter extends TypeAdapter<AddMessagesRequest> {
+        private final MessageBodyAdapter messages;
+
+        AddMessagesRequestAdapter(MessageBodyAdapter messages) {
+            this.messages = messages;
+        }
+
+        @Override
+        public void write(JsonWriter out, AddMessagesRequest request) throws IOException {
+            if (request == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            out.name("account_id").value(request.accountId);
+            out.name("messages");
+            writeArray(out, messages, request.messages);
+            out.endObject();
+        }
+
+        @Override
+        public AddMessagesRequest read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            AddMessagesRequest request = new AddMessagesRequest(null, (MessageBody[]) null);
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "account_id": request.accountId = nextString(in); break;
+                    case "messages": request.messages = readArray(in, messages, new MessageBody[0]); break;
+                    default: in.skipValue(); break;
+                }
+            }
+            in.endObject();
+
+            return request;
+        }
+    }
+
+    static class AddConversationRequestAdapter extends TypeAdapter<AddConversationRequest> {
+        private final ConversationBodyAdapter conversations;
+
+        AddConversationRequestAdapter(ConversationBodyAdapter conversations) {
+            this.conversations = conversations;
+        }
+
+        @Override
+        public void write(JsonWriter out, AddConversationRequest request) throws IOException {
+            if (request == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            out.name("account_id").value(request.accountId);
+            out.name("conversations");
+            writeArray(out, conversations, request.conversations);
+            out.endObject();
+        }
+
+        @Override
+        public AddConversationRequest read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            AddConversationRequest request = new AddConversationRequest(null, (ConversationBody[]) null);
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "account_id": request.accountId = nextString(in); break;
+                    case "conversations": request.conversations = readArray(in, conversations, new ConversationBody[0]); break;
+                    default: in.skipValue(); break;
+                }
+            }
+            in.endObject();
+
+            return request;
+        }
+    }
+
+    static class AddContactRequestAdapter extends TypeAdapter<AddContactRequest> {
+        private final ContactBodyAdapter contacts;
+
+        AddContactRequestAdapter(ContactBodyAdapter contacts) {
+            this.contacts = contacts;
+        }
+
+        @Override
+        public void write(JsonWriter out, AddContactRequest request) throws IOException {
+            if (request == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            out.name("account_id").value(request.accountId);
+            out.name("contacts");
+            writeArray(out, contacts, request.contacts);
+            out.endObject();
+        }
+
+        @Override
+        public AddContactRequest read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            AddContactRequest request = new AddContactRequest(null, (ContactBody[]) null);
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "account_id": request.accountId = nextString(in); break;
+                    case "contacts": request.contacts = readArray(in, contacts, new ContactBody[0]); break;
+                    default: in.skipValue(); break;
+                }
+            }
+            in.endObject();
+
+            return request;
+        }
+    }
+
+    private static <T> void writeArray(JsonWriter out, TypeAdapter<T> adapter, T[] values) throws IOException {
+        if (values == null) {
+            out.nullValue();
+            return;
+        }
+
+        out.beginArray();
+        for (T value : values) {
+            adapter.write(out, value);
+        }
+        out.endArray();
+    }
+
+    private static <T> T[] readArray(JsonReader in, TypeAdapter<T> adapter, T[] empty) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        List<T> values = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            values.add(adapter.read(in));
+        }
+        in.endArray();
+
+        return values.toArray(empty);
+    }
+
+    // these follow Gson's own adapters: a null leaves a primitive field alone, numbers can be
+    // quoted, and a string is read for a boolean field
+
+    private static String nextString(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        } else if (token == JsonToken.BOOLEAN) {
+            return Boolean.toString(in.nextBoolean());
+        } else {
+            return in.nextString();
+        }
+    }
+
+    private static long nextLong(JsonReader in, long current) throws IOException {
+        Long value = nextLongObject(in);
+        return value == null ? current : value;
+    }
+
+    private static Long nextLongObject(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        return in.nextLong();
+    }
+
+    private static int nextInt(JsonReader in, int current) throws IOException {
+        Integer value = nextInteger(in);
+        return value == null ? current : value;
+    }
+
+    private static Integer nextInteger(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        return in.nextInt();
+    }
+
+    private static boolean nextBoolean(JsonReader in, boolean current) throws IOException {
+        JsonToken token = in.peek();
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return current;
+        } else if (token == JsonToken.STRING) {
+            return Boolean.parseBoolean(in.nextString());
+        } else {
+            return in.nextBoolean();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.api;
+
+import java.io.IOException;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * Gzips request bodies before they are sent. The server unzips anything with a gzip
+ * Content-Encoding. Small bodies are sent as they are, since the gzip header and trailer would
+ * make them bigger.
+ *
+ * Responses don't need anything here: OkHttp asks for gzip on its own, as long as no one sets an
+ * Accept-Encoding header, and unzips the response before Retrofit reads it.
+ */
+final class GzipRequestInterceptor implements Interceptor {
+
+    static final long MIN_GZIP_LENGTH = 1024;
+
+    @Override
+    public okhttp3.Response intercept(Interceptor.Chain chain) throws IOException {
+        Request originalRequest = chain.request();
+        RequestBody body = originalRequest.body();
+        if (body == null || originalRequest.header("Content-Encoding") != null ||
+                (body.contentLength() >= 0 && body.contentLength() < MIN_GZIP_LENGTH)) {
+            return chain.proceed(originalRequest);
+        }
+
+        Request compressedRequest = originalRequest.newBuilder()
+                .header("Content-Encoding", "gzip")
+                .method(originalRequest.method(), gzip(body))
+                .build();
+        return chain.proceed(compressedRequest);
+    }
+
+    /**
+     * The compressed body is written to a buffer first, so that it can be sent with a
+     * Content-Length instead of being chunked, and so that a retry doesn't compress it again.
+     */
+    private RequestBody gzip(RequestBody body) throws IOException {
+        Buffer compressed = new Buffer();
+        BufferedSink gzipSink = Okio.buffer(new GzipSink(compressed));
+        body.writeTo(gzipSink);
+        gzipSink.close();
+
+        return RequestBody.create(body.contentType(), compressed.readByteString());
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.klinker.messenger.api.entity;
+
+/**
+ * The rows that were added, updated or removed since a point in time, one page at a time. Pass
+ * syncedUntil back as the since for the next sync, once every page has been applied.
+ */
+public class ChangesResponse<T> {
+
+    public T[] updated;
+    public long[] removed;
+    public String nextPageToken;
+    public long syncedUntil;
+
+    public ChangesResponse(T[] updated, long[] removed, String nextPageToken, long syncedUntil) {
+        this.updated = updated;
+        this.removed = removed;
+        this.nextPageToken = nextPageToken;
+        this.syncedUntil = syncedUntil;
+    }
+
+    @Override
+    public String toString() {
+        return (updated == null ? 0 : updated.length) + ", " + (removed == null ? 0 : removed.length) +
+                ", " + nextPageToken + ", " + syncedUntil;
+    }
+}
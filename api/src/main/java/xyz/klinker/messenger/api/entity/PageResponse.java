@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.klinker.messenger.api.entity;
+
+/**
+ * One page of a list, along with the token that gets the page after it. The token is null after
+ * the last page.
+ */
+public class PageResponse<T> {
+
+    public T[] data;
+    public String nextPageToken;
+
+    public PageResponse(T[] data, String nextPageToken) {
+        this.data = data;
+        this.nextPageToken = nextPageToken;
+    }
+
+    @Override
+    public String toString() {
+        return (data == null ? 0 : data.length) + ", " + nextPageToken;
+    }
+}
@@ -8,8 +8,10 @@ import retrofit2.http.Path;
 import retrofit2.http.Query;
 import xyz.klinker.messenger.api.entity.AddContactRequest;
 import xyz.klinker.messenger.api.entity.AddConversationRequest;
+import xyz.klinker.messenger.api.entity.ChangesResponse;
 import xyz.klinker.messenger.api.entity.ContactBody;
 import xyz.klinker.messenger.api.entity.ConversationBody;
+import xyz.klinker.messenger.api.entity.PageResponse;
 import xyz.klinker.messenger.api.entity.UpdateContactRequest;
 import xyz.klinker.messenger.api.entity.UpdateConversationRequest;
 
@@ -33,4 +35,10 @@ public interface ContactService {
 
     @GET("contacts")
     Call<ContactBody[]> list(@Query("account_id") String accountId, @Query("limit") Integer limit, @Query("offset") Integer offset);
+
+    @GET("contacts/page")
+    Call<PageResponse<ContactBody>> page(@Query("account_id") String accountId, @Query("limit") Integer limit, @Query("page_token") String pageToken);
+
+    @GET("contacts/changes")
+    Call<ChangesResponse<ContactBody>> changes(@Query("account_id") String accountId, @Query("since") long since, @Query("limit") Integer limit, @Query("page_token") String pageToken);
 }
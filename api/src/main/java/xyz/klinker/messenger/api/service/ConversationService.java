@@ -23,7 +23,9 @@ import retrofit2.http.POST;
 import retrofit2.http.Path;
 import retrofit2.http.Query;
 import xyz.klinker.messenger.api.entity.AddConversationRequest;
+import xyz.klinker.messenger.api.entity.ChangesResponse;
 import xyz.klinker.messenger.api.entity.ConversationBody;
+import xyz.klinker.messenger.api.entity.PageResponse;
 import xyz.klinker.messenger.api.entity.UpdateConversationRequest;
 
 public interface ConversationService {
@@ -55,6 +57,12 @@ public interface ConversationService {
     @GET("conversations")
     Call<ConversationBody[]> list(@Query("account_id") String accountId, @Query("limit") Integer limit, @Query("offset") Integer offset);
 
+    @GET("conversations/page")
+    Call<PageResponse<ConversationBody>> page(@Query("account_id") String accountId, @Query("limit") Integer limit, @Query("page_token") String pageToken);
+
+    @GET("conversations/changes")
+    Call<ChangesResponse<ConversationBody>> changes(@Query("account_id") String accountId, @Query("since") long since, @Query("limit") Integer limit, @Query("page_token") String pageToken);
+
     @POST("conversations/read/{device_id}")
     Call<Void> read(@Path("device_id") long deviceId, @Query("android_device") String androidDeviceId, @Query("account_id") String accountId);
 
@@ -23,7 +23,9 @@ import retrofit2.http.POST;
 import retrofit2.http.Path;
 import retrofit2.http.Query;
 import xyz.klinker.messenger.api.entity.AddMessagesRequest;
+import xyz.klinker.messenger.api.entity.ChangesResponse;
 import xyz.klinker.messenger.api.entity.MessageBody;
+import xyz.klinker.messenger.api.entity.PageResponse;
 import xyz.klinker.messenger.api.entity.UpdateMessageRequest;
 
 public interface MessageService {
@@ -51,4 +53,24 @@ public interface MessageService {
                        @Query("limit") Integer limit,
                        @Query("offset") Integer offset);
 
+    /**
+     * Pages through the messages with a continuation token instead of an offset. Leave the token
+     * out for the first page, and pass the one that each page comes back with to get the next.
+     */
+    @GET("messages/page")
+    Call<PageResponse<MessageBody>> page(@Query("account_id") String accountId,
+                                         @Query("conversation_id") Long conversationId,
+                                         @Query("limit") Integer limit,
+                                         @Query("page_token") String pageToken);
+
+    /**
+     * Gets the messages that were added, changed or removed after the since timestamp, one page at
+     * a time, for catching up a device that missed some of its pushes.
+     */
+    @GET("messages/changes")
+    Call<ChangesResponse<MessageBody>> changes(@Query("account_id") String accountId,
+                                               @Query("since") long since,
+                                               @Query("limit") Integer limit,
+                                               @Query("page_token") String pageToken);
+
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.GzipSink;
+import okio.GzipSource;
+import okio.Okio;
+import xyz.klinker.messenger.api.entity.AddMessagesRequest;
+import xyz.klinker.messenger.api.entity.MessageBody;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompressionTest {
+
+    private static final String CHARACTERS =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    private MockWebServer server;
+    private Api api;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+
+        api = new Api(server.url("/api/v1/").toString());
+        Api.metrics().reset();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void messagePageIsGzipped() throws Exception {
+        server.enqueue(new MockResponse());
+        api.message().add(new AddMessagesRequest("1234", messages(300))).execute();
+
+        RecordedRequest request = server.takeRequest();
+        assertEquals("gzip", request.getHeader("Content-Encoding"));
+
+        long compressed = request.getBodySize();
+        long uncompressed = unzip(request.getBody()).size();
+
+        // the message data is encrypted, so it is base64 and doesn't compress nearly as well as
+        // the json around it does
+        assertTrue(compressed < uncompressed * 3 / 4);
+        assertEquals(compressed, Api.metrics().get("POST messages/add").getRequestBytes());
+    }
+
+    @Test
+    public void smallBodiesAreNotGzipped() throws Exception {
+        server.enqueue(new MockResponse());
+        api.message().add(new AddMessagesRequest("1234", messages(1)[0])).execute();
+
+        RecordedRequest request = server.takeRequest();
+        assertNull(request.getHeader("Content-Encoding"));
+    }
+
+    @Test
+    public void responseIsUnzipped() throws Exception {
+        MessageBody[] messages = messages(500);
+        Buffer json = new Buffer().writeUtf8(toJson(messages));
+        long uncompressed = json.size();
+
+        Buffer gzipped = new Buffer();
+        GzipSink sink = new GzipSink(gzipped);
+        sink.write(json, json.size());
+        sink.close();
+        long compressed = gzipped.size();
+
+        server.enqueue(new MockResponse().setHeader("Content-Encoding", "gzip").setBody(gzipped));
+        MessageBody[] downloaded = api.message().list("1234", null, 500, 0).execute().body();
+
+        RecordedRequest request = server.takeRequest();
+        assertEquals("gzip", request.getHeader("Accept-Encoding"));
+        assertEquals(500, downloaded.length);
+        assertEquals(messages[499].data, downloaded[499].data);
+
+        assertTrue(compressed < uncompressed);
+        assertEquals(compressed, Api.metrics().get("GET messages").getResponseBytes());
+    }
+
+    @Test
+    public void endpointsAreKeyedWithoutIds() {
+        HttpUrl url = HttpUrl.parse("https://api.messenger.klinkerapps.com/api/v1/messages/remove/-123?account_id=1");
+        assertEquals("POST messages/remove/{id}", ApiMetrics.key("POST", url));
+    }
+
+    private MessageBody[] messages(int count) {
+        Random random = new Random(count);
+        MessageBody[] messages = new MessageBody[count];
+        for (int i = 0; i < count; i++) {
+            messages[i] = new MessageBody(i, i % 20, i % 2, encrypted(random, 40 + random.nextInt(120)),
+                    1500000000000L + i * 60000L, encrypted(random, 16), true, true,
+                    null, null, null, null);
+        }
+
+        return messages;
+    }
+
+    private String encrypted(Random random, int length) {
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            data.append(CHARACTERS.charAt(random.nextInt(CHARACTERS.length())));
+        }
+
+        return data.toString();
+    }
+
+    private String toJson(MessageBody[] messages) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < messages.length; i++) {
+            MessageBody message = messages[i];
+            if (i != 0) {
+                json.append(',');
+            }
+
+            json.append("{\"device_id\":").append(message.deviceId)
+                    .append(",\"device_conversation_id\":").append(message.deviceConversationId)
+                    .append(",\"message_type\":").append(message.messageType)
+                    .append(",\"data\":\"").append(message.data)
+                    .append("\",\"timestamp\":").append(message.timestamp)
+                    .append(",\"mime_type\":\"").append(message.mimeType)
+                    .append("\",\"read\":").append(message.read)
+                    .append(",\"seen\":").append(message.seen).append('}');
+        }
+
+        return json.append(']').toString();
+    }
+
+    private Buffer unzip(Buffer body) throws IOException {
+        Buffer unzipped = new Buffer();
+        unzipped.writeAll(Okio.buffer(new GzipSource(body)));
+        return unzipped;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.api;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.Test;
+
+import xyz.klinker.messenger.api.entity.AddContactRequest;
+import xyz.klinker.messenger.api.entity.AddConversationRequest;
+import xyz.klinker.messenger.api.entity.AddMessagesRequest;
+import xyz.klinker.messenger.api.entity.ContactBody;
+import xyz.klinker.messenger.api.entity.ConversationBody;
+import xyz.klinker.messenger.api.entity.MessageBody;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class EntityTypeAdapterTest {
+
+    private final Gson reflective = new GsonBuilder()
+            .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+            .setFieldNamingStrategy(Api.fieldNamingStrategy)
+            .create();
+
+    @Test
+    public void messagesMatchReflection() {
+        MessageBody[] messages = new MessageBody[] {
+                new MessageBody(1, 2, 3, "data", 4, "text/plain", true, false, "Luke", 5, "6", "sim"),
+                new MessageBody(7, 8, 9, "more data", 10, "image/jpg", false, true, null, null, null, null)
+        };
+
+        AddMessagesRequest request = new AddMessagesRequest("account", messages);
+        assertEquals(reflective.toJson(request), Api.gson.toJson(request));
+
+        MessageBody[] read = Api.gson.fromJson(reflective.toJson(messages), MessageBody[].class);
+        assertEquals(reflective.toJson(messages), reflective.toJson(read));
+    }
+
+    @Test
+    public void conversationsMatchReflection() {
+        ConversationBody[] conversations = new ConversationBody[] {
+                new ConversationBody(1, 2, 3, 4, 5, 6, true, false, 7, "title", "515", "snippet",
+                        "ringtone", "image", "matcher", true, false, true, 8L),
+                new ConversationBody(9, 0, 0, 0, 0, 0, false, true, 10, "title", "516", null,
+                        null, null, "matcher", false, true, false, null)
+        };
+
+        AddConversationRequest request = new AddConversationRequest("account", conversations);
+        assertEquals(reflective.toJson(request), Api.gson.toJson(request));
+
+        ConversationBody[] read = Api.gson.fromJson(reflective.toJson(conversations), ConversationBody[].class);
+        assertEquals(reflective.toJson(conversations), reflective.toJson(read));
+    }
+
+    @Test
+    public void contactsMatchReflection() {
+        ContactBody[] contacts = new ContactBody[] {
+                new ContactBody(1, "515", "matcher", "Luke", 2, 3, 4, 5, 6),
+                new ContactBody(7, "516", "matcher", null, 8, 9, 10, 11)
+        };
+
+        AddContactRequest request = new AddContactRequest("account", contacts);
+        assertEquals(reflective.toJson(request), Api.gson.toJson(request));
+
+        ContactBody[] read = Api.gson.fromJson(reflective.toJson(contacts), ContactBody[].class);
+        assertEquals(reflective.toJson(contacts), reflective.toJson(read));
+    }
+
+    @Test
+    public void readsLikeGsonDoes() {
+        MessageBody message = Api.gson.fromJson("{\"device_id\":\"12\",\"read\":\"true\",\"color\":null," +
+                "\"timestamp\":null,\"unknown\":{\"a\":[1,2]},\"data\":\"data\"}", MessageBody.class);
+
+        assertEquals(12, message.deviceId);
+        assertEquals(true, message.read);
+        assertEquals(0, message.timestamp);
+        assertEquals("data", message.data);
+        assertNull(message.color);
+        assertNull(message.sentDevice);
+    }
+}
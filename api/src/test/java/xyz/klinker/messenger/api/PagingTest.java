@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.klinker.messenger.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import retrofit2.Call;
+import xyz.klinker.messenger.api.entity.MessageBody;
+import xyz.klinker.messenger.api.entity.PageResponse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PagingTest {
+
+    private static final long CONVERSATION_ID = 1;
+    private static final int PAGE_SIZE = 1000;
+
+    private MockWebServer server;
+    private Api api;
+    private NavigableMap<Long, MessageBody> history = new TreeMap<>();
+    private Set<Long> hidden = new HashSet<>();
+    private List<HttpUrl> requests = Collections.synchronizedList(new ArrayList<HttpUrl>());
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+
+        api = new Api(server.url("/api/v1/").toString());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void readsEachPageFromTheKeysetEndpoint() throws Exception {
+        createHistory(20000);
+        server.setDispatcher(new KeysetDispatcher());
+
+        ApiPager<MessageBody> pager = messagePager();
+        long expectedId = 0;
+        String pageToken = null;
+
+        do {
+            ApiPager.Page<MessageBody> page = pager.fetch(pageToken);
+            for (MessageBody message : page.items) {
+                assertEquals(expectedId++, message.deviceId);
+            }
+
+            pageToken = page.nextPageToken;
+        } while (pageToken != null);
+
+        assertEquals(20000, expectedId);
+        assertEquals(20, server.getRequestCount());
+        for (HttpUrl url : requests) {
+            assertNull(url.queryParameter("offset"));
+        }
+    }
+
+    @Test
+    public void shortPageDoesNotEndTheList() throws Exception {
+        createHistory(2500);
+        hidden.add(10L);
+        server.setDispatcher(new KeysetDispatcher());
+
+        ApiPager<MessageBody> pager = messagePager();
+        ApiPager.Page<MessageBody> first = pager.fetch(null);
+        assertEquals(PAGE_SIZE - 1, first.items.size());
+
+        int downloaded = first.items.size();
+        String pageToken = first.nextPageToken;
+        while (pageToken != null) {
+            ApiPager.Page<MessageBody> page = pager.fetch(pageToken);
+            downloaded += page.items.size();
+            pageToken = page.nextPageToken;
+        }
+
+        assertEquals(2499, downloaded);
+    }
+
+    @Test
+    public void fallsBackToOffsetsOnOldServers() throws Exception {
+        createHistory(2500);
+        server.setDispatcher(new OffsetDispatcher());
+
+        ApiPager<MessageBody> pager = messagePager();
+        int downloaded = 0;
+        String pageToken = null;
+        do {
+            ApiPager.Page<MessageBody> page = pager.fetch(pageToken);
+            downloaded += page.items.size();
+            pageToken = page.nextPageToken;
+        } while (pageToken != null);
+
+        assertEquals(2500, downloaded);
+        assertEquals(4, requests.size());
+        assertEquals("2000", requests.get(3).queryParameter("offset"));
+    }
+
+    @Test
+    public void remembersTheFallbackForTheRestOfTheDownload() throws Exception {
+        createHistory(500);
+        server.setDispatcher(new OffsetDispatcher());
+
+        AtomicBoolean keysetUnsupported = new AtomicBoolean();
+        for (int i = 0; i < 3; i++) {
+            ApiPager.Page<MessageBody> page = messagePager(keysetUnsupported).fetch(null);
+            assertEquals(500, page.items.size());
+            assertNull(page.nextPageToken);
+        }
+
+        assertTrue(keysetUnsupported.get());
+        assertEquals(4, server.getRequestCount());
+        assertTrue(requests.get(0).encodedPath().endsWith("/page"));
+        for (HttpUrl url : requests.subList(1, 4)) {
+            assertEquals("0", url.queryParameter("offset"));
+        }
+    }
+
+    private ApiPager<MessageBody> messagePager() {
+        return messagePager(new AtomicBoolean());
+    }
+
+    private ApiPager<MessageBody> messagePager(AtomicBoolean keysetUnsupported) {
+        return new ApiPager<>(PAGE_SIZE, new ApiPager.KeysetRequest<MessageBody>() {
+            @Override
+            public Call<PageResponse<MessageBody>> page(String pageToken) {
+                return api.message().page("1234", CONVERSATION_ID, PAGE_SIZE, pageToken);
+            }
+        }, new ApiPager.OffsetRequest<MessageBody>() {
+            @Override
+            public Call<MessageBody[]> list(int offset) {
+                return api.message().list("1234", CONVERSATION_ID, PAGE_SIZE, offset);
+            }
+        }, keysetUnsupported);
+    }
+
+    private void createHistory(int count) {
+        for (long id = 0; id < count; id++) {
+            history.put(id, new MessageBody(id, CONVERSATION_ID, 0, "message " + id, 1500000000000L + id,
+                    "text/plain", true, true, null, null, null, null));
+        }
+    }
+
+    /**
+     * Finds each page the way that the server's index would: it seeks to the id in the token and
+     * reads the rows after it, rather than counting past the ones before.
+     */
+    private class KeysetDispatcher extends Dispatcher {
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            HttpUrl url = request.getRequestUrl();
+            requests.add(url);
+
+            String pageToken = url.queryParameter("page_token");
+            int limit = Integer.parseInt(url.queryParameter("limit"));
+            Collection<MessageBody> after = pageToken == null ? history.values() :
+                    history.tailMap(Long.parseLong(pageToken), false).values();
+
+            // hidden rows are read from the index, but left out of the page
+            Iterator<MessageBody> rows = after.iterator();
+            List<MessageBody> page = new ArrayList<>(limit);
+            long lastRead = -1;
+            for (int i = 0; i < limit && rows.hasNext(); i++) {
+                MessageBody message = rows.next();
+                lastRead = message.deviceId;
+                if (!hidden.contains(lastRead)) {
+                    page.add(message);
+                }
+            }
+
+            String next = rows.hasNext() ? String.valueOf(lastRead) : null;
+            return new MockResponse().setBody(Api.gson.toJson(new PageResponse<>(page.toArray(new MessageBody[0]), next)));
+        }
+    }
+
+    /**
+     * An older server, that only has the limit and offset endpoint.
+     */
+    private class OffsetDispatcher extends Dispatcher {
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            HttpUrl url = request.getRequestUrl();
+            requests.add(url);
+            if (url.encodedPath().endsWith("/page")) {
+                return new MockResponse().setResponseCode(404);
+            }
+
+            int offset = Integer.parseInt(url.queryParameter("offset"));
+            int limit = Integer.parseInt(url.queryParameter("limit"));
+            List<MessageBody> page = new ArrayList<>(history.values()).subList(offset, Math.min(offset + limit, history.size()));
+            return new MockResponse().setBody(Api.gson.toJson(page.toArray(new MessageBody[0])));
+        }
+    }
+}
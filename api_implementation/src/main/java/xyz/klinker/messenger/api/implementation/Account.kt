@@ -8,6 +8,9 @@ import android.preference.PreferenceManager
 import android.util.Base64
 
 import java.util.Date
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
 
 import javax.crypto.spec.SecretKeySpec
 
@@ -33,6 +36,12 @@ object Account {
     var encryptor: EncryptionUtils? = null
         private set
 
+    // the key that the encryptor was created with, so that it can be reused when nothing changed
+    private var encryptorKey: String? = null
+
+    private val keyExecutor = Executors.newSingleThreadExecutor()
+    @Volatile private var keyDerivation: Future<*>? = null
+
     var primary: Boolean = false
     var trialStartTime: Long = 0
     var subscriptionType: SubscriptionType? = null
@@ -68,19 +77,16 @@ object Account {
         if (key == null && passhash != null && accountId != null && salt != null) {
             // we have all the requirements to recompute the key,
             // not sure why this wouldn't have worked in the first place..
-            recomputeKey(context)
-            Account.key = sharedPrefs.getString(context.getString(R.string.api_pref_key), null)
-
-            val secretKey = SecretKeySpec(Base64.decode(Account.key, Base64.DEFAULT), "AES")
-            encryptor = EncryptionUtils(secretKey)
+            recomputeKeyInBackground(context)
         } else if (key == null && accountId != null) {
             // we cannot compute the key, uh oh. lets just start up the login activity and grab them...
             // This will do little good if they are on the api utils and trying to send a message or
             // something, or receiving a message. But they will have to re-login sometime I guess
             context.startActivity(Intent(context, LoginActivity::class.java))
-        } else if (key != null) {
+        } else if (key != null && (encryptor == null || key != encryptorKey)) {
             val secretKey = SecretKeySpec(Base64.decode(Account.key, Base64.DEFAULT), "AES")
             encryptor = EncryptionUtils(secretKey)
+            encryptorKey = key
         }
 
         val application = context.applicationContext
@@ -180,6 +186,36 @@ object Account {
                 .commit()
     }
 
+    /**
+     * Recomputing the key runs PBKDF2, which takes a few hundred ms, so it shouldn't hold up the
+     * thread that is starting the app. Once the key is stored, the account is initialized again to
+     * create the encryptor.
+     */
+    private fun recomputeKeyInBackground(context: Context) {
+        if (keyDerivation?.isDone == false) {
+            return
+        }
+
+        val applicationContext = context.applicationContext
+        keyDerivation = keyExecutor.submit {
+            recomputeKey(applicationContext)
+            init(applicationContext)
+        }
+    }
+
+    /**
+     * Blocks until a key that is being recomputed in the background is ready. Returns right away
+     * if there isn't one. This should never be called from the main thread.
+     */
+    fun awaitKey() {
+        try {
+            keyDerivation?.get()
+        } catch (e: InterruptedException) {
+        } catch (e: ExecutionException) {
+            e.printStackTrace()
+        }
+    }
+
     fun exists(): Boolean {
         return accountId != null && !accountId!!.isEmpty() && deviceId != null && salt != null && passhash != null
                 && key != null
@@ -17,13 +17,14 @@
 package xyz.klinker.messenger.api.implementation
 
 import android.content.Context
+import android.net.Uri
 import android.util.Log
 
 import com.google.firebase.storage.FirebaseStorage
 import com.google.firebase.storage.StorageReference
 
-import java.io.BufferedOutputStream
 import java.io.File
+import java.io.FileInputStream
 import java.io.FileOutputStream
 import java.io.IOException
 import java.util.concurrent.atomic.AtomicBoolean
@@ -46,7 +47,6 @@ object ApiUtils {
     const val RETRY_COUNT = 4
 
     private const val TAG = "ApiUtils"
-    private const val MAX_SIZE = (1024 * 1024 * 5).toLong()
     private const val FIREBASE_STORAGE_URL = "gs://messenger-42616.appspot.com"
 
     fun isCallSuccessful(response: Response<*>): Boolean {
@@ -489,8 +489,7 @@ object ApiUtils {
             }
         } else {
             saveFirebaseFolderRef(accountId)
-            val bytes = BinaryUtils.getMediaBytes(context, data, mimeType, true)
-            uploadBytesToFirebase(accountId, bytes, deviceId, encryptionUtils, FirebaseUploadCallback {
+            uploadMediaToFirebase(context, accountId, data, mimeType, deviceId, encryptionUtils, FirebaseUploadCallback {
                 val body = MessageBody(deviceId, deviceConversationId,
                         messageType, encryptionUtils.encrypt("firebase -1"),
                         timestamp, encryptionUtils.encrypt(mimeType), read, seen,
@@ -501,7 +500,7 @@ object ApiUtils {
                 val call = api.message().add(request)
 
                 call.enqueue(LoggingRetryableCallback(call, RETRY_COUNT, message))
-            }, 0)
+            })
         }
     }
 
@@ -850,15 +849,46 @@ object ApiUtils {
     }
 
     /**
-     * Uploads a byte array of encrypted data to firebase.
+     * Encrypts a media file and uploads it to firebase. The encrypted data is streamed through a
+     * temporary file, so it is never held in memory, no matter how large the media is.
      *
-     * @param bytes the byte array to upload.
+     * @param uri the media to upload.
      * @param messageId the message id that the data belongs to.
-     * @param encryptionUtils the utils to encrypt the byte array with.
+     * @param encryptionUtils the utils to encrypt the media with.
      */
-    fun uploadBytesToFirebase(accountId: String?, bytes: ByteArray, messageId: Long, encryptionUtils: EncryptionUtils?,
-                              callback: FirebaseUploadCallback, retryCount: Int) {
-        if (encryptionUtils == null || retryCount > RETRY_COUNT) {
+    fun uploadMediaToFirebase(context: Context, accountId: String?, uri: String?, mimeType: String?, messageId: Long,
+                              encryptionUtils: EncryptionUtils?, callback: FirebaseUploadCallback) {
+        if (encryptionUtils == null || uri == null || mimeType == null) {
+            callback.onUploadFinished()
+            return
+        }
+
+        val encrypted = File(context.cacheDir, "firebase_upload_$messageId")
+
+        try {
+            encryptionUtils.encrypt(BinaryUtils.openMediaStream(context, uri, mimeType, true), FileOutputStream(encrypted))
+        } catch (e: Throwable) {
+            e.printStackTrace()
+            encrypted.delete()
+            callback.onUploadFinished()
+            return
+        }
+
+        uploadFileToFirebase(accountId, encrypted, messageId, FirebaseUploadCallback {
+            encrypted.delete()
+            callback.onUploadFinished()
+        }, 0)
+    }
+
+    /**
+     * Uploads a file of encrypted data to firebase.
+     *
+     * @param file the encrypted file to upload.
+     * @param messageId the message id that the data belongs to.
+     */
+    private fun uploadFileToFirebase(accountId: String?, file: File, messageId: Long,
+                                     callback: FirebaseUploadCallback, retryCount: Int) {
+        if (retryCount > RETRY_COUNT) {
             callback.onUploadFinished()
             return
         }
@@ -874,23 +904,15 @@ object ApiUtils {
 
         try {
             Log.v(TAG, "starting upload for $messageId")
-            folderRef!!.child(messageId.toString() + "").putBytes(encryptionUtils.encrypt(bytes).toByteArray())
+            folderRef!!.child(messageId.toString() + "").putFile(Uri.fromFile(file))
                     .addOnSuccessListener {
                         Log.v(TAG, "finished uploading and exiting for $messageId")
                         callback.onUploadFinished()
                     }
                     .addOnFailureListener { e ->
                         Log.e(TAG, "failed to upload file", e)
-                        uploadBytesToFirebase(accountId, bytes, messageId, encryptionUtils, callback, retryCount + 1)
+                        uploadFileToFirebase(accountId, file, messageId, callback, retryCount + 1)
                     }
-//            folderRef!!.child(messageId.toString() + "").putBytes(encryptionUtils.encrypt(bytes).toByteArray())
-//                    .addOnSuccessListener {
-//                        Log.v(TAG, "pushed through upload for $messageId")
-//                    }
-//            folderRef!!.child(messageId.toString() + "").putBytes(encryptionUtils.encrypt(bytes).toByteArray())
-//                    .addOnSuccessListener {
-//                        Log.v(TAG, "pushed through upload for $messageId")
-//                    }
         } catch (e: Throwable) {
             e.printStackTrace()
             callback.onUploadFinished()
@@ -899,7 +921,9 @@ object ApiUtils {
     }
 
     /**
-     * Downloads and decrypts a file from firebase, using a callback for when the response is done
+     * Downloads and decrypts a file from firebase, using a callback for when the response is done.
+     * The encrypted data is written to disk first and then decrypted on a background thread, so
+     * that it is never held in memory.
      *
      * @param file the location on your device to save to.
      * @param messageId the id of the message to grab so we can create a firebase storage ref.
@@ -924,25 +948,28 @@ object ApiUtils {
 
         try {
             val fileRef = folderRef!!.child(messageId.toString() + "")
+            val encrypted = File(file.absolutePath + ".encrypted")
+
             Log.v(TAG, "starting download for $messageId")
-            fileRef.getBytes(MAX_SIZE)
-                    .addOnSuccessListener { bytes ->
-                        val bytes = encryptionUtils.decryptData(String(bytes))
-
-                        try {
-                            val bos = BufferedOutputStream(FileOutputStream(file))
-                            bos.write(bytes)
-                            bos.flush()
-                            bos.close()
-                        } catch (e: Exception) {
-                            e.printStackTrace()
-                        }
+            fileRef.getFile(encrypted)
+                    .addOnSuccessListener {
+                        Thread {
+                            try {
+                                encryptionUtils.decrypt(FileInputStream(encrypted), FileOutputStream(file))
+                            } catch (e: Exception) {
+                                e.printStackTrace()
+                            }
 
-                        Log.v(TAG, "finished downloading $messageId")
-                        callback.onDownloadComplete()
+                            encrypted.delete()
+
+                            Log.v(TAG, "finished downloading $messageId")
+                            callback.onDownloadComplete()
+                        }.start()
                     }
                     .addOnFailureListener { e ->
                         Log.v(TAG, "failed to download file", e)
+                        encrypted.delete()
+
                         val doesNotExist = e.message?.contains("does not exist")
                         if (doesNotExist != null && doesNotExist) {
                             downloadFileFromFirebase(accountId, file, messageId, encryptionUtils, callback, retryCount + 1)
@@ -950,14 +977,6 @@ object ApiUtils {
                             callback.onDownloadComplete()
                         }
                     }
-//            folderRef!!.child(messageId.toString() + "").getBytes(MAX_SIZE)
-//                    .addOnSuccessListener { _ ->
-//                        Log.v(TAG, "pushed through downloading $messageId")
-//                    }
-//            folderRef!!.child(messageId.toString() + "").getBytes(MAX_SIZE)
-//                    .addOnSuccessListener { _ ->
-//                        Log.v(TAG, "pushed through downloading $messageId")
-//                    }
         } catch (e: Exception) {
             e.printStackTrace()
             callback.onDownloadComplete()
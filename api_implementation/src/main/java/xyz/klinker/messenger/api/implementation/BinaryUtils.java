@@ -22,6 +22,7 @@ import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.provider.MediaStore;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -63,6 +64,24 @@ public class BinaryUtils {
         return bytes;
     }
 
+    /**
+     * Opens the media for reading. Images are scaled and compressed the same way that
+     * getMediaBytes does, since they end up small. Anything else, like a video, is streamed
+     * straight from the content resolver instead of being loaded into memory.
+     */
+    public static InputStream openMediaStream(Context context, String uri, String mimeType, boolean scale) throws IOException {
+        if (mimeType.startsWith("image/") && !mimeType.equals("image/gif")) {
+            return new ByteArrayInputStream(getMediaBytes(context, uri, mimeType, scale));
+        }
+
+        InputStream stream = context.getContentResolver().openInputStream(Uri.parse(uri));
+        if (stream == null) {
+            throw new IOException("could not open " + uri);
+        }
+
+        return stream;
+    }
+
     private static byte[] readBytes(InputStream inputStream) throws IOException {
         ByteArrayOutputStream byteBuffer = new ByteArrayOutputStream();
 
@@ -57,6 +57,10 @@ class MessengerApplication : FirebaseApplication(), ApiErrorPersister, AccountIn
         if (Settings.quickCompose) {
             QuickComposeNotificationService.start(this)
         }
+
+        if ("robolectric" != Build.FINGERPRINT && !Settings.firstStart) {
+            Thread { DataSource.warmConversationIndex(this) }.start()
+        }
     }
 
     override fun refreshDynamicShortcuts(delay: Long) {
@@ -86,7 +90,7 @@ class MessengerApplication : FirebaseApplication(), ApiErrorPersister, AccountIn
     override fun getFirebaseMessageHandler(): FirebaseMessageHandler {
         return object : FirebaseMessageHandler {
             override fun handleMessage(application: Application, operation: String, data: String) {
-                Thread { FirebaseHandlerService.process(application, operation, data) }.start()
+                FirebaseHandlerService.enqueue(application, operation, data)
             }
 
             override fun handleDelete(application: Application) {
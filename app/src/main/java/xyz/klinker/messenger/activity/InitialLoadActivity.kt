@@ -45,6 +45,7 @@ import xyz.klinker.messenger.shared.data.Settings
 import xyz.klinker.messenger.shared.data.model.Contact
 import xyz.klinker.messenger.shared.service.ApiDownloadService
 import xyz.klinker.messenger.shared.service.ApiUploadService
+import xyz.klinker.messenger.shared.service.InitialImportPipeline
 import xyz.klinker.messenger.shared.util.*
 import xyz.klinker.messenger.shared.util.listener.ProgressUpdateListener
 
@@ -57,6 +58,7 @@ open class InitialLoadActivity : AppCompatActivity(), ProgressUpdateListener {
     private var handler: Handler? = null
     private var startUploadAfterSync = false
     private var downloadReceiver: BroadcastReceiver? = null
+    private var importPipeline: InitialImportPipeline? = null
     private var promptedForDefaultSMS = false
 
     private val name: String
@@ -196,6 +198,7 @@ open class InitialLoadActivity : AppCompatActivity(), ProgressUpdateListener {
 
     public override fun onDestroy() {
         super.onDestroy()
+        importPipeline?.cancel()
 
         if (downloadReceiver != null) {
             unregisterReceiver(downloadReceiver)
@@ -226,12 +229,14 @@ open class InitialLoadActivity : AppCompatActivity(), ProgressUpdateListener {
 
             val source = DataSource
 
-            val conversations = SmsMmsUtils.queryConversations(context)
-            try {
-                source.insertConversations(conversations, context, this@InitialLoadActivity)
-            } catch (e: Exception) {
-                source.ensureActionable(this)
-                source.insertConversations(conversations, context, this@InitialLoadActivity)
+            val pipeline = InitialImportPipeline(context, this@InitialLoadActivity)
+            importPipeline = pipeline
+
+            if (!pipeline.run()) {
+                // the activity was destroyed part way through. Start from an empty database the
+                // next time the import runs, instead of keeping the conversations that were written.
+                source.clearTables(context)
+                return@Thread
             }
 
             handler!!.post { progress.isIndeterminate = true }
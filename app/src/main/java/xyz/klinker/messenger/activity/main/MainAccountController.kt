@@ -20,6 +20,7 @@ import xyz.klinker.messenger.shared.data.Settings
 import xyz.klinker.messenger.shared.service.ApiDownloadService
 import xyz.klinker.messenger.shared.service.FirebaseTokenUpdateCheckService
 import xyz.klinker.messenger.shared.service.NewMessagesCheckService
+import xyz.klinker.messenger.shared.service.jobs.DeltaSyncWork
 
 class MainAccountController(private val activity: MessengerActivity) {
 
@@ -93,6 +94,7 @@ class MainAccountController(private val activity: MessengerActivity) {
 
             Handler().postDelayed({
                 NewMessagesCheckService.startService(activity)
+                DeltaSyncWork.runNow(activity)
             }, 3000)
         } else {
             startImportOrLoad = false
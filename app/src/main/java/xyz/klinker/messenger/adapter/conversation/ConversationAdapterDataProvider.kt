@@ -1,25 +1,90 @@
 package xyz.klinker.messenger.adapter.conversation
 
 import android.app.Activity
+import android.os.Handler
+import android.os.Looper
+import androidx.recyclerview.widget.DiffUtil
 import xyz.klinker.messenger.api.implementation.firebase.AnalyticsHelper
 import xyz.klinker.messenger.shared.data.SectionType
 import xyz.klinker.messenger.shared.data.model.Conversation
 import xyz.klinker.messenger.shared.data.pojo.ReorderType
 import xyz.klinker.messenger.shared.util.TimeUtils
+import java.util.concurrent.Executors
 
 class ConversationAdapterDataProvider(private val adapter: ConversationListAdapter, private val activity: Activity) {
 
     val conversations = mutableListOf<Conversation>()
     val sectionCounts = mutableListOf<SectionType>()
 
+    private val handler = Handler(Looper.getMainLooper())
+    private var latestSubmission = 0
+
     fun generateSections(newConversations: List<Conversation>) {
+        val showOnlineCard = adapter.showHeaderAboutTextingOnline()
+
         conversations.clear()
+        conversations.addAll(newConversations)
         sectionCounts.clear()
+        sectionCounts.addAll(buildSections(newConversations, showOnlineCard))
 
-        if (adapter.showHeaderAboutTextingOnline()) {
-            sectionCounts.add(SectionType(SectionType.CARD_ABOUT_ONLINE, 0))
+        if (showOnlineCard) {
             AnalyticsHelper.convoListCardShown(activity)
         }
+    }
+
+    /**
+     * Replaces the conversations in the list. The sections and the differences from the current
+     * list are worked out on a background thread, and then only the rows that changed are
+     * inserted, moved, removed or bound again. If the list was changed in the meantime, by a swipe
+     * for example, the whole list is refreshed instead.
+     *
+     * @param onApplied called on the main thread, once the adapter has the new conversations.
+     */
+    fun submitConversations(newConversations: List<Conversation>, onApplied: () -> Unit) {
+        val submission = ++latestSubmission
+        val showOnlineCard = adapter.showHeaderAboutTextingOnline()
+        val oldConversations = conversations.toList()
+        val oldSections = sectionCounts.map { SectionType(it.type, it.count) }
+        val oldRows = ConversationListRow.fromSections(oldConversations, oldSections, adapter.showHeadersForEmptySections)
+
+        DIFF_EXECUTOR.execute {
+            val newSections = buildSections(newConversations, showOnlineCard)
+            val newRows = ConversationListRow.fromSections(newConversations, newSections, adapter.showHeadersForEmptySections)
+            val diff = DiffUtil.calculateDiff(ConversationListRow.DiffCallback(oldRows, newRows))
+
+            handler.post {
+                if (submission != latestSubmission) {
+                    // a newer list is on the way
+                    return@post
+                }
+
+                val unchanged = conversations == oldConversations && sectionCounts == oldSections
+
+                conversations.clear()
+                conversations.addAll(newConversations)
+                sectionCounts.clear()
+                sectionCounts.addAll(newSections)
+
+                if (unchanged) {
+                    diff.dispatchUpdatesTo(adapter)
+                } else {
+                    adapter.notifyDataSetChanged()
+                }
+
+                if (showOnlineCard) {
+                    AnalyticsHelper.convoListCardShown(activity)
+                }
+
+                onApplied()
+            }
+        }
+    }
+
+    private fun buildSections(newConversations: List<Conversation>, showOnlineCard: Boolean): List<SectionType> {
+        val sectionCounts = mutableListOf<SectionType>()
+        if (showOnlineCard) {
+            sectionCounts.add(SectionType(SectionType.CARD_ABOUT_ONLINE, 0))
+        }
 
         var currentSection = 0
         var currentCount = 0
@@ -27,7 +92,6 @@ class ConversationAdapterDataProvider(private val adapter: ConversationListAdapt
         var i = 0
         while (i < newConversations.size) {
             val conversation = newConversations[i]
-            conversations.add(conversation)
 
             if (currentSection == SectionType.PINNED && conversation.pinned ||
                     currentSection == SectionType.TODAY && TimeUtils.isToday(conversation.timestamp) ||
@@ -44,13 +108,13 @@ class ConversationAdapterDataProvider(private val adapter: ConversationListAdapt
                 currentSection++
                 currentCount = 0
                 i--
-                conversations.remove(conversation)
             }
 
             i++
         }
 
         sectionCounts.add(SectionType(currentSection, currentCount))
+        return sectionCounts
     }
 
     fun removeItem(position: Int, reorderType: ReorderType): Boolean {
@@ -163,4 +227,8 @@ class ConversationAdapterDataProvider(private val adapter: ConversationListAdapt
                 ?.let { sectionCounts[it].count }
                 ?: 0
     }
-}
\ No newline at end of file
+
+    companion object {
+        private val DIFF_EXECUTOR = Executors.newSingleThreadExecutor()
+    }
+}
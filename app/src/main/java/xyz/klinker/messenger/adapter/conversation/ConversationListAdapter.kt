@@ -59,11 +59,13 @@ class ConversationListAdapter(context: MessengerActivity, initialConversations:
     override val sectionCounts: MutableList<SectionType>
         get() = dataProvider.sectionCounts
 
+    val showHeadersForEmptySections = showHeaderAboutTextingOnline()
+
     init {
         this.conversations = initialConversations.toMutableList()
         if (this.multiSelector != null) this.multiSelector.setAdapter(this)
 
-        shouldShowHeadersForEmptySections(showHeaderAboutTextingOnline())
+        shouldShowHeadersForEmptySections(showHeadersForEmptySections)
     }
 
     override fun getSectionCount() = sectionCounts.size
@@ -120,6 +122,9 @@ class ConversationListAdapter(context: MessengerActivity, initialConversations:
         }
     }
 
+    fun submitConversations(conversations: List<Conversation>, onApplied: () -> Unit) =
+            dataProvider.submitConversations(conversations, onApplied)
+
     override fun getCountForSection(sectionType: Int) = dataProvider.getCountForSection(sectionType)
     override fun findPositionForConversationId(id: Long) = dataProvider.findPositionForConversationId(id)
     override fun removeItem(position: Int, type: ReorderType) = dataProvider.removeItem(position, type)
@@ -0,0 +1,75 @@
+package xyz.klinker.messenger.adapter.conversation
+
+import androidx.recyclerview.widget.DiffUtil
+import xyz.klinker.messenger.shared.data.SectionType
+import xyz.klinker.messenger.shared.data.model.Conversation
+
+/**
+ * A row in the conversation list, the way that the sectioned adapter lays them out: a header for
+ * each section that is shown, followed by the conversations in that section. These are only used
+ * to work out what changed between two loads of the list.
+ */
+class ConversationListRow private constructor(val section: Int, val sectionType: Int, val conversation: Conversation?) {
+
+    class DiffCallback(private val oldRows: List<ConversationListRow>, private val newRows: List<ConversationListRow>)
+        : DiffUtil.Callback() {
+
+        override fun getOldListSize() = oldRows.size
+        override fun getNewListSize() = newRows.size
+
+        override fun areItemsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean {
+            val oldRow = oldRows[oldItemPosition]
+            val newRow = newRows[newItemPosition]
+
+            return if (oldRow.conversation == null || newRow.conversation == null) {
+                oldRow.conversation == null && newRow.conversation == null && oldRow.sectionType == newRow.sectionType
+            } else {
+                oldRow.conversation.id == newRow.conversation.id
+            }
+        }
+
+        override fun areContentsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean {
+            val oldRow = oldRows[oldItemPosition]
+            val newRow = newRows[newItemPosition]
+
+            return if (oldRow.conversation == null || newRow.conversation == null) {
+                // the header's mark as read button looks its section up by index
+                oldRow.section == newRow.section
+            } else {
+                sameConversation(oldRow.conversation, newRow.conversation)
+            }
+        }
+
+        private fun sameConversation(one: Conversation, two: Conversation) = one.id == two.id &&
+                one.title == two.title && one.snippet == two.snippet && one.timestamp == two.timestamp &&
+                one.read == two.read && one.pinned == two.pinned && one.mute == two.mute &&
+                one.archive == two.archive && one.private == two.private && one.imageUri == two.imageUri &&
+                one.phoneNumbers == two.phoneNumbers && one.idMatcher == two.idMatcher &&
+                one.ringtoneUri == two.ringtoneUri && one.ledColor == two.ledColor &&
+                one.simSubscriptionId == two.simSubscriptionId && one.folderId == two.folderId &&
+                one.colors.color == two.colors.color && one.colors.colorDark == two.colors.colorDark &&
+                one.colors.colorLight == two.colors.colorLight && one.colors.colorAccent == two.colors.colorAccent
+    }
+
+    companion object {
+
+        fun fromSections(conversations: List<Conversation>, sections: List<SectionType>,
+                         showHeadersForEmptySections: Boolean): List<ConversationListRow> {
+            val rows = ArrayList<ConversationListRow>(conversations.size + sections.size)
+            var position = 0
+
+            sections.forEachIndexed { section, type ->
+                if (type.count > 0 || showHeadersForEmptySections) {
+                    rows.add(ConversationListRow(section, type.type, null))
+                    for (i in position until Math.min(position + type.count, conversations.size)) {
+                        rows.add(ConversationListRow(section, type.type, conversations[i]))
+                    }
+                }
+
+                position += type.count
+            }
+
+            return rows
+        }
+    }
+}
@@ -18,7 +18,6 @@ package xyz.klinker.messenger.adapter.message
 
 import android.annotation.SuppressLint
 import android.content.Context
-import android.database.Cursor
 import android.os.Build
 import android.util.Log
 import android.view.LayoutInflater
@@ -47,7 +46,7 @@ import java.util.*
 /**
  * Adapter for displaying messages in a conversation.
  */
-class MessageListAdapter(messages: Cursor, private val receivedColor: Int, private val accentColor: Int, private val isGroup: Boolean,
+class MessageListAdapter(messages: List<MessageListItem>, private val receivedColor: Int, private val accentColor: Int, private val isGroup: Boolean,
                          private val fragment: MessageListFragment)
     : RecyclerView.Adapter<MessageViewHolder>(), MessageDeletedListener, FastScroller.SectionIndexer {
 
@@ -68,7 +67,7 @@ class MessageListAdapter(messages: Cursor, private val receivedColor: Int, priva
 
     var snackbar: Snackbar? = null
 
-    val messages: Cursor
+    val messages: List<MessageListItem>
         get() = dataProvider.messages
 
     init {
@@ -78,6 +77,7 @@ class MessageListAdapter(messages: Cursor, private val receivedColor: Int, priva
         }
 
         fragment.multiSelect.setAdapter(this)
+        setHasStableIds(true)
     }
 
     override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): MessageViewHolder {
@@ -139,15 +139,8 @@ class MessageListAdapter(messages: Cursor, private val receivedColor: Int, priva
 
     @SuppressLint("SetTextI18n")
     override fun onBindViewHolder(holder: MessageViewHolder, position: Int) {
-        try {
-            dataProvider.messages.moveToPosition(position)
-        } catch (e: IllegalStateException) {
-            fragment.onBackPressed()
-            return
-        }
-
-        val message = Message()
-        message.fillFromCursor(dataProvider.messages)
+        val item = dataProvider.messages.getOrNull(position) ?: return
+        val message = item.message
 
         holder.messageId = message.id
         holder.mimeType = message.mimeType
@@ -196,7 +189,7 @@ class MessageListAdapter(messages: Cursor, private val receivedColor: Int, priva
                     holder.messageTime)
         }
 
-        stylingHelper.calculateAdjacentItems(dataProvider.messages, position)
+        stylingHelper.calculateAdjacentItems(message, item.previous, item.next)
                 .setMargins(holder.itemView)
                 .setBackground(holder.messageHolder, message.mimeType!!)
                 .applyTimestampHeight(holder.timestamp, timestampHeight)
@@ -220,14 +213,14 @@ class MessageListAdapter(messages: Cursor, private val receivedColor: Int, priva
         }
     }
 
-    override fun getItemCount() = try { dataProvider.messages.count } catch (e: Exception) { 0 }
+    override fun getItemCount() = dataProvider.messages.size
 
     override fun getItemViewType(position: Int): Int {
         try {
-            dataProvider.messages.moveToPosition(position)
-            var type = dataProvider.messages.getInt(dataProvider.messages.getColumnIndex(Message.COLUMN_TYPE))
-            val mimeType = dataProvider.messages.getString(dataProvider.messages.getColumnIndex(Message.COLUMN_MIME_TYPE))
-            val time = dataProvider.messages.getLong(dataProvider.messages.getColumnIndex(Message.COLUMN_TIMESTAMP))
+            val message = dataProvider.messages[position].message
+            var type = message.type
+            val mimeType = message.mimeType
+            val time = message.timestamp
 
             if (ignoreSendingStatus && type == Message.TYPE_SENDING) {
                 type = if (mimeType != null && (mimeType.contains("image") || mimeType.contains("video") || mimeType == MimeType.MEDIA_MAP))
@@ -255,26 +248,13 @@ class MessageListAdapter(messages: Cursor, private val receivedColor: Int, priva
             return ""
         }
 
-        return try {
-            dataProvider.messages.moveToPosition(position)
-            val millis = dataProvider.messages.getLong(dataProvider.messages.getColumnIndex(Message.COLUMN_TIMESTAMP))
-            val date = Date(millis)
-
-            SimpleDateFormat("MMM d, yyyy", Locale.getDefault()).format(date)
-        } catch (e: Exception) {
-            fragment.onBackPressed()
-            ""
-        }
+        val millis = dataProvider.messages.getOrNull(position)?.message?.timestamp ?: return ""
+        return SimpleDateFormat("MMM d, yyyy", Locale.getDefault()).format(Date(millis))
     }
 
-    override fun getItemId(position: Int) = try {
-            dataProvider.messages.moveToPosition(position)
-            dataProvider.messages.getLong(dataProvider.messages.getColumnIndex(Message.COLUMN_ID))
-        } catch (e: Exception) {
-            -1L
-        }
+    override fun getItemId(position: Int) = dataProvider.messages.getOrNull(position)?.message?.id ?: -1L
 
-    fun addMessage(recycler: RecyclerView, newMessages: Cursor) {
+    fun addMessage(recycler: RecyclerView, newMessages: List<MessageListItem>) {
         dataProvider.addMessage(recycler, newMessages)
     }
 
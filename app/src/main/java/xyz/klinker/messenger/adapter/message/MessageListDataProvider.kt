@@ -1,73 +1,76 @@
 package xyz.klinker.messenger.adapter.message
 
 import android.content.Context
-import android.database.Cursor
 import androidx.coordinatorlayout.widget.CoordinatorLayout
+import androidx.recyclerview.widget.AdapterListUpdateCallback
+import androidx.recyclerview.widget.AsyncDifferConfig
+import androidx.recyclerview.widget.AsyncListDiffer
 import androidx.recyclerview.widget.LinearLayoutManager
 import androidx.recyclerview.widget.RecyclerView
 import com.google.android.material.snackbar.Snackbar
 import xyz.klinker.messenger.R
 import xyz.klinker.messenger.activity.MessengerActivity
 import xyz.klinker.messenger.fragment.message.MessageListFragment
-import xyz.klinker.messenger.fragment.message.load.MessageListLoader
 import xyz.klinker.messenger.shared.data.DataSource
 import xyz.klinker.messenger.shared.data.model.Message
-import xyz.klinker.messenger.shared.util.CursorUtil
 import xyz.klinker.messenger.shared.util.DensityUtil
 import xyz.klinker.messenger.shared.util.SnackbarAnimationFix
 
 class MessageListDataProvider(private val adapter: MessageListAdapter, private val fragment: MessageListFragment,
-                              initialCursor: Cursor) {
+                              initialMessages: List<MessageListItem>) {
 
     private val activity: MessengerActivity? by lazy { fragment.activity as MessengerActivity }
 
-    var messages = initialCursor
+    // the differences between the old and new lists are worked out on a background thread, then
+    // only the rows that changed are inserted, removed or bound again
+    private val differ = AsyncListDiffer(AdapterListUpdateCallback(adapter),
+            AsyncDifferConfig.Builder(MessageListItem.DIFF_CALLBACK).build())
 
-    fun addMessage(recycler: RecyclerView, newMessages: Cursor) {
-        val initialCount = adapter.itemCount
+    val messages: List<MessageListItem>
+        get() = differ.currentList
 
-        CursorUtil.closeSilent(messages)
-        messages = newMessages
+    init {
+        differ.submitList(initialMessages)
+    }
 
-        val finalCount = adapter.itemCount
+    fun addMessage(recycler: RecyclerView, newMessages: List<MessageListItem>) {
+        val initialCount = messages.size
+        val previousLast = messages.lastOrNull()?.message?.id
 
-        if (initialCount == finalCount) {
-            // message was probably marked as sent
-            adapter.notifyItemChanged(finalCount - 1)
-        } else if (initialCount > finalCount) {
-            // deleted a message
-            adapter.notifyDataSetChanged()
-        } else {
-            if (finalCount - 2 >= 0) {
-                // with the new paddings, we need to notify the second to last item too
-                adapter.notifyItemChanged(finalCount - 2)
+        if (newMessages.isEmpty()) {
+            // clears the list right away, instead of working out that every row was removed
+            differ.submitList(null)
+            return
+        }
+
+        differ.submitList(newMessages) {
+            // older pages are added to the top of the list, new messages to the bottom
+            val finalCount = adapter.itemCount
+            if (finalCount > initialCount && messages.last().message.id != previousLast) {
+                onNewMessages(recycler, initialCount, finalCount)
             }
+        }
+    }
 
-            adapter.notifyItemInserted(finalCount - 1)
-
-            if (Math.abs((recycler.layoutManager as LinearLayoutManager).findLastVisibleItemPosition() - initialCount) < 4) {
-                // near the bottom, scroll to the new item
-                recycler.layoutManager?.scrollToPosition(finalCount - 1)
-            } else if (messages.moveToLast()) {
-                val message = Message()
-                message.fillFromCursor(messages)
-                if (message.type == Message.TYPE_RECEIVED) {
-                    val text = recycler.context.getString(R.string.new_message)
-                    adapter.snackbar = Snackbar
-                            .make(recycler, text, Snackbar.LENGTH_INDEFINITE)
-                            .setAction(R.string.read) { recycler.layoutManager?.scrollToPosition(finalCount - 1) }
-
-                    try {
-                        (adapter.snackbar!!.view.layoutParams as CoordinatorLayout.LayoutParams)
-                                .bottomMargin = DensityUtil.toDp(recycler.context, 56)
-                    } catch (e: Exception) {
-                        e.printStackTrace()
-                    }
-
-                    SnackbarAnimationFix.apply(adapter.snackbar!!)
-                    adapter.snackbar!!.show()
-                }
+    private fun onNewMessages(recycler: RecyclerView, initialCount: Int, finalCount: Int) {
+        if (Math.abs((recycler.layoutManager as LinearLayoutManager).findLastVisibleItemPosition() - initialCount) < 4) {
+            // near the bottom, scroll to the new item
+            recycler.layoutManager?.scrollToPosition(finalCount - 1)
+        } else if (messages.last().message.type == Message.TYPE_RECEIVED) {
+            val text = recycler.context.getString(R.string.new_message)
+            adapter.snackbar = Snackbar
+                    .make(recycler, text, Snackbar.LENGTH_INDEFINITE)
+                    .setAction(R.string.read) { recycler.layoutManager?.scrollToPosition(finalCount - 1) }
+
+            try {
+                (adapter.snackbar!!.view.layoutParams as CoordinatorLayout.LayoutParams)
+                        .bottomMargin = DensityUtil.toDp(recycler.context, 56)
+            } catch (e: Exception) {
+                e.printStackTrace()
             }
+
+            SnackbarAnimationFix.apply(adapter.snackbar!!)
+            adapter.snackbar!!.show()
         }
     }
 
@@ -0,0 +1,62 @@
+package xyz.klinker.messenger.adapter.message
+
+import android.database.Cursor
+import androidx.recyclerview.widget.DiffUtil
+import xyz.klinker.messenger.shared.data.model.Message
+import xyz.klinker.messenger.shared.util.closeSilent
+
+/**
+ * A row in the message list. The message is read out of the database once, when the list is
+ * loaded, instead of from a cursor every time the row is bound, and it isn't changed after that.
+ *
+ * The messages above and below it are kept too, since they decide the row's margins, the corners
+ * on its bubble and whether its timestamp is shown. When a new message comes in, the row that used
+ * to be at the bottom is different because of that, so it gets bound again, along with the new one.
+ */
+class MessageListItem(val message: Message, val previous: Message?, val next: Message?) {
+
+    companion object {
+
+        fun fromMessages(messages: List<Message>) = messages.mapIndexed { i, message ->
+            MessageListItem(message, messages.getOrNull(i - 1), messages.getOrNull(i + 1))
+        }
+
+        /**
+         * Reads every message from the cursor and closes it.
+         */
+        fun readMessages(cursor: Cursor): List<Message> {
+            val messages = ArrayList<Message>(cursor.count)
+            if (cursor.moveToFirst()) {
+                do {
+                    val message = Message()
+                    message.fillFromCursor(cursor)
+                    messages.add(message)
+                } while (cursor.moveToNext())
+            }
+
+            cursor.closeSilent()
+            return messages
+        }
+
+        val DIFF_CALLBACK = object : DiffUtil.ItemCallback<MessageListItem>() {
+            override fun areItemsTheSame(oldItem: MessageListItem, newItem: MessageListItem) =
+                    oldItem.message.id == newItem.message.id
+
+            override fun areContentsTheSame(oldItem: MessageListItem, newItem: MessageListItem) =
+                    sameMessage(oldItem.message, newItem.message) &&
+                            sameNeighbour(oldItem.previous, newItem.previous) && sameNeighbour(oldItem.next, newItem.next)
+        }
+
+        private fun sameMessage(one: Message, two: Message) = one.id == two.id && one.type == two.type &&
+                one.data == two.data && one.timestamp == two.timestamp && one.mimeType == two.mimeType &&
+                one.read == two.read && one.seen == two.seen && one.from == two.from && one.color == two.color &&
+                one.simPhoneNumber == two.simPhoneNumber && one.sentDeviceId == two.sentDeviceId
+
+        // only the parts of the neighbouring messages that the styling looks at
+        private fun sameNeighbour(one: Message?, two: Message?) = if (one == null || two == null) {
+            one == null && two == null
+        } else {
+            one.type == two.type && one.timestamp == two.timestamp && one.from == two.from
+        }
+    }
+}
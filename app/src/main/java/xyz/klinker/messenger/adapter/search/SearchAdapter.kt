@@ -27,6 +27,7 @@ import xyz.klinker.messenger.R
 import xyz.klinker.messenger.adapter.view_holder.ConversationViewHolder
 import xyz.klinker.messenger.adapter.view_holder.MessageViewHolder
 import xyz.klinker.messenger.shared.data.ColorSet
+import xyz.klinker.messenger.shared.data.FullTextIndex
 import xyz.klinker.messenger.shared.data.Settings
 import xyz.klinker.messenger.shared.data.model.Conversation
 import xyz.klinker.messenger.shared.data.model.Message
@@ -39,6 +40,7 @@ class SearchAdapter(search: String?, private var conversations: MutableList<Conv
                     listener: SearchListener, private val color: Int? = null) : SectionedRecyclerViewAdapter<RecyclerView.ViewHolder>() {
 
     private var search = search ?: ""
+    private var pattern = buildHighlightPattern(this.search)
     private val headerBinder = SearchListHeaderBinder(this)
     private val itemBinder = SearchListItemBinder(listener)
 
@@ -57,12 +59,6 @@ class SearchAdapter(search: String?, private var conversations: MutableList<Conv
 
     override fun onBindViewHolder(holder: RecyclerView.ViewHolder, section: Int,
                                   relativePosition: Int, absolutePosition: Int) {
-        val pattern = try {
-            Pattern.compile(search, Pattern.CASE_INSENSITIVE)
-        } catch (e: Exception) {
-            Pattern.compile("")
-        }
-
         val highlight = Link(pattern)
                 .setTextColor(ColorSet.DEFAULT(holder.itemView.context).colorAccent)
                 .setHighlightAlpha(0.4f)
@@ -167,12 +163,16 @@ class SearchAdapter(search: String?, private var conversations: MutableList<Conv
         this.messages?.clear()
 
         this.search = search ?: ""
+        this.pattern = buildHighlightPattern(this.search)
         this.conversations = conversations
         this.messages = messages
 
         notifyDataSetChanged()
     }
 
+    private fun buildHighlightPattern(search: String) =
+            FullTextIndex.buildHighlightPattern(search) ?: Pattern.compile(Pattern.quote(search), Pattern.CASE_INSENSITIVE)
+
     companion object {
         private const val VIEW_TYPE_CONVERSATION = -3
     }
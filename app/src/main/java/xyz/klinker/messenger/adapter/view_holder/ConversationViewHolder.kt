@@ -88,7 +88,10 @@ class ConversationViewHolder(itemView: View, private val expandedListener: Conve
 
                 if (header == null) {
                     try {
-                        adapter!!.conversations[absolutePosition].read = true
+                        // the list can shift around this row without binding it again, so find the
+                        // conversation by its id rather than this row's position
+                        conversation!!.read = true
+                        adapter!!.conversations.firstOrNull { it.id == conversation!!.id }?.read = true
                     } catch (e: Exception) {
                     }
 
@@ -89,8 +89,11 @@ class ConversationRecyclerViewManager(private val fragment: ConversationListFrag
         }
 
         if (adapter != null) {
-            adapter!!.conversations = conversations
-            adapter!!.notifyDataSetChanged()
+            adapter!!.submitConversations(conversations) {
+                if (activity != null) {
+                    onConversationsSet()
+                }
+            }
         } else {
             adapter = ConversationListAdapter(activity as MessengerActivity,
                     conversations, fragment.multiSelector, fragment, fragment)
@@ -102,8 +105,12 @@ class ConversationRecyclerViewManager(private val fragment: ConversationListFrag
 
             val touchHelper = fragment.swipeHelper.getSwipeTouchHelper(adapter!!)
             touchHelper.attachToRecyclerView(recyclerView)
+
+            onConversationsSet()
         }
+    }
 
+    private fun onConversationsSet() {
         fragment.messageListManager.tryOpeningFromArguments()
         checkEmptyViewDisplay()
     }
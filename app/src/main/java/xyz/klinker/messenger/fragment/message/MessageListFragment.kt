@@ -46,7 +46,6 @@ import xyz.klinker.messenger.shared.receiver.MessageListUpdatedReceiver
 import xyz.klinker.messenger.shared.service.notification.NotificationConstants
 import xyz.klinker.messenger.shared.shared_interfaces.IMessageListFragment
 import xyz.klinker.messenger.shared.util.AnimationUtils
-import xyz.klinker.messenger.shared.util.CursorUtil
 import xyz.klinker.messenger.utils.multi_select.MessageMultiSelectDelegate
 
 /**
@@ -177,11 +176,6 @@ class MessageListFragment : Fragment(), ContentFragment, IMessageListFragment {
         multiSelect.clearActionMode()
     }
 
-    override fun onDetach() {
-        super.onDetach()
-        CursorUtil.closeSilent(messageLoader.adapter?.messages)
-    }
-
     override fun onRequestPermissionsResult(requestCode: Int, permissions: Array<String>, grantResults: IntArray) {
         if (!permissionHelper.onRequestPermissionsResult(requestCode, permissions, grantResults)) {
             super.onRequestPermissionsResult(requestCode, permissions, grantResults)
@@ -16,6 +16,7 @@ import com.google.firebase.ml.naturallanguage.smartreply.SmartReplySuggestion
 import com.l4digital.fastscroll.FastScrollRecyclerView
 import xyz.klinker.messenger.R
 import xyz.klinker.messenger.adapter.message.MessageListAdapter
+import xyz.klinker.messenger.adapter.message.MessageListItem
 import xyz.klinker.messenger.fragment.message.MessageListFragment
 import xyz.klinker.messenger.fragment.message.ConversationInformationUpdater
 import xyz.klinker.messenger.shared.data.DataSource
@@ -48,9 +49,15 @@ class MessageListLoader(private val fragment: MessageListFragment) {
     private var contactByNameMap: Map<String, Contact>? = null
     
     private val listRefreshMonitor = MessageListRefreshMonitor()
-    private var limitMessagesBasedOnPreviousSize = true
-    var messageLoadedCount = -1
-    
+
+    // The list is a window on the conversation: the newest page of messages, plus whichever older
+    // pages have been scrolled up to and any messages that have come in since. The window is found
+    // again by its oldest and newest (timestamp, id), rather than by a count or an offset.
+    private val windowLock = Any()
+    private var window: List<Message> = emptyList()
+    @Volatile private var hasOlderMessages = true
+    private var loadingOlderMessages = false
+
     fun initRecycler() {
         ColorUtils.changeRecyclerOverscrollColors(messageList, argManager.color)
 
@@ -71,6 +78,10 @@ class MessageListLoader(private val fragment: MessageListFragment) {
                 if (pastVisibleItems + visibleItemCount >= totalItemCount) {
                     adapter?.snackbar?.dismiss()
                 }
+
+                if (dy < 0 && pastVisibleItems in 0 until LOAD_OLDER_THRESHOLD) {
+                    loadOlderMessages()
+                }
             }
         })
     }
@@ -88,34 +99,6 @@ class MessageListLoader(private val fragment: MessageListFragment) {
                 listRefreshMonitor.incrementRefreshThreadsCount()
                 draftManager.loadDrafts()
 
-                val cursor: Cursor
-                if (argManager.limitMessages && argManager.messageToOpen == -1L && limitMessagesBasedOnPreviousSize) {
-                    // weird logic with the counts for this. If we just load the MESSAGE_LIMIT each time,
-                    // then the adapter gets screwed up and can display the wrong messages, since recycler views
-                    // are meant to be "smart" about managing state.
-                    // So, if we send a message, or a message is received, we should increment the number of messages
-                    // that we are reading from the database, to account for this.
-
-                    cursor = DataSource.getMessageCursorWithLimit(activity!!, argManager.conversationId,
-                            when {
-                                messageLoadedCount == -1 -> MESSAGE_LIMIT
-                                addedNewMessage -> messageLoadedCount + 1
-                                else -> messageLoadedCount
-                            }
-                    )
-
-                    if (cursor.count < MESSAGE_LIMIT) {
-                        // When the conversations are small enough, then we shouldn't need to do this
-                        // this is just a slight cleanup to remove the extra size check that happens in the
-                        // above data load. If it isn't necessary, then we shouldn't do it
-                        limitMessagesBasedOnPreviousSize = false
-                    }
-                } else {
-                    cursor = DataSource.getMessages(activity!!, argManager.conversationId)
-                }
-
-                messageLoadedCount = cursor.count
-
                 val numbers = argManager.phoneNumbers
                 val title = argManager.title
 
@@ -126,34 +109,50 @@ class MessageListLoader(private val fragment: MessageListFragment) {
                     contactByNameMap = fillMapByName(title, contactsByName)
                 }
 
-                val position = findMessagePositionFromId(cursor)
+                val firstLoad = adapter == null
+                val messages = synchronized(windowLock) {
+                    // the new lists are posted while holding the lock, so that the adapter gets
+                    // them in the same order that the window was changed in
+                    val messages = (if (addedNewMessage) loadNewMessages() else null) ?: reloadWindow()
+                    val items = MessageListItem.fromMessages(messages)
+                    val position = findMessagePositionFromId(messages)
 
-                PerformanceProfiler.logEvent("finished loading messages")
+                    PerformanceProfiler.logEvent("finished loading messages")
+
+                    handler.post {
+                        setMessages(items, contactMap!!, contactByNameMap!!)
+                        draftManager.applyDrafts()
+
+                        if (position != -1) {
+                            messageList.scrollToPosition(position)
+                        }
+                    }
+
+                    messages
+                }
 
-                val firstLoad = adapter == null
                 val justUpdatingSendingStatus = !firstLoad && !addedNewMessage
                 if (Settings.smartReplies && !justUpdatingSendingStatus) {
                     try {
                         val list = mutableListOf<FirebaseTextMessage>()
-                        if (cursor.moveToLast()) {
-                            do {
-                                val message = Message()
-                                message.fillFromCursor(cursor)
-
-                                if (MimeType.TEXT_PLAIN == message.mimeType) {
-                                    if (message.type == Message.TYPE_RECEIVED) {
-                                        list.add(FirebaseTextMessage.createForRemoteUser(message.data!!, message.timestamp, message.from ?: fragment.argManager.title))
-                                    } else {
-                                        if (list.size == 0) {
-                                            // only provide suggestions when the latest message is received
-                                            handler.post { smartReplyManager.hideContainer() }
-                                            break
-                                        }
-
-                                        list.add(FirebaseTextMessage.createForLocalUser(message.data!!, message.timestamp))
+                        for (message in messages.asReversed()) {
+                            if (MimeType.TEXT_PLAIN == message.mimeType) {
+                                if (message.type == Message.TYPE_RECEIVED) {
+                                    list.add(FirebaseTextMessage.createForRemoteUser(message.data!!, message.timestamp, message.from ?: fragment.argManager.title))
+                                } else {
+                                    if (list.size == 0) {
+                                        // only provide suggestions when the latest message is received
+                                        handler.post { smartReplyManager.hideContainer() }
+                                        break
                                     }
+
+                                    list.add(FirebaseTextMessage.createForLocalUser(message.data!!, message.timestamp))
                                 }
-                            } while (cursor.moveToPrevious() && list.size < 10)
+                            }
+
+                            if (list.size >= 10) {
+                                break
+                            }
                         }
 
                         val smartReply = FirebaseNaturalLanguage.getInstance().smartReply
@@ -168,15 +167,6 @@ class MessageListLoader(private val fragment: MessageListFragment) {
 
                 PerformanceProfiler.logEvent("finished prepping smart replies")
 
-                handler.post {
-                    setMessages(cursor, contactMap!!, contactByNameMap!!)
-                    draftManager.applyDrafts()
-
-                    if (position != -1) {
-                        messageList.scrollToPosition(position)
-                    }
-                }
-
                 informationUpdater.update()
 
                 if (NotificationConstants.CONVERSATION_ID_OPEN == argManager.conversationId) {
@@ -192,6 +182,112 @@ class MessageListLoader(private val fragment: MessageListFragment) {
         }.start()
     }
 
+    /**
+     * Adds the page of messages above the oldest one in the window. Called as the list is scrolled
+     * up towards the top.
+     */
+    private fun loadOlderMessages() {
+        if (!hasOlderMessages || loadingOlderMessages || adapter == null) {
+            return
+        }
+
+        loadingOlderMessages = true
+        val handler = Handler()
+        Thread {
+            try {
+                synchronized(windowLock) {
+                    val oldest = window.firstOrNull()
+                    if (activity == null || oldest == null) {
+                        return@Thread
+                    }
+
+                    val older = MessageListItem.readMessages(DataSource.getMessagesBefore(activity!!,
+                            argManager.conversationId, oldest.timestamp, oldest.id, PAGE_SIZE))
+                    if (older.size < PAGE_SIZE) {
+                        hasOlderMessages = false
+                    }
+
+                    if (older.isEmpty()) {
+                        return@Thread
+                    }
+
+                    window = older + window
+
+                    val items = MessageListItem.fromMessages(window)
+                    handler.post { adapter?.addMessage(messageList, items) }
+                }
+            } catch (e: Exception) {
+                e.printStackTrace()
+            } finally {
+                handler.post { loadingOlderMessages = false }
+            }
+        }.start()
+    }
+
+    /**
+     * Queries the messages that have come in after the newest one in the window, and adds them to
+     * the bottom of it, without loading the rest of the window again.
+     *
+     * @return the new window, or null if the whole window should be loaded again instead.
+     */
+    private fun loadNewMessages(): List<Message>? {
+        val newest = window.lastOrNull() ?: return null
+        val newMessages = MessageListItem.readMessages(DataSource.getMessagesAfter(activity!!,
+                argManager.conversationId, newest.timestamp, newest.id))
+
+        if (newMessages.isEmpty()) {
+            // a message can be given a timestamp that is older than the newest one on screen, when
+            // it is synced from another device. those are picked up by loading the window again
+            return null
+        }
+
+        window = window + newMessages
+        return window
+    }
+
+    /**
+     * Loads every message in the window again, to pick up changes to the ones that are already on
+     * screen, like a message that has finished sending or one that was deleted. This only reads
+     * from the oldest message in the window onwards, no matter how long the conversation is.
+     */
+    private fun reloadWindow(): List<Message> {
+        val oldest = window.firstOrNull()
+        val cursor = if (oldest == null) {
+            loadFirstWindow()
+        } else {
+            DataSource.getMessagesFrom(activity!!, argManager.conversationId, oldest.timestamp, oldest.id)
+        }
+
+        window = MessageListItem.readMessages(cursor)
+        return window
+    }
+
+    private fun loadFirstWindow(): Cursor {
+        val conversationId = argManager.conversationId
+        if (!argManager.limitMessages) {
+            // group conversations, and the full conversation screen, still show every message
+            hasOlderMessages = false
+            return DataSource.getMessages(activity!!, conversationId)
+        }
+
+        val messageToOpen = if (argManager.messageToOpen != -1L) DataSource.getMessage(activity!!, argManager.messageToOpen) else null
+
+        return if (messageToOpen != null && messageToOpen.conversationId == conversationId) {
+            // start the window a page above the message that we are opening to, so that there is
+            // something to scroll through above it
+            val above = MessageListItem.readMessages(DataSource.getMessagesBefore(activity!!, conversationId,
+                    messageToOpen.timestamp, messageToOpen.id, PAGE_SIZE))
+            val start = above.firstOrNull() ?: messageToOpen
+            hasOlderMessages = above.size >= PAGE_SIZE
+
+            DataSource.getMessagesFrom(activity!!, conversationId, start.timestamp, start.id)
+        } else {
+            val cursor = DataSource.getMessagesBefore(activity!!, conversationId, Long.MAX_VALUE, Long.MAX_VALUE, PAGE_SIZE)
+            hasOlderMessages = cursor.count >= PAGE_SIZE
+            cursor
+        }
+    }
+
     private fun fillMapByName(title: String?, contacts: List<Contact>) = try {
             if (title != null && title.contains(", "))
                 ContactUtils.getMessageFromMappingByTitle(title, contacts)
@@ -206,21 +302,13 @@ class MessageListLoader(private val fragment: MessageListFragment) {
         HashMap<String, Contact>()
     }
 
-    private fun findMessagePositionFromId(cursor: Cursor?): Int {
-        if (argManager.messageToOpen != -1L && cursor != null && cursor.moveToFirst()) {
-            val id = argManager.messageToOpen
-
-            do {
-                if (cursor.getLong(0) == id) {
-                    return cursor.position
-                }
-            } while (cursor.moveToNext())
-        }
-
-        return -1
+    private fun findMessagePositionFromId(messages: List<Message>) = if (argManager.messageToOpen != -1L) {
+        messages.indexOfFirst { it.id == argManager.messageToOpen }
+    } else {
+        -1
     }
 
-    private fun setMessages(messages: Cursor, contactMap: Map<String, Contact>, contactMapByName: Map<String, Contact>) {
+    private fun setMessages(messages: List<MessageListItem>, contactMap: Map<String, Contact>, contactMapByName: Map<String, Contact>) {
         if (adapter != null) {
             adapter?.addMessage(messageList, messages)
         } else {
@@ -234,8 +322,11 @@ class MessageListLoader(private val fragment: MessageListFragment) {
                     .alpha(1f).setDuration(100).setStartDelay(0).setListener(null)
         }
     }
-    
+
     companion object {
         const val MESSAGE_LIMIT = 8000
+
+        private const val PAGE_SIZE = 500
+        private const val LOAD_OLDER_THRESHOLD = 50
     }
 }
\ No newline at end of file
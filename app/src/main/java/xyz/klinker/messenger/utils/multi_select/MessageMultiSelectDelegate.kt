@@ -166,7 +166,7 @@ class MessageMultiSelectDelegate(private val fragment: MessageListFragment) : Mu
                 item.itemId == R.id.menu_message_select_all -> {
                     handled = false
 
-                    val count = adapter?.messages?.count
+                    val count = adapter?.messages?.size
                     for (i in 0 until count!!) {
                         mSelections.put(i, true)
                     }
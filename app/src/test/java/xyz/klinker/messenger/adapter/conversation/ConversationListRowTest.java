@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.adapter.conversation;
+
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListUpdateCallback;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import xyz.klinker.messenger.MessengerSuite;
+import xyz.klinker.messenger.shared.data.SectionType;
+import xyz.klinker.messenger.shared.data.model.Conversation;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConversationListRowTest extends MessengerSuite {
+
+    @Test
+    public void headersAreOnlyShownForSectionsWithConversations() {
+        List<Conversation> conversations = Arrays.asList(conversation(1, "one"), conversation(2, "two"));
+        List<SectionType> sections = Arrays.asList(new SectionType(SectionType.Companion.getPINNED(), 0),
+                new SectionType(SectionType.Companion.getTODAY(), 2));
+
+        assertEquals(3, ConversationListRow.Companion.fromSections(conversations, sections, false).size());
+        assertEquals(4, ConversationListRow.Companion.fromSections(conversations, sections, true).size());
+    }
+
+    @Test
+    public void newConversationIsOnlyInsert() {
+        List<Conversation> conversations = Arrays.asList(conversation(1, "one"), conversation(2, "two"));
+        List<Conversation> updated = Arrays.asList(conversation(3, "three"), conversation(1, "one"), conversation(2, "two"));
+
+        assertEquals("[inserted 1 1]", diff(conversations, updated).toString());
+    }
+
+    @Test
+    public void updatedSnippetOnlyChangesThatRow() {
+        List<Conversation> conversations = Arrays.asList(conversation(1, "one"), conversation(2, "two"));
+        List<Conversation> updated = Arrays.asList(conversation(1, "one"), conversation(2, "new snippet"));
+
+        assertEquals("[changed 2 1]", diff(conversations, updated).toString());
+    }
+
+    @Test
+    public void sameConversationsDoNotChange() {
+        List<Conversation> conversations = Arrays.asList(conversation(1, "one"), conversation(2, "two"));
+        List<Conversation> updated = Arrays.asList(conversation(1, "one"), conversation(2, "two"));
+
+        assertEquals(Collections.emptyList(), diff(conversations, updated));
+    }
+
+    private List<String> diff(List<Conversation> oldConversations, List<Conversation> newConversations) {
+        List<ConversationListRow> oldRows = ConversationListRow.Companion.fromSections(oldConversations,
+                Collections.singletonList(new SectionType(SectionType.Companion.getTODAY(), oldConversations.size())), false);
+        List<ConversationListRow> newRows = ConversationListRow.Companion.fromSections(newConversations,
+                Collections.singletonList(new SectionType(SectionType.Companion.getTODAY(), newConversations.size())), false);
+
+        final List<String> updates = new ArrayList<>();
+        DiffUtil.calculateDiff(new ConversationListRow.DiffCallback(oldRows, newRows)).dispatchUpdatesTo(new ListUpdateCallback() {
+            @Override
+            public void onInserted(int position, int count) {
+                updates.add("inserted " + position + " " + count);
+            }
+
+            @Override
+            public void onRemoved(int position, int count) {
+                updates.add("removed " + position + " " + count);
+            }
+
+            @Override
+            public void onMoved(int fromPosition, int toPosition) {
+                updates.add("moved " + fromPosition + " " + toPosition);
+            }
+
+            @Override
+            public void onChanged(int position, int count, @Nullable Object payload) {
+                updates.add("changed " + position + " " + count);
+            }
+        });
+
+        return updates;
+    }
+
+    private Conversation conversation(long id, String snippet) {
+        Conversation conversation = new Conversation();
+        conversation.setId(id);
+        conversation.setTitle("conversation " + id);
+        conversation.setPhoneNumbers("515" + id);
+        conversation.setSnippet(snippet);
+        conversation.setTimestamp(id);
+        return conversation;
+    }
+}
@@ -17,7 +17,6 @@
 package xyz.klinker.messenger.adapter.message;
 
 import android.content.Context;
-import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.graphics.Color;
 import androidx.recyclerview.widget.LinearLayoutManager;
@@ -32,6 +31,9 @@ import org.junit.Test;
 import org.mockito.Mock;
 import org.robolectric.RuntimeEnvironment;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import xyz.klinker.messenger.MessengerRobolectricSuite;
 import xyz.klinker.messenger.R;
 import xyz.klinker.messenger.adapter.view_holder.MessageViewHolder;
@@ -64,8 +66,6 @@ public class MessageListAdapterTest extends MessengerRobolectricSuite {
     @Mock
     private ImageView image;
     @Mock
-    private Cursor cursor;
-    @Mock
     private ViewGroup.LayoutParams params;
     @Mock
     private RecyclerView recycler;
@@ -93,7 +93,7 @@ public class MessageListAdapterTest extends MessengerRobolectricSuite {
 
     @Test
     public void getItemCountZeroCursor() {
-        adapter.addMessage(recycler, new MatrixCursor(new String[]{}));
+        adapter.addMessage(recycler, new ArrayList<>());
         assertEquals(0, adapter.getItemCount());
     }
 
@@ -109,31 +109,40 @@ public class MessageListAdapterTest extends MessengerRobolectricSuite {
 
     @Test
     public void addMessage() {
-        when(cursor.getCount()).thenReturn(20);
-        when(cursor.moveToFirst()).thenReturn(true);
-        when(manager.findLastVisibleItemPosition()).thenReturn(15);
+        List<Message> messages = getFakeMessageList();
+        Message message = new Message();
+        message.setId(13);
+        message.setType(Message.TYPE_RECEIVED);
+        message.setData("new message");
+        message.setTimestamp(TimeUtils.INSTANCE.getNow());
+        message.setMimeType("text/plain");
+        messages.add(message);
+
+        when(manager.findLastVisibleItemPosition()).thenReturn(11);
         adapter = spy(adapter);
-        adapter.addMessage(recycler, cursor);
-        //verify(adapter).notifyItemInserted(19);
-        //verify(manager).scrollToPosition(19);
+        adapter.addMessage(recycler, MessageListItem.Companion.fromMessages(messages));
+        //verify(adapter).notifyItemRangeInserted(12, 1);
+        //verify(manager).scrollToPosition(12);
     }
 
     @Test
     public void changeMessage() {
-        when(cursor.getCount()).thenReturn(12);
-        when(cursor.moveToFirst()).thenReturn(true);
+        List<Message> messages = getFakeMessageList();
+        messages.get(11).setType(Message.TYPE_DELIVERED);
+
         adapter = spy(adapter);
-        adapter.addMessage(recycler, cursor);
-        //verify(adapter).notifyItemChanged(11);
+        adapter.addMessage(recycler, MessageListItem.Companion.fromMessages(messages));
+        //verify(adapter).notifyItemRangeChanged(11, 1, null);
     }
 
     @Test
     public void removeMessage() {
-        when(cursor.getCount()).thenReturn(11);
-        when(cursor.moveToFirst()).thenReturn(true);
+        List<Message> messages = getFakeMessageList();
+        messages.remove(5);
+
         adapter = spy(adapter);
-        adapter.addMessage(recycler, cursor);
-        //verify(adapter).notifyDataSetChanged();
+        adapter.addMessage(recycler, MessageListItem.Companion.fromMessages(messages));
+        //verify(adapter).notifyItemRangeRemoved(5, 1);
     }
 
     @Test
@@ -159,7 +168,11 @@ public class MessageListAdapterTest extends MessengerRobolectricSuite {
         return holder;
     }
 
-    private Cursor getFakeMessages() {
+    private List<MessageListItem> getFakeMessages() {
+        return MessageListItem.Companion.fromMessages(getFakeMessageList());
+    }
+
+    private List<Message> getFakeMessageList() {
         MatrixCursor cursor = new MatrixCursor(new String[]{
                 Message.COLUMN_ID,
                 Message.COLUMN_CONVERSATION_ID,
@@ -338,7 +351,7 @@ public class MessageListAdapterTest extends MessengerRobolectricSuite {
                 null
         });
 
-        return cursor;
+        return MessageListItem.Companion.readMessages(cursor);
     }
 
 }
\ No newline at end of file
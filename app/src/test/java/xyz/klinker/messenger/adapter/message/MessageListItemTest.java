@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.adapter.message;
+
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListUpdateCallback;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import xyz.klinker.messenger.MessengerSuite;
+import xyz.klinker.messenger.shared.data.model.Message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageListItemTest extends MessengerSuite {
+
+    @Test
+    public void newMessageOnlyTouchesTheRowAboveIt() {
+        List<Message> messages = messages(100);
+        List<Message> updated = new ArrayList<>(messages);
+        updated.add(message(100, Message.TYPE_RECEIVED));
+
+        assertEquals("[inserted 100 1, changed 99 1]", diff(messages, updated).toString());
+    }
+
+    @Test
+    public void olderPageIsInsertedAtTheTop() {
+        List<Message> messages = messages(100);
+        List<Message> olderPageLoaded = new ArrayList<>(messages.subList(50, 100));
+
+        // the row that used to be at the top has a message above it now, so it is bound again
+        List<String> updates = diff(olderPageLoaded, messages);
+        assertEquals(2, updates.size());
+        assertTrue(updates.contains("inserted 0 50"));
+    }
+
+    @Test
+    public void deliveredStatusOnlyChangesThatRowAndItsNeighbours() {
+        List<Message> messages = messages(100);
+        List<Message> updated = messages(100);
+        updated.get(40).setType(Message.TYPE_DELIVERED);
+
+        assertEquals("[changed 39 3]", diff(messages, updated).toString());
+    }
+
+    @Test
+    public void sameMessagesDoNotChange() {
+        assertEquals("[]", diff(messages(100), messages(100)).toString());
+    }
+
+    private List<String> diff(List<Message> oldMessages, List<Message> newMessages) {
+        final List<MessageListItem> oldItems = MessageListItem.Companion.fromMessages(oldMessages);
+        final List<MessageListItem> newItems = MessageListItem.Companion.fromMessages(newMessages);
+        final DiffUtil.ItemCallback<MessageListItem> callback = MessageListItem.Companion.getDIFF_CALLBACK();
+
+        DiffUtil.DiffResult result = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldItems.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newItems.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                return callback.areItemsTheSame(oldItems.get(oldItemPosition), newItems.get(newItemPosition));
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                return callback.areContentsTheSame(oldItems.get(oldItemPosition), newItems.get(newItemPosition));
+            }
+        });
+
+        final List<String> updates = new ArrayList<>();
+        result.dispatchUpdatesTo(new ListUpdateCallback() {
+            @Override
+            public void onInserted(int position, int count) {
+                updates.add("inserted " + position + " " + count);
+            }
+
+            @Override
+            public void onRemoved(int position, int count) {
+                updates.add("removed " + position + " " + count);
+            }
+
+            @Override
+            public void onMoved(int fromPosition, int toPosition) {
+                updates.add("moved " + fromPosition + " " + toPosition);
+            }
+
+            @Override
+            public void onChanged(int position, int count, @Nullable Object payload) {
+                updates.add("changed " + position + " " + count);
+            }
+        });
+
+        return updates;
+    }
+
+    private List<Message> messages(int count) {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            messages.add(message(i, i % 3 == 0 ? Message.TYPE_RECEIVED : Message.TYPE_SENT));
+        }
+
+        return messages;
+    }
+
+    private Message message(long id, int type) {
+        Message message = new Message();
+        message.setId(id);
+        message.setConversationId(1);
+        message.setType(type);
+        message.setData("message " + id);
+        message.setTimestamp(id * 1000);
+        message.setMimeType("text/plain");
+        return message;
+    }
+}
@@ -20,11 +20,20 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
 import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
 
 import xyz.klinker.messenger.MessengerRobolectricSuite;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 public class EncryptionTest extends MessengerRobolectricSuite {
 
@@ -53,4 +62,43 @@ public class EncryptionTest extends MessengerRobolectricSuite {
         assertEquals(text, decrypted);
     }
 
+    @Test
+    public void encryptAllAndDecryptAll() {
+        EncryptionUtils utils = new EncryptionUtils(new SecretKeySpec(new byte[32], "AES"));
+        String[] fields = new String[] { "hey, what's up?", null, "text/plain", "" };
+
+        String[] encrypted = utils.encryptAll(fields);
+        assertNull(encrypted[1]);
+        assertArrayEquals(fields, utils.decryptAll(encrypted));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decryptingPlainTextFails() {
+        new EncryptionUtils(new SecretKeySpec(new byte[32], "AES")).decrypt("not encrypted");
+    }
+
+    @Test
+    public void streamMatchesStringFormat() throws IOException {
+        EncryptionUtils utils = new EncryptionUtils(new SecretKeySpec(new byte[32], "AES"));
+        byte[] media = new byte[100_003];
+        new Random(1).nextBytes(media);
+
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        utils.encrypt(new ByteArrayInputStream(media), encrypted);
+        assertArrayEquals(media, utils.decryptData(new String(encrypted.toByteArray(), StandardCharsets.US_ASCII)));
+
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        utils.decrypt(new ByteArrayInputStream(utils.encrypt(media).getBytes(StandardCharsets.US_ASCII)), decrypted);
+        assertArrayEquals(media, decrypted.toByteArray());
+    }
+
+    @Test
+    public void decodesPartOfAString() {
+        byte[] data = new byte[5000];
+        new Random(2).nextBytes(data);
+        String encoded = "iv-:-" + Base64.encodeToString(data, Base64.DEFAULT);
+
+        assertArrayEquals(data, Base64.decode(encoded, 5, encoded.length() - 5, Base64.DEFAULT));
+        assertArrayEquals(new byte[0], Base64.decode(encoded, 5, 0, Base64.DEFAULT));
+    }
 }
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.data;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import xyz.klinker.messenger.MessengerRealDataSuite;
+import xyz.klinker.messenger.api.implementation.Account;
+import xyz.klinker.messenger.shared.data.model.RetryableRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ApiMutationQueueTest extends MessengerRealDataSuite {
+
+    private List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+
+    @After
+    public void resetAccount() {
+        Account.INSTANCE.setPrimary(false);
+    }
+
+    @Test
+    public void mergesRepeatedMutations() {
+        ApiMutationQueue queue = new ApiMutationQueue(context, (type, ids) -> {
+            sent.add(type + " " + ids);
+            return Collections.emptyList();
+        }, 60_000, 0);
+
+        queue.enqueue(RetryableRequest.TYPE_READ_CONVERSATION, 1);
+        queue.enqueue(RetryableRequest.TYPE_READ_CONVERSATION, 1);
+        queue.enqueue(RetryableRequest.TYPE_UPDATE_CONVERSATION_SNIPPET, 1);
+        queue.enqueue(RetryableRequest.TYPE_READ_CONVERSATION, 2);
+        queue.enqueue(RetryableRequest.TYPE_ADD_MESSAGE, 5);
+        queue.enqueue(RetryableRequest.TYPE_ADD_MESSAGE, 6);
+        queue.flush();
+
+        assertEquals(Arrays.asList(
+                RetryableRequest.TYPE_ADD_MESSAGE + " [5, 6]",
+                RetryableRequest.TYPE_UPDATE_CONVERSATION_SNIPPET + " [1]",
+                RetryableRequest.TYPE_READ_CONVERSATION + " [1, 2]"), sent);
+    }
+
+    @Test
+    public void persistsAfterRetries() throws Exception {
+        Account.INSTANCE.setPrimary(true);
+
+        ApiMutationQueue queue = new ApiMutationQueue(context, (type, ids) -> {
+            sent.add(type + " " + ids);
+            return ids;
+        }, 0, 0);
+
+        queue.enqueue(RetryableRequest.TYPE_READ_CONVERSATION, 3);
+
+        long end = System.currentTimeMillis() + 5000;
+        while (source.getRetryableRequestsAsList(context).isEmpty() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+
+        List<RetryableRequest> requests = source.getRetryableRequestsAsList(context);
+        assertEquals(1, requests.size());
+        assertEquals(RetryableRequest.TYPE_READ_CONVERSATION, requests.get(0).getType());
+        assertEquals(3, requests.get(0).getDataId());
+        assertTrue(sent.size() > 1);
+    }
+}
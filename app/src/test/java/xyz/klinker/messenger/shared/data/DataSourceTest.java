@@ -52,6 +52,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -71,6 +72,8 @@ public class DataSourceTest extends MessengerRobolectricSuite {
     private EncryptionUtils encryption;
     @Mock
     private Cursor cursor;
+    @Mock
+    private ApiMutationQueue apiQueue;
 
     @Before
     public void setUp() {
@@ -79,6 +82,7 @@ public class DataSourceTest extends MessengerRobolectricSuite {
         source.set_encryptor(encryption);
         source.set_accountId("1234");
         source.set_androidDeviceId("1234");
+        source.set_apiQueue(apiQueue);
 
         when(database.isOpen()).thenReturn(true);
         when(helper.getWritableDatabase()).thenReturn(database);
@@ -95,6 +99,13 @@ public class DataSourceTest extends MessengerRobolectricSuite {
         assertEquals(database, source.get_database());
     }
 
+    @Test
+    public void ensureActionableKeepsOpenDatabase() {
+        source.ensureActionable(context);
+        assertEquals(database, source.get_database());
+        verify(database, never()).close();
+    }
+
     @Test
     public void clearTables() {
         source.clearTables(context);
@@ -111,7 +122,7 @@ public class DataSourceTest extends MessengerRobolectricSuite {
     @Test
     public void beginTransaction() {
         source.beginTransaction(context);
-        verify(database).beginTransaction();
+        verify(database).beginTransactionNonExclusive();
     }
 
     @Test
@@ -211,13 +222,19 @@ public class DataSourceTest extends MessengerRobolectricSuite {
     @Test
     public void findConversationByNumbers() {
         when(database.query("conversation", new String[]{"_id", "id_matcher"},
-                "id_matcher=? OR id_matcher=? OR id_matcher=? OR id_matcher=? OR id_matcher=? OR id_matcher=?", new String[]{"515", "515", "515", "515", "515", "515"}, null, null, null))
+                null, null, null, null, null))
                 .thenReturn(cursor);
-        when(cursor.moveToFirst()).thenReturn(true);
+        when(cursor.moveToNext()).thenReturn(true, false);
         when(cursor.getLong(0)).thenReturn(1001L);
+        when(cursor.getString(1)).thenReturn("515");
 
         long convoId = source.findConversationId(context, "515");
         assertEquals(1001L, convoId);
+
+        // the second lookup comes from the index
+        assertEquals(Long.valueOf(1001L), source.findConversationId(context, "515"));
+        verify(database, times(1)).query("conversation", new String[]{"_id", "id_matcher"},
+                null, null, null, null, null);
     }
 
     @Test
@@ -285,6 +302,14 @@ public class DataSourceTest extends MessengerRobolectricSuite {
         assertEquals(cursor, source.searchConversations(context, "swimmer's"));
     }
 
+    @Test
+    public void searchConversationsFullText() {
+        source.set_fullTextModule(FullTextIndex.MODULE_FTS4);
+        when(database.query("conversation", null, "(_id IN (SELECT rowid FROM conversation_fts WHERE conversation_fts MATCH ?) OR phone_numbers LIKE ?) AND private_notifications=0",
+                new String[]{"\"swimmer s*\"", "%swimmer's%"}, null, null, "timestamp desc")).thenReturn(cursor);
+        assertEquals(cursor, source.searchConversations(context, "swimmer's"));
+    }
+
     @Test
     public void searchConversationNull() {
         assertEquals(null, source.searchConversations(context, null));
@@ -428,6 +453,28 @@ public class DataSourceTest extends MessengerRobolectricSuite {
         assertEquals(cursor, source.searchMessages(context, "test"));
     }
 
+    @Test
+    public void searchMessagesFullText() {
+        source.set_fullTextModule(FullTextIndex.MODULE_FTS5);
+        when(database.query("message_fts join message m on m._id = message_fts.rowid left outer join conversation c on m.conversation_id = c._id",
+                new String[]{"m._id as _id", "c._id as conversation_id", "m.type as type", "m.data as data", "m.timestamp as timestamp", "m.mime_type as mime_type", "m.read as read", "m.message_from as message_from", "m.color as color", "c.title as convo_title", "c.private_notifications as private_notifications"},
+                "message_fts MATCH ? AND m.mime_type='text/plain' AND private_notifications=0",
+                new String[]{"\"test\" *"}, null, null, "timestamp desc")).thenReturn(cursor);
+
+        assertEquals(cursor, source.searchMessages(context, "test"));
+    }
+
+    @Test
+    public void searchMessagesFullTextNoWords() {
+        source.set_fullTextModule(FullTextIndex.MODULE_FTS5);
+        when(database.query("message m left outer join conversation c on m.conversation_id = c._id",
+                new String[]{"m._id as _id", "c._id as conversation_id", "m.type as type", "m.data as data", "m.timestamp as timestamp", "m.mime_type as mime_type", "m.read as read", "m.message_from as message_from", "m.color as color", "c.title as convo_title", "c.private_notifications as private_notifications"},
+                "data LIKE '%:)%' AND mime_type='text/plain' AND private_notifications=0",
+                null, null, null, "timestamp desc")).thenReturn(cursor);
+
+        assertEquals(cursor, source.searchMessages(context, ":)"));
+    }
+
     @Test
     public void searchMessagesNullQuery() {
         assertEquals(null, source.searchMessages(context, null));
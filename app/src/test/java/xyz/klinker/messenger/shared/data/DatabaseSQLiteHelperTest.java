@@ -35,6 +35,8 @@ import xyz.klinker.messenger.shared.data.model.RetryableRequest;
 import xyz.klinker.messenger.shared.data.model.ScheduledMessage;
 import xyz.klinker.messenger.shared.data.model.Template;
 
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 
@@ -62,6 +64,23 @@ public class DatabaseSQLiteHelperTest extends MessengerRobolectricSuite {
         verify2Upgrade();
     }
 
+    @Test
+    public void onUpgrade_19to20() {
+        helper.onUpgrade(database, 19, 20);
+
+        verify(database).execSQL("drop index if exists conversation_id_message_index");
+
+        for (String index : new Message().getIndexStatements()) {
+            verify(database).execSQL(index);
+        }
+
+        for (String index : new Conversation().getIndexStatements()) {
+            verify(database).execSQL(index);
+        }
+
+        verifyNoMoreInteractions(database);
+    }
+
     @Test
     public void onDrop() {
         helper.onDrop(database);
@@ -79,9 +98,20 @@ public class DatabaseSQLiteHelperTest extends MessengerRobolectricSuite {
         verify(database).execSQL(new Folder().getCreateStatement());
         verify(database).execSQL(new AutoReply().getCreateStatement());
         verify(database).execSQL(new RetryableRequest().getCreateStatement());
-        verify(database).execSQL(new Message().getIndexStatements()[0]);
-        verify(database).execSQL(new Conversation().getIndexStatements()[0]);
         verify(database).execSQL(new Draft().getIndexStatements()[0]);
+
+        for (String index : new Message().getIndexStatements()) {
+            verify(database).execSQL(index);
+        }
+
+        for (String index : new Conversation().getIndexStatements()) {
+            verify(database).execSQL(index);
+        }
+
+        for (String statement : FullTextIndex.INSTANCE.getCreateStatements(FullTextIndex.MODULE_FTS5)) {
+            verify(database).execSQL(statement);
+        }
+
         verifyNoMoreInteractions(database);
     }
 
@@ -100,6 +130,9 @@ public class DatabaseSQLiteHelperTest extends MessengerRobolectricSuite {
         verify(database).execSQL("drop table if exists " + Folder.TABLE);
         verify(database).execSQL("drop table if exists " + AutoReply.TABLE);
         verify(database).execSQL("drop table if exists " + RetryableRequest.TABLE);
+        verify(database).execSQL("drop table if exists " + FullTextIndex.MESSAGE_TABLE);
+        verify(database).execSQL("drop table if exists " + FullTextIndex.CONVERSATION_TABLE);
+        verify(database, times(8)).execSQL(startsWith("drop trigger if exists "));
         verifyNoMoreInteractions(database);
     }
 
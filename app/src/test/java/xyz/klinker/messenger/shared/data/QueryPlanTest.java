@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import xyz.klinker.messenger.MessengerRobolectricSuite;
+import xyz.klinker.messenger.shared.util.FixtureLoader;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.mockito.Mockito.spy;
+
+/**
+ * Runs EXPLAIN QUERY PLAN on the queries that the DataSource makes for the conversation list,
+ * the message list, notifications and incoming messages. None of them should need to read
+ * through an entire table.
+ */
+public class QueryPlanTest extends MessengerRobolectricSuite {
+
+    // "SCAN TABLE message" on older versions of SQLite, "SCAN message" on newer ones. A scan
+    // "USING INDEX" walks an index in order, which is fine.
+    private static final Pattern FULL_SCAN =
+            Pattern.compile("^SCAN (TABLE )?(message|conversation)\\b(?!.*USING)");
+
+    // a subquery that runs again for every row, or a sort that the index couldn't do
+    private static final Pattern PER_ROW_WORK = Pattern.compile("CORRELATED|TEMP B-TREE");
+
+    private final List<String> queries = new ArrayList<>();
+    private DataSource source;
+    private Context context = spy(RuntimeEnvironment.application);
+
+    @Before
+    public void setUp() throws Exception {
+        SQLiteDatabase database = SQLiteDatabase.create(new SQLiteDatabase.CursorFactory() {
+            @Override
+            public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver driver, String editTable, SQLiteQuery query) {
+                queries.add(query.toString().replace("SQLiteQuery: ", ""));
+                return new SQLiteCursor(driver, editTable, query);
+            }
+        });
+
+        new DatabaseSQLiteHelper(RuntimeEnvironment.application).onCreate(database);
+        new FixtureLoader().loadFixturesToDatabase(database);
+
+        source = DataSource.INSTANCE;
+        source.set_database(database);
+    }
+
+    @Test
+    public void conversationList() {
+        source.getUnarchivedConversations(context).close();
+        source.getPinnedConversations(context).close();
+        source.getArchivedConversations(context).close();
+        source.getPrivateConversations(context).close();
+        source.getAllNonPrivateConversations(context).close();
+        source.getFolderConversations(context, 1).close();
+        source.getUnreadConversations(context).close();
+        source.getConversation(context, 1);
+
+        assertNoFullScans();
+    }
+
+    @Test
+    public void messageList() {
+        source.getMessages(context, 1).close();
+        source.getMessageCursorWithLimit(context, 1, 1).close();
+        source.getMessagesBefore(context, 1, 1000, 1, 10).close();
+        source.getMessagesFrom(context, 1, 1000, 1).close();
+        source.getMessagesAfter(context, 1, 1000, 1).close();
+        source.getLatestMessage(context, 1);
+        source.getLatestMessage(context);
+        source.getMessage(context, 1);
+
+        assertNoFullScans();
+    }
+
+    @Test
+    public void notifications() {
+        source.getUnreadMessages(context).close();
+        source.getUnseenMessages(context).close();
+        source.getUnseenMessagesWithConversations(context).close();
+        source.getLatestMessages(context, Arrays.asList(1L, 2L), 4);
+        source.getNewerSendingMessages(context, 1000).close();
+        source.searchMessages(context, 1000).close();
+
+        assertNoFullScans();
+    }
+
+    @Test
+    public void latestMessagesAreReadFromTheIndex() {
+        source.getLatestMessages(context, Arrays.asList(1L, 2L, 3L), 4);
+
+        assertNoFullScans();
+        assertPlansDoNotMatch(PER_ROW_WORK);
+    }
+
+    @Test
+    public void incomingMessage() {
+        source.warmConversationIndex(context);
+        queries.clear();
+
+        source.findConversationId(context, "5159911493");
+        source.findConversationId(context, "5159911493, 5154224558");
+
+        // routed through the in memory index, without touching the database
+        assertTrue(queries.isEmpty());
+    }
+
+    private void assertNoFullScans() {
+        assertPlansDoNotMatch(FULL_SCAN);
+    }
+
+    private void assertPlansDoNotMatch(Pattern pattern) {
+        List<String> recorded = new ArrayList<>(queries);
+        assertFalse(recorded.isEmpty());
+
+        for (String sql : recorded) {
+            Cursor plan = source.get_database().rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+            assertTrue(plan.moveToFirst());
+
+            int detailIndex = plan.getColumnIndex("detail");
+            do {
+                String detail = plan.getString(detailIndex);
+                if (pattern.matcher(detail).find()) {
+                    plan.close();
+                    fail("query plan has " + detail + " for query: " + sql);
+                }
+            } while (plan.moveToNext());
+
+            plan.close();
+        }
+    }
+}
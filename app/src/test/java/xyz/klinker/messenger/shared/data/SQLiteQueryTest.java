@@ -38,6 +38,7 @@ import xyz.klinker.messenger.shared.data.model.RetryableRequest;
 import xyz.klinker.messenger.shared.data.model.ScheduledMessage;
 import xyz.klinker.messenger.shared.data.model.Template;
 import xyz.klinker.messenger.shared.util.ColorUtils;
+import xyz.klinker.messenger.shared.util.SmsMmsUtils;
 import xyz.klinker.messenger.shared.util.TimeUtils;
 
 import static junit.framework.Assert.assertEquals;
@@ -317,6 +318,27 @@ public class SQLiteQueryTest extends MessengerRealDataSuite {
         assertEquals(id, Long.valueOf(1));
     }
 
+    @Test
+    public void findConversationByNumberAfterInsert() {
+        assertNull(source.findConversationId(context, "5154224558"));
+
+        Conversation conversation = new Conversation();
+        conversation.setId(100);
+        conversation.setTitle("test");
+        conversation.setPhoneNumbers("5154224558");
+        conversation.setIdMatcher(SmsMmsUtils.INSTANCE.createIdMatcher("5154224558").getDefault());
+        source.insertConversation(context, conversation, false);
+
+        assertEquals(Long.valueOf(100), source.findConversationId(context, "5154224558"));
+    }
+
+    @Test
+    public void findConversationByNumberAfterDelete() {
+        assertEquals(Long.valueOf(1), source.findConversationId(context, "11111"));
+        source.deleteConversation(context, 1, false);
+        assertNull(source.findConversationId(context, "11111"));
+    }
+
     @Test
     public void findConversationByName() {
         Long id = source.findConversationIdByTitle(context, "Luke Klinker");
@@ -437,6 +459,33 @@ public class SQLiteQueryTest extends MessengerRealDataSuite {
         assertNotSame(0, source.getMessages(context, 3L).getCount());
     }
 
+    @Test
+    public void pageThroughMessages() {
+        insertMessagesWithMatchingTimestamps();
+
+        Cursor page = source.getMessagesBefore(context, 500L, Long.MAX_VALUE, Long.MAX_VALUE, 3);
+        assertEquals("[5014, 5015, 5016]", ids(page).toString());
+
+        page = source.getMessagesBefore(context, 500L, 3L, 5014L, 3);
+        assertEquals("[5011, 5012, 5013]", ids(page).toString());
+
+        page = source.getMessagesBefore(context, 500L, 2L, 5011L, 3);
+        assertEquals("[5010]", ids(page).toString());
+
+        page = source.getMessagesBefore(context, 500L, 1L, 5010L, 3);
+        assertEquals(0, page.getCount());
+        page.close();
+    }
+
+    @Test
+    public void getMessagesFromAndAfter() {
+        insertMessagesWithMatchingTimestamps();
+
+        assertEquals("[5012, 5013, 5014, 5015, 5016]", ids(source.getMessagesFrom(context, 500L, 2L, 5012L)).toString());
+        assertEquals("[5013, 5014, 5015, 5016]", ids(source.getMessagesAfter(context, 500L, 2L, 5012L)).toString());
+        assertEquals("[]", ids(source.getMessagesAfter(context, 500L, 4L, 5016L)).toString());
+    }
+
     @Test
     public void getMessage() {
         assertNotNull(source.getMessage(context, 1L));
@@ -480,6 +529,19 @@ public class SQLiteQueryTest extends MessengerRealDataSuite {
         assertEquals(0, messages.getCount());
     }
 
+    @Test
+    public void searchMessagesPrefix() {
+        Cursor messages = source.searchMessages(context, "How is the new a");
+        assertEquals(1, messages.getCount());
+    }
+
+    @Test
+    public void searchMessagesAfterDelete() {
+        source.deleteMessage(context, 5, false);
+        Cursor messages = source.searchMessages(context, "How is");
+        assertEquals(0, messages.getCount());
+    }
+
     @Test
     public void searchMessagesTimestamp() {
         Cursor messages = source.searchMessages(context, 1000);
@@ -666,6 +728,93 @@ public class SQLiteQueryTest extends MessengerRealDataSuite {
                 .getString(conversation.getColumnIndex(Conversation.COLUMN_SNIPPET)));
     }
 
+    @Test
+    public void insertMessages() {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Message message = getFakeMessage();
+            message.setData("bulk message " + i);
+            messages.add(message);
+        }
+
+        int initialSize = source.getMessages(context, 2L).getCount();
+        source.insertMessages(context, messages, false);
+        int newSize = source.getMessages(context, 2L).getCount();
+
+        assertEquals(3, newSize - initialSize);
+        assertTrue(messages.get(0).getId() > 0);
+        assertEquals(3, source.searchMessages(context, "bulk message").getCount());
+        assertTrue(!source.get_database().inTransaction());
+    }
+
+    @Test
+    public void insertSyncedMessages() {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Message message = getFakeMessage();
+            message.setId(5000 + i);
+            message.setData("synced message " + i);
+            messages.add(message);
+        }
+
+        // one that is already in the database, and a push that was delivered twice
+        Message existing = getFakeMessage();
+        existing.setId(1);
+        messages.add(existing);
+        messages.add(messages.get(0));
+
+        int initialSize = source.getMessages(context, 2L).getCount();
+        List<Message> inserted = source.insertSyncedMessages(context, messages);
+        int newSize = source.getMessages(context, 2L).getCount();
+
+        assertEquals(3, inserted.size());
+        assertEquals(3, newSize - initialSize);
+        assertEquals("You: synced message 2", source.getConversation(context, 2L).getSnippet());
+        assertTrue(!source.get_database().inTransaction());
+    }
+
+    @Test
+    public void insertRawConversations() {
+        Conversation conversation = new Conversation();
+        conversation.setId(100);
+        conversation.setTimestamp(TimeUtils.INSTANCE.getNow());
+        conversation.setSnippet("test conversation");
+        conversation.setPhoneNumbers("5154224558");
+        conversation.setTitle("Bulk Conversation");
+        conversation.setIdMatcher("24558");
+        conversation.setLedColor(Color.WHITE);
+
+        List<Conversation> conversations = new ArrayList<>();
+        conversations.add(conversation);
+
+        int initialSize = source.getConversationCount(context);
+        source.insertRawConversations(conversations, context);
+
+        assertEquals(1, source.getConversationCount(context) - initialSize);
+
+        Conversation inserted = source.getConversation(context, 100);
+        assertEquals("Bulk Conversation", inserted.getTitle());
+        assertEquals(false, inserted.getPrivate());
+        assertNull(inserted.getSimSubscriptionId());
+    }
+
+    @Test
+    public void bulkInserterCommitsBatches() {
+        BulkInserter inserter = new BulkInserter(source.get_database(), 2);
+        for (int i = 0; i < 5; i++) {
+            Message message = getFakeMessage();
+            message.setId(1000 + i);
+            inserter.insertMessage(message);
+        }
+
+        assertTrue(source.get_database().inTransaction());
+        inserter.close();
+
+        assertEquals(5, inserter.getInsertedCount());
+        assertTrue(!source.get_database().inTransaction());
+        assertNotNull(source.getMessage(context, 1004));
+    }
+
     @Test
     public void deleteMessage() {
         int initialSize = source.getMessages(context, 2L).getCount();
@@ -993,4 +1142,31 @@ public class SQLiteQueryTest extends MessengerRealDataSuite {
         assertEquals(1, initialSize - finalSize);
     }
 
-}
\ No newline at end of file
+    private void insertMessagesWithMatchingTimestamps() {
+        long[] timestamps = new long[]{1, 2, 2, 2, 3, 4, 4};
+        for (int i = 0; i < timestamps.length; i++) {
+            Message message = new Message();
+            message.setId(5010 + i);
+            message.setConversationId(500L);
+            message.setType(Message.TYPE_RECEIVED);
+            message.setData("message " + i);
+            message.setTimestamp(timestamps[i]);
+            message.setMimeType(MimeType.INSTANCE.getTEXT_PLAIN());
+            message.setRead(true);
+            message.setSeen(true);
+            source.insertMessage(context, message, 500L, false, false);
+        }
+    }
+
+    private List<Long> ids(Cursor cursor) {
+        List<Long> ids = new ArrayList<>();
+        if (cursor.moveToFirst()) {
+            do {
+                ids.add(cursor.getLong(cursor.getColumnIndex(Message.COLUMN_ID)));
+            } while (cursor.moveToNext());
+        }
+
+        cursor.close();
+        return ids;
+    }
+}
@@ -19,10 +19,15 @@ package xyz.klinker.messenger.shared.data.model;
 import org.junit.Before;
 import org.junit.Test;
 
+import javax.crypto.spec.SecretKeySpec;
+
+import xyz.klinker.messenger.encryption.EncryptionUtils;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ConversationTest {
 
@@ -60,4 +65,38 @@ public class ConversationTest {
         assertFalse(conversation.isGroup());
     }
 
-}
\ No newline at end of file
+
+    @Test
+    public void fieldsBeforeAnUnencryptedOneAreStillDecrypted() {
+        EncryptionUtils utils = new EncryptionUtils(new SecretKeySpec(new byte[32], "AES"));
+        conversation.setTitle(utils.encrypt("Luke Klinker"));
+        conversation.setPhoneNumbers(utils.encrypt("5159911493"));
+        conversation.setSnippet(utils.encrypt("hey"));
+        conversation.setIdMatcher("not encrypted");
+
+        try {
+            conversation.decrypt(utils);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+
+        assertEquals("Luke Klinker", conversation.getTitle());
+        assertEquals("5159911493", conversation.getPhoneNumbers());
+        assertEquals("hey", conversation.getSnippet());
+    }
+
+    @Test
+    public void contactFieldsBeforeAnUnencryptedOneAreStillDecrypted() {
+        EncryptionUtils utils = new EncryptionUtils(new SecretKeySpec(new byte[32], "AES"));
+        Contact contact = new Contact();
+        contact.setPhoneNumber(utils.encrypt("5159911493"));
+        contact.setName(utils.encrypt("Luke Klinker"));
+        contact.setIdMatcher("not encrypted");
+
+        contact.decrypt(utils);
+
+        assertEquals("5159911493", contact.getPhoneNumber());
+        assertEquals("Luke Klinker", contact.getName());
+        assertEquals("not encrypted", contact.getIdMatcher());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import java.util.Collections;
+
+import xyz.klinker.messenger.MessengerRealDataSuite;
+import xyz.klinker.messenger.api.entity.ChangesResponse;
+import xyz.klinker.messenger.api.entity.ContactBody;
+import xyz.klinker.messenger.api.entity.ConversationBody;
+import xyz.klinker.messenger.api.entity.MessageBody;
+import xyz.klinker.messenger.encryption.EncryptionUtils;
+import xyz.klinker.messenger.shared.data.MimeType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.AdditionalAnswers.returnsFirstArg;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+public class DeltaSyncTest extends MessengerRealDataSuite {
+
+    @Mock
+    private EncryptionUtils encryption;
+
+    private SyncWatermarks watermarks;
+
+    @Before
+    public void setUpWatermarks() {
+        when(encryption.decrypt(anyString())).then(returnsFirstArg());
+
+        watermarks = new SyncWatermarks(context);
+        watermarks.clear();
+    }
+
+    @Test
+    public void needsAFullDownloadFirst() {
+        assertEquals(DeltaSync.Result.NOT_STARTED, new DeltaSync(context, encryption, watermarks, new Changes(), 1).sync());
+    }
+
+    @Test
+    public void seedingOnlySetsMissingWatermarks() {
+        watermarks.set(Collections.singletonMap(SyncWatermarks.MESSAGES, 100L));
+        watermarks.seed(50);
+
+        assertEquals(50, watermarks.get(SyncWatermarks.CONVERSATIONS));
+        assertEquals(100, watermarks.get(SyncWatermarks.MESSAGES));
+        assertEquals(50, watermarks.get(SyncWatermarks.CONTACTS));
+        assertEquals(DeltaSync.Result.SYNCED, new DeltaSync(context, encryption, watermarks, new Changes(), 1).sync());
+    }
+
+    @Test
+    public void appliesUpdatesAndRemovals() {
+        watermarks.setAll(100);
+
+        assertEquals(DeltaSync.Result.SYNCED, new DeltaSync(context, encryption, watermarks, new Changes(), 1).sync());
+
+        assertEquals("changed", source.getMessage(context, 1).getData());
+        assertNotNull(source.getMessage(context, 6000));
+        assertNull(source.getMessage(context, 2));
+        assertEquals("Updated", source.getConversation(context, 1).getTitle());
+        assertNull(source.getConversation(context, 2));
+
+        assertEquals(500, watermarks.get(SyncWatermarks.CONVERSATIONS));
+        assertEquals(600, watermarks.get(SyncWatermarks.MESSAGES));
+        assertEquals(300, watermarks.get(SyncWatermarks.CONTACTS));
+    }
+
+    @Test
+    public void failedPageAppliesNothing() {
+        watermarks.setAll(100);
+
+        Changes changes = new Changes();
+        changes.failMessages = true;
+
+        assertEquals(DeltaSync.Result.FAILED, new DeltaSync(context, encryption, watermarks, changes, 1).sync());
+
+        // the conversations downloaded fine, but they are only written along with everything else
+        assertEquals("Luke Klinker", source.getConversation(context, 1).getTitle());
+        assertNotNull(source.getConversation(context, 2));
+        assertEquals("You coming over tonight?", source.getMessage(context, 1).getData());
+        assertEquals(100, watermarks.get(SyncWatermarks.CONVERSATIONS));
+        assertEquals(100, watermarks.get(SyncWatermarks.MESSAGES));
+    }
+
+    @Test
+    public void skipsServersWithoutDeltaSyncs() {
+        watermarks.setAll(100);
+
+        Changes changes = new Changes();
+        changes.unsupported = true;
+
+        assertEquals(DeltaSync.Result.UNSUPPORTED, new DeltaSync(context, encryption, watermarks, changes, 1).sync());
+        assertEquals(1, changes.requests);
+        assertEquals(100, watermarks.get(SyncWatermarks.CONVERSATIONS));
+    }
+
+    private static class Changes implements DeltaSync.ChangeFetcher {
+
+        boolean failMessages = false;
+        boolean unsupported = false;
+        int requests = 0;
+
+        @Override
+        public ChangesResponse<ConversationBody> conversations(long since, String pageToken) {
+            requests++;
+            if (unsupported) {
+                throw new DeltaSync.UnsupportedException();
+            }
+
+            ConversationBody conversation = new ConversationBody(1, 0, 0, 0, 0, 0, false, true, 1000, "Updated",
+                    "5159911493", "snippet", null, null, "59911493", false, false, false, null);
+            return new ChangesResponse<>(new ConversationBody[] { conversation }, new long[] { 2 }, null, 500);
+        }
+
+        @Override
+        public ChangesResponse<MessageBody> messages(long since, String pageToken) {
+            if (failMessages) {
+                return null;
+            } else if (pageToken == null) {
+                return new ChangesResponse<>(new MessageBody[] { message(1, "changed") }, new long[0], "page 2", 400);
+            } else {
+                return new ChangesResponse<>(new MessageBody[] { message(6000, "new") }, new long[] { 2 }, null, 600);
+            }
+        }
+
+        @Override
+        public ChangesResponse<ContactBody> contacts(long since, String pageToken) {
+            return new ChangesResponse<>(new ContactBody[0], new long[0], null, 300);
+        }
+
+        private MessageBody message(long id, String data) {
+            return new MessageBody(id, 1, 0, data, 2000, MimeType.INSTANCE.getTEXT_PLAIN(), true, true,
+                    null, null, "-1", null);
+        }
+    }
+}
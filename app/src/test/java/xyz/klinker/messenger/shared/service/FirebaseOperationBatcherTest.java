@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import kotlin.Unit;
+import kotlin.jvm.functions.Function1;
+import xyz.klinker.messenger.MessengerSuite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FirebaseOperationBatcherTest extends MessengerSuite {
+
+    private final List<List<FirebaseOperationBatcher.Operation>> batches =
+            Collections.synchronizedList(new ArrayList<List<FirebaseOperationBatcher.Operation>>());
+
+    @Test
+    public void burstIsHandledAsOneBatch() throws Exception {
+        CountDownLatch handled = new CountDownLatch(50);
+        FirebaseOperationBatcher batcher = new FirebaseOperationBatcher(collect(handled), 500, 200, 100);
+
+        for (int i = 0; i < 50; i++) {
+            batcher.enqueue("added_message", "{\"id\": " + i + "}");
+        }
+
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+        assertEquals(1, batches.size());
+        assertEquals(50, batches.get(0).size());
+    }
+
+    @Test
+    public void keepsTheOrderOperationsArrivedIn() throws Exception {
+        CountDownLatch handled = new CountDownLatch(3);
+        FirebaseOperationBatcher batcher = new FirebaseOperationBatcher(collect(handled), 500, 200, 100);
+
+        batcher.enqueue("added_message", "1");
+        batcher.enqueue("removed_message", "1");
+        batcher.enqueue("added_message", "2");
+
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+        assertEquals("[Operation(operation=added_message, data=1), Operation(operation=removed_message, data=1), " +
+                "Operation(operation=added_message, data=2)]", batches.get(0).toString());
+    }
+
+    @Test
+    public void largeBurstIsSplitUp() throws Exception {
+        CountDownLatch handled = new CountDownLatch(25);
+        FirebaseOperationBatcher batcher = new FirebaseOperationBatcher(collect(handled), 500, 10, 100);
+
+        for (int i = 0; i < 25; i++) {
+            batcher.enqueue("added_message", String.valueOf(i));
+        }
+
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+        assertEquals(3, batches.size());
+        assertEquals(5, batches.get(2).size());
+    }
+
+    @Test
+    public void startsAgainAfterGoingIdle() throws Exception {
+        CountDownLatch first = new CountDownLatch(1);
+        FirebaseOperationBatcher batcher = new FirebaseOperationBatcher(collect(first), 10, 200, 10);
+
+        batcher.enqueue("added_message", "1");
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+
+        // give the thread time to stop
+        Thread.sleep(200);
+
+        batcher.enqueue("added_message", "2");
+        long waitUntil = System.currentTimeMillis() + 5000;
+        while (batches.size() < 2 && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(2, batches.size());
+    }
+
+    @Test
+    public void keepsGoingAfterTheHandlerThrowsAnError() throws Exception {
+        final CountDownLatch handled = new CountDownLatch(1);
+        final Function1<List<FirebaseOperationBatcher.Operation>, Unit> collect = collect(handled);
+        FirebaseOperationBatcher batcher = new FirebaseOperationBatcher(new Function1<List<FirebaseOperationBatcher.Operation>, Unit>() {
+            @Override
+            public Unit invoke(List<FirebaseOperationBatcher.Operation> batch) {
+                if (batch.get(0).getData().equals("1")) {
+                    throw new AssertionError("handler failed");
+                }
+
+                return collect.invoke(batch);
+            }
+        }, 10, 200, 1000);
+
+        batcher.enqueue("added_message", "1");
+
+        // the thread has died by now, rather than waiting for more operations
+        Thread.sleep(200);
+
+        batcher.enqueue("added_message", "2");
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+        assertEquals("2", batches.get(0).get(0).getData());
+    }
+
+    private Function1<List<FirebaseOperationBatcher.Operation>, Unit> collect(final CountDownLatch handled) {
+        return new Function1<List<FirebaseOperationBatcher.Operation>, Unit>() {
+            @Override
+            public Unit invoke(List<FirebaseOperationBatcher.Operation> batch) {
+                batches.add(new ArrayList<>(batch));
+                for (int i = 0; i < batch.size(); i++) {
+                    handled.countDown();
+                }
+
+                return Unit.INSTANCE;
+            }
+        };
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import xyz.klinker.messenger.MessengerRealDataSuite;
+import xyz.klinker.messenger.api.ApiPager;
+import xyz.klinker.messenger.api.entity.MessageBody;
+import xyz.klinker.messenger.encryption.EncryptionUtils;
+import xyz.klinker.messenger.shared.data.MimeType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.AdditionalAnswers.returnsFirstArg;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+public class MessageDownloadEngineTest extends MessengerRealDataSuite {
+
+    private static final int PAGE_SIZE = 2;
+    private static final long CONVERSATION_ID = 100;
+
+    @Mock
+    private EncryptionUtils encryption;
+
+    private DownloadCheckpoint checkpoint;
+    private List<String> requestedTokens = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUpCheckpoint() {
+        when(encryption.decrypt(anyString())).then(returnsFirstArg());
+
+        checkpoint = new DownloadCheckpoint(context, "account");
+        checkpoint.start();
+    }
+
+    @Test
+    public void downloadsEveryPage() {
+        int messageCount = source.getMessageCount(context);
+
+        assertTrue(createEngine(5, null).download(Collections.singletonList(CONVERSATION_ID)));
+
+        assertEquals(messageCount + 5, source.getMessageCount(context));
+        assertEquals(DownloadCheckpoint.COMPLETE, checkpoint.getPageToken(CONVERSATION_ID));
+        assertEquals(Arrays.asList(null, "2", "4"), requestedTokens);
+    }
+
+    @Test
+    public void shortPageIsNotTheLastPage() {
+        int messageCount = source.getMessageCount(context);
+
+        // the fake API leaves the 3rd message out of the first page
+        assertTrue(createEngine(5, null, 2).download(Collections.singletonList(CONVERSATION_ID)));
+
+        assertEquals(messageCount + 4, source.getMessageCount(context));
+        assertEquals(Arrays.asList(null, "2", "4"), requestedTokens);
+    }
+
+    @Test
+    public void failedPageKeepsToken() {
+        assertFalse(createEngine(5, "2").download(Collections.singletonList(CONVERSATION_ID)));
+        assertEquals("2", checkpoint.getPageToken(CONVERSATION_ID));
+    }
+
+    @Test
+    public void resumesFromToken() {
+        checkpoint.setPageToken(CONVERSATION_ID, "4");
+
+        assertTrue(createEngine(5, null).download(Collections.singletonList(CONVERSATION_ID)));
+        assertEquals(Collections.singletonList("4"), requestedTokens);
+        assertEquals(DownloadCheckpoint.COMPLETE, checkpoint.getPageToken(CONVERSATION_ID));
+    }
+
+    @Test
+    public void skipsCompleteConversations() {
+        checkpoint.setPageToken(CONVERSATION_ID, DownloadCheckpoint.COMPLETE);
+
+        assertTrue(createEngine(5, null).download(Collections.singletonList(CONVERSATION_ID)));
+        assertTrue(requestedTokens.isEmpty());
+    }
+
+    private MessageDownloadEngine createEngine(final int total, final String failingToken) {
+        return createEngine(total, failingToken, -1);
+    }
+
+    /**
+     * The fake API uses the offset of the next page as its token.
+     *
+     * @param total number of messages that the fake API has for the conversation.
+     * @param failingToken token that the API will always fail for, or null.
+     * @param missingMessage offset of a message that the API leaves out of its page, or -1.
+     */
+    private MessageDownloadEngine createEngine(final int total, final String failingToken, final int missingMessage) {
+        return new MessageDownloadEngine(context, encryption, checkpoint, (conversationId, pageToken) -> {
+            requestedTokens.add(pageToken);
+            if (pageToken != null && pageToken.equals(failingToken)) {
+                return null;
+            }
+
+            int offset = pageToken == null ? 0 : Integer.parseInt(pageToken);
+            int end = Math.min(offset + PAGE_SIZE, total);
+
+            List<MessageBody> bodies = new ArrayList<>();
+            for (int i = offset; i < end; i++) {
+                if (i != missingMessage) {
+                    long id = 1000 + i;
+                    bodies.add(new MessageBody(id, conversationId, 0, "message " + id, id, MimeType.INSTANCE.getTEXT_PLAIN(),
+                            true, true, null, null, "-1", null));
+                }
+            }
+
+            return new ApiPager.Page<>(bodies, end < total ? String.valueOf(end) : null);
+        }, 1);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.service;
+
+import android.database.Cursor;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import kotlin.Unit;
+import xyz.klinker.messenger.MessengerRealDataSuite;
+import xyz.klinker.messenger.api.entity.MessageBody;
+import xyz.klinker.messenger.encryption.EncryptionUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.AdditionalAnswers.returnsFirstArg;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+public class MessageUploadPipelineTest extends MessengerRealDataSuite {
+
+    @Mock
+    private EncryptionUtils encryption;
+
+    private List<MessageBody> uploaded = Collections.synchronizedList(new ArrayList<MessageBody>());
+    private List<MessageUploadPipeline.Checkpoint> checkpoints = Collections.synchronizedList(new ArrayList<MessageUploadPipeline.Checkpoint>());
+
+    @Before
+    public void setUpEncryption() {
+        when(encryption.encrypt(anyString())).then(returnsFirstArg());
+    }
+
+    @Test
+    public void uploadsEveryMessage() {
+        MessageUploadPipeline pipeline = createPipeline(true);
+        MessageUploadPipeline.Checkpoint start = MessageUploadPipeline.START;
+
+        Cursor cursor = source.getMessagesAfter(context, start.getTimestamp(), start.getMessageId());
+        assertTrue(pipeline.upload(cursor, start));
+        cursor.close();
+
+        assertEquals(8, uploaded.size());
+        assertEquals(new MessageUploadPipeline.Checkpoint(1000, 2, 2), checkpoints.get(checkpoints.size() - 1));
+    }
+
+    @Test
+    public void numbersMediaForFirebase() {
+        MessageUploadPipeline pipeline = createPipeline(true);
+        MessageUploadPipeline.Checkpoint start = new MessageUploadPipeline.Checkpoint(-1, -1, 5);
+
+        Cursor cursor = source.getMessagesAfter(context, start.getTimestamp(), start.getMessageId());
+        pipeline.upload(cursor, start);
+        cursor.close();
+
+        for (MessageBody body : uploaded) {
+            if (body.deviceId == 7) {
+                assertEquals("firebase 5", body.data);
+            } else if (body.deviceId == 8) {
+                assertEquals("firebase 6", body.data);
+            }
+        }
+    }
+
+    @Test
+    public void resumesFromCheckpoint() {
+        MessageUploadPipeline pipeline = createPipeline(true);
+        MessageUploadPipeline.Checkpoint start = new MessageUploadPipeline.Checkpoint(500, 4, 2);
+
+        Cursor cursor = source.getMessagesAfter(context, start.getTimestamp(), start.getMessageId());
+        assertTrue(pipeline.upload(cursor, start));
+        cursor.close();
+
+        assertEquals(4, uploaded.size());
+        assertEquals(new MessageUploadPipeline.Checkpoint(1000, 2, 2), checkpoints.get(checkpoints.size() - 1));
+    }
+
+    @Test
+    public void failedPageDoesNotMoveCheckpoint() {
+        MessageUploadPipeline pipeline = createPipeline(false);
+        MessageUploadPipeline.Checkpoint start = MessageUploadPipeline.START;
+
+        Cursor cursor = source.getMessagesAfter(context, start.getTimestamp(), start.getMessageId());
+        assertFalse(pipeline.upload(cursor, start));
+        cursor.close();
+
+        assertTrue(checkpoints.isEmpty());
+        assertTrue(pipeline.getPageSize() < MessageUploadPipeline.INITIAL_PAGE_SIZE);
+    }
+
+    private MessageUploadPipeline createPipeline(final boolean success) {
+        return new MessageUploadPipeline(encryption, bodies -> {
+            if (success) {
+                Collections.addAll(uploaded, bodies);
+            }
+
+            return success;
+        }, checkpoint -> {
+            checkpoints.add(checkpoint);
+            return Unit.INSTANCE;
+        });
+    }
+}
@@ -38,7 +38,6 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.spy;
 
@@ -74,10 +73,7 @@ public class NotificationServiceTest extends MessengerRobolectricSuite {
     @Test
     public void getUnseenConversations() {
         service = spy(service);
-        doReturn(getUnseenCursor()).when(source).getUnseenMessages(any(Context.class));
-        doReturn(getConversation1()).when(source).getConversation(any(Context.class), eq(1L));
-        doReturn(getConversation2()).when(source).getConversation(any(Context.class), eq(2L));
-        doReturn(getConversation3()).when(source).getConversation(any(Context.class), eq(3L));
+        doReturn(getUnseenCursor()).when(source).getUnseenMessagesWithConversations(any(Context.class));
 
         List<NotificationConversation> conversations = new NotificationUnreadConversationQuery(service).getUnseenConversations(source);
 
@@ -101,79 +97,34 @@ public class NotificationServiceTest extends MessengerRobolectricSuite {
                 Message.COLUMN_DATA,
                 Message.COLUMN_MIME_TYPE,
                 Message.COLUMN_TIMESTAMP,
-                Message.COLUMN_FROM
+                Message.COLUMN_FROM,
+                Conversation.COLUMN_TITLE,
+                Conversation.COLUMN_SNIPPET,
+                Conversation.COLUMN_IMAGE_URI,
+                Conversation.COLUMN_COLOR,
+                Conversation.COLUMN_RINGTONE,
+                Conversation.COLUMN_LED_COLOR,
+                NotificationUnreadConversationQuery.COLUMN_CONVERSATION_TIMESTAMP,
+                Conversation.COLUMN_MUTE,
+                Conversation.COLUMN_PHONE_NUMBERS,
+                Conversation.COLUMN_PRIVATE
         });
 
-        cursor.addRow(new Object[]{
-                1,
-                1,
-                "Hey what's up?",
-                "text/plain",
-                1000L,
-                null
-        });
-
-        cursor.addRow(new Object[]{
-                1,
-                1,
-                "Yo, you around?",
-                "text/plain",
-                2000L,
-                null
-        });
-
-        cursor.addRow(new Object[]{
-                1,
-                2,
-                "Can we hang out tonight?",
-                "text/plain",
-                3000L,
-                null
-        });
-
-        cursor.addRow(new Object[]{
-                1,
-                1,
-                "Hello?",
-                "text/plain",
-                4000L,
-                null
-        });
-
-        cursor.addRow(new Object[]{
-                1,
-                3,
-                "content://mms/part/1",
-                "image/jpg",
-                5000L,
-                null
-        });
+        cursor.addRow(row(1, 1, "Hey what's up?", "text/plain", 1000L, "Luke Klinker", 1));
+        cursor.addRow(row(1, 1, "Yo, you around?", "text/plain", 2000L, "Luke Klinker", 1));
+        cursor.addRow(row(1, 2, "Can we hang out tonight?", "text/plain", 3000L, "Aaron Klinker", 2));
+        cursor.addRow(row(1, 1, "Hello?", "text/plain", 4000L, "Luke Klinker", 1));
+        cursor.addRow(row(1, 3, "content://mms/part/1", "image/jpg", 5000L, "Andrew Klinker", 3));
 
         return cursor;
     }
 
-    private Conversation getConversation1() {
-        Conversation conversation = new Conversation();
-        conversation.setTitle("Luke Klinker");
-        conversation.setPhoneNumbers("test");
-        conversation.setTimestamp(1);
-        return conversation;
-    }
-
-    private Conversation getConversation2() {
-        Conversation conversation = new Conversation();
-        conversation.setTitle("Aaron Klinker");
-        conversation.setPhoneNumbers("test");
-        conversation.setTimestamp(2);
-        return conversation;
-    }
-
-    private Conversation getConversation3() {
-        Conversation conversation = new Conversation();
-        conversation.setTitle("Andrew Klinker");
-        conversation.setPhoneNumbers("test");
-        conversation.setTimestamp(3);
-        return conversation;
+    private Object[] row(long id, long conversationId, String data, String mimeType, long timestamp,
+                         String title, long conversationTimestamp) {
+        return new Object[]{
+                id, conversationId, data, mimeType, timestamp, null,
+                title, null, null, 0, null, 0, conversationTimestamp, 0, "test", 0
+        };
     }
 
 }
\ No newline at end of file
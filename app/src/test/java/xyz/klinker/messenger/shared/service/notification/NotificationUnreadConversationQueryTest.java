@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.service.notification;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import xyz.klinker.messenger.MessengerRealDataSuite;
+import xyz.klinker.messenger.shared.data.model.Conversation;
+import xyz.klinker.messenger.shared.data.model.Message;
+import xyz.klinker.messenger.shared.data.pojo.NotificationConversation;
+import xyz.klinker.messenger.shared.util.MockableDataSourceWrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class NotificationUnreadConversationQueryTest extends MessengerRealDataSuite {
+
+    @Test
+    public void loadsLatestMessagesForEachConversation() {
+        List<NotificationConversation> conversations = query();
+        assertFalse(conversations.isEmpty());
+
+        for (NotificationConversation conversation : conversations) {
+            assertEquals(ids(source.getMessages(context, conversation.getId(), 4)), ids(conversation.getRealMessages()));
+        }
+    }
+
+    @Test
+    public void loadsLatestMessagesForManyConversations() {
+        source.clearTables(context);
+        insertUnseen(250, 6);
+
+        List<NotificationConversation> conversations = query();
+        assertEquals(250, conversations.size());
+
+        for (NotificationConversation conversation : conversations) {
+            // messages 5 and 4 have the same timestamp, so the newer id comes first
+            long firstId = conversation.getId() * 100;
+            assertEquals(Arrays.asList(firstId + 5, firstId + 4, firstId + 3, firstId + 2),
+                    ids(conversation.getRealMessages()));
+        }
+    }
+
+    private List<NotificationConversation> query() {
+        return new NotificationUnreadConversationQuery(context).getUnseenConversations(new MockableDataSourceWrapper(source));
+    }
+
+    private void insertUnseen(int conversations, int messagesPerConversation) {
+        SQLiteDatabase database = source.get_database();
+        database.beginTransaction();
+
+        for (int i = 0; i < conversations; i++) {
+            long conversationId = 10_000 + i;
+
+            ContentValues conversation = new ContentValues();
+            conversation.put(Conversation.COLUMN_ID, conversationId);
+            conversation.put(Conversation.COLUMN_COLOR, 0);
+            conversation.put(Conversation.COLUMN_COLOR_DARK, 0);
+            conversation.put(Conversation.COLUMN_COLOR_LIGHT, 0);
+            conversation.put(Conversation.COLUMN_COLOR_ACCENT, 0);
+            conversation.put(Conversation.COLUMN_PINNED, 0);
+            conversation.put(Conversation.COLUMN_READ, 0);
+            conversation.put(Conversation.COLUMN_TIMESTAMP, i);
+            conversation.put(Conversation.COLUMN_TITLE, "conversation " + i);
+            conversation.put(Conversation.COLUMN_PHONE_NUMBERS, "515" + i);
+            conversation.put(Conversation.COLUMN_ID_MATCHER, "515" + i);
+            conversation.put(Conversation.COLUMN_MUTE, 0);
+            database.insert(Conversation.TABLE, null, conversation);
+
+            for (int j = 0; j < messagesPerConversation; j++) {
+                ContentValues message = new ContentValues();
+                message.put(Message.COLUMN_ID, conversationId * 100 + j);
+                message.put(Message.COLUMN_CONVERSATION_ID, conversationId);
+                message.put(Message.COLUMN_TYPE, Message.TYPE_RECEIVED);
+                message.put(Message.COLUMN_DATA, "message " + j);
+                message.put(Message.COLUMN_TIMESTAMP, i * 100 + Math.min(j, 4));
+                message.put(Message.COLUMN_MIME_TYPE, "text/plain");
+                message.put(Message.COLUMN_READ, 0);
+                message.put(Message.COLUMN_SEEN, 0);
+                database.insert(Message.TABLE, null, message);
+            }
+        }
+
+        database.setTransactionSuccessful();
+        database.endTransaction();
+    }
+
+    private List<Long> ids(List<Message> messages) {
+        List<Long> ids = new ArrayList<>();
+        for (Message message : messages) {
+            ids.add(message.getId());
+        }
+
+        return ids;
+    }
+}
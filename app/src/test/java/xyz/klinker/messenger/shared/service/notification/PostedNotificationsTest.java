@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.service.notification;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import xyz.klinker.messenger.shared.data.MimeType;
+import xyz.klinker.messenger.shared.data.pojo.NotificationConversation;
+import xyz.klinker.messenger.shared.data.pojo.NotificationMessage;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PostedNotificationsTest {
+
+    private PostedNotifications posted;
+
+    @Before
+    public void setUp() {
+        posted = new PostedNotifications();
+    }
+
+    @Test
+    public void newConversationHasChanged() {
+        assertTrue(posted.hasChanged(conversation(1, 10)));
+    }
+
+    @Test
+    public void samePostedConversationHasNotChanged() {
+        posted.posted(conversation(1, 10, 11));
+        assertFalse(posted.hasChanged(conversation(1, 10, 11)));
+    }
+
+    @Test
+    public void newUnseenMessageHasChanged() {
+        posted.posted(conversation(1, 10));
+        assertTrue(posted.hasChanged(conversation(1, 10, 11)));
+    }
+
+    @Test
+    public void renamedConversationHasChanged() {
+        posted.posted(conversation(1, 10));
+
+        NotificationConversation renamed = conversation(1, 10);
+        renamed.setTitle("Jake");
+        assertTrue(posted.hasChanged(renamed));
+    }
+
+    @Test
+    public void forgetsSeenConversations() {
+        posted.posted(conversation(1, 10));
+        posted.posted(conversation(2, 20));
+        posted.retain(Collections.singletonList(conversation(2, 20)));
+
+        assertTrue(posted.hasChanged(conversation(1, 10)));
+        assertFalse(posted.hasChanged(conversation(2, 20)));
+    }
+
+    @Test
+    public void summaryChangesWithUnseenConversations() {
+        posted.summaryPosted(Arrays.asList(conversation(2, 20), conversation(1, 10)));
+
+        assertFalse(posted.hasSummaryChanged(Arrays.asList(conversation(2, 20), conversation(1, 10))));
+        assertTrue(posted.hasSummaryChanged(Arrays.asList(conversation(2, 20), conversation(1, 10, 11))));
+        assertTrue(posted.hasSummaryChanged(Collections.singletonList(conversation(2, 20))));
+    }
+
+    private NotificationConversation conversation(long id, long... messageIds) {
+        NotificationConversation conversation = new NotificationConversation();
+        conversation.setId(id);
+        conversation.setTitle("Luke");
+
+        for (long messageId : messageIds) {
+            conversation.getMessages().add(new NotificationMessage(messageId, "test", MimeType.INSTANCE.getTEXT_PLAIN(), messageId, null));
+        }
+
+        return conversation;
+    }
+}
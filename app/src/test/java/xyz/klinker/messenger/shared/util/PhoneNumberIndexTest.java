@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.util;
+
+import org.junit.Test;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Arrays;
+
+import xyz.klinker.messenger.MessengerRobolectricSuite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PhoneNumberIndexTest extends MessengerRobolectricSuite {
+
+    private final PhoneNumberIndex<String> index = new PhoneNumberIndex<>(
+            Arrays.asList("+1 (515) 991-1493", "515-422-4558", "7850"), number -> number);
+
+    @Test
+    public void findsFormattedNumbers() {
+        assertEquals("+1 (515) 991-1493", index.find("5159911493"));
+        assertEquals("+1 (515) 991-1493", index.find("+15159911493"));
+        assertEquals("515-422-4558", index.find("(515) 422-4558"));
+    }
+
+    @Test
+    public void findsShortNumbers() {
+        assertEquals("7850", index.find("7850"));
+    }
+
+    @Test
+    public void missingNumbers() {
+        assertNull(index.find("5159911494"));
+        assertNull(index.find("785"));
+    }
+
+    @Test
+    public void remembersProviderLookups() {
+        ContactResolutionCache.INSTANCE.invalidate();
+        int[] queries = new int[1];
+
+        for (int i = 0; i < 3; i++) {
+            ContactResolutionCache.INSTANCE.find(RuntimeEnvironment.application, "5159911493", "5159911493", () -> {
+                queries[0]++;
+                return null;
+            });
+        }
+
+        assertEquals(1, queries[0]);
+
+        ContactResolutionCache.INSTANCE.invalidate();
+        ContactResolutionCache.INSTANCE.find(RuntimeEnvironment.application, "5159911493", "5159911493", () -> {
+            queries[0]++;
+            return null;
+        });
+
+        assertEquals(2, queries[0]);
+    }
+}
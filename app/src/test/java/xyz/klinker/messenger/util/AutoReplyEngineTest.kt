@@ -0,0 +1,82 @@
+package xyz.klinker.messenger.util
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.robolectric.RuntimeEnvironment
+import xyz.klinker.messenger.MessengerRobolectricSuite
+import xyz.klinker.messenger.shared.data.MimeType
+import xyz.klinker.messenger.shared.data.model.AutoReply
+import xyz.klinker.messenger.shared.data.model.Conversation
+import xyz.klinker.messenger.shared.data.model.Message
+import xyz.klinker.messenger.shared.util.autoreply.AutoReplyEngine
+
+class AutoReplyEngineTest : MessengerRobolectricSuite() {
+
+    private val context = RuntimeEnvironment.application
+    private val replies = listOf(
+            reply(AutoReply.TYPE_CONTACT, "515-991-1493", "contact"),
+            reply(AutoReply.TYPE_DRIVING, null, "driving"),
+            reply(AutoReply.TYPE_KEYWORD, "Hello", "hello"),
+            reply(AutoReply.TYPE_KEYWORD, "lo th", "lo th"),
+            reply(AutoReply.TYPE_KEYWORD, "bye", " "),
+            reply(AutoReply.TYPE_VACATION, null, "vacation"))
+
+    @Test
+    fun matchesContactsAndKeywords() {
+        val engine = AutoReplyEngine(context, replies, false, false)
+
+        assertEquals(listOf("contact", "hello", "lo th"),
+                responses(engine, "+1 (515) 991-1493", "HELLO there, bye"))
+        assertEquals(listOf("hello"), responses(engine, "5154224558", "oh, hello"))
+        assertTrue(responses(engine, "5154224558", "nothing").isEmpty())
+    }
+
+    @Test
+    fun keywordsOnlyMatchText() {
+        val engine = AutoReplyEngine(context, replies, false, false)
+        val message = message("hello")
+        message.mimeType = MimeType.IMAGE_JPEG
+
+        assertTrue(engine.evaluate(conversation("5154224558"), message).isEmpty())
+    }
+
+    @Test
+    fun drivingModeOnlySendsDrivingReply() {
+        val engine = AutoReplyEngine(context, replies, true, true)
+        assertEquals(listOf("driving"), responses(engine, "5159911493", "hello"))
+    }
+
+    @Test
+    fun vacationModeOnlySendsVacationReply() {
+        val engine = AutoReplyEngine(context, replies, false, true)
+        assertEquals(listOf("vacation"), responses(engine, "5159911493", "hello"))
+    }
+
+    @Test
+    fun remembersEvaluation() {
+        val engine = AutoReplyEngine(context, replies, false, false)
+        val conversation = conversation("5154224558")
+        val message = message("hello")
+
+        val first = engine.evaluateAndRemember(conversation, message)
+        assertTrue(first === engine.evaluate(conversation, message))
+    }
+
+    private fun responses(engine: AutoReplyEngine, phoneNumbers: String, text: String) =
+            engine.evaluate(conversation(phoneNumbers), message(text)).map { it.reply.response }
+
+    private fun conversation(phoneNumbers: String) = Conversation().apply { this.phoneNumbers = phoneNumbers }
+
+    private fun message(text: String) = Message().apply {
+        id = 1
+        data = text
+        mimeType = MimeType.TEXT_PLAIN
+    }
+
+    private fun reply(type: String, pattern: String?, response: String) = AutoReply().apply {
+        this.type = type
+        this.pattern = pattern
+        this.response = response
+    }
+}
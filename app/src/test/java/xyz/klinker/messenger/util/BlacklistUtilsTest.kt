@@ -4,6 +4,8 @@ import junit.framework.Assert.assertFalse
 import junit.framework.Assert.assertTrue
 import org.junit.Test
 import xyz.klinker.messenger.MessengerRobolectricSuite
+import xyz.klinker.messenger.shared.data.model.Blacklist
+import xyz.klinker.messenger.shared.util.BlacklistMatcher
 import xyz.klinker.messenger.shared.util.BlacklistUtils
 
 class BlacklistUtilsTest : MessengerRobolectricSuite() {
@@ -39,6 +41,42 @@ class BlacklistUtilsTest : MessengerRobolectricSuite() {
         assertTrue(BlacklistUtils.numbersMatch("ABCDEF", "ABCD-EF"))
     }
 
+    @Test
+    fun matcherFindsAnyNumber() {
+        val matcher = BlacklistMatcher(listOf(number("515-991-1493"), number("55544"), number("HP-BHKPOS")), false)
+
+        assertTrue(matcher.matchesNumber("+1 (515) 991-1493"))
+        assertTrue(matcher.matchesNumber("991-1493"))
+        assertTrue(matcher.matchesNumber("55544"))
+        assertTrue(matcher.matchesNumber("HP-BHKPOS"))
+        assertFalse(matcher.matchesNumber("655544"))
+        assertFalse(matcher.matchesNumber("5154224558"))
+    }
+
+    @Test
+    fun matcherFindsLiteralPhrases() {
+        val matcher = BlacklistMatcher(listOf(phrase("Free Prize"), phrase("she sells"), phrase("hers"), phrase(" ")), false)
+
+        assertTrue(matcher.matchesText("Claim your FREE PRIZE today"))
+        assertTrue(matcher.matchesText("ushers"))
+        assertTrue(matcher.matchesText("she sells sea shells"))
+        assertFalse(matcher.matchesText("free to talk?"))
+        assertFalse(matcher.matchesText("a.b.c"))
+        assertFalse(matcher.matchesText(null))
+    }
+
+    @Test
+    fun matcherFindsRegexPhrases() {
+        val matcher = BlacklistMatcher(listOf(phrase("^win \\d+"), phrase("[invalid")), true)
+
+        assertTrue(matcher.matchesText("hey\nWIN 100 dollars"))
+        assertFalse(matcher.matchesText("you win 100 dollars"))
+        assertFalse(matcher.matchesText("[invalid"))
+    }
+
+    private fun number(number: String) = Blacklist().apply { phoneNumber = number }
+    private fun phrase(phrase: String) = Blacklist().apply { this.phrase = phrase }
+
     @Test
     fun isNullOrBlank() {
         val value1: String? = null
@@ -0,0 +1,54 @@
+package xyz.klinker.messenger.util
+
+import org.junit.After
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.robolectric.RuntimeEnvironment
+import xyz.klinker.messenger.MessengerRobolectricSuite
+import xyz.klinker.messenger.shared.data.pojo.NotificationConversation
+import xyz.klinker.messenger.shared.util.NotificationImageCache
+
+class NotificationImageCacheTest : MessengerRobolectricSuite() {
+
+    private val context = RuntimeEnvironment.application
+
+    @After
+    fun tearDown() {
+        NotificationImageCache.clear()
+    }
+
+    @Test
+    fun reusesLetterPictures() {
+        val first = NotificationImageCache.getLetterPicture(context, conversation("Luke", 1))
+        assertNotNull(first)
+        assertTrue(first === NotificationImageCache.getLetterPicture(context, conversation("Luke", 1)))
+    }
+
+    @Test
+    fun keysLetterPicturesByTitleAndColor() {
+        val first = NotificationImageCache.getLetterPicture(context, conversation("Luke", 1))
+        assertFalse(first === NotificationImageCache.getLetterPicture(context, conversation("Jake", 1)))
+        assertFalse(first === NotificationImageCache.getLetterPicture(context, conversation("Luke", 2)))
+    }
+
+    @Test
+    fun clearDropsImages() {
+        val first = NotificationImageCache.getLetterPicture(context, conversation("Luke", 1))
+        NotificationImageCache.clear()
+        assertFalse(first === NotificationImageCache.getLetterPicture(context, conversation("Luke", 1)))
+    }
+
+    @Test
+    fun missingImages() {
+        assertNull(NotificationImageCache.getContactImage(context, null))
+        assertNull(NotificationImageCache.getPicture(context, null))
+    }
+
+    private fun conversation(title: String, color: Int) = NotificationConversation().apply {
+        this.title = title
+        this.color = color
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.klinker.messenger.encryption;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts and decrypts the fields from a page of messages during a sync: 500 messages, with 4
+ * encrypted fields each. The single cipher benchmark decrypts the same fields the way that
+ * EncryptionUtils used to, splitting each field and creating a new Cipher for it, to compare with.
+ *
+ * Run it with ./gradlew :encryption:jmh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncryptionBenchmark {
+
+    private static final int SYNC_BATCH_FIELDS = 2000;
+
+    private SecretKeySpec key;
+    private EncryptionUtils utils;
+
+    private String[] fields;
+    private String[] encrypted;
+
+    @Setup
+    public void setUp() {
+        key = new SecretKeySpec(new byte[32], "AES");
+        utils = new EncryptionUtils(key);
+
+        fields = new String[SYNC_BATCH_FIELDS];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = "message number " + i + ", long enough to take a few blocks to encrypt";
+        }
+
+        encrypted = utils.encryptAll(fields);
+    }
+
+    @Benchmark
+    public String[] encryptAll() {
+        return utils.encryptAll(fields);
+    }
+
+    @Benchmark
+    public String[] decryptAll() {
+        return utils.decryptAll(encrypted);
+    }
+
+    @Benchmark
+    public String[] decryptWithNewCiphers() throws Exception {
+        String[] decrypted = new String[encrypted.length];
+        for (int i = 0; i < encrypted.length; i++) {
+            String[] parts = encrypted[i].split("-:-");
+            byte[] iv = Base64.decode(parts[0], Base64.DEFAULT);
+            byte[] ciphertext = Base64.decode(parts[1], Base64.DEFAULT);
+
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+            decrypted[i] = new String(cipher.doFinal(ciphertext), StandardCharsets.UTF_8);
+        }
+
+        return decrypted;
+    }
+}
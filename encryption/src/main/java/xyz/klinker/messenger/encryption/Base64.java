@@ -80,6 +80,8 @@ public class Base64 {
      */
     public static final int NO_CLOSE = 16;
 
+    private static final int DECODE_CHUNK_SIZE = 1024;
+
     //  --------------------------------------------------------
     //  shared code
     //  --------------------------------------------------------
@@ -189,6 +191,57 @@ public class Base64 {
         return temp;
     }
 
+    /**
+     * Decode the Base64-encoded characters of str from offset to offset + len
+     * and return the data in a new byte array. The characters go through a
+     * small buffer, instead of the whole string being copied to a byte array
+     * first.
+     *
+     * @param str    the input String to decode. Characters outside of
+     *               ISO-8859-1 are read as '?'.
+     * @param offset the position within the string at which to start
+     * @param len    the number of characters of input to decode
+     * @param flags  controls certain features of the decoded output.
+     *               Pass {@code DEFAULT} to decode standard Base64.
+     *
+     * @throws IllegalArgumentException if the input contains
+     * incorrect padding
+     */
+    public static byte[] decode(String str, int offset, int len, int flags) {
+        byte[] output = new byte[len*3/4];
+        byte[] chunk = new byte[Math.min(len, DECODE_CHUNK_SIZE)];
+        Decoder decoder = new Decoder(flags, new byte[chunk.length*3/4 + 10]);
+
+        int written = 0;
+        int p = offset;
+        int end = offset + len;
+
+        do {
+            int count = Math.min(chunk.length, end - p);
+            for (int i = 0; i < count; i++) {
+                char c = str.charAt(p + i);
+                chunk[i] = (byte) (c > 0xff ? '?' : c);
+            }
+
+            p += count;
+            if (!decoder.process(chunk, 0, count, p == end)) {
+                throw new IllegalArgumentException("bad base-64");
+            }
+
+            // each call writes from the start of the decoder's output
+            System.arraycopy(decoder.output, 0, output, written, decoder.op);
+            written += decoder.op;
+        } while (p < end);
+
+        if (written == output.length) {
+            return output;
+        }
+
+        byte[] temp = new byte[written];
+        System.arraycopy(output, 0, temp, 0, written);
+        return temp;
+    }
+
     /* package */ static class Decoder extends Coder {
         /**
          * Lookup table for turning bytes into their position in the
@@ -16,6 +16,10 @@
 
 package xyz.klinker.messenger.encryption;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
 import java.security.AlgorithmParameters;
@@ -27,6 +31,7 @@ import java.security.spec.InvalidParameterSpecException;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.CipherOutputStream;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
@@ -38,6 +43,22 @@ public class EncryptionUtils {
 
     private static final String TAG = "EncryptionUtils";
     private static final String SEPARATOR = "-:-";
+    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final int STREAM_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_IV_LENGTH = 256;
+
+    // Cipher.getInstance has to look up the provider every time, which costs more than encrypting
+    // a short field. A Cipher isn't thread safe, but each thread can keep one around and re-init it.
+    private static final ThreadLocal<Cipher> CIPHER = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance(TRANSFORMATION);
+            } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+                throw new RuntimeException("could not create cipher", e);
+            }
+        }
+    };
 
     private SecretKey secretKey;
 
@@ -76,7 +97,7 @@ public class EncryptionUtils {
      */
     public String encrypt(byte[] data) {
         try {
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            Cipher cipher = CIPHER.get();
             cipher.init(Cipher.ENCRYPT_MODE, secretKey);
             AlgorithmParameters params = cipher.getParameters();
             String iv = Base64.encodeToString(
@@ -86,8 +107,7 @@ public class EncryptionUtils {
 
             return iv + SEPARATOR + ciphertext;
         } catch (InvalidKeyException | InvalidParameterSpecException |
-                IllegalBlockSizeException | BadPaddingException |
-                NoSuchAlgorithmException | NoSuchPaddingException e) {
+                IllegalBlockSizeException | BadPaddingException e) {
             throw new RuntimeException("could not encrypt data. Key: " +
                     Base64.encodeToString(secretKey.getEncoded(), Base64.DEFAULT), e);
         }
@@ -115,31 +135,154 @@ public class EncryptionUtils {
      * @return the decrypted byte array.
      */
     public byte[] decryptData(String data) {
-        String dataOne = data.split(SEPARATOR)[0];
-        String dataTwo = data.split(SEPARATOR)[1];
+        // the iv and ciphertext are both base 64, so neither can contain the separator. Find it
+        // once and decode each half straight out of the string, instead of splitting or copying it.
+        int separator = data.indexOf(SEPARATOR);
+        if (separator < 0) {
+            throw new IllegalArgumentException("data is not encrypted");
+        }
+
+        int ciphertextStart = separator + SEPARATOR.length();
 
         byte[] iv;
         byte[] ciphertext;
 
         try {
-            iv = Base64.decode(dataOne, Base64.DEFAULT);
-            ciphertext = Base64.decode(dataTwo, Base64.DEFAULT);
+            iv = Base64.decode(data, 0, separator, Base64.DEFAULT);
+            ciphertext = Base64.decode(data, ciphertextStart, data.length() - ciphertextStart, Base64.DEFAULT);
         } catch (IllegalArgumentException e) {
             // bad base-64. Seems to come from an image
             return new byte[0];
         }
 
         try {
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            Cipher cipher = CIPHER.get();
             cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(iv));
             return cipher.doFinal(ciphertext);
         } catch (InvalidKeyException | InvalidAlgorithmParameterException |
-                IllegalBlockSizeException | BadPaddingException |
-                NoSuchAlgorithmException | NoSuchPaddingException e) {
+                IllegalBlockSizeException | BadPaddingException e) {
 //            throw new RuntimeException("could not decryptData data. Key: " +
 //                    Base64.encodeToString(secretKey.getEncoded(), Base64.DEFAULT), e);
             return new byte[0];
         }
     }
 
+    /**
+     * Encrypts each of the fields. Null fields stay null.
+     *
+     * @param data the fields to encrypt.
+     * @return a new array with the base 64 formatted strings, in the same order.
+     */
+    public String[] encryptAll(String[] data) {
+        String[] encrypted = new String[data.length];
+        for (int i = 0; i < data.length; i++) {
+            encrypted[i] = encrypt(data[i]);
+        }
+
+        return encrypted;
+    }
+
+    /**
+     * Decrypts each of the fields. Null fields stay null.
+     *
+     * @param data the fields to decrypt.
+     * @return a new array with the plaintext strings, in the same order.
+     */
+    public String[] decryptAll(String[] data) {
+        String[] decrypted = new String[data.length];
+        for (int i = 0; i < data.length; i++) {
+            decrypted[i] = decrypt(data[i]);
+        }
+
+        return decrypted;
+    }
+
+    /**
+     * Encrypts everything in the input stream, writing the same format as {@link #encrypt(byte[])}
+     * to the output stream. The data moves through a fixed size buffer, so large media never has
+     * to be held in memory. Both streams are closed when it is done.
+     *
+     * @param in the data to encrypt.
+     * @param out where to write the base 64 formatted data.
+     */
+    public void encrypt(InputStream in, OutputStream out) throws IOException {
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+            byte[] iv = cipher.getParameters().getParameterSpec(IvParameterSpec.class).getIV();
+
+            out.write(Base64.encode(iv, Base64.DEFAULT));
+            out.write(SEPARATOR.getBytes(StandardCharsets.US_ASCII));
+
+            copy(in, new CipherOutputStream(new Base64OutputStream(out, Base64.DEFAULT), cipher));
+        } catch (InvalidKeyException | InvalidParameterSpecException |
+                NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new IOException("could not encrypt data", e);
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    /**
+     * Decrypts a stream that was written by {@link #encrypt(InputStream, OutputStream)}, or
+     * {@link #encrypt(byte[])}, through a fixed size buffer. Both streams are closed when it is done.
+     *
+     * @param in the base 64 formatted data.
+     * @param out where to write the decrypted data.
+     */
+    public void decrypt(InputStream in, OutputStream out) throws IOException {
+        try {
+            byte[] iv = Base64.decode(readUntilSeparator(in), Base64.DEFAULT);
+
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(iv));
+
+            copy(in, new Base64OutputStream(new CipherOutputStream(out, cipher), Base64.DEFAULT, false));
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalArgumentException |
+                NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new IOException("could not decrypt data", e);
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private static byte[] readUntilSeparator(InputStream in) throws IOException {
+        byte[] separator = SEPARATOR.getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream iv = new ByteArrayOutputStream();
+        int matched = 0;
+
+        while (matched < separator.length) {
+            int b = in.read();
+            if (b == -1 || iv.size() > MAX_IV_LENGTH) {
+                throw new IOException("data is not encrypted");
+            }
+
+            if (b == separator[matched]) {
+                matched++;
+            } else if (matched > 0) {
+                // the iv is base 64, so it never contains part of the separator
+                throw new IOException("data is not encrypted");
+            } else {
+                iv.write(b);
+            }
+        }
+
+        return iv.toByteArray();
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        int read;
+
+        try {
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.data
+
+import android.content.Context
+import android.util.Log
+import xyz.klinker.messenger.api.implementation.Account
+import xyz.klinker.messenger.shared.data.model.RetryableRequest
+import xyz.klinker.messenger.shared.util.TimeUtils
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Collects the changes that need to be sent to the API after a local mutation, and sends them
+ * from a single background thread.
+ *
+ * A mutation is only the type of request and the id of the row that changed, the same as a
+ * [RetryableRequest]. The request is built from the database when it is sent, so queueing the
+ * same change again before the queue drains doesn't add another request. Reading ten
+ * conversations in a row sends ten reads, not dozens of retrying calls, and a conversation whose
+ * snippet changed three times only gets the latest one. Mutations of the same type are handed to
+ * the sender together, so that new messages can be added in a single request.
+ *
+ * Failed mutations are retried a few times on the same thread. After that, they get written to
+ * the retryable_request table, for SyncRetryableRequestsWork to queue again later.
+ *
+ * @param sender sends all of the mutations of one type, returning the ids that failed.
+ */
+class ApiMutationQueue @JvmOverloads constructor(
+        context: Context,
+        private val sender: (Int, List<Long>) -> List<Long> = ApiMutationSender(context.applicationContext)::send,
+        private val drainDelay: Long = DRAIN_DELAY_MS,
+        private val retryDelay: Long = RETRY_DELAY_MS) {
+
+    private val context = context.applicationContext
+    private val executor = Executors.newSingleThreadScheduledExecutor()
+
+    private val pending = mutableMapOf<Int, LinkedHashSet<Long>>()
+    private val attempts = ConcurrentHashMap<String, Int>()
+    private var drainScheduled = false
+
+    /**
+     * Queues a request for the given row. Nothing is added if the same request is already waiting.
+     *
+     * @param type one of the RetryableRequest types.
+     */
+    @Synchronized
+    fun enqueue(type: Int, dataId: Long) {
+        pending.getOrPut(type) { LinkedHashSet() }.add(dataId)
+
+        if (!drainScheduled) {
+            drainScheduled = true
+            executor.schedule({ drain() }, drainDelay, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    /**
+     * Sends everything that is waiting, on the calling thread.
+     */
+    fun flush() {
+        drain()
+    }
+
+    private fun drain() {
+        val batches = synchronized(this) {
+            drainScheduled = false
+            SEND_ORDER.mapNotNull { type -> pending.remove(type)?.let { type to it.toList() } }
+        }
+
+        for ((type, ids) in batches) {
+            val failed = try {
+                sender(type, ids)
+            } catch (e: Exception) {
+                e.printStackTrace()
+                ids
+            }
+
+            for (id in ids) {
+                if (failed.contains(id)) {
+                    retry(type, id)
+                } else {
+                    attempts.remove(key(type, id))
+                }
+            }
+
+            Log.v(TAG, "sent ${ids.size - failed.size} of ${ids.size} mutations with type $type")
+        }
+    }
+
+    private fun retry(type: Int, dataId: Long) {
+        val key = key(type, dataId)
+        val attempt = (attempts[key] ?: 0) + 1
+
+        if (attempt <= MAX_RETRIES) {
+            attempts[key] = attempt
+            executor.schedule({ enqueue(type, dataId) }, retryDelay * attempt, TimeUnit.MILLISECONDS)
+        } else {
+            attempts.remove(key)
+
+            // only the primary device syncs the retryable requests
+            if (Account.primary) {
+                DataSource.insertRetryableRequest(context, RetryableRequest(type, dataId, TimeUtils.now))
+            }
+        }
+    }
+
+    private fun key(type: Int, dataId: Long) = "$type:$dataId"
+
+    companion object {
+        private const val TAG = "ApiMutationQueue"
+
+        private const val DRAIN_DELAY_MS = 1000L
+        private const val RETRY_DELAY_MS = 4000L
+        private const val MAX_RETRIES = 3
+
+        // messages have to exist on the server before their type can be updated
+        private val SEND_ORDER = intArrayOf(RetryableRequest.TYPE_ADD_MESSAGE,
+                RetryableRequest.TYPE_UPDATE_MESSAGE_TYPE,
+                RetryableRequest.TYPE_UPDATE_CONVERSATION_SNIPPET,
+                RetryableRequest.TYPE_READ_CONVERSATION)
+    }
+}
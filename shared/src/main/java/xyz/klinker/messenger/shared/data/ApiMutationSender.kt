@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.data
+
+import android.content.Context
+import retrofit2.Call
+import xyz.klinker.messenger.api.entity.AddMessagesRequest
+import xyz.klinker.messenger.api.entity.MessageBody
+import xyz.klinker.messenger.api.entity.UpdateConversationRequest
+import xyz.klinker.messenger.api.implementation.Account
+import xyz.klinker.messenger.api.implementation.ApiUtils
+import xyz.klinker.messenger.shared.data.model.Message
+import xyz.klinker.messenger.shared.data.model.RetryableRequest
+
+/**
+ * Builds and sends the requests for the [ApiMutationQueue], using the current state of each row in
+ * the database. Rows that no longer exist are skipped, since there is nothing left to send.
+ */
+class ApiMutationSender(private val context: Context) {
+
+    /**
+     * @return the ids that could not be sent.
+     */
+    fun send(type: Int, ids: List<Long>): List<Long> {
+        val accountId = Account.accountId
+        val encryptor = Account.encryptor
+        if (accountId == null || encryptor == null) {
+            return emptyList()
+        }
+
+        return when (type) {
+            RetryableRequest.TYPE_ADD_MESSAGE -> addMessages(accountId, ids)
+            RetryableRequest.TYPE_UPDATE_MESSAGE_TYPE -> ids.filterNot { id ->
+                val message = DataSource.getMessage(context, id)
+                message == null || execute(ApiUtils.api.message().updateType(id, accountId, message.type))
+            }
+            RetryableRequest.TYPE_UPDATE_CONVERSATION_SNIPPET -> ids.filterNot { id ->
+                val conversation = DataSource.getConversation(context, id)
+                conversation == null || execute(ApiUtils.api.conversation().updateSnippet(id, accountId,
+                        UpdateConversationRequest(null, null, null, null, null, null, conversation.read,
+                                conversation.timestamp, null, encryptor.encrypt(conversation.snippet), null,
+                                null, conversation.archive, null)))
+            }
+            RetryableRequest.TYPE_READ_CONVERSATION -> ids.filterNot { id ->
+                execute(ApiUtils.api.conversation().read(id, Account.deviceId, accountId))
+            }
+            else -> emptyList()
+        }
+    }
+
+    /**
+     * Text messages are added a page at a time. Media still goes through ApiUtils, since it has
+     * to be uploaded to firebase first.
+     */
+    private fun addMessages(accountId: String, ids: List<Long>): List<Long> {
+        val encryptor = Account.encryptor!!
+        val text = mutableListOf<Message>()
+
+        for (id in ids) {
+            val message = DataSource.getMessage(context, id) ?: continue
+
+            if (message.mimeType == MimeType.TEXT_PLAIN || message.type == Message.TYPE_MEDIA || message.mimeType == MimeType.MEDIA_MAP) {
+                text.add(message)
+            } else {
+                ApiUtils.addMessage(context, accountId, message.id, message.conversationId, message.type, message.data,
+                        message.timestamp, message.mimeType, message.read, message.seen, message.from,
+                        message.color, message.sentDeviceId.toString(), message.simPhoneNumber, encryptor)
+            }
+        }
+
+        val failed = mutableListOf<Long>()
+        for (page in text.chunked(ADD_MESSAGES_PAGE_SIZE)) {
+            val bodies = page.map {
+                MessageBody(it.id, it.conversationId, it.type, encryptor.encrypt(it.data), it.timestamp,
+                        encryptor.encrypt(it.mimeType), it.read, it.seen, encryptor.encrypt(it.from), it.color,
+                        it.sentDeviceId.toString(), encryptor.encrypt(it.simPhoneNumber))
+            }.toTypedArray()
+
+            if (!execute(ApiUtils.api.message().add(AddMessagesRequest(accountId, bodies)))) {
+                failed.addAll(page.map { it.id })
+            }
+        }
+
+        return failed
+    }
+
+    private fun execute(call: Call<*>) = try {
+        ApiUtils.isCallSuccessful(call.execute())
+    } catch (e: Exception) {
+        e.printStackTrace()
+        false
+    }
+
+    companion object {
+        private const val ADD_MESSAGES_PAGE_SIZE = 100
+    }
+}
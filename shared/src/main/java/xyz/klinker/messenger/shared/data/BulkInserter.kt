@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.data
+
+import android.content.ContentValues
+import android.database.DatabaseUtils
+import android.database.SQLException
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteStatement
+import android.util.Log
+import xyz.klinker.messenger.shared.data.model.Conversation
+import xyz.klinker.messenger.shared.data.model.Message
+import xyz.klinker.messenger.shared.util.TimeUtils
+import java.io.Closeable
+
+/**
+ * Writer for the large imports (the initial load from the phone's SMS database and the restore
+ * from the cloud). SQLiteDatabase.insert re-parses the SQL and boxes every column into
+ * ContentValues for each row. Here, each table gets a single compiled statement that is re-bound
+ * for every row.
+ *
+ * All rows are written inside of a transaction that is opened when the inserter is created. If
+ * the caller doesn't already have a transaction open, that transaction is committed every
+ * batchSize rows, so a long import doesn't build up an unbounded journal or hold the write lock
+ * the entire time. If the caller does have one open, the caller's transaction decides when the
+ * rows get committed.
+ *
+ * Close the inserter once all rows have been written, to commit the last batch and release the
+ * statements.
+ */
+class BulkInserter @JvmOverloads constructor(private val database: SQLiteDatabase,
+                                             private val batchSize: Int = DEFAULT_BATCH_SIZE) : Closeable {
+
+    private val statements = mutableMapOf<String, SQLiteStatement>()
+    private val ownsTransaction = !database.inTransaction()
+    private val startTime = TimeUtils.now
+
+    private var batchCount = 0
+    var insertedCount = 0
+        private set
+
+    init {
+        database.beginTransactionNonExclusive()
+    }
+
+    /**
+     * Writes a message. The message should already have been given an id.
+     *
+     * @return the row id of the new message, or -1 if it could not be inserted.
+     */
+    fun insertMessage(message: Message): Long {
+        val statement = statement(Message.TABLE, MESSAGE_COLUMNS)
+        bindMessage(statement, message)
+        return execute(statement)
+    }
+
+    /**
+     * Writes a message over the one with the same id, or inserts it if there isn't one yet.
+     *
+     * @return the id of the message, or -1 if it could not be written.
+     */
+    fun upsertMessage(message: Message): Long {
+        val statement = updateStatement(Message.TABLE, MESSAGE_COLUMNS)
+        bindMessage(statement, message)
+        statement.bindLong(MESSAGE_COLUMNS.size + 1, message.id)
+
+        return if (executeUpdate(statement)) message.id else insertMessage(message)
+    }
+
+    private fun bindMessage(statement: SQLiteStatement, message: Message) {
+        statement.bindLong(1, message.id)
+        statement.bindLong(2, message.conversationId)
+        statement.bindLong(3, message.type.toLong())
+        bindString(statement, 4, message.data)
+        statement.bindLong(5, message.timestamp)
+        bindString(statement, 6, message.mimeType)
+        bindBoolean(statement, 7, message.read)
+        bindBoolean(statement, 8, message.seen)
+        bindString(statement, 9, message.from)
+        bindLong(statement, 10, message.color?.toLong())
+        bindString(statement, 11, message.simPhoneNumber)
+        statement.bindLong(12, message.sentDeviceId)
+    }
+
+    /**
+     * Writes a message that has already been converted to ContentValues. See
+     * SmsMmsUtils.processMessage(). Columns that are not in the values are written as null.
+     *
+     * @return the row id of the new message, or -1 if it could not be inserted.
+     */
+    fun insertMessage(values: ContentValues): Long {
+        val statement = statement(Message.TABLE, MESSAGE_COLUMNS)
+
+        for (i in MESSAGE_COLUMNS.indices) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(MESSAGE_COLUMNS[i]))
+        }
+
+        return execute(statement)
+    }
+
+    /**
+     * Writes a conversation. The id, timestamp, and snippet can be overridden, for when they are
+     * generated during the import instead of coming from the conversation object.
+     *
+     * @return the row id of the new conversation, or -1 if it could not be inserted.
+     */
+    @JvmOverloads
+    fun insertConversation(conversation: Conversation, id: Long = conversation.id,
+                           timestamp: Long = conversation.timestamp, snippet: String? = conversation.snippet): Long {
+        val statement = statement(Conversation.TABLE, CONVERSATION_COLUMNS)
+        bindConversation(statement, conversation, id, timestamp, snippet)
+        return execute(statement)
+    }
+
+    /**
+     * Writes a conversation over the one with the same id, or inserts it if there isn't one yet.
+     * The columns that aren't written on insert are left as they were.
+     *
+     * @return the id of the conversation, or -1 if it could not be written.
+     */
+    fun upsertConversation(conversation: Conversation): Long {
+        val statement = updateStatement(Conversation.TABLE, CONVERSATION_COLUMNS)
+        bindConversation(statement, conversation, conversation.id, conversation.timestamp, conversation.snippet)
+        statement.bindLong(CONVERSATION_COLUMNS.size + 1, conversation.id)
+
+        return if (executeUpdate(statement)) conversation.id else insertConversation(conversation)
+    }
+
+    private fun bindConversation(statement: SQLiteStatement, conversation: Conversation, id: Long,
+                                 timestamp: Long, snippet: String?) {
+        statement.bindLong(1, id)
+        statement.bindLong(2, conversation.colors.color.toLong())
+        statement.bindLong(3, conversation.colors.colorDark.toLong())
+        statement.bindLong(4, conversation.colors.colorLight.toLong())
+        statement.bindLong(5, conversation.colors.colorAccent.toLong())
+        statement.bindLong(6, conversation.ledColor.toLong())
+        bindBoolean(statement, 7, conversation.pinned)
+        bindBoolean(statement, 8, conversation.read)
+        statement.bindLong(9, timestamp)
+        bindString(statement, 10, conversation.title)
+        bindString(statement, 11, conversation.phoneNumbers)
+        bindString(statement, 12, snippet)
+        bindString(statement, 13, conversation.ringtoneUri)
+        bindString(statement, 14, conversation.imageUri)
+        bindString(statement, 15, conversation.idMatcher)
+        bindBoolean(statement, 16, conversation.mute)
+        bindBoolean(statement, 17, conversation.archive)
+        bindLong(statement, 18, conversation.folderId)
+    }
+
+    override fun close() {
+        for (statement in statements.values) {
+            statement.close()
+        }
+
+        statements.clear()
+
+        database.setTransactionSuccessful()
+        database.endTransaction()
+
+        val time = TimeUtils.now - startTime
+        val rate = if (time > 0) insertedCount * 1000L / time else insertedCount.toLong()
+        Log.v(TAG, "$insertedCount rows inserted in $time ms ($rate rows/sec)")
+    }
+
+    private fun statement(table: String, columns: Array<String>): SQLiteStatement {
+        val statement = statements.getOrPut(table) { database.compileStatement(buildInsert(table, columns)) }
+        statement.clearBindings()
+        return statement
+    }
+
+    private fun updateStatement(table: String, columns: Array<String>): SQLiteStatement {
+        val statement = statements.getOrPut("$table:update") { database.compileStatement(buildUpdate(table, columns)) }
+        statement.clearBindings()
+        return statement
+    }
+
+    /**
+     * @return true if a row was updated. When nothing was, the caller inserts the row instead, and
+     * that counts towards the batch.
+     */
+    private fun executeUpdate(statement: SQLiteStatement): Boolean {
+        val updated = try {
+            statement.executeUpdateDelete() > 0
+        } catch (e: SQLException) {
+            Log.e(TAG, "error updating row", e)
+            false
+        }
+
+        if (updated) {
+            insertedCount++
+            countBatch()
+        }
+
+        return updated
+    }
+
+    private fun execute(statement: SQLiteStatement): Long {
+        val id = try {
+            statement.executeInsert()
+        } catch (e: SQLException) {
+            // match SQLiteDatabase.insert, a single bad row shouldn't stop the rest of the import
+            Log.e(TAG, "error inserting row", e)
+            -1L
+        }
+
+        if (id != -1L) {
+            insertedCount++
+        }
+
+        countBatch()
+        return id
+    }
+
+    private fun countBatch() {
+        batchCount++
+        if (ownsTransaction && batchCount >= batchSize) {
+            database.setTransactionSuccessful()
+            database.endTransaction()
+            database.beginTransactionNonExclusive()
+            batchCount = 0
+        }
+    }
+
+    private fun bindString(statement: SQLiteStatement, index: Int, value: String?) {
+        if (value == null) statement.bindNull(index)
+        else statement.bindString(index, value)
+    }
+
+    private fun bindLong(statement: SQLiteStatement, index: Int, value: Long?) {
+        if (value == null) statement.bindNull(index)
+        else statement.bindLong(index, value)
+    }
+
+    private fun bindBoolean(statement: SQLiteStatement, index: Int, value: Boolean) {
+        statement.bindLong(index, if (value) 1L else 0L)
+    }
+
+    companion object {
+        private const val TAG = "BulkInserter"
+
+        const val DEFAULT_BATCH_SIZE = 500
+
+        private val MESSAGE_COLUMNS = arrayOf(Message.COLUMN_ID, Message.COLUMN_CONVERSATION_ID,
+                Message.COLUMN_TYPE, Message.COLUMN_DATA, Message.COLUMN_TIMESTAMP, Message.COLUMN_MIME_TYPE,
+                Message.COLUMN_READ, Message.COLUMN_SEEN, Message.COLUMN_FROM, Message.COLUMN_COLOR,
+                Message.COLUMN_SIM_NUMBER, Message.COLUMN_SENT_DEVICE)
+
+        // private and sim_subscription_id are left out so that they keep their column defaults
+        private val CONVERSATION_COLUMNS = arrayOf(Conversation.COLUMN_ID, Conversation.COLUMN_COLOR,
+                Conversation.COLUMN_COLOR_DARK, Conversation.COLUMN_COLOR_LIGHT, Conversation.COLUMN_COLOR_ACCENT,
+                Conversation.COLUMN_LED_COLOR, Conversation.COLUMN_PINNED, Conversation.COLUMN_READ,
+                Conversation.COLUMN_TIMESTAMP, Conversation.COLUMN_TITLE, Conversation.COLUMN_PHONE_NUMBERS,
+                Conversation.COLUMN_SNIPPET, Conversation.COLUMN_RINGTONE, Conversation.COLUMN_IMAGE_URI,
+                Conversation.COLUMN_ID_MATCHER, Conversation.COLUMN_MUTE, Conversation.COLUMN_ARCHIVED,
+                Conversation.COLUMN_FOLDER_ID)
+
+        private fun buildInsert(table: String, columns: Array<String>) =
+                "INSERT INTO $table (${columns.joinToString(", ")}) VALUES (${columns.joinToString(", ") { "?" }})"
+
+        private fun buildUpdate(table: String, columns: Array<String>) =
+                "UPDATE $table SET ${columns.joinToString(", ") { "$it=?" }} WHERE ${columns[0]}=?"
+    }
+}
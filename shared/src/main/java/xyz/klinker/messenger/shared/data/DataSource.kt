@@ -19,7 +19,6 @@ package xyz.klinker.messenger.shared.data
 import android.content.ContentValues
 import android.content.Context
 import android.database.Cursor
-import android.database.DatabaseUtils
 import android.database.sqlite.SQLiteConstraintException
 import android.database.sqlite.SQLiteDatabase
 import android.graphics.Color
@@ -42,7 +41,9 @@ import xyz.klinker.messenger.encryption.EncryptionUtils
 import xyz.klinker.messenger.shared.data.model.*
 import xyz.klinker.messenger.shared.receiver.ConversationListUpdatedReceiver
 import xyz.klinker.messenger.shared.service.NewMessagesCheckService
+import xyz.klinker.messenger.shared.service.SyncWatermarks
 import xyz.klinker.messenger.shared.util.*
+import xyz.klinker.messenger.shared.util.autoreply.AutoReplyEngine
 import xyz.klinker.messenger.shared.util.listener.ProgressUpdateListener
 
 /**
@@ -62,16 +63,44 @@ object DataSource {
      */
     private val MAX_ID = java.lang.Long.MAX_VALUE / 10000
 
-    var _database: SQLiteDatabase? = null
+    private val UNSEEN_CONVERSATION_COLUMNS = arrayOf("m._id as _id", "m.conversation_id as conversation_id", "m.data as data", "m.mime_type as mime_type", "m.timestamp as timestamp", "m.message_from as message_from", "c.title as title", "c.snippet as snippet", "c.image_uri as image_uri", "c.color as color", "c.ringtone as ringtone", "c.led_color as led_color", "c.timestamp as conversation_timestamp", "c.mute as mute", "c.phone_numbers as phone_numbers", "c.private_notifications as private_notifications")
+    private val SEARCH_COLUMNS = arrayOf("m._id as _id", "c._id as conversation_id", "m.type as type", "m.data as data", "m.timestamp as timestamp", "m.mime_type as mime_type", "m.read as read", "m.message_from as message_from", "m.color as color", "c.title as convo_title", "c.private_notifications as private_notifications")
+
+    private val idMatcherIndex = IdMatcherIndex()
+    @Volatile private var blacklistMatcher: BlacklistMatcher? = null
+    @Volatile private var autoReplyEngine: AutoReplyEngine? = null
+
+    @Volatile var _database: SQLiteDatabase? = null
+        set(value) {
+            field = value
+            _fullTextModule = null
+            idMatcherIndex.invalidate()
+            blacklistMatcher = null
+            autoReplyEngine = null
+        }
+
+    var _fullTextModule: String? = null
     var _dbHelper: DatabaseSQLiteHelper? = null
     var _encryptor: EncryptionUtils? = null
     var _accountId: String? = null
     var _androidDeviceId: String? = null
+    var _apiQueue: ApiMutationQueue? = null
 
-    @Synchronized
+    /**
+     * The database is opened in write-ahead logging mode (see DatabaseSQLiteHelper), so this single
+     * instance is backed by a pool of connections: one primary connection that all of the writes
+     * and transactions go through, and read-only connections for queries made from other threads.
+     * Loading the conversation or message list doesn't have to wait for a bulk insert to finish.
+     *
+     * Only opening the database needs the lock, every other call just reads the volatile field.
+     */
     private fun database(context: Context): SQLiteDatabase {
         PerformanceProfiler.logEvent("getting datasource")
+        return _database ?: openDatabase(context)
+    }
 
+    @Synchronized
+    private fun openDatabase(context: Context): SQLiteDatabase {
         if (_database == null) {
             _dbHelper = DatabaseSQLiteHelper(context)
             _database = _dbHelper!!.writableDatabase
@@ -80,6 +109,47 @@ object DataSource {
         return _database!!
     }
 
+    @Synchronized
+    private fun fullTextModule(context: Context): String {
+        if (_fullTextModule == null) {
+            _fullTextModule = FullTextIndex.getModule(database(context))
+        }
+
+        return _fullTextModule!!
+    }
+
+    private fun conversationIndex(context: Context): IdMatcherIndex {
+        if (!idMatcherIndex.isLoaded) {
+            idMatcherIndex.load {
+                try {
+                    database(context).query(Conversation.TABLE,
+                            arrayOf(Conversation.COLUMN_ID, Conversation.COLUMN_ID_MATCHER),
+                            null, null, null, null, null)
+                } catch (e: Exception) {
+                    ensureActionable(context)
+                    database(context).query(Conversation.TABLE,
+                            arrayOf(Conversation.COLUMN_ID, Conversation.COLUMN_ID_MATCHER),
+                            null, null, null, null, null)
+                }
+            }
+        }
+
+        return idMatcherIndex
+    }
+
+    /**
+     * Loads the conversation index used to route incoming messages, so that the first message
+     * doesn't have to wait for it. This reads the whole conversation table, don't call it from the
+     * UI thread.
+     */
+    fun warmConversationIndex(context: Context) {
+        try {
+            conversationIndex(context)
+        } catch (e: Exception) {
+            e.printStackTrace()
+        }
+    }
+
     @Synchronized
     private fun encryptor(context: Context): EncryptionUtils? {
         if (_encryptor == null) {
@@ -98,6 +168,35 @@ object DataSource {
         return _accountId
     }
 
+    @Synchronized
+    private fun apiQueue(context: Context): ApiMutationQueue {
+        if (_apiQueue == null) {
+            _apiQueue = ApiMutationQueue(context)
+        }
+
+        return _apiQueue!!
+    }
+
+    /**
+     * Queues a change to be sent to the API. Repeated changes to the same row are only sent once.
+     *
+     * @param type one of the RetryableRequest types.
+     */
+    fun queueApiMutation(context: Context, type: Int, dataId: Long) {
+        if (accountId(context) != null) {
+            apiQueue(context).enqueue(type, dataId)
+        }
+    }
+
+    /**
+     * Sends any queued API changes on the calling thread.
+     */
+    fun flushApiMutations(context: Context) {
+        if (accountId(context) != null) {
+            apiQueue(context).flush()
+        }
+    }
+
     @Synchronized
     private fun androidDeviceId(context: Context): String? {
         if (_androidDeviceId == null) {
@@ -107,29 +206,24 @@ object DataSource {
         return _androidDeviceId
     }
 
+    /**
+     * Called after a database operation throws, before it is retried. The connection is shared with
+     * every other thread, so closing it here would break whatever they are in the middle of. It is
+     * only re-opened if something has actually closed it.
+     */
     @Synchronized
     fun ensureActionable(context: Context) {
         Log.v(TAG, "ensuring database actionable")
 
-        // ensure we are closing everything and getting a brand new database connection the
-        // next time we go to use it.
-
-        try {
-            _database?.close()
-        } catch (e: Exception) {
-        }
-
-        try {
-            _dbHelper?.close()
-        } catch (e: Exception) {
-        }
-
-        _dbHelper = null
-        _database = null
+        val database = _database
+        if (database != null && !database.isOpen) {
+            try {
+                _dbHelper?.close()
+            } catch (e: Exception) {
+            }
 
-        try {
-            Thread.sleep(1000)
-        } catch (e: Exception) {
+            _dbHelper = null
+            _database = null
         }
     }
 
@@ -172,29 +266,50 @@ object DataSource {
     /**
      * Deletes all data from the tables.
      */
-    fun clearTables(context: Context) =
-            try {
-                database(context).delete(Message.TABLE, null, null)
-                database(context).delete(Conversation.TABLE, null, null)
-                database(context).delete(Blacklist.TABLE, null, null)
-                database(context).delete(Draft.TABLE, null, null)
-                database(context).delete(ScheduledMessage.TABLE, null, null)
-                database(context).delete(Contact.TABLE, null, null)
-            } catch (e: Exception) {
-                ensureActionable(context)
+    fun clearTables(context: Context) {
+        try {
+            database(context).delete(Message.TABLE, null, null)
+            database(context).delete(Conversation.TABLE, null, null)
+            database(context).delete(Blacklist.TABLE, null, null)
+            database(context).delete(Draft.TABLE, null, null)
+            database(context).delete(ScheduledMessage.TABLE, null, null)
+            database(context).delete(Contact.TABLE, null, null)
+        } catch (e: Exception) {
+            ensureActionable(context)
 
-                database(context).delete(Message.TABLE, null, null)
-                database(context).delete(Conversation.TABLE, null, null)
-                database(context).delete(Blacklist.TABLE, null, null)
-                database(context).delete(Draft.TABLE, null, null)
-                database(context).delete(ScheduledMessage.TABLE, null, null)
-                database(context).delete(Contact.TABLE, null, null)
-            }
+            database(context).delete(Message.TABLE, null, null)
+            database(context).delete(Conversation.TABLE, null, null)
+            database(context).delete(Blacklist.TABLE, null, null)
+            database(context).delete(Draft.TABLE, null, null)
+            database(context).delete(ScheduledMessage.TABLE, null, null)
+            database(context).delete(Contact.TABLE, null, null)
+        }
+
+        idMatcherIndex.invalidate()
+        invalidateBlacklistMatcher()
+        NotificationImageCache.clear()
+        SyncWatermarks(context).clear()
+    }
+
+    /**
+     * Begins a bulk transaction on the database. Queries from other threads can still read from
+     * the database while the transaction is open.
+     */
+    fun beginTransaction(context: Context) = database(context).beginTransactionNonExclusive()
 
     /**
-     * Begins a bulk transaction on the database.
+     * Creates a writer for bulk imports. It should be closed once all rows have been written.
+     * See BulkInserter for how the rows are committed.
+     *
+     * @param batchSize number of rows to write between commits.
      */
-    fun beginTransaction(context: Context) = database(context).beginTransaction()
+    @JvmOverloads fun bulkInserter(context: Context, batchSize: Int = BulkInserter.DEFAULT_BATCH_SIZE) =
+            try {
+                BulkInserter(database(context), batchSize)
+            } catch (e: Exception) {
+                ensureActionable(context)
+                BulkInserter(database(context), batchSize)
+            }
 
     /**
      * Executes a raw sql statement on the database. Can be used in conjunction with
@@ -251,19 +366,7 @@ object DataSource {
                 continue
             }
 
-            val values = ContentValues(9)
-
-            // here we are loading the id from the internal database into the conversation object
-            // but we don't want to use that so we'll just generate a new one.
-            values.put(Contact.COLUMN_ID, contact.id)
-            values.put(Contact.COLUMN_PHONE_NUMBER, contact.phoneNumber)
-            values.put(Contact.COLUMN_ID_MATCHER, SmsMmsUtils.createIdMatcher(PhoneNumberUtils.clearFormattingAndStripStandardReplacements(contact.phoneNumber!!)).default)
-            values.put(Contact.COLUMN_NAME, contact.name)
-            values.put(Contact.COLUMN_TYPE, contact.type)
-            values.put(Contact.COLUMN_COLOR, contact.colors.color)
-            values.put(Contact.COLUMN_COLOR_DARK, contact.colors.colorDark)
-            values.put(Contact.COLUMN_COLOR_LIGHT, contact.colors.colorLight)
-            values.put(Contact.COLUMN_COLOR_ACCENT, contact.colors.colorAccent)
+            val values = contactValues(contact)
 
             try {
                 database(context).insert(Contact.TABLE, null, values)
@@ -277,6 +380,25 @@ object DataSource {
 
         setTransactionSuccessful(context)
         endTransaction(context)
+
+        NotificationImageCache.clear()
+    }
+
+    private fun contactValues(contact: Contact): ContentValues {
+        val values = ContentValues(9)
+
+        // here we are loading the id from the internal database into the conversation object
+        // but we don't want to use that so we'll just generate a new one.
+        values.put(Contact.COLUMN_ID, contact.id)
+        values.put(Contact.COLUMN_PHONE_NUMBER, contact.phoneNumber)
+        values.put(Contact.COLUMN_ID_MATCHER, SmsMmsUtils.createIdMatcher(PhoneNumberUtils.clearFormattingAndStripStandardReplacements(contact.phoneNumber!!)).default)
+        values.put(Contact.COLUMN_NAME, contact.name)
+        values.put(Contact.COLUMN_TYPE, contact.type)
+        values.put(Contact.COLUMN_COLOR, contact.colors.color)
+        values.put(Contact.COLUMN_COLOR_DARK, contact.colors.colorDark)
+        values.put(Contact.COLUMN_COLOR_LIGHT, contact.colors.colorLight)
+        values.put(Contact.COLUMN_COLOR_ACCENT, contact.colors.colorAccent)
+        return values
     }
 
     /**
@@ -318,6 +440,8 @@ object DataSource {
                     contact.colors.colorAccent, encryptor(context))
         }
 
+        NotificationImageCache.clear()
+
         return try {
             database(context).insert(Contact.TABLE, null, values)
         } catch (e: Exception) {
@@ -483,6 +607,8 @@ object DataSource {
                     arrayOf(phoneNumber))
         }
 
+        NotificationImageCache.clear()
+
         if (useApi) {
             ApiUtils.deleteContact(accountId(context), id, phoneNumber, encryptor(context))
         }
@@ -513,18 +639,24 @@ object DataSource {
             ensureActionable(context)
             database(context).delete(Contact.TABLE, where, ids)
         }
+
+        NotificationImageCache.clear()
     }
     /**
      * Deletes a contact from the database.
      *
      * @param ids the phone number to delete
      */
-    fun deleteAllContacts(context: Context) = try {
+    fun deleteAllContacts(context: Context): Int {
+        NotificationImageCache.clear()
+
+        return try {
             database(context).delete(Contact.TABLE, null, null)
         } catch (e: Exception) {
             ensureActionable(context)
             database(context).delete(Contact.TABLE, null, null)
         }
+    }
 
     /**
      * Updates the conversation with given values.
@@ -567,6 +699,10 @@ object DataSource {
                     arrayOf(phoneNumber))
         }
 
+        if (updated > 0) {
+            NotificationImageCache.clear()
+        }
+
         if (updated > 0 && useApi) {
             ApiUtils.updateContact(accountId(context), id, phoneNumber, name, color, colorDark,
                     colorLight, colorAccent, encryptor(context))
@@ -593,74 +729,60 @@ object DataSource {
      */
     fun insertConversations(conversations: List<Conversation>, context: Context,
                             listener: ProgressUpdateListener?) {
-        beginTransaction(context)
+        bulkInserter(context).use { inserter ->
+            for (i in conversations.indices) {
+                val conversation = conversations[i]
 
-        for (i in conversations.indices) {
-            val conversation = conversations[i]
-
-            val values = ContentValues(16)
-
-            // here we are loading the id from the internal database into the conversation object
-            // but we don't want to use that so we'll just generate a new one.
-            val conversationId = generateId()
-            values.put(Conversation.COLUMN_ID, conversationId)
-            values.put(Conversation.COLUMN_COLOR, conversation.colors.color)
-            values.put(Conversation.COLUMN_COLOR_DARK, conversation.colors.colorDark)
-            values.put(Conversation.COLUMN_COLOR_LIGHT, conversation.colors.colorLight)
-            values.put(Conversation.COLUMN_COLOR_ACCENT, conversation.colors.colorAccent)
-            values.put(Conversation.COLUMN_LED_COLOR, conversation.ledColor)
-            values.put(Conversation.COLUMN_PINNED, conversation.pinned)
-            values.put(Conversation.COLUMN_READ, conversation.read)
-            values.put(Conversation.COLUMN_TITLE, conversation.title)
-            values.put(Conversation.COLUMN_PHONE_NUMBERS, conversation.phoneNumbers)
-            values.put(Conversation.COLUMN_SNIPPET, conversation.snippet)
-            values.put(Conversation.COLUMN_RINGTONE, conversation.ringtoneUri)
-            values.put(Conversation.COLUMN_IMAGE_URI, conversation.imageUri)
-            values.put(Conversation.COLUMN_ID_MATCHER, conversation.idMatcher)
-            values.put(Conversation.COLUMN_MUTE, conversation.mute)
-            values.put(Conversation.COLUMN_ARCHIVED, conversation.archive)
-            values.put(Conversation.COLUMN_FOLDER_ID, conversation.folderId)
-
-            val messages = SmsMmsUtils.queryConversation(conversation.id, context) ?: continue
-
-            if (messages.count == 0) {
-                deleteConversation(context, conversationId, false)
-                messages.closeSilent()
-                continue
-            }
+                // here we are loading the id from the internal database into the conversation object
+                // but we don't want to use that so we'll just generate a new one.
+                val conversationId = generateId()
 
-            var latestTimestamp = 0L
-            var latestSnippet: String? = null;
-            if (messages.moveToFirst()) {
-                do {
-                    val valuesList = SmsMmsUtils.processMessage(messages, conversationId, context)
-                    for (value in valuesList) {
-                        database(context).insert(Message.TABLE, null, value)
+                val messages = SmsMmsUtils.queryConversation(conversation.id, context) ?: continue
+
+                if (messages.count == 0) {
+                    deleteConversation(context, conversationId, false)
+                    messages.closeSilent()
+                    continue
+                }
 
-                        if (value.getAsLong(Message.COLUMN_TIMESTAMP) > latestTimestamp) {
-                            latestTimestamp = value.getAsLong(Message.COLUMN_TIMESTAMP)
-                            latestSnippet = value.getAsString(Message.COLUMN_DATA)
+                var latestTimestamp = 0L
+                var latestSnippet: String? = null
+                if (messages.moveToFirst()) {
+                    do {
+                        val valuesList = SmsMmsUtils.processMessage(messages, conversationId, context)
+                        for (value in valuesList) {
+                            inserter.insertMessage(value)
+
+                            if (value.getAsLong(Message.COLUMN_TIMESTAMP) > latestTimestamp) {
+                                latestTimestamp = value.getAsLong(Message.COLUMN_TIMESTAMP)
+                                latestSnippet = value.getAsString(Message.COLUMN_DATA)
+                            }
                         }
-                    }
-                } while (messages.moveToNext() && messages.position < SmsMmsUtils.INITIAL_MESSAGE_LIMIT)
-            }
+                    } while (messages.moveToNext() && messages.position < SmsMmsUtils.INITIAL_MESSAGE_LIMIT)
+                }
 
-            values.put(Conversation.COLUMN_TIMESTAMP, if (latestTimestamp == 0L) conversation.timestamp else latestTimestamp)
-            values.put(Conversation.COLUMN_SNIPPET, latestSnippet ?: conversation.snippet)
+                inserter.insertConversation(conversation, conversationId,
+                        if (latestTimestamp == 0L) conversation.timestamp else latestTimestamp,
+                        latestSnippet ?: conversation.snippet)
 
-            try {
-                database(context).insert(Conversation.TABLE, null, values)
-            } catch (e: Exception) {
-                ensureActionable(context)
-                database(context).insert(Conversation.TABLE, null, values)
+                messages.closeSilent()
+                listener?.onProgressUpdate(i + 1, conversations.size)
             }
-
-            messages.closeSilent()
-            listener?.onProgressUpdate(i + 1, conversations.size)
         }
 
-        setTransactionSuccessful(context)
-        endTransaction(context)
+        idMatcherIndex.invalidate()
+    }
+
+    /**
+     * Gives the InitialImportPipeline a bulk inserter to write the conversations that it read from
+     * the phone's database, and rebuilds the conversation index once they have all been written.
+     */
+    fun importConversations(context: Context, write: (BulkInserter) -> Unit) {
+        try {
+            bulkInserter(context).use(write)
+        } finally {
+            idMatcherIndex.invalidate()
+        }
     }
 
     /**
@@ -671,44 +793,13 @@ object DataSource {
      * @param context       the application context.
      */
     fun insertRawConversations(conversations: List<Conversation>, context: Context) {
-        beginTransaction(context)
-
-        for (i in conversations.indices) {
-            val conversation = conversations[i]
-
-            val values = ContentValues(16)
-
-            // here we are loading the id from the internal database into the conversation object
-            // but we don't want to use that so we'll just generate a new one.
-            values.put(Conversation.COLUMN_ID, conversation.id)
-            values.put(Conversation.COLUMN_COLOR, conversation.colors.color)
-            values.put(Conversation.COLUMN_COLOR_DARK, conversation.colors.colorDark)
-            values.put(Conversation.COLUMN_COLOR_LIGHT, conversation.colors.colorLight)
-            values.put(Conversation.COLUMN_COLOR_ACCENT, conversation.colors.colorAccent)
-            values.put(Conversation.COLUMN_LED_COLOR, conversation.ledColor)
-            values.put(Conversation.COLUMN_PINNED, conversation.pinned)
-            values.put(Conversation.COLUMN_READ, conversation.read)
-            values.put(Conversation.COLUMN_TITLE, conversation.title)
-            values.put(Conversation.COLUMN_PHONE_NUMBERS, conversation.phoneNumbers)
-            values.put(Conversation.COLUMN_SNIPPET, conversation.snippet)
-            values.put(Conversation.COLUMN_RINGTONE, conversation.ringtoneUri)
-            values.put(Conversation.COLUMN_IMAGE_URI, conversation.imageUri)
-            values.put(Conversation.COLUMN_ID_MATCHER, conversation.idMatcher)
-            values.put(Conversation.COLUMN_MUTE, conversation.mute)
-            values.put(Conversation.COLUMN_ARCHIVED, conversation.archive)
-            values.put(Conversation.COLUMN_TIMESTAMP, conversation.timestamp)
-            values.put(Conversation.COLUMN_FOLDER_ID, conversation.folderId)
-
-            try {
-                database(context).insert(Conversation.TABLE, null, values)
-            } catch (e: Exception) {
-                ensureActionable(context)
-                database(context).insert(Conversation.TABLE, null, values)
+        bulkInserter(context).use { inserter ->
+            for (conversation in conversations) {
+                inserter.insertConversation(conversation)
             }
         }
 
-        setTransactionSuccessful(context)
-        endTransaction(context)
+        idMatcherIndex.invalidate()
     }
 
     /**
@@ -755,7 +846,7 @@ object DataSource {
             writeUnreadCount(context)
         }
 
-        return try {
+        val id = try {
             database(context).insert(Conversation.TABLE, null, values)
         } catch (e: Exception) {
             ensureActionable(context)
@@ -765,6 +856,12 @@ object DataSource {
                 -1L
             }
         }
+
+        if (id != -1L) {
+            idMatcherIndex.put(conversation.idMatcher, id)
+        }
+
+        return id
     }
 
     private fun convertConversationCursorToList(cursor: Cursor): List<Conversation> {
@@ -1014,24 +1111,38 @@ object DataSource {
     }
 
     /**
-     * Searches for conversations that have a title that matches the given query.
+     * Searches for conversations that have a title that matches the given query. Titles are
+     * matched through the full text index, phone numbers still need a substring match.
      */
     fun searchConversations(context: Context, query: String?): Cursor? {
-        return if (query == null || query.isEmpty()) {
-            null
-        } else {
-            val q = query.replace("'", "''")
+        if (query == null || query.isEmpty()) {
+            return null
+        }
+
+        val match = FullTextIndex.buildMatchExpression(query, fullTextModule(context))
+        if (match != null) {
             try {
-                database(context).query(Conversation.TABLE, null,
-                        "(${Conversation.COLUMN_TITLE} LIKE '%$q%' OR ${Conversation.COLUMN_PHONE_NUMBERS} LIKE '%$q%') AND ${Conversation.COLUMN_PRIVATE}=0",
-                        null, null, null, Conversation.COLUMN_TIMESTAMP + " desc")
+                return database(context).query(Conversation.TABLE, null,
+                        "(${Conversation.COLUMN_ID} IN (SELECT rowid FROM ${FullTextIndex.CONVERSATION_TABLE} WHERE ${FullTextIndex.CONVERSATION_TABLE} MATCH ?) " +
+                                "OR ${Conversation.COLUMN_PHONE_NUMBERS} LIKE ?) AND ${Conversation.COLUMN_PRIVATE}=0",
+                        arrayOf(match, "%$query%"), null, null, Conversation.COLUMN_TIMESTAMP + " desc")
             } catch (e: Exception) {
-                ensureActionable(context)
-                database(context).query(Conversation.TABLE, null,
-                        "(${Conversation.COLUMN_TITLE} LIKE '%$q%' OR ${Conversation.COLUMN_PHONE_NUMBERS} LIKE '%$q%') AND ${Conversation.COLUMN_PRIVATE}=0",
-                        null, null, null, Conversation.COLUMN_TIMESTAMP + " desc")
+                // fall back to the LIKE query below
+                e.printStackTrace()
             }
         }
+
+        val q = query.replace("'", "''")
+        return try {
+            database(context).query(Conversation.TABLE, null,
+                    "(${Conversation.COLUMN_TITLE} LIKE '%$q%' OR ${Conversation.COLUMN_PHONE_NUMBERS} LIKE '%$q%') AND ${Conversation.COLUMN_PRIVATE}=0",
+                    null, null, null, Conversation.COLUMN_TIMESTAMP + " desc")
+        } catch (e: Exception) {
+            ensureActionable(context)
+            database(context).query(Conversation.TABLE, null,
+                    "(${Conversation.COLUMN_TITLE} LIKE '%$q%' OR ${Conversation.COLUMN_PHONE_NUMBERS} LIKE '%$q%') AND ${Conversation.COLUMN_PRIVATE}=0",
+                    null, null, null, Conversation.COLUMN_TIMESTAMP + " desc")
+        }
     }
 
     /**
@@ -1126,6 +1237,8 @@ object DataSource {
                     arrayOf(java.lang.Long.toString(conversationId)))
         }
 
+        idMatcherIndex.remove(conversationId)
+
         if (conversation != null) {
             Thread { SmsMmsUtils.deleteConversation(context, conversation.phoneNumbers!!) }.start()
         }
@@ -1254,8 +1367,7 @@ object DataSource {
         }
 
         if (updated > 0) {
-            if (useApi) ApiUtils.updateConversationSnippet(accountId(context), conversationId,
-                    read, archive, timestamp, snippet, encryptor(context))
+            if (useApi) queueApiMutation(context, RetryableRequest.TYPE_UPDATE_CONVERSATION_SNIPPET, conversationId)
 
             if (read) {
                 clearUnreadCount(context)
@@ -1382,6 +1494,8 @@ object DataSource {
                     arrayOf(java.lang.Long.toString(conversationId)))
         }
 
+        NotificationImageCache.clear()
+
         // no need to update the API, since image uris are local
     }
 
@@ -1547,25 +1661,76 @@ object DataSource {
      * Gets a limited number of messages for a given conversation.
      *
      * @param conversationId the conversation id to find messages for.
-     * @return a cursor with all messages.
+     * @return a cursor with the newest messages, oldest first.
      */
-    fun getMessageCursorWithLimit(context: Context, conversationId: Long, limit: Int): Cursor {
-        val numberOfEntries = DatabaseUtils.queryNumEntries(database(context), Message.TABLE,
-                Message.COLUMN_CONVERSATION_ID + "=?", arrayOf(java.lang.Long.toString(conversationId)))
+    fun getMessageCursorWithLimit(context: Context, conversationId: Long, limit: Int) =
+            getMessagesBefore(context, conversationId, Long.MAX_VALUE, Long.MAX_VALUE, limit)
 
-        return if (numberOfEntries > limit) {
-            try {
-                database(context).query(Message.TABLE, null, Message.COLUMN_CONVERSATION_ID + "=?",
-                        arrayOf(java.lang.Long.toString(conversationId)), null, null,
-                        Message.COLUMN_TIMESTAMP + " asc", (numberOfEntries - limit).toString() + "," + limit)
-            } catch (e: Exception) {
-                ensureActionable(context)
-                database(context).query(Message.TABLE, null, Message.COLUMN_CONVERSATION_ID + "=?",
-                        arrayOf(java.lang.Long.toString(conversationId)), null, null,
-                        Message.COLUMN_TIMESTAMP + " asc", (numberOfEntries - limit).toString() + "," + limit)
-            }
-        } else {
-            getMessages(context, conversationId)
+    /**
+     * Gets a page of the messages in a conversation that come before the given message, ordered by
+     * timestamp and then id. The page is found by seeking through the conversation_id/timestamp
+     * index, so it costs the same at the top of a long conversation as it does at the bottom,
+     * instead of counting and skipping every newer message the way an offset would.
+     *
+     * @param timestamp the timestamp of the oldest message that has already been loaded, or
+     * Long.MAX_VALUE for the newest page.
+     * @param messageId the id of the oldest message that has already been loaded, or
+     * Long.MAX_VALUE for the newest page.
+     * @param limit the size of the page.
+     * @return a cursor with the page of messages, oldest first.
+     */
+    fun getMessagesBefore(context: Context, conversationId: Long, timestamp: Long, messageId: Long, limit: Int): Cursor {
+        val sql = "SELECT * FROM (SELECT * FROM " + Message.TABLE + " WHERE " + Message.COLUMN_CONVERSATION_ID + "=? AND " +
+                Message.COLUMN_TIMESTAMP + "<=? AND (" + Message.COLUMN_TIMESTAMP + "<? OR " + Message.COLUMN_ID + "<?) " +
+                "ORDER BY " + Message.COLUMN_TIMESTAMP + " desc, " + Message.COLUMN_ID + " desc LIMIT " + limit + ") " +
+                "ORDER BY " + Message.COLUMN_TIMESTAMP + " asc, " + Message.COLUMN_ID + " asc"
+        val selectionArgs = arrayOf(conversationId.toString(), timestamp.toString(), timestamp.toString(), messageId.toString())
+
+        return try {
+            database(context).rawQuery(sql, selectionArgs)
+        } catch (e: Exception) {
+            ensureActionable(context)
+            database(context).rawQuery(sql, selectionArgs)
+        }
+    }
+
+    /**
+     * Gets the messages in a conversation from the given message onwards, including that message,
+     * ordered by timestamp and then id. Used to refresh the messages that are already on screen.
+     *
+     * @param timestamp the timestamp of the oldest message that has been loaded.
+     * @param messageId the id of the oldest message that has been loaded.
+     */
+    fun getMessagesFrom(context: Context, conversationId: Long, timestamp: Long, messageId: Long): Cursor {
+        val selection = Message.COLUMN_CONVERSATION_ID + "=? AND " + Message.COLUMN_TIMESTAMP + ">=? AND (" +
+                Message.COLUMN_TIMESTAMP + ">? OR " + Message.COLUMN_ID + ">=?)"
+        return queryConversationRange(context, conversationId, selection, timestamp, messageId)
+    }
+
+    /**
+     * Gets the messages in a conversation that come after the given message, ordered by timestamp
+     * and then id. Used to add new messages to the bottom of the list, without loading the ones that
+     * are already on screen again.
+     *
+     * @param timestamp the timestamp of the newest message that has been loaded.
+     * @param messageId the id of the newest message that has been loaded.
+     */
+    fun getMessagesAfter(context: Context, conversationId: Long, timestamp: Long, messageId: Long): Cursor {
+        val selection = Message.COLUMN_CONVERSATION_ID + "=? AND " + Message.COLUMN_TIMESTAMP + ">=? AND (" +
+                Message.COLUMN_TIMESTAMP + ">? OR " + Message.COLUMN_ID + ">?)"
+        return queryConversationRange(context, conversationId, selection, timestamp, messageId)
+    }
+
+    private fun queryConversationRange(context: Context, conversationId: Long, selection: String,
+                                       timestamp: Long, messageId: Long): Cursor {
+        val selectionArgs = arrayOf(conversationId.toString(), timestamp.toString(), timestamp.toString(), messageId.toString())
+        val order = Message.COLUMN_TIMESTAMP + " asc, " + Message.COLUMN_ID + " asc"
+
+        return try {
+            database(context).query(Message.TABLE, null, selection, selectionArgs, null, null, order)
+        } catch (e: Exception) {
+            ensureActionable(context)
+            database(context).query(Message.TABLE, null, selection, selectionArgs, null, null, order)
         }
     }
 
@@ -1734,6 +1899,27 @@ object DataSource {
                         Message.COLUMN_TIMESTAMP + " asc")
             }
 
+    /**
+     * Gets all messages that come after the given message, ordered by timestamp and then id. Used to
+     * pick an upload back up where it left off.
+     *
+     * @param timestamp the timestamp of the last message that was handled.
+     * @param messageId the id of the last message that was handled.
+     */
+    fun getMessagesAfter(context: Context, timestamp: Long, messageId: Long): Cursor {
+        val selection = Message.COLUMN_TIMESTAMP + ">? OR (" + Message.COLUMN_TIMESTAMP + "=? AND " +
+                Message.COLUMN_ID + ">?)"
+        val selectionArgs = arrayOf(timestamp.toString(), timestamp.toString(), messageId.toString())
+        val order = Message.COLUMN_TIMESTAMP + " asc, " + Message.COLUMN_ID + " asc"
+
+        return try {
+            database(context).query(Message.TABLE, null, selection, selectionArgs, null, null, order)
+        } catch (e: Exception) {
+            ensureActionable(context)
+            database(context).query(Message.TABLE, null, selection, selectionArgs, null, null, order)
+        }
+    }
+
     /**
      * Gets all messages in the database, newer than the given time
      */
@@ -1823,35 +2009,20 @@ object DataSource {
     }
 
     /**
-     * Gets all messages that contain the query text.
+     * Gets all messages that contain the query text, newest first.
      *
      * @param query the text to look for.
      * @return a cursor with all messages matching that query.
      */
     fun searchMessages(context: Context, query: String?): Cursor? =
-            if (query == null || query.isEmpty()) {
-                null
-            } else {
-                try {
-                    database(context).query(Message.TABLE + " m left outer join " + Conversation.TABLE + " c on m.conversation_id = c._id",
-                            arrayOf("m._id as _id", "c._id as conversation_id", "m.type as type", "m.data as data", "m.timestamp as timestamp", "m.mime_type as mime_type", "m.read as read", "m.message_from as message_from", "m.color as color", "c.title as convo_title", "c.private_notifications as private_notifications"),
-                            Message.COLUMN_DATA + " LIKE '%" + query.replace("'", "''") + "%' AND " +
-                                    Message.COLUMN_MIME_TYPE + "='" + MimeType.TEXT_PLAIN + "' AND " + Conversation.COLUMN_PRIVATE + "=0", null, null, null, Message.COLUMN_TIMESTAMP + " desc")
-                } catch (e: Exception) {
-                    ensureActionable(context)
-                    try {
-                        database(context).query(Message.TABLE + " m left outer join " + Conversation.TABLE + " c on m.conversation_id = c._id",
-                                arrayOf("m._id as _id", "c._id as conversation_id", "m.type as type", "m.data as data", "m.timestamp as timestamp", "m.mime_type as mime_type", "m.read as read", "m.message_from as message_from", "m.color as color", "c.title as convo_title", "c.private_notifications as private_notifications"),
-                                Message.COLUMN_DATA + " LIKE '%" + query.replace("'", "''") + "%' AND " +
-                                        Message.COLUMN_MIME_TYPE + "='" + MimeType.TEXT_PLAIN + "' AND " + Conversation.COLUMN_PRIVATE + "=0", null, null, null, Message.COLUMN_TIMESTAMP + " desc")
-                    } catch (x: Exception) {
-                        null
-                    }
-                }
-            }
+            searchMessages(context, query, null, false)
 
+    /**
+     * Gets the best matches for the query text, with the most relevant results first when the
+     * index is able to rank them.
+     */
     fun searchMessagesAsList(context: Context, query: String?, amount: Int, receivedOnly: Boolean = false): List<Message> {
-        val cursor = searchMessages(context, query)
+        val cursor = searchMessages(context, query, null, true)
         val messages = ArrayList<Message>()
 
         if (cursor != null && cursor.moveToFirst()) {
@@ -1876,30 +2047,10 @@ object DataSource {
      * @return a cursor with all messages matching that query.
      */
     fun searchConversationMessages(context: Context, query: String?, conversationId: Long): Cursor? =
-            if (query == null || query.isEmpty()) {
-                null
-            } else {
-                try {
-                    database(context).query(Message.TABLE + " m left outer join " + Conversation.TABLE + " c on m.conversation_id = c._id",
-                            arrayOf("m._id as _id", "c._id as conversation_id", "m.type as type", "m.data as data", "m.timestamp as timestamp", "m.mime_type as mime_type", "m.read as read", "m.message_from as message_from", "m.color as color", "c.title as convo_title", "c.private_notifications as private_notifications"),
-                            Message.COLUMN_DATA + " LIKE '%" + query.replace("'", "''") + "%' AND " +
-                                    Message.COLUMN_MIME_TYPE + "='" + MimeType.TEXT_PLAIN + "' AND c._id=" + conversationId, null, null, null, Message.COLUMN_TIMESTAMP + " desc")
-                } catch (e: Exception) {
-                    ensureActionable(context)
-                    try {
-                        database(context).query(Message.TABLE + " m left outer join " + Conversation.TABLE + " c on m.conversation_id = c._id",
-                                arrayOf("m._id as _id", "c._id as conversation_id", "m.type as type", "m.data as data", "m.timestamp as timestamp", "m.mime_type as mime_type", "m.read as read", "m.message_from as message_from", "m.color as color", "c.title as convo_title", "c.private_notifications as private_notifications"),
-                                Message.COLUMN_DATA + " LIKE '%" + query.replace("'", "''") + "%' AND " +
-                                        Message.COLUMN_MIME_TYPE + "='" + MimeType.TEXT_PLAIN + "' AND c._id=" + conversationId, null, null, null, Message.COLUMN_TIMESTAMP + " desc")
-                    } catch (x: Exception) {
-                        x.printStackTrace()
-                        null
-                    }
-                }
-            }
+            searchMessages(context, query, conversationId, false)
 
     fun searchConversationMessagesAsList(context: Context, query: String?, conversationId: Long, amount: Int): List<Message> {
-        val cursor = searchConversationMessages(context, query, conversationId)
+        val cursor = searchMessages(context, query, conversationId, true)
         val messages = ArrayList<Message>()
 
         if (cursor != null && cursor.moveToFirst()) {
@@ -1914,6 +2065,59 @@ object DataSource {
         return messages
     }
 
+    /**
+     * Searches the plain text messages through the full text index. When there is no index, or the
+     * query doesn't contain any words that the index can match, this falls back to a LIKE query.
+     *
+     * @param conversationId limit the search to this conversation, or null to search every
+     *                       conversation that isn't private.
+     * @param ranked         order by relevance instead of by timestamp. Only FTS5 can rank, FTS4
+     *                       results will still be newest first.
+     */
+    private fun searchMessages(context: Context, query: String?, conversationId: Long?, ranked: Boolean): Cursor? {
+        if (query == null || query.isEmpty()) {
+            return null
+        }
+
+        val filter = if (conversationId == null) Conversation.COLUMN_PRIVATE + "=0" else "c._id=" + conversationId
+        val module = fullTextModule(context)
+        val match = FullTextIndex.buildMatchExpression(query, module)
+
+        if (match != null) {
+            val order = if (ranked && module == FullTextIndex.MODULE_FTS5) "${FullTextIndex.MESSAGE_TABLE}.rank, " + Message.COLUMN_TIMESTAMP + " desc"
+                    else Message.COLUMN_TIMESTAMP + " desc"
+
+            try {
+                return database(context).query(FullTextIndex.MESSAGE_TABLE + " join " + Message.TABLE + " m on m._id = " + FullTextIndex.MESSAGE_TABLE + ".rowid" +
+                        " left outer join " + Conversation.TABLE + " c on m.conversation_id = c._id",
+                        SEARCH_COLUMNS,
+                        FullTextIndex.MESSAGE_TABLE + " MATCH ? AND m." + Message.COLUMN_MIME_TYPE + "='" + MimeType.TEXT_PLAIN + "' AND " + filter,
+                        arrayOf(match), null, null, order)
+            } catch (e: Exception) {
+                // fall back to the LIKE query below
+                e.printStackTrace()
+            }
+        }
+
+        return try {
+            database(context).query(Message.TABLE + " m left outer join " + Conversation.TABLE + " c on m.conversation_id = c._id",
+                    SEARCH_COLUMNS,
+                    Message.COLUMN_DATA + " LIKE '%" + query.replace("'", "''") + "%' AND " +
+                            Message.COLUMN_MIME_TYPE + "='" + MimeType.TEXT_PLAIN + "' AND " + filter, null, null, null, Message.COLUMN_TIMESTAMP + " desc")
+        } catch (e: Exception) {
+            ensureActionable(context)
+            try {
+                database(context).query(Message.TABLE + " m left outer join " + Conversation.TABLE + " c on m.conversation_id = c._id",
+                        SEARCH_COLUMNS,
+                        Message.COLUMN_DATA + " LIKE '%" + query.replace("'", "''") + "%' AND " +
+                                Message.COLUMN_MIME_TYPE + "='" + MimeType.TEXT_PLAIN + "' AND " + filter, null, null, null, Message.COLUMN_TIMESTAMP + " desc")
+            } catch (x: Exception) {
+                x.printStackTrace()
+                null
+            }
+        }
+    }
+
     /**
      * Gets all messages that are within 5 seconds of the given timestamp.
      *
@@ -1952,7 +2156,7 @@ object DataSource {
         }
 
         if (useApi) {
-            ApiUtils.updateMessageType(accountId(context), messageId, type)
+            queueApiMutation(context, RetryableRequest.TYPE_UPDATE_MESSAGE_TYPE, messageId)
         }
     }
 
@@ -2055,26 +2259,7 @@ object DataSource {
             else -> phoneNumbers
         })
 
-        val matcher = SmsMmsUtils.createIdMatcher(phoneNumbers)
-        val cursor = try {
-            database(context).query(Conversation.TABLE,
-                    arrayOf(Conversation.COLUMN_ID, Conversation.COLUMN_ID_MATCHER),
-                    matcher.whereClause, matcher.allMatchers, null, null, null)
-        } catch (e: Exception) {
-            ensureActionable(context)
-            database(context).query(Conversation.TABLE,
-                    arrayOf(Conversation.COLUMN_ID, Conversation.COLUMN_ID_MATCHER),
-                    matcher.whereClause, matcher.allMatchers, null, null, null)
-        }
-
-        return if (cursor.moveToFirst()) {
-            val conversationId = cursor.getLong(0)
-            cursor.closeSilent()
-            conversationId
-        } else {
-            cursor.closeSilent()
-            null
-        }
+        return conversationIndex(context).find(SmsMmsUtils.createIdMatcher(phoneNumbers))
     }
 
     /**
@@ -2119,30 +2304,18 @@ object DataSource {
         })
 
         val matcher = SmsMmsUtils.createIdMatcher(phoneNumbers)
-        val cursor = try {
-            database(context).query(Conversation.TABLE,
-                    arrayOf(Conversation.COLUMN_ID, Conversation.COLUMN_ID_MATCHER),
-                    matcher.whereClause, matcher.allMatchers, null, null, null)
-        } catch (e: Exception) {
-            ensureActionable(context)
-            database(context).query(Conversation.TABLE,
-                    arrayOf(Conversation.COLUMN_ID, Conversation.COLUMN_ID_MATCHER),
-                    matcher.whereClause, matcher.allMatchers, null, null, null)
-        }
+        val existingId = conversationIndex(context).find(matcher)
 
         val conversationId: Long
         message.data = message.data?.replace("[Web발신]\n", "")
 
-        if (cursor.moveToFirst()) {
-            conversationId = cursor.getLong(0)
+        if (existingId != null) {
+            conversationId = existingId
             val snippet = if (message.type == Message.TYPE_SENT || message.type == Message.TYPE_SENDING)
                 context.getString(R.string.you) + ": " + message.data else message.data
 
             updateConversation(context, conversationId, message.read, message.timestamp, snippet, message.mimeType, false, useApi)
-            cursor.closeSilent()
         } else {
-            cursor.closeSilent()
-
             val conversation = Conversation()
             conversation.pinned = false
             conversation.read = message.read
@@ -2221,9 +2394,7 @@ object DataSource {
 
         if (id > 0) {
             if (useApi) {
-                ApiUtils.addMessage(context, accountId(context), message.id, conversationId, message.type, message.data,
-                        message.timestamp, message.mimeType, message.read, message.seen, message.from,
-                        message.color, message.sentDeviceId.toString(), message.simPhoneNumber, encryptor(context))
+                queueApiMutation(context, RetryableRequest.TYPE_ADD_MESSAGE, message.id)
             }
 
             if (message.type != Message.TYPE_MEDIA) {
@@ -2247,52 +2418,150 @@ object DataSource {
      * @param messages        list of messages to batch insert
      */
     fun insertMessages(context: Context, messages: List<Message>, useApi: Boolean = false) {
-        beginTransaction(context)
+        bulkInserter(context).use { inserter ->
+            for (message in messages) {
+                if (message.id <= 0) {
+                    message.id = generateId()
+                }
 
-        for (i in messages.indices) {
-            val message = messages[i]
+                inserter.insertMessage(message)
 
-            val values = ContentValues(11)
+                // these aren't relevant since this is only being done from the download service
+//                ApiUtils.addMessage(context, accountId(context), message.id, message.conversationId, message.type, message.data,
+//                        message.timestamp, message.mimeType, message.read, message.seen, message.from,
+//                        message.color, getEncryptionUtils(context));
 
-            if (message.id <= 0) {
-                message.id = generateId()
+//                updateConversation(context, message.conversationId, message.read, message.timestamp,
+//                        if (message.type == Message.TYPE_SENT || message.type == Message.TYPE_SENDING)
+//                            context.getString(R.string.you) + ": " + message.data
+//                        else
+//                            message.data,
+//                        message.mimeType, false, useApi)
             }
+        }
+    }
 
-            values.put(Message.COLUMN_ID, message.id)
-            values.put(Message.COLUMN_CONVERSATION_ID, message.conversationId)
-            values.put(Message.COLUMN_TYPE, message.type)
-            values.put(Message.COLUMN_DATA, message.data)
-            values.put(Message.COLUMN_TIMESTAMP, message.timestamp)
-            values.put(Message.COLUMN_MIME_TYPE, message.mimeType)
-            values.put(Message.COLUMN_READ, message.read)
-            values.put(Message.COLUMN_SEEN, message.seen)
-            values.put(Message.COLUMN_FROM, message.from)
-            values.put(Message.COLUMN_COLOR, message.color)
-            values.put(Message.COLUMN_SIM_NUMBER, message.simPhoneNumber)
-            values.put(Message.COLUMN_SENT_DEVICE, message.sentDeviceId)
+    /**
+     * Inserts a batch of messages that came in from the other devices, all in a single
+     * transaction. Messages that are already in the database are skipped. Each conversation's
+     * snippet is only updated once, from the last of its new messages, instead of once for every
+     * message like insertMessage would.
+     *
+     * Nothing here goes back to the API, since the messages came from it.
+     *
+     * @return the messages that were inserted.
+     */
+    fun insertSyncedMessages(context: Context, messages: List<Message>): List<Message> {
+        val database = try {
+            database(context)
+        } catch (e: Exception) {
+            ensureActionable(context)
+            database(context)
+        }
 
-            val id = try {
-                database(context).insert(Message.TABLE, null, values)
-            } catch (e: Exception) {
-                ensureActionable(context)
-                database(context).insert(Message.TABLE, null, values)
+        val inserted = mutableListOf<Message>()
+        database.beginTransactionNonExclusive()
+        try {
+            val existing = existingIds(database, Message.TABLE, Message.COLUMN_ID, messages.map { it.id })
+            BulkInserter(database).use { inserter ->
+                for (message in messages) {
+                    if (existing.add(message.id) && inserter.insertMessage(message) != -1L) {
+                        inserted.add(message)
+                    }
+                }
             }
 
-            // these aren't relevant since this is only being done from the download service
-//            ApiUtils.addMessage(context, accountId(context), message.id, message.conversationId, message.type, message.data,
-//                    message.timestamp, message.mimeType, message.read, message.seen, message.from,
-//                    message.color, getEncryptionUtils(context));
+            val latest = inserted.filter { it.type != Message.TYPE_MEDIA }.associateBy { it.conversationId }
+            for (message in latest.values) {
+                updateConversation(context, message.conversationId, message.read, message.timestamp,
+                        if (message.type == Message.TYPE_SENT || message.type == Message.TYPE_SENDING)
+                            context.getString(R.string.you) + ": " + message.data
+                        else message.data,
+                        message.mimeType, false, false)
+            }
 
-//            updateConversation(context, message.conversationId, message.read, message.timestamp,
-//                    if (message.type == Message.TYPE_SENT || message.type == Message.TYPE_SENDING)
-//                        context.getString(R.string.you) + ": " + message.data
-//                    else
-//                        message.data,
-//                    message.mimeType, false, useApi)
+            database.setTransactionSuccessful()
+        } finally {
+            database.endTransaction()
         }
 
-        setTransactionSuccessful(context)
-        endTransaction(context)
+        val metadataHelper = MessageInsertionMetadataHelper(context)
+        inserted.filter { it.type != Message.TYPE_MEDIA }.forEach { metadataHelper.process(it) }
+
+        return inserted
+    }
+
+    /**
+     * Applies the changes from a delta sync: rows that are already here are written over, new
+     * ones are inserted, and the removed ones are deleted, all in a single transaction. If any of
+     * it fails, none of it is kept, so that the sync can be tried again from the same point.
+     *
+     * Nothing here goes back to the API, since the changes came from it.
+     */
+    fun applySyncChanges(context: Context, conversations: List<Conversation>, removedConversationIds: List<Long>,
+                         messages: List<Message>, removedMessageIds: List<Long>,
+                         contacts: List<Contact>, removedContactIds: List<Long>) {
+        val database = try {
+            database(context)
+        } catch (e: Exception) {
+            ensureActionable(context)
+            database(context)
+        }
+
+        database.beginTransactionNonExclusive()
+        try {
+            BulkInserter(database).use { inserter ->
+                conversations.forEach { inserter.upsertConversation(it) }
+                messages.forEach { inserter.upsertMessage(it) }
+            }
+
+            for (contact in contacts) {
+                if (contact.phoneNumber != null) {
+                    database.insertWithOnConflict(Contact.TABLE, null, contactValues(contact), SQLiteDatabase.CONFLICT_REPLACE)
+                }
+            }
+
+            deleteIds(database, Message.TABLE, Message.COLUMN_ID, removedMessageIds)
+            deleteIds(database, Message.TABLE, Message.COLUMN_CONVERSATION_ID, removedConversationIds)
+            deleteIds(database, Conversation.TABLE, Conversation.COLUMN_ID, removedConversationIds)
+            deleteIds(database, Contact.TABLE, Contact.COLUMN_ID, removedContactIds)
+
+            database.setTransactionSuccessful()
+        } finally {
+            database.endTransaction()
+        }
+
+        if (conversations.isNotEmpty() || removedConversationIds.isNotEmpty()) {
+            idMatcherIndex.invalidate()
+        }
+
+        if (contacts.isNotEmpty() || removedContactIds.isNotEmpty()) {
+            NotificationImageCache.clear()
+        }
+    }
+
+    private fun deleteIds(database: SQLiteDatabase, table: String, column: String, ids: List<Long>) {
+        // sqlite only allows so many arguments in a single statement
+        for (chunk in ids.chunked(500)) {
+            database.delete(table, "$column IN (${chunk.joinToString(",") { "?" }})",
+                    chunk.map { it.toString() }.toTypedArray())
+        }
+    }
+
+    private fun existingIds(database: SQLiteDatabase, table: String, column: String, ids: List<Long>): MutableSet<Long> {
+        val existing = mutableSetOf<Long>()
+        for (chunk in ids.chunked(500)) {
+            val cursor = database.query(table, arrayOf(column), "$column IN (${chunk.joinToString(",") { "?" }})",
+                    chunk.map { it.toString() }.toTypedArray(), null, null, null)
+
+            while (cursor.moveToNext()) {
+                existing.add(cursor.getLong(0))
+            }
+
+            cursor.closeSilent()
+        }
+
+        return existing
     }
 
     /**
@@ -2330,8 +2599,11 @@ object DataSource {
                     arrayOf(java.lang.Long.toString(timestamp)))
         }
 
-        database(context).delete(Conversation.TABLE, Conversation.COLUMN_TIMESTAMP + "<?",
+        val deletedConversations = database(context).delete(Conversation.TABLE, Conversation.COLUMN_TIMESTAMP + "<?",
                 arrayOf(java.lang.Long.toString(timestamp)))
+        if (deletedConversations > 0) {
+            idMatcherIndex.invalidate()
+        }
 
         if (deleted > 0 && useApi) {
             ApiUtils.cleanupMessages(accountId(context), timestamp)
@@ -2393,7 +2665,7 @@ object DataSource {
         }
 
         if (updated > 0 && useApi) {
-            ApiUtils.readConversation(accountId(context), androidDeviceId(context), conversationId)
+            queueApiMutation(context, RetryableRequest.TYPE_READ_CONVERSATION, conversationId)
         }
 
         clearUnreadCount(context)
@@ -2469,7 +2741,7 @@ object DataSource {
         if (updated > 0) {
             if (useApi) {
                 for (id in conversationIds) {
-                    ApiUtils.readConversation(accountId(context), androidDeviceId(context), id)
+                    queueApiMutation(context, RetryableRequest.TYPE_READ_CONVERSATION, id)
                 }
             }
 
@@ -2574,6 +2846,59 @@ object DataSource {
                         Message.COLUMN_TIMESTAMP + " asc")
             }
 
+    /**
+     * Gets all unseen messages, joined with the conversation that each of them belongs to, so that
+     * the conversations don't have to be queried one at a time. The conversation columns keep
+     * their names, except for its timestamp, which is conversation_timestamp.
+     */
+    fun getUnseenMessagesWithConversations(context: Context): Cursor =
+            try {
+                database(context).query(Message.TABLE + " m inner join " + Conversation.TABLE + " c on m.conversation_id = c._id",
+                        UNSEEN_CONVERSATION_COLUMNS, "m." + Message.COLUMN_SEEN + "=0", null, null, null, "m." + Message.COLUMN_TIMESTAMP + " asc")
+            } catch (e: Exception) {
+                ensureActionable(context)
+                database(context).query(Message.TABLE + " m inner join " + Conversation.TABLE + " c on m.conversation_id = c._id",
+                        UNSEEN_CONVERSATION_COLUMNS, "m." + Message.COLUMN_SEEN + "=0", null, null, null, "m." + Message.COLUMN_TIMESTAMP + " asc")
+            }
+
+    /**
+     * Gets the latest messages from each of the conversations. Each conversation gets its own select,
+     * so that its newest messages are read straight from the (conversation_id, timestamp) index, and
+     * the selects are combined with union all to run as one query.
+     *
+     * @param count the number of messages to get for each conversation.
+     * @return the messages for each conversation, newest first.
+     */
+    fun getLatestMessages(context: Context, conversationIds: Collection<Long>, count: Int): Map<Long, List<Message>> {
+        val messages = mutableMapOf<Long, MutableList<Message>>()
+
+        // sqlite limits the number of selects in a compound query, and the number of arguments
+        for (chunk in conversationIds.chunked(100)) {
+            val sql = chunk.joinToString(" union all ") {
+                "select * from (select * from " + Message.TABLE + " where " + Message.COLUMN_CONVERSATION_ID + "=?" +
+                        " order by " + Message.COLUMN_TIMESTAMP + " desc, " + Message.COLUMN_ID + " desc limit " + count + ")"
+            }
+            val args = chunk.map { it.toString() }.toTypedArray()
+
+            val cursor = try {
+                database(context).rawQuery(sql, args)
+            } catch (e: Exception) {
+                ensureActionable(context)
+                database(context).rawQuery(sql, args)
+            }
+
+            while (cursor.moveToNext()) {
+                val message = Message()
+                message.fillFromCursor(cursor)
+                messages.getOrPut(message.conversationId) { ArrayList(count) }.add(message)
+            }
+
+            cursor.closeSilent()
+        }
+
+        return messages
+    }
+
     /**
      * Inserts a draft into the database with the given parameters.
      */
@@ -2743,6 +3068,27 @@ object DataSource {
         return blacklists
     }
 
+    /**
+     * Gets every blacklist rule, compiled for checking incoming messages. This is only rebuilt
+     * after a blacklist is inserted or deleted, or when the phrase regex setting changes.
+     */
+    @Synchronized
+    fun getBlacklistMatcher(context: Context): BlacklistMatcher {
+        val matcher = blacklistMatcher
+        if (matcher != null && matcher.phrasesAreRegex == Settings.blacklistPhraseRegex) {
+            return matcher
+        }
+
+        val rebuilt = BlacklistMatcher(getBlacklistsAsList(context), Settings.blacklistPhraseRegex)
+        blacklistMatcher = rebuilt
+        return rebuilt
+    }
+
+    @Synchronized
+    private fun invalidateBlacklistMatcher() {
+        blacklistMatcher = null
+    }
+
     /**
      * Inserts a blacklist into the database.
      */
@@ -2768,6 +3114,8 @@ object DataSource {
             database(context).insert(Blacklist.TABLE, null, values)
         }
 
+        invalidateBlacklistMatcher()
+
         if (useApi) {
             ApiUtils.addBlacklist(accountId(context), blacklist.id, blacklist.phoneNumber, blacklist.phrase, encryptor(context))
         }
@@ -2786,6 +3134,8 @@ object DataSource {
                     arrayOf(java.lang.Long.toString(id)))
         }
 
+        invalidateBlacklistMatcher()
+
         if (useApi) {
             ApiUtils.deleteBlacklist(accountId(context), id)
         }
@@ -3038,6 +3388,28 @@ object DataSource {
         return autoReplies
     }
 
+    /**
+     * Gets every auto reply, ready to check incoming messages against. This is only rebuilt after
+     * the auto replies change, or when driving or vacation mode is turned on or off.
+     */
+    @Synchronized
+    fun getAutoReplyEngine(context: Context): AutoReplyEngine {
+        val engine = autoReplyEngine
+        if (engine != null && engine.drivingMode == Settings.drivingMode && engine.vacationMode == Settings.vacationMode) {
+            return engine
+        }
+
+        val rebuilt = AutoReplyEngine(context.applicationContext ?: context, getAutoRepliesAsList(context),
+                Settings.drivingMode, Settings.vacationMode)
+        autoReplyEngine = rebuilt
+        return rebuilt
+    }
+
+    @Synchronized
+    private fun invalidateAutoReplyEngine() {
+        autoReplyEngine = null
+    }
+
     /**
      * Inserts an auto reply into the database.
      */
@@ -3058,12 +3430,15 @@ object DataSource {
                     autoReply.pattern!!, autoReply.response!!, encryptor(context))
         }
 
-        return try {
+        val id = try {
             database(context).insert(AutoReply.TABLE, null, values)
         } catch (e: Exception) {
             ensureActionable(context)
             database(context).insert(AutoReply.TABLE, null, values)
         }
+
+        invalidateAutoReplyEngine()
+        return id
     }
 
     /**
@@ -3088,6 +3463,8 @@ object DataSource {
                     arrayOf(java.lang.Long.toString(autoReply.id)))
         }
 
+        invalidateAutoReplyEngine()
+
         if (useApi) {
             ApiUtils.updateAutoReply(accountId(context), autoReply.id, autoReply.type!!,
                     autoReply.pattern!!, autoReply.response!!, encryptor(context))
@@ -3107,6 +3484,8 @@ object DataSource {
                     arrayOf(java.lang.Long.toString(id)))
         }
 
+        invalidateAutoReplyEngine()
+
         if (useApi) {
             ApiUtils.deleteAutoReply(accountId(context), id)
         }
@@ -31,6 +31,12 @@ class DatabaseSQLiteHelper(context: Context) : SQLiteOpenHelper(context, DATABAS
     private val tables = arrayOf(Contact(), Conversation(), Message(), Draft(), ScheduledMessage(),
             Blacklist(), Template(), Folder(), AutoReply(), RetryableRequest())
 
+    init {
+        // lets queries from other threads run on their own read-only connections while
+        // a write is in progress, instead of waiting on the single connection.
+        setWriteAheadLoggingEnabled(true)
+    }
+
     override fun onCreate(db: SQLiteDatabase) {
         for (table in tables) {
             db.execSQL(table.getCreateStatement())
@@ -39,6 +45,8 @@ class DatabaseSQLiteHelper(context: Context) : SQLiteOpenHelper(context, DATABAS
                 db.execSQL(index)
             }
         }
+
+        FullTextIndex.create(db)
     }
 
     override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
@@ -171,9 +179,43 @@ class DatabaseSQLiteHelper(context: Context) : SQLiteOpenHelper(context, DATABAS
                 e.printStackTrace()
             }
         }
+
+        if (oldVersion < 19) {
+            try {
+                if (FullTextIndex.create(db) != FullTextIndex.MODULE_NONE) {
+                    FullTextIndex.backfill(db)
+                }
+            } catch (e: Exception) {
+                e.printStackTrace()
+
+                // a partially filled index is worse than none, searches will fall back to LIKE
+                try {
+                    FullTextIndex.drop(db)
+                } catch (x: Exception) {
+                }
+            }
+        }
+
+        if (oldVersion < 20) {
+            try {
+                db.execSQL("drop index if exists conversation_id_message_index")
+
+                for (index in Message().getIndexStatements()) {
+                    db.execSQL(index)
+                }
+
+                for (index in Conversation().getIndexStatements()) {
+                    db.execSQL(index)
+                }
+            } catch (e: Exception) {
+                e.printStackTrace()
+            }
+        }
     }
 
     fun onDrop(db: SQLiteDatabase) {
+        FullTextIndex.drop(db)
+
         for (table in tables) {
             db.execSQL("drop table if exists " + table.getTableName())
         }
@@ -182,7 +224,7 @@ class DatabaseSQLiteHelper(context: Context) : SQLiteOpenHelper(context, DATABAS
     companion object {
 
         private const val DATABASE_NAME = "messenger.db"
-        private const val DATABASE_VERSION = 18
+        private const val DATABASE_VERSION = 20
 
     }
 
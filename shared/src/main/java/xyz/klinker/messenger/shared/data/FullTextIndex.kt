@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.data
+
+import android.database.DatabaseUtils
+import android.database.sqlite.SQLiteDatabase
+import android.util.Log
+import xyz.klinker.messenger.shared.data.model.Conversation
+import xyz.klinker.messenger.shared.data.model.Message
+import java.util.regex.Pattern
+
+/**
+ * Full text shadow index for the message and conversation tables. The index tables use the
+ * original tables as external content, so no text is duplicated. Triggers on the original tables
+ * keep them in sync, so none of the insert/update/delete paths in the DataSource need to know
+ * that the index exists.
+ *
+ * FTS5 is preferred, since it can rank results, but most Android builds of SQLite only ship with
+ * FTS3/FTS4, so we fall back to FTS4 when the module isn't available.
+ */
+object FullTextIndex {
+
+    private const val TAG = "FullTextIndex"
+
+    const val MESSAGE_TABLE = "message_fts"
+    const val CONVERSATION_TABLE = "conversation_fts"
+
+    const val MODULE_FTS5 = "fts5"
+    const val MODULE_FTS4 = "fts4"
+    const val MODULE_NONE = "none"
+
+    private val TRIGGERS = arrayOf("message_fts_insert", "message_fts_delete", "message_fts_update_before",
+            "message_fts_update_after", "conversation_fts_insert", "conversation_fts_delete",
+            "conversation_fts_update_before", "conversation_fts_update_after")
+
+    // only plain text messages are indexed. Media messages just hold a uri in the data column.
+    private val MESSAGE_INDEXED = "'${MimeType.TEXT_PLAIN}'"
+
+    /**
+     * Creates the index tables and the triggers to maintain them.
+     *
+     * @return the module that was used to create the index, or MODULE_NONE if none was available.
+     */
+    fun create(db: SQLiteDatabase): String {
+        for (module in arrayOf(MODULE_FTS5, MODULE_FTS4)) {
+            try {
+                for (statement in getCreateStatements(module)) {
+                    db.execSQL(statement)
+                }
+
+                return module
+            } catch (e: Exception) {
+                Log.v(TAG, "unable to create $module index: ${e.message}")
+                drop(db)
+            }
+        }
+
+        return MODULE_NONE
+    }
+
+    /**
+     * Fills the index from the rows that already exist in the database. Used when upgrading from
+     * a database version that did not have the index.
+     */
+    fun backfill(db: SQLiteDatabase) {
+        db.execSQL("INSERT INTO $MESSAGE_TABLE(rowid, ${Message.COLUMN_DATA}) " +
+                "SELECT ${Message.COLUMN_ID}, ${Message.COLUMN_DATA} FROM ${Message.TABLE} " +
+                "WHERE ${Message.COLUMN_MIME_TYPE}=$MESSAGE_INDEXED")
+        db.execSQL("INSERT INTO $CONVERSATION_TABLE(rowid, ${Conversation.COLUMN_TITLE}) " +
+                "SELECT ${Conversation.COLUMN_ID}, ${Conversation.COLUMN_TITLE} FROM ${Conversation.TABLE}")
+    }
+
+    fun drop(db: SQLiteDatabase) {
+        for (trigger in TRIGGERS) {
+            db.execSQL("drop trigger if exists $trigger")
+        }
+
+        db.execSQL("drop table if exists $MESSAGE_TABLE")
+        db.execSQL("drop table if exists $CONVERSATION_TABLE")
+    }
+
+    /**
+     * Looks up which module the existing index was created with.
+     */
+    fun getModule(db: SQLiteDatabase): String = try {
+        val sql = DatabaseUtils.stringForQuery(db, "SELECT sql FROM sqlite_master WHERE name=?", arrayOf(MESSAGE_TABLE))
+        when {
+            sql.contains(MODULE_FTS5, ignoreCase = true) -> MODULE_FTS5
+            sql.contains(MODULE_FTS4, ignoreCase = true) -> MODULE_FTS4
+            else -> MODULE_NONE
+        }
+    } catch (e: Exception) {
+        MODULE_NONE
+    }
+
+    fun getCreateStatements(module: String): Array<String> {
+        // FTS4 always maps the docid to the rowid of the content table, FTS5 needs to be told
+        val messageOptions = if (module == MODULE_FTS5) "content='${Message.TABLE}', content_rowid='${Message.COLUMN_ID}', prefix='2 3'"
+                else "content='${Message.TABLE}', prefix=\"2,3\""
+        val conversationOptions = if (module == MODULE_FTS5) "content='${Conversation.TABLE}', content_rowid='${Conversation.COLUMN_ID}', prefix='2 3'"
+                else "content='${Conversation.TABLE}', prefix=\"2,3\""
+
+        // FTS4 reads the old content back out of the content table when removing a row, so the
+        // removal has to run before the content row changes.
+        val messageDelete = if (module == MODULE_FTS5) {
+            "INSERT INTO $MESSAGE_TABLE($MESSAGE_TABLE, rowid, ${Message.COLUMN_DATA}) VALUES('delete', old.${Message.COLUMN_ID}, old.${Message.COLUMN_DATA});"
+        } else {
+            "DELETE FROM $MESSAGE_TABLE WHERE docid=old.${Message.COLUMN_ID};"
+        }
+        val conversationDelete = if (module == MODULE_FTS5) {
+            "INSERT INTO $CONVERSATION_TABLE($CONVERSATION_TABLE, rowid, ${Conversation.COLUMN_TITLE}) VALUES('delete', old.${Conversation.COLUMN_ID}, old.${Conversation.COLUMN_TITLE});"
+        } else {
+            "DELETE FROM $CONVERSATION_TABLE WHERE docid=old.${Conversation.COLUMN_ID};"
+        }
+
+        return arrayOf(
+                "CREATE VIRTUAL TABLE IF NOT EXISTS $MESSAGE_TABLE USING $module(${Message.COLUMN_DATA}, $messageOptions);",
+                "CREATE TRIGGER IF NOT EXISTS message_fts_insert AFTER INSERT ON ${Message.TABLE} " +
+                        "WHEN new.${Message.COLUMN_MIME_TYPE}=$MESSAGE_INDEXED BEGIN " +
+                        "INSERT INTO $MESSAGE_TABLE(rowid, ${Message.COLUMN_DATA}) VALUES(new.${Message.COLUMN_ID}, new.${Message.COLUMN_DATA}); END;",
+                "CREATE TRIGGER IF NOT EXISTS message_fts_delete BEFORE DELETE ON ${Message.TABLE} " +
+                        "WHEN old.${Message.COLUMN_MIME_TYPE}=$MESSAGE_INDEXED BEGIN $messageDelete END;",
+                "CREATE TRIGGER IF NOT EXISTS message_fts_update_before BEFORE UPDATE OF ${Message.COLUMN_DATA}, ${Message.COLUMN_MIME_TYPE} ON ${Message.TABLE} " +
+                        "WHEN old.${Message.COLUMN_MIME_TYPE}=$MESSAGE_INDEXED BEGIN $messageDelete END;",
+                "CREATE TRIGGER IF NOT EXISTS message_fts_update_after AFTER UPDATE OF ${Message.COLUMN_DATA}, ${Message.COLUMN_MIME_TYPE} ON ${Message.TABLE} " +
+                        "WHEN new.${Message.COLUMN_MIME_TYPE}=$MESSAGE_INDEXED BEGIN " +
+                        "INSERT INTO $MESSAGE_TABLE(rowid, ${Message.COLUMN_DATA}) VALUES(new.${Message.COLUMN_ID}, new.${Message.COLUMN_DATA}); END;",
+                "CREATE VIRTUAL TABLE IF NOT EXISTS $CONVERSATION_TABLE USING $module(${Conversation.COLUMN_TITLE}, $conversationOptions);",
+                "CREATE TRIGGER IF NOT EXISTS conversation_fts_insert AFTER INSERT ON ${Conversation.TABLE} BEGIN " +
+                        "INSERT INTO $CONVERSATION_TABLE(rowid, ${Conversation.COLUMN_TITLE}) VALUES(new.${Conversation.COLUMN_ID}, new.${Conversation.COLUMN_TITLE}); END;",
+                "CREATE TRIGGER IF NOT EXISTS conversation_fts_delete BEFORE DELETE ON ${Conversation.TABLE} BEGIN $conversationDelete END;",
+                "CREATE TRIGGER IF NOT EXISTS conversation_fts_update_before BEFORE UPDATE OF ${Conversation.COLUMN_TITLE} ON ${Conversation.TABLE} BEGIN $conversationDelete END;",
+                "CREATE TRIGGER IF NOT EXISTS conversation_fts_update_after AFTER UPDATE OF ${Conversation.COLUMN_TITLE} ON ${Conversation.TABLE} BEGIN " +
+                        "INSERT INTO $CONVERSATION_TABLE(rowid, ${Conversation.COLUMN_TITLE}) VALUES(new.${Conversation.COLUMN_ID}, new.${Conversation.COLUMN_TITLE}); END;"
+        )
+    }
+
+    /**
+     * Splits the user's query into words, dropping anything that the MATCH syntax would treat as
+     * an operator. Case folding is left to the index tokenizer.
+     */
+    fun tokenize(query: String?): List<String> {
+        if (query == null) {
+            return emptyList()
+        }
+
+        val tokens = ArrayList<String>()
+        val current = StringBuilder()
+
+        for (c in query) {
+            if (Character.isLetterOrDigit(c)) {
+                current.append(c)
+            } else if (current.isNotEmpty()) {
+                tokens.add(current.toString())
+                current.setLength(0)
+            }
+        }
+
+        if (current.isNotEmpty()) {
+            tokens.add(current.toString())
+        }
+
+        return tokens
+    }
+
+    /**
+     * Builds a MATCH expression for the query. The tokens are matched as a phrase, with the last
+     * one treated as a prefix, so that the results line up with what the user has typed so far.
+     *
+     * @return the expression, or null if there is no index or the query has nothing that can be
+     * matched by it.
+     */
+    fun buildMatchExpression(query: String?, module: String): String? {
+        val tokens = tokenize(query)
+        if (module == MODULE_NONE || tokens.isEmpty()) {
+            return null
+        }
+
+        val phrase = tokens.joinToString(" ")
+        return if (module == MODULE_FTS5) "\"$phrase\" *" else "\"$phrase*\""
+    }
+
+    /**
+     * Pattern that highlights the same prefix matches that the index returned.
+     */
+    fun buildHighlightPattern(query: String?): Pattern? {
+        val tokens = tokenize(query)
+        if (tokens.isEmpty()) {
+            return null
+        }
+
+        val builder = StringBuilder()
+        for (i in tokens.indices) {
+            if (i != 0) {
+                builder.append("[^\\p{L}\\p{N}]+")
+            }
+
+            builder.append(Pattern.quote(tokens[i]))
+        }
+
+        return Pattern.compile(builder.toString(), Pattern.CASE_INSENSITIVE or Pattern.UNICODE_CASE)
+    }
+
+}
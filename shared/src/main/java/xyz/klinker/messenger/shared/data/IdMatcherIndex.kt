@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.data
+
+import android.database.Cursor
+import xyz.klinker.messenger.shared.util.closeSilent
+
+/**
+ * Keeps the id_matcher of every conversation in memory, so that an incoming message can be routed
+ * to its conversation without querying the database.
+ *
+ * A conversation only stores one of the matcher variants (older conversations used the five digit
+ * one), so a lookup probes each of [IdMatcher.allMatchers] until one of them hits.
+ *
+ * The index is filled from the conversation table the first time it is used, then kept up to date
+ * by the DataSource as conversations are inserted and deleted. Anything that changes conversations
+ * in bulk just invalidates it, and it will be loaded again on the next lookup.
+ */
+class IdMatcherIndex {
+
+    private val conversations = HashMap<String, Long>()
+    private val matchers = HashMap<Long, String>()
+
+    @Volatile var isLoaded = false
+        private set
+
+    /**
+     * Fills the index, if it hasn't been already.
+     *
+     * @param query returns a cursor with the conversation id and id_matcher columns, in that order.
+     */
+    @Synchronized
+    fun load(query: () -> Cursor) {
+        if (isLoaded) {
+            return
+        }
+
+        conversations.clear()
+        matchers.clear()
+
+        val cursor = query()
+        while (cursor.moveToNext()) {
+            val matcher = cursor.getString(1) ?: continue
+            add(matcher, cursor.getLong(0))
+        }
+
+        cursor.closeSilent()
+        isLoaded = true
+    }
+
+    /**
+     * @return the id of the conversation matching any of the variants, or null.
+     */
+    @Synchronized
+    fun find(matcher: IdMatcher): Long? {
+        for (variant in matcher.allMatchers) {
+            val conversationId = conversations[variant]
+            if (conversationId != null) {
+                return conversationId
+            }
+        }
+
+        return null
+    }
+
+    @Synchronized
+    fun put(idMatcher: String?, conversationId: Long) {
+        if (isLoaded && idMatcher != null) {
+            remove(conversationId)
+            add(idMatcher, conversationId)
+        }
+    }
+
+    @Synchronized
+    fun remove(conversationId: Long) {
+        val matcher = matchers.remove(conversationId)
+        if (matcher != null) {
+            conversations.remove(matcher)
+        }
+    }
+
+    @Synchronized
+    fun invalidate() {
+        conversations.clear()
+        matchers.clear()
+        isLoaded = false
+    }
+
+    private fun add(idMatcher: String, conversationId: Long) {
+        conversations[idMatcher] = conversationId
+        matchers[conversationId] = idMatcher
+    }
+}
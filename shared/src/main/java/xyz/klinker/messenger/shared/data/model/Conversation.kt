@@ -176,7 +176,13 @@ class Conversation : DatabaseTable {
         const val COLUMN_SIM_SUBSCRIPTION_ID = "sim_subscription_id" // created in database v6
         const val COLUMN_FOLDER_ID = "folder_id" // created in database v12
 
-        val INDEXES = arrayOf("create index if not exists folder_id_conversation_index on $TABLE ($COLUMN_FOLDER_ID);")
+        // id_matcher is unique, so it already has an index from the table definition
+        val INDEXES = arrayOf(
+                "create index if not exists folder_id_conversation_index on $TABLE ($COLUMN_FOLDER_ID);",
+                "create index if not exists list_conversation_index on $TABLE ($COLUMN_ARCHIVED, $COLUMN_PRIVATE, $COLUMN_PINNED, $COLUMN_TIMESTAMP);",
+                "create index if not exists pinned_conversation_index on $TABLE ($COLUMN_PINNED, $COLUMN_TIMESTAMP);",
+                "create index if not exists private_conversation_index on $TABLE ($COLUMN_PRIVATE, $COLUMN_TIMESTAMP);",
+                "create index if not exists read_conversation_index on $TABLE ($COLUMN_READ, $COLUMN_TIMESTAMP);")
         private const val DATABASE_CREATE = "create table if not exists " +
                 TABLE + " (" +
                 COLUMN_ID + " integer primary key, " +
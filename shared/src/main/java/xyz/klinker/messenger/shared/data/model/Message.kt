@@ -142,7 +142,12 @@ class Message : DatabaseTable {
                 COLUMN_SENT_DEVICE + " integer" +
                 ");"
 
-        private val INDEXES = arrayOf("create index if not exists conversation_id_message_index on $TABLE ($COLUMN_CONVERSATION_ID);")
+        // conversation_id_message_index was replaced by conversation_id_timestamp_message_index in database v20
+        private val INDEXES = arrayOf(
+                "create index if not exists conversation_id_timestamp_message_index on $TABLE ($COLUMN_CONVERSATION_ID, $COLUMN_TIMESTAMP);",
+                "create index if not exists read_message_index on $TABLE ($COLUMN_READ, $COLUMN_TIMESTAMP);",
+                "create index if not exists seen_message_index on $TABLE ($COLUMN_SEEN, $COLUMN_TIMESTAMP);",
+                "create index if not exists timestamp_message_index on $TABLE ($COLUMN_TIMESTAMP);")
 
         const val TYPE_RECEIVED = 0
         const val TYPE_SENT = 1
@@ -78,6 +78,9 @@ class RetryableRequest : DatabaseTable {
 
         const val TYPE_ADD_MESSAGE = 0
         const val TYPE_ADD_CONVERSATION = 1
+        const val TYPE_READ_CONVERSATION = 2
+        const val TYPE_UPDATE_CONVERSATION_SNIPPET = 3
+        const val TYPE_UPDATE_MESSAGE_TYPE = 4
     }
 
 }
@@ -73,7 +73,7 @@ class MmsReceivedReceiver : com.klinker.android.send_message.MmsReceivedReceiver
         val nullableOrBlankBodyText = insertMms(context, uri, lastMessage)
 
         if (!ignoreNotification) {
-            Notifier(context).notify()
+            Notifier(context).notifyCoalesced()
         }
     }
 
@@ -83,7 +83,7 @@ class SmsReceivedNonDefaultReceiver : BroadcastReceiver() {
         val conversationId = insertSms(context, handler, address, body)
 
         if (conversationId != -1L && PermissionsUtils.isDefaultSmsApp(context)) {
-            Thread { Notifier(context).notify() }.start()
+            Thread { Notifier(context).notifyCoalesced() }.start()
         }
     }
 
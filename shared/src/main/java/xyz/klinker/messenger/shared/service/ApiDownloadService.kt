@@ -31,7 +31,9 @@ import xyz.klinker.messenger.api.entity.*
 
 import java.io.File
 import java.io.IOException
+import java.util.concurrent.atomic.AtomicBoolean
 
+import xyz.klinker.messenger.api.ApiPager
 import xyz.klinker.messenger.api.implementation.firebase.FirebaseDownloadCallback
 import xyz.klinker.messenger.shared.R
 import xyz.klinker.messenger.api.implementation.ApiUtils
@@ -79,13 +81,25 @@ class ApiDownloadService : Service() {
             IS_RUNNING = true
 
             encryptionUtils = Account.encryptor
-            DataSource.beginTransaction(this)
 
             val startTime = TimeUtils.now
-            wipeDatabase()
+            val checkpoint = DownloadCheckpoint(this, Account.accountId)
 
-            val conversations = downloadConversations()
-            downloadMessages(conversations)
+            // each page is committed as it is written, rather than wrapping the whole download in
+            // one transaction, so an interrupted download can be resumed from the checkpoint.
+            val conversations = if (checkpoint.canResume && DataSource.getConversationCount(this) > 0) {
+                Log.v(TAG, "resuming the previous download")
+                DataSource.getAllConversationsAsList(this)
+            } else {
+                wipeDatabase()
+                checkpoint.start()
+
+                val downloaded = downloadConversations()
+                checkpoint.markConversationsDownloaded()
+                downloaded
+            }
+
+            var success = downloadMessages(conversations, checkpoint)
             downloadBlacklists()
             downloadScheduledMessages()
             downloadDrafts()
@@ -94,14 +108,22 @@ class ApiDownloadService : Service() {
             downloadFolders()
             downloadAutoReplies()
 
-            ensureMessages(conversations)
+            success = ensureMessages(conversations, checkpoint) && success
+            if (success) {
+                // delta syncs pick up from here. They start a little before the download did, in
+                // case this device's clock is off from the server's. Changes that get applied twice
+                // are just written over.
+                if (checkpoint.startedAt > 0) {
+                    SyncWatermarks(this).setAll(checkpoint.startedAt - WATERMARK_OVERLAP)
+                }
+
+                checkpoint.clear()
+            }
 
             Log.v(TAG, "time to download: " + (TimeUtils.now - startTime) + " ms")
 
             sendBroadcast(Intent(ACTION_DOWNLOAD_FINISHED))
             NotificationManagerCompat.from(applicationContext).cancel(MESSAGE_DOWNLOAD_ID)
-            DataSource.setTransactionSuccessful(this)
-            DataSource.endTransaction(this)
             downloadMedia()
 
             IS_RUNNING = false
@@ -112,146 +134,54 @@ class ApiDownloadService : Service() {
         DataSource.clearTables(this)
     }
 
-    private fun downloadMessages(conversations: List<Conversation>) {
-        val startTime = TimeUtils.now
-        val messageList = mutableListOf<Message>()
-
-        var pageNumber = 1
-        var downloaded = 0
-        var nullCount = 0
-
-        do {
-            val messages = try {
-                ApiUtils.api.message()
-                        .list(Account.accountId, null, MESSAGE_DOWNLOAD_PAGE_SIZE, downloaded)
-                        .execute().body()
-            } catch (e: IOException) {
-                emptyArray<MessageBody>()
-            }
-
-            if (messages != null && !messages.isEmpty()) {
-                for (body in messages) {
-                    val message = Message(body)
-
-                    try {
-                        message.decrypt(encryptionUtils!!)
-                    } catch (e: Exception) {
-                        e.printStackTrace()
-                    }
-
-                    messageList.add(message)
-                }
-
-                DataSource.insertMessages(this, messageList, false)
-                downloaded += messageList.size
-
-                messageList.clear()
-
-                Log.v(TAG, "$downloaded messages downloaded. $pageNumber pages so far.")
-                pageNumber++
-            } else {
-                nullCount++
-                Log.v(TAG, "message download failed. Retrying in 5 seconds")
-
-                try {
-                    Thread.sleep(5000)
-                } catch (e: InterruptedException) {
-                }
-            }
-        } while (downloaded % MESSAGE_DOWNLOAD_PAGE_SIZE == 0 && nullCount < 10)
-
-        if (downloaded > 0) {
-            Log.v(TAG, downloaded.toString() + " messages inserted in " + (TimeUtils.now - startTime) + " ms with " + pageNumber + " pages")
-        } else {
-            Log.v(TAG, "messages failed to download. Trying by conversation, instead")
-            downloadMessagesByConversation(conversations)
-        }
-    }
-
     // Indexing 100k messages for a single user can take longer than the Heroku API timeout.
     // Not many users have this many messages, but some do.
-    // The database can index each conversation more quickly.
-    private fun downloadMessagesByConversation(conversations: List<Conversation>) {
-        val startTime = TimeUtils.now
-        val messageList = mutableListOf<Message>()
-
-        var totalDownloaded = 0
-
-        conversations.forEach {
-            var pageNumber = 1
-            var downloaded = 0
-            var nullCount = 0
-
-            do {
-                val messages = try {
-                    ApiUtils.api.message()
-                            .list(Account.accountId, it.id, MESSAGE_DOWNLOAD_PAGE_SIZE, downloaded)
-                            .execute().body()
-                } catch (e: IOException) {
-                    emptyArray<MessageBody>()
-                }
-
-                if (messages != null && messages.isNotEmpty()) {
-                    for (body in messages) {
-                        val message = Message(body)
-
-                        try {
-                            message.decrypt(encryptionUtils!!)
-                        } catch (e: Exception) {
-                            e.printStackTrace()
-                        }
-
-                        messageList.add(message)
-                    }
+    // The database can index each conversation more quickly, so we download them one conversation
+    // at a time, with a few conversations in flight at once.
+    private fun downloadMessages(conversations: List<Conversation>, checkpoint: DownloadCheckpoint): Boolean {
+        val pageSize = MessageDownloadEngine.DEFAULT_PAGE_SIZE
+        val keysetUnsupported = AtomicBoolean()
+        val engine = MessageDownloadEngine(this, encryptionUtils, checkpoint, { conversationId, pageToken ->
+            val pager = ApiPager<MessageBody>(pageSize,
+                    { token -> ApiUtils.api.message().page(Account.accountId, conversationId, pageSize, token) },
+                    { offset -> ApiUtils.api.message().list(Account.accountId, conversationId, pageSize, offset) },
+                    keysetUnsupported)
 
-                    DataSource.insertMessages(this, messageList, false)
-                    downloaded += messageList.size
-                    totalDownloaded += messageList.size
-
-                    messageList.clear()
-
-                    Log.v(TAG, "$downloaded messages downloaded. $pageNumber pages so far for conversation ${it.id}.")
-                    pageNumber++
-                } else {
-                    nullCount++
-                    Log.v(TAG, "message download failed. Retrying in 1 seconds")
-
-                    try {
-                        Thread.sleep(1000)
-                    } catch (e: InterruptedException) {
-                    }
-                }
-            } while (downloaded % MESSAGE_DOWNLOAD_PAGE_SIZE == 0 && nullCount < 10)
-        }
+            try {
+                pager.fetch(pageToken)
+            } catch (e: IOException) {
+                null
+            }
+        })
 
-        if (totalDownloaded > 0) {
-            Log.v(TAG, "$totalDownloaded messages inserted in ${TimeUtils.now - startTime} ms, for ${conversations.size} conversations")
-        } else {
-            Log.v(TAG, "messages failed to insert")
-        }
+        return engine.download(conversations.map { it.id })
     }
 
     private fun downloadConversations(): List<Conversation> {
         val startTime = TimeUtils.now
         val allConversations = mutableListOf<Conversation>()
 
+        val pager = ApiPager<ConversationBody>(CONVERSATION_DOWNLOAD_PAGE_SIZE,
+                { token -> ApiUtils.api.conversation().page(Account.accountId, CONVERSATION_DOWNLOAD_PAGE_SIZE, token) },
+                { offset -> ApiUtils.api.conversation().list(Account.accountId, CONVERSATION_DOWNLOAD_PAGE_SIZE, offset) })
+
         var pageNumber = 1
         var downloaded = 0
-        var nullCount = 0
+        var failures = 0
+        var pageToken: String? = null
+        var finished = false
 
-        do {
-            val conversations = try {
-                ApiUtils.api.conversation()
-                        .list(Account.accountId, CONVERSATION_DOWNLOAD_PAGE_SIZE, downloaded)
-                        .execute().body()
+        while (!finished && failures < MAX_PAGE_FAILURES) {
+            val page = try {
+                pager.fetch(pageToken)
             } catch (e: IOException) {
-                emptyArray<ConversationBody>()
+                null
             }
 
-            if (conversations != null && !conversations.isEmpty()) {
+            if (page != null) {
                 val conversationList = mutableListOf<Conversation>()
 
-                for (body in conversations) {
+                for (body in page.items) {
                     val conversation = Conversation(body)
 
                     try {
@@ -264,13 +194,17 @@ class ApiDownloadService : Service() {
                     conversationList.add(conversation)
                 }
 
-                DataSource.insertRawConversations(conversationList, this)
-                downloaded += conversationList.size
+                if (conversationList.isNotEmpty()) {
+                    DataSource.insertRawConversations(conversationList, this)
+                }
 
+                downloaded += conversationList.size
                 allConversations.addAll(conversationList)
-                conversationList.clear()
+
+                finished = page.nextPageToken == null || page.nextPageToken == pageToken
+                pageToken = page.nextPageToken
             } else {
-                nullCount++
+                failures++
 
                 try {
                     Thread.sleep(2000)
@@ -280,7 +214,7 @@ class ApiDownloadService : Service() {
 
             Log.v(TAG, downloaded.toString() + " conversations downloaded. " + pageNumber + " pages so far.")
             pageNumber++
-        } while (downloaded % CONVERSATION_DOWNLOAD_PAGE_SIZE == 0 && nullCount < 5)
+        }
 
         if (downloaded > 0) {
             Log.v(TAG, downloaded.toString() + " conversations inserted in " + (TimeUtils.now - startTime) + " ms")
@@ -358,21 +292,25 @@ class ApiDownloadService : Service() {
         val startTime = TimeUtils.now
         val contactList = mutableListOf<Contact>()
 
+        val pager = ApiPager<ContactBody>(CONTACTS_DOWNLOAD_PAGE_SIZE,
+                { token -> ApiUtils.api.contact().page(Account.accountId, CONTACTS_DOWNLOAD_PAGE_SIZE, token) },
+                { offset -> ApiUtils.api.contact().list(Account.accountId, CONTACTS_DOWNLOAD_PAGE_SIZE, offset) })
+
         var pageNumber = 1
         var downloaded = 0
-        var nullCount = 0
+        var failures = 0
+        var pageToken: String? = null
+        var finished = false
 
-        do {
-            val contacts = try {
-                ApiUtils.api.contact()
-                        .list(Account.accountId, CONTACTS_DOWNLOAD_PAGE_SIZE, downloaded)
-                        .execute().body()
+        while (!finished && failures < MAX_PAGE_FAILURES) {
+            val page = try {
+                pager.fetch(pageToken)
             } catch (e: IOException) {
-                emptyArray<ContactBody>()
+                null
             }
 
-            if (contacts != null && !contacts.isEmpty()) {
-                for (body in contacts) {
+            if (page != null) {
+                for (body in page.items) {
                     val contact = Contact(body)
 
                     try {
@@ -384,12 +322,17 @@ class ApiDownloadService : Service() {
                     contactList.add(contact)
                 }
 
-                DataSource.insertContacts(this, contactList, null, false)
-                downloaded += contactList.size
+                if (contactList.isNotEmpty()) {
+                    DataSource.insertContacts(this, contactList, null, false)
+                }
 
+                downloaded += contactList.size
                 contactList.clear()
+
+                finished = page.nextPageToken == null || page.nextPageToken == pageToken
+                pageToken = page.nextPageToken
             } else {
-                nullCount++
+                failures++
 
                 try {
                     Thread.sleep(2000)
@@ -399,7 +342,7 @@ class ApiDownloadService : Service() {
 
             Log.v(TAG, downloaded.toString() + " contacts downloaded. " + pageNumber + " pages so far.")
             pageNumber++
-        } while (downloaded % CONTACTS_DOWNLOAD_PAGE_SIZE == 0 && nullCount < 5)
+        }
 
         if (downloaded > 0) {
             Log.v(TAG, downloaded.toString() + " contacts inserted in " + (TimeUtils.now - startTime) + " ms")
@@ -564,11 +507,14 @@ class ApiDownloadService : Service() {
         stopSelf()
     }
 
-    private fun ensureMessages(conversations: List<Conversation>) {
+    private fun ensureMessages(conversations: List<Conversation>, checkpoint: DownloadCheckpoint): Boolean {
         // some people say that after a download, they have their full conversation list, but all the conversations are empty.
         // so, if they have conversations in the database and no messages, we should re-download the messages.
-        if (DataSource.getConversationCount(this) > 0 && DataSource.getMessageCount(this) == 0) {
-            downloadMessages(conversations)
+        return if (DataSource.getConversationCount(this) > 0 && DataSource.getMessageCount(this) == 0) {
+            checkpoint.resetMessages()
+            downloadMessages(conversations, checkpoint)
+        } else {
+            true
         }
     }
 
@@ -585,9 +531,10 @@ class ApiDownloadService : Service() {
         private const val MESSAGE_DOWNLOAD_ID = 7237
         const val ACTION_DOWNLOAD_FINISHED = "xyz.klinker.messenger.API_DOWNLOAD_FINISHED"
 
-        const val MESSAGE_DOWNLOAD_PAGE_SIZE = 5000
         const val CONVERSATION_DOWNLOAD_PAGE_SIZE = 500
         const val CONTACTS_DOWNLOAD_PAGE_SIZE = 1000
+        private const val MAX_PAGE_FAILURES = 5
+        private val WATERMARK_OVERLAP = TimeUtils.HOUR
         const val MAX_MEDIA_DOWNLOADS = 400
         const val ARG_SHOW_NOTIFICATION = "show_notification"
 
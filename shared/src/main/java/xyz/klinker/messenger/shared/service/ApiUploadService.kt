@@ -41,7 +41,6 @@ import xyz.klinker.messenger.shared.data.ColorSet
 import xyz.klinker.messenger.shared.data.DataSource
 import xyz.klinker.messenger.shared.data.MimeType
 import xyz.klinker.messenger.encryption.EncryptionUtils
-import xyz.klinker.messenger.api.implementation.BinaryUtils
 import xyz.klinker.messenger.shared.data.model.*
 import xyz.klinker.messenger.shared.util.*
 
@@ -83,7 +82,7 @@ open class ApiUploadService : Service() {
         Thread {
             val startTime = TimeUtils.now
 
-            uploadMessages()
+            val messagesUploaded = uploadMessages()
             uploadConversations()
             uploadContacts(this, encryptionUtils!!)
             uploadBlacklists()
@@ -93,66 +92,49 @@ open class ApiUploadService : Service() {
             uploadFolders()
             uploadAutoReplies()
 
+            // if some messages failed, keep the checkpoint so that the next upload picks up from there
+            if (messagesUploaded) {
+                MessageUploadPipeline.clearCheckpoint(this)
+            }
+
             Log.v(TAG, "time to upload: " + (TimeUtils.now - startTime) + " ms")
 
             uploadMedia()
         }.start()
     }
 
-    private fun uploadMessages() {
+    private fun uploadMessages(): Boolean {
         val startTime = TimeUtils.now
-        val cursor = DataSource.getMessages(this)
-
-        if (cursor.moveToFirst()) {
-            val messages = ArrayList<MessageBody>()
-            var firebaseNumber = 0
-
-            do {
-                val m = Message()
-                m.fillFromCursor(cursor)
+        val accountId = Account.accountId
 
-                // instead of sending the URI, we'll upload these images to firebase and retrieve
-                // them on another device based on account id and message id.
-                if (m.mimeType != MimeType.TEXT_PLAIN) {
-                    m.data = "firebase " + firebaseNumber
-                    firebaseNumber++
-                }
-
-                m.encrypt(encryptionUtils!!)
-                val message = MessageBody(m.id, m.conversationId, m.type, m.data,
-                        m.timestamp, m.mimeType, m.read, m.seen, m.from, m.color, "-1", m.simPhoneNumber)
-                messages.add(message)
-            } while (cursor.moveToNext())
-
-            var successPages = 0
-            var expectedPages = 0
-            val pages = PaginationUtils.getPages(messages, MESSAGE_UPLOAD_PAGE_SIZE)
-
-            for (page in pages) {
-                val request = AddMessagesRequest(Account.accountId, page.toTypedArray())
-                try {
-                    val response = ApiUtils.api.message().add(request).execute()
-                    expectedPages++
-                    if (ApiUtils.isCallSuccessful(response)) {
-                        successPages++
-                    }
-                } catch (e: IOException) {
-                    e.printStackTrace()
-                }
+        val checkpoint = MessageUploadPipeline.readCheckpoint(this, accountId)
+        if (checkpoint != MessageUploadPipeline.START) {
+            Log.v(TAG, "resuming message upload after message ${checkpoint.messageId}")
+        }
 
-                Log.v(TAG, "uploaded " + page.size + " messages for page " + expectedPages)
+        val pipeline = MessageUploadPipeline(encryptionUtils!!, { page ->
+            val request = AddMessagesRequest(accountId, page)
+            try {
+                ApiUtils.isCallSuccessful(ApiUtils.api.message().add(request).execute())
+            } catch (e: IOException) {
+                e.printStackTrace()
+                false
             }
+        }, { MessageUploadPipeline.writeCheckpoint(this, accountId, it) })
 
-            if (successPages != expectedPages) {
-                Log.v(TAG, "failed to upload messages in " +
-                        (TimeUtils.now - startTime) + " ms")
-            } else {
-                Log.v(TAG, "messages upload successful in " +
-                        (TimeUtils.now - startTime) + " ms")
-            }
+        val cursor = DataSource.getMessagesAfter(this, checkpoint.timestamp, checkpoint.messageId)
+        val successful = pipeline.upload(cursor, checkpoint)
+        cursor.closeSilent()
+
+        if (!successful) {
+            Log.v(TAG, "failed to upload messages in " +
+                    (TimeUtils.now - startTime) + " ms")
+        } else {
+            Log.v(TAG, "messages upload successful in " +
+                    (TimeUtils.now - startTime) + " ms")
         }
 
-        cursor.closeSilent()
+        return successful
     }
 
     private fun uploadConversations() {
@@ -460,9 +442,7 @@ open class ApiUploadService : Service() {
 
                 Log.v(TAG, "started uploading " + message.id)
 
-                val bytes = BinaryUtils.getMediaBytes(this, message.data, message.mimeType, true)
-
-                ApiUtils.uploadBytesToFirebase(Account.accountId, bytes, message.id, encryptionUtils, FirebaseUploadCallback {
+                ApiUtils.uploadMediaToFirebase(this, Account.accountId, message.data, message.mimeType, message.id, encryptionUtils, FirebaseUploadCallback {
                     completedMediaUploads++
 
                     builder.setProgress(mediaCount, completedMediaUploads, false)
@@ -474,7 +454,7 @@ open class ApiUploadService : Service() {
                     } else if (!finished) {
                         startForeground(MESSAGE_UPLOAD_ID, builder.build())
                     }
-                }, 0)
+                })
             } while (media.moveToNext())
 
             if (mediaCount == 0) {
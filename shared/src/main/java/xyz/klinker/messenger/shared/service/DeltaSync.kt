@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.service
+
+import android.content.Context
+import android.util.Log
+import xyz.klinker.messenger.api.entity.ChangesResponse
+import xyz.klinker.messenger.api.entity.ContactBody
+import xyz.klinker.messenger.api.entity.ConversationBody
+import xyz.klinker.messenger.api.entity.MessageBody
+import xyz.klinker.messenger.encryption.EncryptionUtils
+import xyz.klinker.messenger.shared.data.DataSource
+import xyz.klinker.messenger.shared.data.model.Contact
+import xyz.klinker.messenger.shared.data.model.Conversation
+import xyz.klinker.messenger.shared.data.model.Message
+import xyz.klinker.messenger.shared.receiver.ConversationListUpdatedReceiver
+import xyz.klinker.messenger.shared.receiver.MessageListUpdatedReceiver
+import xyz.klinker.messenger.shared.util.ContactUtils
+import xyz.klinker.messenger.shared.util.TimeUtils
+
+/**
+ * Catches this device up with everything that changed on the API since it last synced, for when
+ * it was offline or some of its pushes were dropped. Only the changes are downloaded, instead of
+ * wiping the database and downloading all of it again like ApiDownloadService does.
+ *
+ * Every page of changes is downloaded and decrypted first, then they are all written in one
+ * transaction. The [SyncWatermarks] only move forward after that has been committed, so a sync
+ * that fails part of the way through just starts from the same point next time.
+ */
+class DeltaSync @JvmOverloads constructor(
+        private val context: Context,
+        private val encryptionUtils: EncryptionUtils?,
+        private val watermarks: SyncWatermarks,
+        private val fetcher: ChangeFetcher,
+        private val retryDelay: Long = RETRY_DELAY_MS) {
+
+    /**
+     * Downloads a page of the changes after the since timestamp. Each should return null if the
+     * request failed, or throw an [UnsupportedException] if the server doesn't have the changes
+     * endpoints yet.
+     */
+    interface ChangeFetcher {
+        fun conversations(since: Long, pageToken: String?): ChangesResponse<ConversationBody>?
+        fun messages(since: Long, pageToken: String?): ChangesResponse<MessageBody>?
+        fun contacts(since: Long, pageToken: String?): ChangesResponse<ContactBody>?
+    }
+
+    enum class Result {
+        SYNCED,
+
+        // there is nothing to catch up from, this device needs a full download first
+        NOT_STARTED,
+
+        FAILED,
+
+        // the server doesn't know about delta syncs yet, so there is nothing to try again
+        UNSUPPORTED
+    }
+
+    class UnsupportedException : RuntimeException("the server does not support delta syncs")
+
+    fun sync(): Result {
+        val startTime = TimeUtils.now
+        val since = SyncWatermarks.TYPES.associate { it to watermarks.get(it) }
+        if (since.values.any { it == SyncWatermarks.NONE }) {
+            return Result.NOT_STARTED
+        }
+
+        val conversations: Changes<ConversationBody>?
+        val messages: Changes<MessageBody>?
+        val contacts: Changes<ContactBody>?
+
+        try {
+            conversations = collect(since.getValue(SyncWatermarks.CONVERSATIONS)) { from, token -> fetcher.conversations(from, token) }
+            messages = collect(since.getValue(SyncWatermarks.MESSAGES)) { from, token -> fetcher.messages(from, token) }
+            contacts = collect(since.getValue(SyncWatermarks.CONTACTS)) { from, token -> fetcher.contacts(from, token) }
+        } catch (e: UnsupportedException) {
+            Log.v(TAG, "delta syncs aren't supported by the server")
+            return Result.UNSUPPORTED
+        }
+
+        if (conversations == null || messages == null || contacts == null) {
+            Log.v(TAG, "failed to download the changes")
+            return Result.FAILED
+        }
+
+        val updatedConversations = conversations.updated.map {
+            val conversation = Conversation(it)
+            decrypt { conversation.decrypt(encryptionUtils!!) }
+            conversation.imageUri = ContactUtils.findImageUri(conversation.phoneNumbers, context)
+            conversation
+        }
+
+        val updatedMessages = messages.updated.map {
+            val message = Message(it)
+            decrypt { message.decrypt(encryptionUtils!!) }
+            message
+        }
+
+        val updatedContacts = contacts.updated.map {
+            val contact = Contact(it)
+            decrypt { contact.decrypt(encryptionUtils!!) }
+            contact
+        }
+
+        try {
+            DataSource.applySyncChanges(context, updatedConversations, conversations.removed,
+                    updatedMessages, messages.removed, updatedContacts, contacts.removed)
+        } catch (e: Exception) {
+            e.printStackTrace()
+            return Result.FAILED
+        }
+
+        watermarks.set(mapOf(SyncWatermarks.CONVERSATIONS to conversations.syncedUntil,
+                SyncWatermarks.MESSAGES to messages.syncedUntil, SyncWatermarks.CONTACTS to contacts.syncedUntil))
+
+        Log.v(TAG, "applied ${updatedConversations.size + conversations.removed.size} conversation, " +
+                "${updatedMessages.size + messages.removed.size} message and " +
+                "${updatedContacts.size + contacts.removed.size} contact changes in ${TimeUtils.now - startTime} ms")
+
+        notifyChanged(updatedConversations.map { it.id } + updatedMessages.map { it.conversationId })
+        return Result.SYNCED
+    }
+
+    /**
+     * Follows the page tokens until there are no more changes for the type.
+     */
+    private fun <T> collect(since: Long, request: (Long, String?) -> ChangesResponse<T>?): Changes<T>? {
+        val changes = Changes<T>(since)
+        var pageToken: String? = null
+
+        do {
+            val page = fetch(since, pageToken, request) ?: return null
+            page.updated?.let { changes.updated.addAll(it) }
+            page.removed?.let { changes.removed.addAll(it.toList()) }
+            changes.syncedUntil = Math.max(changes.syncedUntil, page.syncedUntil)
+
+            // a server that hands back the same token again would have us download the same page forever
+            val finished = page.nextPageToken == null || page.nextPageToken == pageToken
+            pageToken = page.nextPageToken
+        } while (!finished)
+
+        return changes
+    }
+
+    private fun <T> fetch(since: Long, pageToken: String?, request: (Long, String?) -> ChangesResponse<T>?): ChangesResponse<T>? {
+        for (attempt in 1..MAX_ATTEMPTS) {
+            val page = try {
+                request(since, pageToken)
+            } catch (e: UnsupportedException) {
+                throw e
+            } catch (e: Exception) {
+                e.printStackTrace()
+                null
+            }
+
+            if (page != null) {
+                return page
+            }
+
+            try {
+                Thread.sleep(retryDelay * attempt)
+            } catch (e: InterruptedException) {
+            }
+        }
+
+        return null
+    }
+
+    private fun decrypt(decrypt: () -> Unit) {
+        try {
+            decrypt()
+        } catch (e: Exception) {
+            e.printStackTrace()
+        }
+    }
+
+    private fun notifyChanged(conversationIds: List<Long>) {
+        for (conversationId in conversationIds.toSet()) {
+            val conversation = DataSource.getConversation(context, conversationId) ?: continue
+            ConversationListUpdatedReceiver.sendBroadcast(context, conversationId, conversation.snippet, conversation.read)
+            MessageListUpdatedReceiver.sendBroadcast(context, conversationId)
+        }
+    }
+
+    private class Changes<T>(var syncedUntil: Long) {
+        val updated = mutableListOf<T>()
+        val removed = mutableListOf<Long>()
+    }
+
+    companion object {
+        private const val TAG = "DeltaSync"
+
+        const val PAGE_SIZE = 1000
+
+        private const val MAX_ATTEMPTS = 3
+        private const val RETRY_DELAY_MS = 1000L
+    }
+}
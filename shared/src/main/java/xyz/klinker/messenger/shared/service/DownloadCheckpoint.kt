@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.service
+
+import android.content.Context
+import xyz.klinker.messenger.shared.util.TimeUtils
+
+/**
+ * Remembers how far a download from the API got, so that an interrupted restore can pick up where
+ * it left off instead of wiping the database and starting over.
+ *
+ * For each conversation, it stores the token for the page after the last one that was written to
+ * the database. These are kept in their own preferences file, since there is a key for every
+ * conversation.
+ *
+ * Values are written with apply(), so the last page or two could be lost if the process is
+ * killed. That is fine: messages keep their ids from the server, so when a page is downloaded
+ * again, the rows that already exist are skipped.
+ */
+class DownloadCheckpoint(context: Context, private val accountId: String?) {
+
+    private val prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+
+    /**
+     * True if a download for this account already got through the conversations, and can be
+     * resumed from the per-conversation page tokens.
+     */
+    val canResume: Boolean
+        get() = accountId != null && prefs.getString(KEY_ACCOUNT, null) == accountId &&
+                prefs.getBoolean(KEY_CONVERSATIONS_DOWNLOADED, false)
+
+    /**
+     * Forgets any earlier download and starts tracking a new one.
+     */
+    fun start() {
+        prefs.edit().clear().putString(KEY_ACCOUNT, accountId).putLong(KEY_STARTED_AT, TimeUtils.now).apply()
+    }
+
+    /**
+     * When the download was first started, before it was resumed. Anything that changed on the API
+     * after this might not have been downloaded.
+     */
+    val startedAt: Long
+        get() = prefs.getLong(KEY_STARTED_AT, 0L)
+
+    fun markConversationsDownloaded() {
+        prefs.edit().putBoolean(KEY_CONVERSATIONS_DOWNLOADED, true).apply()
+    }
+
+    /**
+     * @return the token for the next page of messages to download for the conversation, null if
+     * none of them have been stored yet, or COMPLETE if all of them have been.
+     */
+    fun getPageToken(conversationId: Long): String? = prefs.getString(KEY_PAGE_TOKEN_PREFIX + conversationId, null)
+
+    fun setPageToken(conversationId: Long, pageToken: String?) {
+        prefs.edit().putString(KEY_PAGE_TOKEN_PREFIX + conversationId, pageToken).apply()
+    }
+
+    /**
+     * Starts the messages over from the beginning, keeping the conversations.
+     */
+    fun resetMessages() {
+        val editor = prefs.edit()
+        for (key in prefs.all.keys) {
+            if (key.startsWith(KEY_PAGE_TOKEN_PREFIX)) {
+                editor.remove(key)
+            }
+        }
+
+        editor.apply()
+    }
+
+    fun clear() {
+        prefs.edit().clear().apply()
+    }
+
+    companion object {
+        const val COMPLETE = "complete"
+
+        private const val PREFS_NAME = "api_download_checkpoint"
+        private const val KEY_ACCOUNT = "account_id"
+        private const val KEY_STARTED_AT = "started_at"
+        private const val KEY_CONVERSATIONS_DOWNLOADED = "conversations_downloaded"
+        private const val KEY_PAGE_TOKEN_PREFIX = "page_token_"
+    }
+}
@@ -30,7 +30,6 @@ import org.json.JSONException
 import org.json.JSONObject
 import xyz.klinker.messenger.api.implementation.Account
 import xyz.klinker.messenger.api.implementation.ApiUtils
-import xyz.klinker.messenger.api.implementation.BinaryUtils
 import xyz.klinker.messenger.api.implementation.LoginActivity
 import xyz.klinker.messenger.api.implementation.firebase.FirebaseDownloadCallback
 import xyz.klinker.messenger.api.implementation.firebase.FirebaseUploadCallback
@@ -72,9 +71,36 @@ class FirebaseHandlerService : IntentService("FirebaseHandlerService") {
         private const val TAG = "FirebaseHandlerService"
         private const val INFORMATION_NOTIFICATION_ID = 13
 
+        private var batcher: FirebaseOperationBatcher? = null
+
+        /**
+         * Queues the operation up to be processed along with any others that arrive right after it.
+         * See FirebaseOperationBatcher.
+         */
+        fun enqueue(context: Context, operation: String, data: String) {
+            val batcher = synchronized(this) {
+                val applicationContext = context.applicationContext
+                batcher ?: FirebaseOperationBatcher({ process(applicationContext, it) }).also { batcher = it }
+            }
+
+            batcher.enqueue(operation, data)
+        }
+
         fun process(context: Context, operation: String, data: String) {
+            process(context, listOf(FirebaseOperationBatcher.Operation(operation, data)))
+        }
+
+        /**
+         * Processes the operations in order. A run of messages being added is written all at once,
+         * everything else is handled one operation at a time.
+         */
+        fun process(context: Context, operations: List<FirebaseOperationBatcher.Operation>) {
             val account = Account
 
+            // this runs on its own thread, so it can wait for the key if it is still being
+            // computed after the app started up, instead of dropping the message.
+            account.awaitKey()
+
             // received a message without having initialized an account yet
             // could happen if their subscription ends
             if (account.key == null) {
@@ -88,7 +114,25 @@ class FirebaseHandlerService : IntentService("FirebaseHandlerService") {
                 return
             }
 
+            var start = 0
+            while (start < operations.size) {
+                val operation = operations[start].operation
+                var end = start + 1
+                while (end < operations.size && operations[end].operation == operation) {
+                    end++
+                }
 
+                if (operation == "added_message" && end - start > 1) {
+                    addMessages(operations.subList(start, end), context, encryptionUtils)
+                } else {
+                    operations.subList(start, end).forEach { processOperation(context, it.operation, it.data, encryptionUtils) }
+                }
+
+                start = end
+            }
+        }
+
+        private fun processOperation(context: Context, operation: String, data: String, encryptionUtils: EncryptionUtils?) {
             Log.v(TAG, "operation: $operation, contents: $data")
 
             try {
@@ -146,7 +190,6 @@ class FirebaseHandlerService : IntentService("FirebaseHandlerService") {
             } catch (e: JSONException) {
                 Log.e(TAG, "error parsing data json", e)
             }
-
         }
 
         @Throws(JSONException::class)
@@ -193,51 +236,8 @@ class FirebaseHandlerService : IntentService("FirebaseHandlerService") {
         private fun addMessage(json: JSONObject, context: Context, encryptionUtils: EncryptionUtils?) {
             val id = getLong(json, "id")
             if (DataSource.getMessage(context, id) == null) {
-                var conversation = DataSource.getConversation(context, getLong(json, "conversation_id"))
-
-                val message = Message()
-                message.id = id
-                message.conversationId = if (conversation == null) getLong(json, "conversation_id") else conversation.id
-                message.type = json.getInt("type")
-                message.timestamp = getLong(json, "timestamp")
-                message.read = json.getBoolean("read")
-                message.seen = json.getBoolean("seen")
-                message.simPhoneNumber = if (conversation?.simSubscriptionId == null)
-                    null
-                else DualSimUtils.getPhoneNumberFromSimSubscription(conversation.simSubscriptionId!!)
-
-                if (json.has("sent_device")) {
-                    try {
-                        message.sentDeviceId = json.getLong("sent_device")
-                    } catch (e: Exception) {
-                        message.sentDeviceId = -1L
-                    }
-                } else {
-                    message.sentDeviceId = -1L
-                }
-
-                if (Account.primary && message.type == Message.TYPE_MEDIA) {
-                    return
-                }
-
-                if (Account.deviceId != null && message.sentDeviceId == Account.deviceId!!.toLong()) {
-                    return
-                }
-
-                try {
-                    message.data = encryptionUtils!!.decrypt(json.getString("data"))
-                    message.mimeType = encryptionUtils.decrypt(json.getString("mime_type"))
-                    message.from = encryptionUtils.decrypt(if (json.has("from")) json.getString("from") else null)
-                } catch (e: Exception) {
-                    Log.v(TAG, "error adding message, from decyrption.")
-                    message.data = context.getString(R.string.error_decrypting)
-                    message.mimeType = MimeType.TEXT_PLAIN
-                    message.from = null
-                }
-
-                if (json.has("color") && json.getString("color") != "null") {
-                    message.color = json.getInt("color")
-                }
+                val conversation = DataSource.getConversation(context, getLong(json, "conversation_id"))
+                val message = readMessage(json, context, encryptionUtils, conversation) ?: return
 
                 if (message.data == "firebase -1" && message.mimeType != MimeType.TEXT_PLAIN) {
                     Log.v(TAG, "downloading binary from firebase")
@@ -253,67 +253,193 @@ class FirebaseHandlerService : IntentService("FirebaseHandlerService") {
                     return
                 }
 
-                if (!Utils.isDefaultSmsApp(context) && Account.primary && message.type == Message.TYPE_SENDING) {
-                    Thread {
-                        try {
-                            Thread.sleep(500)
-                        } catch (e: Exception) {
-                        }
+                val isSending = sendAddedMessage(context, message)
 
-                        DataSource.updateMessageType(context, id, Message.TYPE_SENT, true)
-                    }.start()
-                }
-
-                val isSending = message.type == Message.TYPE_SENDING
+                MessageListUpdatedReceiver.sendBroadcast(context, message)
+                ConversationListUpdatedReceiver.sendBroadcast(context, message.conversationId,
+                        if (message.mimeType == MimeType.TEXT_PLAIN) message.data else MimeType.getTextDescription(context, message.mimeType!!),
+                        message.type != Message.TYPE_RECEIVED)
 
-                if (!Utils.isDefaultSmsApp(context) && isSending) {
-                    message.type = Message.TYPE_SENT
+                if (message.type == Message.TYPE_RECEIVED && conversation?.mute != true) {
+                    // operations are handled one at a time, so there is nothing else to coalesce
+                    // with here. Waiting would only hold up the operations queued behind this one
+                    Notifier(context).notify(onlyChanged = true)
+                } else if (isSending) {
+                    DataSource.readConversation(context, message.conversationId, false)
+                    NotificationManagerCompat.from(context).cancel(message.conversationId.toInt())
+                    NotificationUtils.cancelGroupedNotificationWithNoContent(context)
                 }
+            } else {
+                Log.v(TAG, "message already exists, not doing anything with it")
+            }
+        }
 
-                if (Account.primary && isSending) {
-                    conversation = DataSource.getConversation(context, message.conversationId)
-
-                    if ((message.timestamp > TimeUtils.now || message.timestamp < (TimeUtils.now - TimeUtils.MINUTE * 5))) {
-
-                        // if the phone receives a message and the timestamp doesn't seem in-line with the phones, we should update the timestamp:
-                        // if the timestamp of the message going in to the database is in the future, then update it.
-                        // if the timestamp is in the past (5 mins or more), then update it, since this is when it is actually getting sent.
-                        message.timestamp = TimeUtils.now
-                        DataSource.updateMessageTimestamp(context, id, message.timestamp, true)
+        /**
+         * Adds a run of messages at once. They are all read and decrypted first, then written in a
+         * single transaction. Each conversation gets one broadcast, for its latest message, and the
+         * notifications are only refreshed once, instead of all of that happening for every message.
+         */
+        private fun addMessages(operations: List<FirebaseOperationBatcher.Operation>, context: Context, encryptionUtils: EncryptionUtils?) {
+            val conversations = mutableMapOf<Long, Conversation?>()
+            val messages = mutableListOf<Message>()
 
+            for (operation in operations) {
+                try {
+                    val json = JSONObject(operation.data)
+                    val conversationId = getLong(json, "conversation_id")
+                    if (!conversations.containsKey(conversationId)) {
+                        conversations[conversationId] = DataSource.getConversation(context, conversationId)
                     }
 
-                    if (conversation != null) {
-                        if (message.mimeType == MimeType.TEXT_PLAIN) {
-                            SendUtils(conversation.simSubscriptionId)
-                                    .send(context, message.data!!, conversation.phoneNumbers!!)
-                        } else {
-                            SendUtils(conversation.simSubscriptionId)
-                                    .send(context, "", conversation.phoneNumbers!!,
-                                            Uri.parse(message.data), message.mimeType)
+                    val message = readMessage(json, context, encryptionUtils, conversations[conversationId]) ?: continue
+                    if (message.data == "firebase -1" && message.mimeType != MimeType.TEXT_PLAIN) {
+                        // these are rare, and are written once the download finishes
+                        if (DataSource.getMessage(context, message.id) == null) {
+                            addMessageAfterFirebaseDownload(context, encryptionUtils!!, message)
                         }
                     } else {
-                        Log.e(TAG, "trying to send message without the conversation, so can't find phone numbers")
+                        messages.add(message)
                     }
+                } catch (e: JSONException) {
+                    Log.e(TAG, "error parsing data json", e)
+                }
+            }
 
-                    Log.v(TAG, "sent message")
+            val added = DataSource.insertSyncedMessages(context, messages)
+            Log.v(TAG, "added ${added.size} of ${operations.size} messages")
+
+            val sending = added.filter { sendAddedMessage(context, it) }.map { it.conversationId }.toSet()
+
+            for ((conversationId, conversationMessages) in added.groupBy { it.conversationId }) {
+                val latest = conversationMessages.last()
+                MessageListUpdatedReceiver.sendBroadcast(context, latest)
+                ConversationListUpdatedReceiver.sendBroadcast(context, conversationId,
+                        if (latest.mimeType == MimeType.TEXT_PLAIN) latest.data else MimeType.getTextDescription(context, latest.mimeType!!),
+                        latest.type != Message.TYPE_RECEIVED)
+
+                if (sending.contains(conversationId)) {
+                    DataSource.readConversation(context, conversationId, false)
+                    NotificationManagerCompat.from(context).cancel(conversationId.toInt())
                 }
+            }
 
-                MessageListUpdatedReceiver.sendBroadcast(context, message)
-                ConversationListUpdatedReceiver.sendBroadcast(context, message.conversationId,
-                        if (message.mimeType == MimeType.TEXT_PLAIN) message.data else MimeType.getTextDescription(context, message.mimeType!!),
-                        message.type != Message.TYPE_RECEIVED)
+            if (sending.isNotEmpty()) {
+                NotificationUtils.cancelGroupedNotificationWithNoContent(context)
+            }
 
-                if (message.type == Message.TYPE_RECEIVED && conversation?.mute != true) {
-                    Notifier(context).notify()
-                } else if (isSending) {
-                    DataSource.readConversation(context, message.conversationId, false)
-                    NotificationManagerCompat.from(context).cancel(message.conversationId.toInt())
-                    NotificationUtils.cancelGroupedNotificationWithNoContent(context)
+            if (added.any { it.type == Message.TYPE_RECEIVED && conversations[it.conversationId]?.mute != true }) {
+                // the batch has already been coalesced
+                Notifier(context).notify(onlyChanged = true)
+            }
+        }
+
+        /**
+         * Reads and decrypts a message that was added on another device.
+         *
+         * @return the message, or null if this device shouldn't add it.
+         */
+        @Throws(JSONException::class)
+        private fun readMessage(json: JSONObject, context: Context, encryptionUtils: EncryptionUtils?, conversation: Conversation?): Message? {
+            val message = Message()
+            message.id = getLong(json, "id")
+            message.conversationId = if (conversation == null) getLong(json, "conversation_id") else conversation.id
+            message.type = json.getInt("type")
+            message.timestamp = getLong(json, "timestamp")
+            message.read = json.getBoolean("read")
+            message.seen = json.getBoolean("seen")
+            message.simPhoneNumber = if (conversation?.simSubscriptionId == null)
+                null
+            else DualSimUtils.getPhoneNumberFromSimSubscription(conversation.simSubscriptionId!!)
+
+            if (json.has("sent_device")) {
+                try {
+                    message.sentDeviceId = json.getLong("sent_device")
+                } catch (e: Exception) {
+                    message.sentDeviceId = -1L
                 }
             } else {
-                Log.v(TAG, "message already exists, not doing anything with it")
+                message.sentDeviceId = -1L
+            }
+
+            if (Account.primary && message.type == Message.TYPE_MEDIA) {
+                return null
+            }
+
+            if (Account.deviceId != null && message.sentDeviceId == Account.deviceId!!.toLong()) {
+                return null
             }
+
+            try {
+                message.data = encryptionUtils!!.decrypt(json.getString("data"))
+                message.mimeType = encryptionUtils.decrypt(json.getString("mime_type"))
+                message.from = encryptionUtils.decrypt(if (json.has("from")) json.getString("from") else null)
+            } catch (e: Exception) {
+                Log.v(TAG, "error adding message, from decyrption.")
+                message.data = context.getString(R.string.error_decrypting)
+                message.mimeType = MimeType.TEXT_PLAIN
+                message.from = null
+            }
+
+            if (json.has("color") && json.getString("color") != "null") {
+                message.color = json.getInt("color")
+            }
+
+            return message
+        }
+
+        /**
+         * Sends a message that was added on another device from this one, if this is the phone.
+         *
+         * @return whether the message still needed to be sent.
+         */
+        private fun sendAddedMessage(context: Context, message: Message): Boolean {
+            if (!Utils.isDefaultSmsApp(context) && Account.primary && message.type == Message.TYPE_SENDING) {
+                Thread {
+                    try {
+                        Thread.sleep(500)
+                    } catch (e: Exception) {
+                    }
+
+                    DataSource.updateMessageType(context, message.id, Message.TYPE_SENT, true)
+                }.start()
+            }
+
+            val isSending = message.type == Message.TYPE_SENDING
+
+            if (!Utils.isDefaultSmsApp(context) && isSending) {
+                message.type = Message.TYPE_SENT
+            }
+
+            if (Account.primary && isSending) {
+                val conversation = DataSource.getConversation(context, message.conversationId)
+
+                if ((message.timestamp > TimeUtils.now || message.timestamp < (TimeUtils.now - TimeUtils.MINUTE * 5))) {
+
+                    // if the phone receives a message and the timestamp doesn't seem in-line with the phones, we should update the timestamp:
+                    // if the timestamp of the message going in to the database is in the future, then update it.
+                    // if the timestamp is in the past (5 mins or more), then update it, since this is when it is actually getting sent.
+                    message.timestamp = TimeUtils.now
+                    DataSource.updateMessageTimestamp(context, message.id, message.timestamp, true)
+
+                }
+
+                if (conversation != null) {
+                    if (message.mimeType == MimeType.TEXT_PLAIN) {
+                        SendUtils(conversation.simSubscriptionId)
+                                .send(context, message.data!!, conversation.phoneNumbers!!)
+                    } else {
+                        SendUtils(conversation.simSubscriptionId)
+                                .send(context, "", conversation.phoneNumbers!!,
+                                        Uri.parse(message.data), message.mimeType)
+                    }
+                } else {
+                    Log.e(TAG, "trying to send message without the conversation, so can't find phone numbers")
+                }
+
+                Log.v(TAG, "sent message")
+            }
+
+            return isSending
         }
 
         private fun addMessageAfterFirebaseDownload(context: Context, encryptionUtils: EncryptionUtils, message: Message, to: String? = null) {
@@ -373,7 +499,8 @@ class FirebaseHandlerService : IntentService("FirebaseHandlerService") {
                 when (message.type) {
                     Message.TYPE_RECEIVED -> {
                         if (conversation?.mute != true) {
-                            Notifier(context).notify()
+                            // the download callback comes back on the main thread
+                            Thread { Notifier(context).notifyCoalesced() }.start()
                         }
                     }
                     Message.TYPE_SENDING -> {
@@ -386,8 +513,7 @@ class FirebaseHandlerService : IntentService("FirebaseHandlerService") {
                 }
 
                 if (to != null) {
-                    val bytes = BinaryUtils.getMediaBytes(context, message.data, message.mimeType, true)
-                    ApiUtils.uploadBytesToFirebase(Account.accountId, bytes, message.id, encryptionUtils, FirebaseUploadCallback {  }, 0)
+                    ApiUtils.uploadMediaToFirebase(context, Account.accountId, message.data, message.mimeType, message.id, encryptionUtils, FirebaseUploadCallback {  })
                 }
             }
 
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.service
+
+import android.util.Log
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Collects the firebase operations that arrive close together, so that they can be handled as a
+ * batch. A desktop client sending a burst of messages, or the server replaying the pushes that
+ * queued up while the device was offline, would otherwise be handled one push at a time.
+ *
+ * A single thread hands the operations to the handler, in the order that they arrived. After the
+ * first operation of a batch comes in, it waits up to the window for more to show up. The thread
+ * stops once the queue has been empty for a while, and is started again by the next operation.
+ *
+ * @param handler processes a batch of operations. It is always called from the batcher's thread.
+ */
+class FirebaseOperationBatcher @JvmOverloads constructor(
+        private val handler: (List<Operation>) -> Unit,
+        private val window: Long = WINDOW_MS,
+        private val maxBatchSize: Int = MAX_BATCH_SIZE,
+        private val idleTimeout: Long = IDLE_TIMEOUT_MS) {
+
+    data class Operation(val operation: String, val data: String)
+
+    private val queue = LinkedBlockingQueue<Operation>()
+    private val lock = Any()
+    private var running = false
+
+    fun enqueue(operation: String, data: String) {
+        synchronized(lock) {
+            queue.offer(Operation(operation, data))
+            start()
+        }
+    }
+
+    private fun start() {
+        if (!running) {
+            running = true
+            Thread { drain() }.start()
+        }
+    }
+
+    private fun drain() {
+        try {
+            while (true) {
+                val first = queue.poll(idleTimeout, TimeUnit.MILLISECONDS)
+                if (first == null) {
+                    // something could have been queued after the poll timed out, that is checked
+                    // for below, once the thread is no longer marked as running
+                    return
+                }
+
+                val batch = mutableListOf(first)
+                val deadline = System.currentTimeMillis() + window
+                while (batch.size < maxBatchSize) {
+                    val remaining = deadline - System.currentTimeMillis()
+                    val next = if (remaining > 0) queue.poll(remaining, TimeUnit.MILLISECONDS) else queue.poll()
+                    batch.add(next ?: break)
+                }
+
+                try {
+                    handler(batch)
+                } catch (e: Exception) {
+                    Log.e(TAG, "error processing ${batch.size} operations", e)
+                }
+            }
+        } finally {
+            // this also runs when the thread dies from an Error, so that the operations after it
+            // aren't left in the queue with nothing to take them out
+            synchronized(lock) {
+                running = false
+                if (queue.isNotEmpty()) {
+                    start()
+                }
+            }
+        }
+    }
+
+    companion object {
+        private const val TAG = "FirebaseBatcher"
+
+        private const val WINDOW_MS = 250L
+        private const val MAX_BATCH_SIZE = 200
+        private const val IDLE_TIMEOUT_MS = 5000L
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.service
+
+import android.content.ContentValues
+import android.content.Context
+import android.util.Log
+import xyz.klinker.messenger.shared.data.BulkInserter
+import xyz.klinker.messenger.shared.data.DataSource
+import xyz.klinker.messenger.shared.data.model.Conversation
+import xyz.klinker.messenger.shared.data.model.Message
+import xyz.klinker.messenger.shared.util.SmsMmsUtils
+import xyz.klinker.messenger.shared.util.TimeUtils
+import xyz.klinker.messenger.shared.util.closeSilent
+import xyz.klinker.messenger.shared.util.listener.ProgressUpdateListener
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Imports the conversations from the phone's SMS database on first run, in two stages: a pool of
+ * workers looks up the contacts and colors for each thread and reads its messages, and a single
+ * writer inserts the finished conversations through a bulk inserter, which commits every few
+ * hundred rows. Only a handful of conversations are held in memory at a time.
+ *
+ * Reading a thread used to be the slow part. Each one takes a few contacts provider queries, a
+ * palette for the contact image, and a query for the parts of every MMS message. Here the parts
+ * for a thread are loaded in bulk and the sender names are only looked up once per number.
+ *
+ * The import can be cancelled from any thread. The conversations that were already written stay
+ * in the database, so the caller should clear the tables if it doesn't want a partial import.
+ */
+class InitialImportPipeline(private val context: Context, private val listener: ProgressUpdateListener?) {
+
+    private val cancelled = AtomicBoolean(false)
+    private val pendingConversations = Semaphore(MAX_PENDING_CONVERSATIONS)
+    private val writeQueue = LinkedBlockingQueue<ImportedConversation>()
+    private val contactNames = ConcurrentHashMap<String, String>()
+
+    private val writtenConversations = AtomicInteger(0)
+    private val writtenMessages = AtomicInteger(0)
+    private val readTime = AtomicLong(0)
+    private val writeTime = AtomicLong(0)
+
+    // only touched by the writer thread
+    private var writeQueueFinished = false
+
+    val isCancelled: Boolean
+        get() = cancelled.get()
+
+    /**
+     * Imports the newest threads. Blocks until they have all been written, or the import is
+     * cancelled.
+     *
+     * @return false if the import was cancelled.
+     */
+    fun run(): Boolean {
+        val startTime = TimeUtils.now
+        val threads = SmsMmsUtils.queryThreads(context)
+
+        val writer = Thread { write(threads.size) }
+        writer.start()
+
+        val readExecutor = Executors.newFixedThreadPool(READ_THREADS)
+        for (thread in threads) {
+            pendingConversations.acquireUninterruptibly()
+            if (isCancelled) {
+                pendingConversations.release()
+                break
+            }
+
+            readExecutor.execute {
+                val imported = try {
+                    if (isCancelled) null else read(thread)
+                } catch (e: Exception) {
+                    e.printStackTrace()
+                    null
+                }
+
+                writeQueue.put(imported ?: SKIPPED)
+            }
+        }
+
+        readExecutor.shutdown()
+        try {
+            readExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)
+        } catch (e: InterruptedException) {
+        }
+
+        writeQueue.put(END)
+        try {
+            writer.join()
+        } catch (e: InterruptedException) {
+        }
+
+        val time = TimeUtils.now - startTime
+        val rate = if (time > 0) writtenMessages.get() * 1000L / time else writtenMessages.get().toLong()
+        Log.v(TAG, "imported ${writtenConversations.get()} of ${threads.size} conversations " +
+                "(${writtenMessages.get()} messages) in $time ms, $rate messages/sec. " +
+                "reading took ${readTime.get()} ms across $READ_THREADS threads, writing took ${writeTime.get()} ms" +
+                if (isCancelled) ", cancelled" else "")
+
+        return !isCancelled
+    }
+
+    fun cancel() {
+        cancelled.set(true)
+    }
+
+    private fun read(thread: SmsMmsUtils.SmsThread): ImportedConversation? {
+        val startTime = TimeUtils.now
+        val conversation = SmsMmsUtils.buildConversation(thread, context)
+
+        // here we are loading the id from the internal database into the conversation object
+        // but we don't want to use that so we'll just generate a new one.
+        val conversationId = DataSource.generateId()
+
+        val messages = SmsMmsUtils.queryConversation(thread.id, context) ?: return null
+        if (messages.count == 0) {
+            messages.closeSilent()
+            return null
+        }
+
+        val mmsIds = ArrayList<Long>()
+        if (messages.moveToFirst()) {
+            do {
+                if (!SmsMmsUtils.isSms(messages)) {
+                    mmsIds.add(messages.getLong(0))
+                }
+            } while (messages.moveToNext() && messages.position < SmsMmsUtils.INITIAL_MESSAGE_LIMIT)
+        }
+
+        val parts = if (mmsIds.isEmpty()) emptyMap() else SmsMmsUtils.queryMmsParts(context, mmsIds)
+        val values = ArrayList<ContentValues>()
+        var latestTimestamp = 0L
+        var latestSnippet: String? = null
+
+        if (messages.moveToFirst()) {
+            do {
+                val messageParts = if (SmsMmsUtils.isSms(messages)) null else parts[messages.getLong(0)] ?: emptyList()
+                for (value in SmsMmsUtils.processMessage(messages, conversationId, context, messageParts, contactNames)) {
+                    values.add(value)
+
+                    if (value.getAsLong(Message.COLUMN_TIMESTAMP) > latestTimestamp) {
+                        latestTimestamp = value.getAsLong(Message.COLUMN_TIMESTAMP)
+                        latestSnippet = value.getAsString(Message.COLUMN_DATA)
+                    }
+                }
+            } while (messages.moveToNext() && messages.position < SmsMmsUtils.INITIAL_MESSAGE_LIMIT)
+        }
+
+        messages.closeSilent()
+        readTime.addAndGet(TimeUtils.now - startTime)
+
+        return ImportedConversation(conversation, conversationId, values,
+                if (latestTimestamp == 0L) conversation.timestamp else latestTimestamp,
+                latestSnippet ?: conversation.snippet)
+    }
+
+    private fun write(total: Int) {
+        try {
+            DataSource.importConversations(context) { inserter -> consume(total, inserter) }
+        } catch (e: Exception) {
+            // stop reading, but keep taking from the queue so that the readers aren't left
+            // waiting for room
+            e.printStackTrace()
+            cancel()
+        }
+
+        if (!writeQueueFinished) {
+            consume(total, null)
+        }
+    }
+
+    private fun consume(total: Int, inserter: BulkInserter?) {
+        var finished = 0
+
+        while (true) {
+            val imported = try {
+                writeQueue.take()
+            } catch (e: InterruptedException) {
+                continue
+            }
+
+            if (imported === END) {
+                writeQueueFinished = true
+                return
+            }
+
+            try {
+                if (inserter != null && imported !== SKIPPED && !isCancelled) {
+                    val startTime = TimeUtils.now
+
+                    for (value in imported.messages) {
+                        inserter.insertMessage(value)
+                    }
+
+                    inserter.insertConversation(imported.conversation, imported.id, imported.timestamp, imported.snippet)
+
+                    writtenConversations.incrementAndGet()
+                    writtenMessages.addAndGet(imported.messages.size)
+                    writeTime.addAndGet(TimeUtils.now - startTime)
+                }
+            } catch (e: Exception) {
+                e.printStackTrace()
+            } finally {
+                pendingConversations.release()
+            }
+
+            finished++
+            if (!isCancelled) {
+                listener?.onProgressUpdate(finished, total)
+            }
+        }
+    }
+
+    private class ImportedConversation(val conversation: Conversation, val id: Long, val messages: List<ContentValues>,
+                                       val timestamp: Long, val snippet: String?)
+
+    companion object {
+        private const val TAG = "InitialImportPipeline"
+
+        private const val MAX_PENDING_CONVERSATIONS = 12
+        private val READ_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()))
+
+        private val SKIPPED = ImportedConversation(Conversation(), -1L, emptyList(), 0L, null)
+        private val END = ImportedConversation(Conversation(), -1L, emptyList(), 0L, null)
+    }
+}
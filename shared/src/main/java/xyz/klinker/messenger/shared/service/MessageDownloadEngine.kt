@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.service
+
+import android.content.Context
+import android.util.Log
+import xyz.klinker.messenger.api.ApiPager
+import xyz.klinker.messenger.api.entity.MessageBody
+import xyz.klinker.messenger.encryption.EncryptionUtils
+import xyz.klinker.messenger.shared.data.DataSource
+import xyz.klinker.messenger.shared.data.model.Message
+import xyz.klinker.messenger.shared.util.TimeUtils
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Downloads the messages for a list of conversations in three stages: a few conversations are
+ * fetched from the API at once, a pool of workers decrypts the pages, and a single writer inserts
+ * them into the database. Only a handful of pages are held in memory at a time.
+ *
+ * Each conversation is paged through in order, following the token that comes back with each
+ * page until there isn't one. After a page has been written, along with every page before it, the
+ * token for the page after it is saved to the [DownloadCheckpoint], so that an interrupted
+ * download can start again from there.
+ *
+ * @param fetcher downloads a page of messages for a conversation, starting at the given token, or
+ * at the beginning if it is null. It should return null if the request failed.
+ */
+class MessageDownloadEngine @JvmOverloads constructor(
+        private val context: Context,
+        private val encryptionUtils: EncryptionUtils?,
+        private val checkpoint: DownloadCheckpoint,
+        private val fetcher: (Long, String?) -> ApiPager.Page<MessageBody>?,
+        private val retryDelay: Long = RETRY_DELAY_MS) {
+
+    private val decryptExecutor = Executors.newFixedThreadPool(DECRYPTION_THREADS)
+    private val pendingPages = Semaphore(MAX_PENDING_PAGES)
+    private val writeQueue = LinkedBlockingQueue<Page>()
+
+    // only touched by the writer thread
+    private val progress = mutableMapOf<Long, Progress>()
+
+    private val failedConversations = AtomicInteger(0)
+    private val downloadedMessages = AtomicInteger(0)
+
+    /**
+     * Downloads the messages for each of the conversations that the checkpoint doesn't already
+     * have marked as complete. Blocks until everything has been written to the database.
+     *
+     * @return true if every conversation was downloaded.
+     */
+    fun download(conversationIds: List<Long>): Boolean {
+        val startTime = TimeUtils.now
+        val remaining = ConcurrentLinkedQueue(conversationIds.filter {
+            checkpoint.getPageToken(it) != DownloadCheckpoint.COMPLETE
+        })
+
+        Log.v(TAG, "downloading messages for ${remaining.size} of ${conversationIds.size} conversations")
+
+        val writer = Thread { write() }
+        writer.start()
+
+        val fetchExecutor = Executors.newFixedThreadPool(FETCH_THREADS)
+        for (i in 0 until FETCH_THREADS) {
+            fetchExecutor.execute {
+                var conversationId = remaining.poll()
+                while (conversationId != null) {
+                    downloadConversation(conversationId)
+                    conversationId = remaining.poll()
+                }
+            }
+        }
+
+        awaitTermination(fetchExecutor)
+        awaitTermination(decryptExecutor)
+
+        writeQueue.put(END)
+        try {
+            writer.join()
+        } catch (e: InterruptedException) {
+        }
+
+        Log.v(TAG, "downloaded ${downloadedMessages.get()} messages in ${TimeUtils.now - startTime} ms, " +
+                "${failedConversations.get()} conversations failed")
+        return failedConversations.get() == 0
+    }
+
+    private fun downloadConversation(conversationId: Long) {
+        var pageToken = checkpoint.getPageToken(conversationId)
+        var pageNumber = 0
+
+        while (true) {
+            pendingPages.acquireUninterruptibly()
+
+            val fetched = fetch(conversationId, pageToken)
+            if (fetched == null) {
+                pendingPages.release()
+                failedConversations.incrementAndGet()
+                Log.v(TAG, "failed to download messages for conversation $conversationId at page $pageToken")
+                return
+            }
+
+            // a server that hands back the same token again would have us download the same page forever
+            val last = fetched.nextPageToken == null || fetched.nextPageToken == pageToken
+            pageToken = fetched.nextPageToken
+
+            val page = Page(conversationId, pageNumber++, pageToken, last)
+            decryptExecutor.execute {
+                page.messages = decrypt(fetched.items)
+                writeQueue.put(page)
+            }
+
+            if (page.last) {
+                return
+            }
+        }
+    }
+
+    private fun fetch(conversationId: Long, pageToken: String?): ApiPager.Page<MessageBody>? {
+        for (attempt in 1..MAX_ATTEMPTS) {
+            val page = try {
+                fetcher(conversationId, pageToken)
+            } catch (e: Exception) {
+                e.printStackTrace()
+                null
+            }
+
+            if (page != null) {
+                return page
+            }
+
+            try {
+                Thread.sleep(retryDelay * attempt)
+            } catch (e: InterruptedException) {
+            }
+        }
+
+        return null
+    }
+
+    private fun decrypt(bodies: List<MessageBody>) = bodies.map {
+        val message = Message(it)
+
+        try {
+            message.decrypt(encryptionUtils!!)
+        } catch (e: Exception) {
+            e.printStackTrace()
+        }
+
+        message
+    }
+
+    private fun write() {
+        while (true) {
+            val page = try {
+                writeQueue.take()
+            } catch (e: InterruptedException) {
+                continue
+            }
+
+            if (page === END) {
+                return
+            }
+
+            try {
+                if (page.messages.isNotEmpty()) {
+                    DataSource.insertMessages(context, page.messages, false)
+                    downloadedMessages.addAndGet(page.messages.size)
+                }
+
+                advance(page)
+            } catch (e: Exception) {
+                e.printStackTrace()
+                failedConversations.incrementAndGet()
+            } finally {
+                pendingPages.release()
+            }
+        }
+    }
+
+    /**
+     * Pages for a conversation can finish decrypting out of order, so the checkpoint only moves
+     * past a page once all of the pages before it have been written.
+     */
+    private fun advance(page: Page) {
+        val conversation = progress.getOrPut(page.conversationId) { Progress() }
+        conversation.written[page.number] = page
+
+        var latest: Page? = null
+        while (conversation.written.containsKey(conversation.nextPage)) {
+            latest = conversation.written.remove(conversation.nextPage)
+            conversation.nextPage++
+        }
+
+        if (latest != null) {
+            checkpoint.setPageToken(page.conversationId,
+                    if (latest.last) DownloadCheckpoint.COMPLETE else latest.nextPageToken)
+        }
+    }
+
+    private fun awaitTermination(executor: ExecutorService) {
+        executor.shutdown()
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)
+        } catch (e: InterruptedException) {
+        }
+    }
+
+    private class Page(val conversationId: Long, val number: Int, val nextPageToken: String?, val last: Boolean) {
+        var messages: List<Message> = emptyList()
+    }
+
+    private class Progress {
+        var nextPage = 0
+        val written = mutableMapOf<Int, Page>()
+    }
+
+    companion object {
+        private const val TAG = "MessageDownloadEngine"
+
+        const val DEFAULT_PAGE_SIZE = 1000
+
+        private const val FETCH_THREADS = 4
+        private const val MAX_PENDING_PAGES = 8
+        private const val MAX_ATTEMPTS = 5
+        private const val RETRY_DELAY_MS = 1000L
+        private val DECRYPTION_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1))
+
+        private val END = Page(-1L, -1, null, true)
+    }
+}
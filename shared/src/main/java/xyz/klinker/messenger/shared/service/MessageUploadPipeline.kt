@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.service
+
+import android.content.Context
+import android.database.Cursor
+import android.util.Log
+import xyz.klinker.messenger.api.entity.MessageBody
+import xyz.klinker.messenger.encryption.EncryptionUtils
+import xyz.klinker.messenger.shared.data.MimeType
+import xyz.klinker.messenger.shared.data.Settings
+import xyz.klinker.messenger.shared.data.model.Message
+import xyz.klinker.messenger.shared.util.TimeUtils
+import java.util.concurrent.Executors
+import java.util.concurrent.Semaphore
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Uploads the messages from a cursor in three stages: the calling thread reads the cursor into
+ * pages, a pool of workers encrypts the pages, and a few uploads are kept in flight at once. Only
+ * a handful of pages are held in memory at a time, instead of the entire message history.
+ *
+ * The page size grows while the server answers quickly and shrinks when it slows down or fails.
+ *
+ * Pages can be acknowledged out of order, so the checkpoint only moves forward once every page
+ * before it has been acknowledged. If the upload is interrupted, it can resume from there.
+ *
+ * @param uploader sends a page of encrypted messages, returning whether the server accepted it.
+ * @param checkpointListener called with the latest message that has been acknowledged, along
+ * with every message before it.
+ */
+class MessageUploadPipeline(private val encryptionUtils: EncryptionUtils,
+                            private val uploader: (Array<MessageBody>) -> Boolean,
+                            private val checkpointListener: (Checkpoint) -> Unit) {
+
+    private val encryptionExecutor = Executors.newFixedThreadPool(ENCRYPTION_THREADS)
+    private val uploadExecutor = Executors.newFixedThreadPool(MAX_UPLOADS_IN_FLIGHT)
+    private val pendingPages = Semaphore(MAX_PENDING_PAGES)
+
+    private val acknowledged = mutableMapOf<Int, Page>()
+    private var nextCheckpointPage = 0
+    private val failedPages = AtomicInteger(0)
+    private val uploadedMessages = AtomicInteger(0)
+
+    @Volatile var pageSize = INITIAL_PAGE_SIZE
+        private set
+
+    /**
+     * Uploads every message in the cursor. Blocks until all of the pages have finished.
+     *
+     * @param cursor messages, in the same order that the checkpoint is based on.
+     * @param start where the previous upload left off.
+     * @return true if every page was accepted by the server.
+     */
+    fun upload(cursor: Cursor, start: Checkpoint): Boolean {
+        val startTime = TimeUtils.now
+        var firebaseNumber = start.firebaseNumber
+        var pageNumber = 0
+        var messages = ArrayList<Message>()
+
+        if (cursor.moveToFirst()) {
+            do {
+                val m = Message()
+                m.fillFromCursor(cursor)
+
+                // instead of sending the URI, we'll upload these images to firebase and retrieve
+                // them on another device based on account id and message id.
+                if (m.mimeType != MimeType.TEXT_PLAIN) {
+                    m.data = "firebase $firebaseNumber"
+                    firebaseNumber++
+                }
+
+                messages.add(m)
+
+                if (messages.size >= pageSize) {
+                    submit(Page(pageNumber++, messages, Checkpoint(m.timestamp, m.id, firebaseNumber)))
+                    messages = ArrayList()
+                }
+            } while (cursor.moveToNext())
+        }
+
+        if (messages.isNotEmpty()) {
+            val last = messages.last()
+            submit(Page(pageNumber, messages, Checkpoint(last.timestamp, last.id, firebaseNumber)))
+        }
+
+        // every page holds a permit until its upload finishes
+        pendingPages.acquireUninterruptibly(MAX_PENDING_PAGES)
+        pendingPages.release(MAX_PENDING_PAGES)
+
+        encryptionExecutor.shutdown()
+        uploadExecutor.shutdown()
+
+        Log.v(TAG, "uploaded ${uploadedMessages.get()} messages in ${TimeUtils.now - startTime} ms, " +
+                "${failedPages.get()} pages failed")
+        return failedPages.get() == 0
+    }
+
+    private fun submit(page: Page) {
+        pendingPages.acquireUninterruptibly()
+
+        encryptionExecutor.execute {
+            val bodies = try {
+                encrypt(page.messages)
+            } catch (e: Exception) {
+                e.printStackTrace()
+                null
+            }
+
+            if (bodies == null) {
+                acknowledge(page, false)
+                pendingPages.release()
+            } else {
+                uploadExecutor.execute {
+                    try {
+                        acknowledge(page, send(page.number, bodies))
+                    } finally {
+                        pendingPages.release()
+                    }
+                }
+            }
+        }
+    }
+
+    private fun encrypt(messages: List<Message>) = Array(messages.size) {
+        val m = messages[it]
+        m.encrypt(encryptionUtils)
+        MessageBody(m.id, m.conversationId, m.type, m.data, m.timestamp, m.mimeType, m.read,
+                m.seen, m.from, m.color, "-1", m.simPhoneNumber)
+    }
+
+    private fun send(pageNumber: Int, bodies: Array<MessageBody>): Boolean {
+        for (attempt in 1..MAX_ATTEMPTS) {
+            val startTime = TimeUtils.now
+            val success = try {
+                uploader(bodies)
+            } catch (e: Exception) {
+                e.printStackTrace()
+                false
+            }
+
+            adjustPageSize(TimeUtils.now - startTime, success)
+
+            if (success) {
+                Log.v(TAG, "uploaded ${bodies.size} messages for page $pageNumber")
+                return true
+            }
+
+            Log.v(TAG, "failed to upload page $pageNumber, attempt $attempt")
+
+            try {
+                Thread.sleep(RETRY_DELAY_MS * attempt)
+            } catch (e: InterruptedException) {
+            }
+        }
+
+        return false
+    }
+
+    @Synchronized
+    private fun adjustPageSize(latency: Long, success: Boolean) {
+        pageSize = when {
+            !success || latency > TARGET_LATENCY_MS -> Math.max(MIN_PAGE_SIZE, pageSize / 2)
+            latency < TARGET_LATENCY_MS / 2 -> Math.min(MAX_PAGE_SIZE, pageSize + pageSize / 2)
+            else -> pageSize
+        }
+    }
+
+    @Synchronized
+    private fun acknowledge(page: Page, success: Boolean) {
+        if (!success) {
+            failedPages.incrementAndGet()
+            return
+        }
+
+        uploadedMessages.addAndGet(page.messages.size)
+        acknowledged[page.number] = page
+
+        var latest: Page? = null
+        while (acknowledged.containsKey(nextCheckpointPage)) {
+            latest = acknowledged.remove(nextCheckpointPage)
+            nextCheckpointPage++
+        }
+
+        if (latest != null) {
+            checkpointListener(latest.checkpoint)
+        }
+    }
+
+    private class Page(val number: Int, val messages: List<Message>, val checkpoint: Checkpoint)
+
+    /**
+     * The last message that has been uploaded, ordered by timestamp and then id, and the number
+     * of media messages that had been given a firebase number up to that point.
+     */
+    data class Checkpoint(val timestamp: Long, val messageId: Long, val firebaseNumber: Int)
+
+    companion object {
+        private const val TAG = "MessageUploadPipeline"
+
+        const val INITIAL_PAGE_SIZE = 300
+        const val MIN_PAGE_SIZE = 50
+        const val MAX_PAGE_SIZE = 1500
+        const val TARGET_LATENCY_MS = 4000L
+
+        private const val MAX_UPLOADS_IN_FLIGHT = 3
+        private const val MAX_PENDING_PAGES = 6
+        private const val MAX_ATTEMPTS = 3
+        private const val RETRY_DELAY_MS = 1000L
+        private val ENCRYPTION_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1))
+
+        private const val PREF_ACCOUNT = "message_upload_checkpoint_account"
+        private const val PREF_TIMESTAMP = "message_upload_checkpoint_timestamp"
+        private const val PREF_MESSAGE_ID = "message_upload_checkpoint_message_id"
+        private const val PREF_FIREBASE_NUMBER = "message_upload_checkpoint_firebase_number"
+
+        @JvmField val START = Checkpoint(-1L, -1L, 0)
+
+        /**
+         * Where the last upload for this account left off, or START if there isn't one.
+         */
+        fun readCheckpoint(context: Context, accountId: String?): Checkpoint {
+            val prefs = Settings.getSharedPrefs(context)
+            return if (accountId == null || prefs.getString(PREF_ACCOUNT, null) != accountId) {
+                START
+            } else {
+                Checkpoint(prefs.getLong(PREF_TIMESTAMP, START.timestamp),
+                        prefs.getLong(PREF_MESSAGE_ID, START.messageId),
+                        prefs.getInt(PREF_FIREBASE_NUMBER, START.firebaseNumber))
+            }
+        }
+
+        fun writeCheckpoint(context: Context, accountId: String?, checkpoint: Checkpoint) {
+            Settings.getSharedPrefs(context).edit()
+                    .putString(PREF_ACCOUNT, accountId)
+                    .putLong(PREF_TIMESTAMP, checkpoint.timestamp)
+                    .putLong(PREF_MESSAGE_ID, checkpoint.messageId)
+                    .putInt(PREF_FIREBASE_NUMBER, checkpoint.firebaseNumber)
+                    .apply()
+        }
+
+        fun clearCheckpoint(context: Context) {
+            Settings.getSharedPrefs(context).edit()
+                    .remove(PREF_ACCOUNT)
+                    .remove(PREF_TIMESTAMP)
+                    .remove(PREF_MESSAGE_ID)
+                    .remove(PREF_FIREBASE_NUMBER)
+                    .apply()
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.klinker.messenger.shared.service
+
+import android.content.Context
+
+/**
+ * How far this device has caught up with the changes on the API, for each type of data. A delta
+ * sync asks for everything that changed after these, and moves them forward once the changes are
+ * in the database.
+ *
+ * They are cleared whenever the local tables are, since the changes would be applied to nothing.
+ * A full download sets them again, to when it started. Devices that were set up before there were
+ * watermarks are given a starting point once, when the app is updated.
+ */
+class SyncWatermarks(context: Context) {
+
+    private val prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+
+    /**
+     * @return the timestamp that this device is caught up to for the type, or NONE if it has
+     * never been synced.
+     */
+    fun get(type: String) = prefs.getLong(type, NONE)
+
+    fun set(values: Map<String, Long>) {
+        val editor = prefs.edit()
+        for ((type, value) in values) {
+            editor.putLong(type, value)
+        }
+
+        editor.apply()
+    }
+
+    /**
+     * Sets every type to the same point, after they have all been downloaded from it.
+     */
+    fun setAll(value: Long) {
+        set(TYPES.associate { it to value })
+    }
+
+    /**
+     * Sets the types that have never been synced to the value, leaving the others where they are.
+     */
+    fun seed(value: Long) {
+        set(TYPES.filter { get(it) == NONE }.associate { it to value })
+    }
+
+    fun clear() {
+        prefs.edit().clear().apply()
+    }
+
+    companion object {
+        const val NONE = -1L
+
+        const val MESSAGES = "messages"
+        const val CONVERSATIONS = "conversations"
+        const val CONTACTS = "contacts"
+        val TYPES = listOf(CONVERSATIONS, MESSAGES, CONTACTS)
+
+        private const val PREFS_NAME = "sync_watermarks"
+    }
+}
@@ -0,0 +1,84 @@
+package xyz.klinker.messenger.shared.service.jobs
+
+import android.content.Context
+import androidx.work.*
+import retrofit2.Call
+import xyz.klinker.messenger.api.entity.ChangesResponse
+import xyz.klinker.messenger.api.entity.ContactBody
+import xyz.klinker.messenger.api.entity.ConversationBody
+import xyz.klinker.messenger.api.entity.MessageBody
+import xyz.klinker.messenger.api.implementation.Account
+import xyz.klinker.messenger.api.implementation.ApiUtils
+import xyz.klinker.messenger.shared.service.ApiDownloadService
+import xyz.klinker.messenger.shared.service.DeltaSync
+import xyz.klinker.messenger.shared.service.SyncWatermarks
+import java.util.concurrent.TimeUnit
+
+/**
+ * Periodically catches a secondary device up with the changes on the API, in case it missed some
+ * of its pushes while it was offline. See DeltaSync.
+ *
+ * The phone is left out, since it is where the messages come from in the first place.
+ */
+class DeltaSyncWork(private val context: Context, params: WorkerParameters) : Worker(context, params) {
+
+    override fun doWork(): Result {
+        if (!Account.exists() || Account.primary || ApiDownloadService.IS_RUNNING) {
+            return Result.success()
+        }
+
+        // an older server that answers with a 404 is a success as well, there is nothing to retry
+        val result = DeltaSync(context, Account.encryptor, SyncWatermarks(context), ApiChangeFetcher).sync()
+        return if (result == DeltaSync.Result.FAILED) Result.retry() else Result.success()
+    }
+
+    private object ApiChangeFetcher : DeltaSync.ChangeFetcher {
+        override fun conversations(since: Long, pageToken: String?): ChangesResponse<ConversationBody>? =
+                execute(ApiUtils.api.conversation().changes(Account.accountId, since, DeltaSync.PAGE_SIZE, pageToken))
+
+        override fun messages(since: Long, pageToken: String?): ChangesResponse<MessageBody>? =
+                execute(ApiUtils.api.message().changes(Account.accountId, since, DeltaSync.PAGE_SIZE, pageToken))
+
+        override fun contacts(since: Long, pageToken: String?): ChangesResponse<ContactBody>? =
+                execute(ApiUtils.api.contact().changes(Account.accountId, since, DeltaSync.PAGE_SIZE, pageToken))
+
+        private fun <T> execute(call: Call<ChangesResponse<T>>): ChangesResponse<T>? {
+            val response = call.execute()
+            if (response.code() == 404) {
+                throw DeltaSync.UnsupportedException()
+            }
+
+            return response.body()
+        }
+    }
+
+    companion object {
+
+        private const val JOB_ID = "delta-sync"
+
+        fun scheduleNextRun(context: Context?) {
+            if (context == null || !Account.exists() || Account.primary) {
+                return
+            }
+
+            val work = PeriodicWorkRequest.Builder(DeltaSyncWork::class.java, 6L, TimeUnit.HOURS)
+                    .setConstraints(Constraints.Builder().setRequiredNetworkType(NetworkType.CONNECTED).build())
+                    .build()
+            WorkManager.getInstance().enqueueUniquePeriodicWork(JOB_ID, ExistingPeriodicWorkPolicy.KEEP, work)
+        }
+
+        /**
+         * Runs a sync now, instead of waiting for the next periodic one.
+         */
+        fun runNow(context: Context?) {
+            if (context == null || !Account.exists() || Account.primary) {
+                return
+            }
+
+            val work = OneTimeWorkRequest.Builder(DeltaSyncWork::class.java)
+                    .setConstraints(Constraints.Builder().setRequiredNetworkType(NetworkType.CONNECTED).build())
+                    .build()
+            WorkManager.getInstance().enqueueUniqueWork("$JOB_ID-now", ExistingWorkPolicy.KEEP, work)
+        }
+    }
+}
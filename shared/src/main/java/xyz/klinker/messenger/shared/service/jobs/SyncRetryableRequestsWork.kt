@@ -7,7 +7,6 @@ import xyz.klinker.messenger.api.implementation.ApiUtils
 
 import xyz.klinker.messenger.shared.data.DataSource
 import xyz.klinker.messenger.shared.data.model.Conversation
-import xyz.klinker.messenger.shared.data.model.Message
 import xyz.klinker.messenger.shared.data.model.RetryableRequest
 import java.util.concurrent.TimeUnit
 
@@ -27,24 +26,16 @@ class SyncRetryableRequestsWork(private val context: Context, params: WorkerPara
 
         for (retryable in retryables) {
             when (retryable.type) {
-                RetryableRequest.TYPE_ADD_MESSAGE -> pushMessage(DataSource.getMessage(context, retryable.dataId))
                 RetryableRequest.TYPE_ADD_CONVERSATION -> pushConversation(DataSource.getConversation(context, retryable.dataId))
+                else -> DataSource.queueApiMutation(context, retryable.type, retryable.dataId)
             }
         }
 
+        // anything that fails again will be written back to the table by the queue
+        DataSource.flushApiMutations(context)
         return Result.success()
     }
 
-    private fun pushMessage(message: Message?) {
-        if (message == null) {
-            return
-        }
-
-        ApiUtils.addMessage(context, Account.accountId, message.id, message.conversationId, message.type, message.data,
-                message.timestamp, message.mimeType, message.read, message.seen, message.from,
-                message.color, message.sentDeviceId.toString(), message.simPhoneNumber, Account.encryptor)
-    }
-
     private fun pushConversation(conversation: Conversation?) {
         if (conversation == null) {
             return
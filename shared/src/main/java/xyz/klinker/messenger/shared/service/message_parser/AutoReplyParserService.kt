@@ -96,5 +96,9 @@ class AutoReplyParserService : IntentService("AutoReplyParserService") {
         fun createParsers(context: Context, conversation: Conversation, message: Message): List<AutoReplyParser> {
             return AutoReplyParserFactory().getInstances(context, conversation, message)
         }
+
+        fun hasParsers(context: Context, conversation: Conversation, message: Message): Boolean {
+            return AutoReplyParserFactory().hasInstances(context, conversation, message)
+        }
     }
 }
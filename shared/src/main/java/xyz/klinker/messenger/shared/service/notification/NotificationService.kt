@@ -17,9 +17,12 @@
 package xyz.klinker.messenger.shared.service.notification
 
 import android.app.IntentService
+import android.app.NotificationManager
 import android.content.Context
 import android.content.Intent
 import android.os.Build
+import android.os.Handler
+import android.os.Looper
 import android.os.PowerManager
 import com.google.firebase.ml.naturallanguage.FirebaseNaturalLanguage
 import xyz.klinker.messenger.shared.data.DataSource
@@ -33,6 +36,7 @@ import xyz.klinker.messenger.shared.util.MockableDataSourceWrapper
 import xyz.klinker.messenger.shared.util.TimeUtils
 import xyz.klinker.messenger.shared.widget.MessengerAppWidgetProvider
 import java.util.*
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * Service for displaying notifications to the user based on which conversations have not been
@@ -60,19 +64,56 @@ class Notifier(private val context: Context) {
     private val dataSource: MockableDataSourceWrapper
         get() = MockableDataSourceWrapper(DataSource)
 
-    fun notify(intent: Intent? = null) {
+    /**
+     * Refreshes the notifications after a new message comes in. Messages that arrive close together
+     * (a burst in a group MMS thread, or a batch from the server) are coalesced into a single refresh,
+     * run on the thread of the last one, and notifications that would not change are not posted again.
+     *
+     * This blocks for the length of the window, so it should not be called from the UI thread.
+     */
+    fun notifyCoalesced() {
+        val trigger = lastTrigger.incrementAndGet()
+
+        try {
+            Thread.sleep(COALESCE_WINDOW)
+        } catch (e: InterruptedException) {
+        }
+
+        if (trigger == lastTrigger.get()) {
+            notify(onlyChanged = true)
+        }
+    }
+
+    fun notify(intent: Intent? = null, onlyChanged: Boolean = false) {
+        synchronized(posted) {
+            notifyLocked(onlyChanged)
+        }
+    }
+
+    private fun notifyLocked(onlyChanged: Boolean) {
         val snoozeTil = Settings.snooze
         if (snoozeTil > TimeUtils.now) {
             return
         }
 
         val conversations = query.getUnseenConversations(dataSource)
+        posted.retain(conversations)
+
         if (conversations.isNotEmpty()) {
             val conversation = conversations.first()
             if (conversation.mute || NotificationConstants.CONVERSATION_ID_OPEN == conversation.id) {
                 return
             }
 
+            val conversationChanged = !onlyChanged || posted.hasChanged(conversation) || !isShowing(conversation.id)
+            if (!conversationChanged) {
+                if (posted.hasSummaryChanged(conversations)) {
+                    notifySummary(conversations)
+                }
+
+                return
+            }
+
             if (AndroidVersionUtil.isAndroidR) {
                 // build dynamic shortcuts for the bubble functionality
 
@@ -84,6 +125,7 @@ class Notifier(private val context: Context) {
 
             notifyLatestConversation(conversation)
             notifySummary(conversations)
+            posted.posted(conversation)
 
             applyRepeat()
             wakeScreen()
@@ -119,6 +161,20 @@ class Notifier(private val context: Context) {
 
         val rows = conversations.mapTo(ArrayList()) { "<b>" + it.title + "</b>  " + it.snippet }
         summaryNotifier.giveSummaryNotification(conversations, rows)
+        posted.summaryPosted(conversations)
+    }
+
+    private fun isShowing(conversationId: Long): Boolean {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return true
+        }
+
+        return try {
+            val manager = context.getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
+            manager.activeNotifications.any { it.id == conversationId.toInt() }
+        } catch (e: Exception) {
+            false
+        }
     }
 
     private fun applyRepeat() {
@@ -134,13 +190,19 @@ class Notifier(private val context: Context) {
             return
         }
 
-        try {
-            Thread.sleep(600)
-        } catch (e: Exception) {
-        }
+        // give the notification a moment to show up before turning the screen on, without holding
+        // up the thread that posted it
+        Handler(Looper.getMainLooper()).postDelayed({
+            val pm = context.getSystemService(Context.POWER_SERVICE) as PowerManager
+            val wl = pm.newWakeLock(PowerManager.SCREEN_BRIGHT_WAKE_LOCK or PowerManager.ACQUIRE_CAUSES_WAKEUP, "pulse:new-notification")
+            wl.acquire(5000)
+        }, 600)
+    }
+
+    companion object {
+        private const val COALESCE_WINDOW = 250L
 
-        val pm = context.getSystemService(Context.POWER_SERVICE) as PowerManager
-        val wl = pm.newWakeLock(PowerManager.SCREEN_BRIGHT_WAKE_LOCK or PowerManager.ACQUIRE_CAUSES_WAKEUP, "pulse:new-notification")
-        wl.acquire(5000)
+        private val lastTrigger = AtomicLong()
+        internal val posted = PostedNotifications()
     }
 }
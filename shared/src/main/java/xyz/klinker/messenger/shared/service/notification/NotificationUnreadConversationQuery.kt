@@ -1,11 +1,12 @@
 package xyz.klinker.messenger.shared.service.notification
 
 import android.content.Context
+import android.database.Cursor
 import android.graphics.Color
 import xyz.klinker.messenger.shared.R
-import xyz.klinker.messenger.shared.data.DataSource
 import xyz.klinker.messenger.shared.data.MimeType
 import xyz.klinker.messenger.shared.data.Settings
+import xyz.klinker.messenger.shared.data.model.Conversation
 import xyz.klinker.messenger.shared.data.model.Message
 import xyz.klinker.messenger.shared.data.pojo.NotificationConversation
 import xyz.klinker.messenger.shared.data.pojo.NotificationMessage
@@ -18,70 +19,82 @@ class NotificationUnreadConversationQuery(private val context: Context) {
 
     fun getUnseenConversations(source: MockableDataSourceWrapper): List<NotificationConversation> {
         // timestamps are ASC, so it will start with the oldest message, and move to the newest.
-        val unseenMessages = source.getUnseenMessages(context)
-        val conversations = mutableListOf<NotificationConversation>()
-        val keys = mutableListOf<Long>()
+        // each row also has the conversation that the message belongs to.
+        val unseenMessages = source.getUnseenMessagesWithConversations(context)
+        val conversations = LinkedHashMap<Long, NotificationConversation>()
 
         if (unseenMessages.moveToFirst()) {
+            val idIndex = unseenMessages.getColumnIndex(Message.COLUMN_ID)
+            val conversationIdIndex = unseenMessages.getColumnIndex(Message.COLUMN_CONVERSATION_ID)
+            val dataIndex = unseenMessages.getColumnIndex(Message.COLUMN_DATA)
+            val mimeTypeIndex = unseenMessages.getColumnIndex(Message.COLUMN_MIME_TYPE)
+            val timestampIndex = unseenMessages.getColumnIndex(Message.COLUMN_TIMESTAMP)
+            val fromIndex = unseenMessages.getColumnIndex(Message.COLUMN_FROM)
+
             do {
-                val conversationId = unseenMessages.getLong(unseenMessages.getColumnIndex(Message.COLUMN_CONVERSATION_ID))
-                val id = unseenMessages.getLong(unseenMessages.getColumnIndex(Message.COLUMN_ID))
-                val data = unseenMessages.getString(unseenMessages.getColumnIndex(Message.COLUMN_DATA))
-                val mimeType = unseenMessages.getString(unseenMessages.getColumnIndex(Message.COLUMN_MIME_TYPE))
-                val timestamp = unseenMessages.getLong(unseenMessages.getColumnIndex(Message.COLUMN_TIMESTAMP))
-                val from = unseenMessages.getString(unseenMessages.getColumnIndex(Message.COLUMN_FROM))
+                val conversationId = unseenMessages.getLong(conversationIdIndex)
+                val id = unseenMessages.getLong(idIndex)
+                val data = unseenMessages.getString(dataIndex)
+                val mimeType = unseenMessages.getString(mimeTypeIndex)
+                val timestamp = unseenMessages.getLong(timestampIndex)
+                val from = unseenMessages.getString(fromIndex)
 
                 if (!MimeType.isExpandedMedia(mimeType)) {
-                    val conversationIndex = keys.indexOf(conversationId)
-                    var conversation: NotificationConversation? = null
-
-                    if (conversationIndex == -1) {
-                        val c = source.getConversation(context, conversationId)
-                        if (c != null) {
-                            conversation = NotificationConversation()
-                            conversation.id = c.id
-                            conversation.unseenMessageId = id
-                            conversation.title = c.title
-                            conversation.snippet = c.snippet
-                            conversation.imageUri = c.imageUri
-                            conversation.color = c.colors.color
-                            conversation.ringtoneUri = c.ringtoneUri
-                            conversation.ledColor = c.ledColor
-                            conversation.timestamp = c.timestamp
-                            conversation.mute = c.mute
-                            conversation.phoneNumbers = c.phoneNumbers
-                            conversation.groupConversation = c.phoneNumbers!!.contains(",")
-                            try {
-                                conversation.realMessages = DataSource.getMessages(context, conversation.id, 4)
-                            } catch (e: Exception) {
-                                e.printStackTrace()
-                            }
-
-                            if (c.private) {
-                                conversation.title = context.getString(R.string.new_message)
-                                conversation.imageUri = null
-                                conversation.ringtoneUri = null
-                                conversation.color = Settings.mainColorSet.color
-                                conversation.privateNotification = true
-                                conversation.ledColor = Color.WHITE
-                            } else {
-                                conversation.privateNotification = false
-                            }
-
-                            conversations.add(conversation)
-                            keys.add(conversationId)
-                        }
-                    } else {
-                        conversation = conversations[conversationIndex]
+                    val conversation = conversations.getOrPut(conversationId) {
+                        readConversation(unseenMessages, conversationId, id)
                     }
 
-                    conversation?.messages?.add(NotificationMessage(id, data, mimeType, timestamp, from))
+                    conversation.messages.add(NotificationMessage(id, data, mimeType, timestamp, from))
                 }
             } while (unseenMessages.moveToNext())
         }
 
         unseenMessages.closeSilent()
-        conversations.sortWith(Comparator { result1, result2 -> Date(result2.timestamp).compareTo(Date(result1.timestamp)) })
-        return conversations
+
+        try {
+            val latestMessages = source.getLatestMessages(context, conversations.keys, 4)
+            for (conversation in conversations.values) {
+                conversation.realMessages = latestMessages[conversation.id] ?: emptyList()
+            }
+        } catch (e: Exception) {
+            e.printStackTrace()
+        }
+
+        val sorted = conversations.values.toMutableList()
+        sorted.sortWith(Comparator { result1, result2 -> Date(result2.timestamp).compareTo(Date(result1.timestamp)) })
+        return sorted
+    }
+
+    private fun readConversation(cursor: Cursor, conversationId: Long, unseenMessageId: Long): NotificationConversation {
+        val conversation = NotificationConversation()
+        conversation.id = conversationId
+        conversation.unseenMessageId = unseenMessageId
+        conversation.title = cursor.getString(cursor.getColumnIndex(Conversation.COLUMN_TITLE))
+        conversation.snippet = cursor.getString(cursor.getColumnIndex(Conversation.COLUMN_SNIPPET))
+        conversation.imageUri = cursor.getString(cursor.getColumnIndex(Conversation.COLUMN_IMAGE_URI))
+        conversation.color = cursor.getInt(cursor.getColumnIndex(Conversation.COLUMN_COLOR))
+        conversation.ringtoneUri = cursor.getString(cursor.getColumnIndex(Conversation.COLUMN_RINGTONE))
+        conversation.ledColor = cursor.getInt(cursor.getColumnIndex(Conversation.COLUMN_LED_COLOR))
+        conversation.timestamp = cursor.getLong(cursor.getColumnIndex(COLUMN_CONVERSATION_TIMESTAMP))
+        conversation.mute = cursor.getInt(cursor.getColumnIndex(Conversation.COLUMN_MUTE)) == 1
+        conversation.phoneNumbers = cursor.getString(cursor.getColumnIndex(Conversation.COLUMN_PHONE_NUMBERS))
+        conversation.groupConversation = conversation.phoneNumbers!!.contains(",")
+
+        if (cursor.getInt(cursor.getColumnIndex(Conversation.COLUMN_PRIVATE)) == 1) {
+            conversation.title = context.getString(R.string.new_message)
+            conversation.imageUri = null
+            conversation.ringtoneUri = null
+            conversation.color = Settings.mainColorSet.color
+            conversation.privateNotification = true
+            conversation.ledColor = Color.WHITE
+        } else {
+            conversation.privateNotification = false
+        }
+
+        return conversation
+    }
+
+    companion object {
+        const val COLUMN_CONVERSATION_TIMESTAMP = "conversation_timestamp"
     }
-}
\ No newline at end of file
+}
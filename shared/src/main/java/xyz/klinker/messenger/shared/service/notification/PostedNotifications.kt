@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.service.notification
+
+import xyz.klinker.messenger.shared.data.pojo.NotificationConversation
+
+/**
+ * Remembers what the Notifier last posted for each conversation, and for the summary, so that
+ * a refresh that would post the exact same notification again can be skipped. A conversation's
+ * notification only changes when its unseen messages change, or when it is renamed or given a
+ * new image.
+ */
+class PostedNotifications {
+
+    private val conversations = HashMap<Long, String>()
+    private var summary: String? = null
+
+    @Synchronized
+    fun hasChanged(conversation: NotificationConversation) =
+            conversations[conversation.id] != fingerprint(conversation)
+
+    @Synchronized
+    fun posted(conversation: NotificationConversation) {
+        conversations[conversation.id] = fingerprint(conversation)
+    }
+
+    @Synchronized
+    fun hasSummaryChanged(unseen: List<NotificationConversation>) = summary != fingerprint(unseen)
+
+    @Synchronized
+    fun summaryPosted(unseen: List<NotificationConversation>) {
+        summary = fingerprint(unseen)
+    }
+
+    /**
+     * Forgets the conversations that no longer have unseen messages. Their notifications have been
+     * read or dismissed, so the next one will need to be posted, even if it looks the same.
+     */
+    @Synchronized
+    fun retain(unseen: List<NotificationConversation>) {
+        val ids = unseen.mapTo(HashSet()) { it.id }
+        conversations.keys.retainAll(ids)
+
+        if (unseen.size <= 1) {
+            summary = null
+        }
+    }
+
+    @Synchronized
+    fun clear() {
+        conversations.clear()
+        summary = null
+    }
+
+    private fun fingerprint(unseen: List<NotificationConversation>) =
+            unseen.joinToString("\n") { fingerprint(it) }
+
+    private fun fingerprint(conversation: NotificationConversation) =
+            "${conversation.id}|${conversation.title}|${conversation.imageUri}|" +
+                    conversation.messages.joinToString(",") { it.id.toString() }
+}
@@ -6,7 +6,6 @@ import android.app.NotificationManager
 import android.app.PendingIntent
 import android.content.Context
 import android.content.Intent
-import android.graphics.Bitmap
 import android.graphics.BitmapFactory
 import android.graphics.Color
 import android.net.Uri
@@ -152,18 +151,8 @@ class NotificationConversationProvider(private val service: Context, private val
                     .setContentText(service.resources.getQuantityString(R.plurals.new_messages, conversation.messages.size, conversation.messages.size))
                     .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
 
-    private fun buildContactImage(conversation: NotificationConversation): Bitmap? {
-        var contactImage = ImageUtils.clipToCircle(ImageUtils.getBitmap(service, conversation.imageUri))
-
-        try {
-            val height = service.resources.getDimension(android.R.dimen.notification_large_icon_height)
-            val width = service.resources.getDimension(android.R.dimen.notification_large_icon_width)
-            contactImage = Bitmap.createScaledBitmap(contactImage!!, width.toInt(), height.toInt(), true)
-        } catch (e: Exception) {
-        }
-
-        return contactImage
-    }
+    private fun buildContactImage(conversation: NotificationConversation) =
+            NotificationImageCache.getContactImage(service, conversation.imageUri)
 
     private fun buildNotificationDefaults(conversation: NotificationConversation): Int {
         if (WearableCheck.isAndroidWear(service)) {
@@ -196,7 +185,7 @@ class NotificationConversationProvider(private val service: Context, private val
         }
 
         val messages = conversation.realMessages
-        val imageCache = mutableMapOf<String, Bitmap?>()
+        val imageUris = mutableMapOf<String, String?>()
 
         for (i in messages.indices.reversed()) {
             val message = messages[i]
@@ -206,36 +195,21 @@ class NotificationConversationProvider(private val service: Context, private val
                 // if there is more than one
 
                 val image = if (AndroidVersionUtil.isAndroidP) {
-                    val circle = when {
-                        conversation.imageUri != null -> {
-                            if (imageCache.containsKey(conversation.imageUri!!)) {
-                                imageCache[conversation.imageUri!!]
-                            } else {
-                                val image = ImageUtils.getBitmap(service, conversation.imageUri)
-                                val circleImage = ImageUtils.clipToCircle(image)
-
-                                imageCache[conversation.imageUri!!] = circleImage
-
-                                circleImage
-                            }
-                        }
+                    when {
+                        conversation.imageUri != null -> NotificationImageCache.getContactImage(service, conversation.imageUri)
                         message.from != null -> {
-                            if (imageCache.containsKey(message.from!!)) {
-                                imageCache[message.from!!]
+                            val uri = if (imageUris.containsKey(message.from!!)) {
+                                imageUris[message.from!!]
                             } else {
                                 val uri = ContactUtils.findImageUri(message.from!!, service, true)
-                                val image = ImageUtils.getBitmap(service, uri)
-                                val circleImage = ImageUtils.clipToCircle(image)
-
-                                imageCache[message.from!!] = circleImage
-
-                                circleImage
+                                imageUris[message.from!!] = uri
+                                uri
                             }
+
+                            NotificationImageCache.getContactImage(service, uri)
                         }
                         else -> null
                     }
-
-                    circle
                 } else {
                     null
                 }
@@ -317,7 +291,7 @@ class NotificationConversationProvider(private val service: Context, private val
                     inboxStyle.addLine(Html.fromHtml(line))
                 } else {
                     pictureStyle = NotificationCompat.BigPictureStyle()
-                            .bigPicture(ImageUtils.getBitmap(service, data))
+                            .bigPicture(NotificationImageCache.getPicture(service, data))
                 }
             }
         } else {
@@ -337,7 +311,7 @@ class NotificationConversationProvider(private val service: Context, private val
                     }
                 } else if (MimeType.isStaticImage(mimeType)) {
                     pictureStyle = NotificationCompat.BigPictureStyle()
-                            .bigPicture(ImageUtils.getBitmap(service, data))
+                            .bigPicture(NotificationImageCache.getPicture(service, data))
                 }
             }
         }
@@ -396,9 +370,9 @@ class NotificationConversationProvider(private val service: Context, private val
 
         val bitmap = buildContactImage(conversation)
         val icon = if (bitmap != null) {
-            IconCompat.createWithAdaptiveBitmap(buildContactImage(conversation))
+            IconCompat.createWithAdaptiveBitmap(bitmap)
         } else {
-            val letterImage = ContactImageCreator.getLetterPicture(context, conversation) ?: return this
+            val letterImage = NotificationImageCache.getLetterPicture(context, conversation) ?: return this
             IconCompat.createWithAdaptiveBitmap(letterImage)
         }
         val uri = Uri.parse("https://messenger.klinkerapps.com/" + conversation.id)
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.util
+
+import xyz.klinker.messenger.shared.data.model.Blacklist
+import java.util.regex.Pattern
+import java.util.regex.PatternSyntaxException
+
+/**
+ * Every blacklist rule, compiled so that an incoming message can be checked without going back to
+ * the database. The DataSource builds one of these when it is first needed and throws it away when
+ * a blacklist is added or removed.
+ *
+ * Phrases are either all plain text or all regular expressions, depending on the
+ * blacklistPhraseRegex setting. Plain text phrases go into a single automaton, so the message is
+ * only read once no matter how many phrases there are. Invalid regular expressions are skipped,
+ * they would never have matched anything.
+ */
+class BlacklistMatcher(blacklists: List<Blacklist>, val phrasesAreRegex: Boolean) {
+
+    private val numbers = NumberRules(blacklists.mapNotNull { it.phoneNumber }.filterNot { it.isBlank() })
+    private val phrases = blacklists.mapNotNull { it.phrase }.filterNot { it.isBlank() }
+
+    private val literals = if (phrasesAreRegex) null else PhraseAutomaton(phrases.map { it.toLowerCase() })
+    private val patterns = if (!phrasesAreRegex) emptyList() else phrases.mapNotNull {
+        try {
+            Pattern.compile(it, Pattern.MULTILINE or Pattern.CASE_INSENSITIVE)
+        } catch (e: PatternSyntaxException) {
+            null
+        }
+    }
+
+    fun matchesNumber(number: String) = numbers.matches(number)
+
+    fun matchesText(text: String?): Boolean {
+        if (text == null) {
+            return false
+        }
+
+        return if (phrasesAreRegex) {
+            patterns.any { it.matcher(text).find() }
+        } else {
+            literals!!.containsAny(text.toLowerCase())
+        }
+    }
+
+    /**
+     * Blacklisted numbers, keyed by the suffix that they would be compared with. Two numbers are
+     * compared on the last 10, 8 or 7 digits depending on the length of the shorter one, and
+     * numbers under 7 digits only match numbers of the same length. Since the length of the
+     * incoming number is known, each rule can be put in the sets for the lengths it could match.
+     */
+    internal class NumberRules(blacklisted: List<String>) {
+
+        private val exact = HashSet<String>()
+        private val tenDigits = HashSet<String>()
+        private val eightDigitsUpToNine = HashSet<String>()
+        private val eightDigits = HashSet<String>()
+        private val sevenDigitsExactly = HashSet<String>()
+        private val sevenDigits = HashSet<String>()
+        private val shortNumbers = HashSet<String>()
+
+        init {
+            for (number in blacklisted) {
+                // some countries get spam from lettered number (HP-BHKPOS)
+                // those would not get matched when it goes into the id matchers,
+                // since the letters all get stripped out.
+                exact.add(number)
+
+                val cleared = PhoneNumberUtils.clearFormattingAndStripStandardReplacements(number)
+                val matcher = SmsMmsUtils.createIdMatcher(cleared)
+                val length = cleared.length
+
+                if (length >= 10) tenDigits.add(matcher.tenLetter)
+                if (length in 8..9) eightDigitsUpToNine.add(matcher.eightLetter)
+                if (length >= 8) eightDigits.add(matcher.eightLetter)
+                if (length == 7) sevenDigitsExactly.add(matcher.sevenLetter)
+                if (length >= 7) sevenDigits.add(matcher.sevenLetter)
+                if (length < 7) shortNumbers.add("$length:${matcher.fiveLetter}")
+            }
+        }
+
+        fun matches(number: String): Boolean {
+            if (exact.contains(number)) {
+                return true
+            }
+
+            val cleared = PhoneNumberUtils.clearFormattingAndStripStandardReplacements(number)
+            val matcher = SmsMmsUtils.createIdMatcher(cleared)
+            val length = cleared.length
+
+            return when {
+                length >= 10 -> tenDigits.contains(matcher.tenLetter) ||
+                        eightDigitsUpToNine.contains(matcher.eightLetter) ||
+                        sevenDigitsExactly.contains(matcher.sevenLetter)
+                length in 8..9 -> eightDigits.contains(matcher.eightLetter) ||
+                        sevenDigitsExactly.contains(matcher.sevenLetter)
+                length == 7 -> sevenDigits.contains(matcher.sevenLetter)
+                else -> shortNumbers.contains("$length:${matcher.fiveLetter}")
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.util
+
+import android.content.Context
+import android.database.ContentObserver
+import android.provider.ContactsContract
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Every phone number in the contacts provider, read with a single query and kept in memory, so
+ * that looking up the name, image or id for the sender of a message doesn't need a query of its
+ * own. A ContentObserver on the contacts provider throws everything away when a contact changes,
+ * and it is read again the next time it is needed.
+ *
+ * Numbers that aren't in the list are still looked up with ContactUtils' provider queries, since
+ * those can match parts of a number. The results of those are remembered as well, including the
+ * numbers that weren't found.
+ */
+object ContactResolutionCache {
+
+    class Entry(val contactId: Long, val name: String?, val imageUri: String?)
+
+    private val NOT_FOUND = Entry(-1L, null, null)
+    private const val MAX_REMEMBERED = 500
+    private val LOAD_RETRY_DELAY = TimeUtils.MINUTE
+
+    @Volatile private var contacts: PhoneNumberIndex<Pair<String, Entry>>? = null
+    private var lastFailedLoad = 0L
+    private var observer: ContentObserver? = null
+
+    private val remembered = ConcurrentHashMap<String, Entry>()
+    private val canonicalAddresses = ConcurrentHashMap<String, String>()
+
+    /**
+     * Finds the contact for a phone number.
+     *
+     * @param query looks the number up in the contacts provider, if it isn't in the cached list.
+     */
+    fun find(context: Context, number: String, key: String = number, query: () -> Entry?): Entry? {
+        val found = (contacts ?: contacts(context))?.find(number)?.second
+        if (found != null) {
+            return found
+        }
+
+        val previous = remembered[key]
+        if (previous != null) {
+            return if (previous === NOT_FOUND) null else previous
+        }
+
+        val queried = query()
+        if (remembered.size > MAX_REMEMBERED) {
+            remembered.clear()
+        }
+
+        remembered[key] = queried ?: NOT_FOUND
+        return queried
+    }
+
+    /**
+     * Gets the address for a recipient id from the internal sms database. These never change, so
+     * they are kept for as long as the process is alive.
+     */
+    fun findCanonicalAddress(recipientId: String, query: () -> String?): String? {
+        val previous = canonicalAddresses[recipientId]
+        if (previous != null) {
+            return previous
+        }
+
+        val address = query()
+        if (address != null) {
+            canonicalAddresses[recipientId] = address
+        }
+
+        return address
+    }
+
+    @Synchronized
+    fun invalidate() {
+        contacts = null
+        lastFailedLoad = 0L
+        remembered.clear()
+    }
+
+    @Synchronized
+    private fun contacts(context: Context): PhoneNumberIndex<Pair<String, Entry>>? {
+        val loaded = contacts
+        if (loaded != null || TimeUtils.now - lastFailedLoad < LOAD_RETRY_DELAY) {
+            return loaded
+        }
+
+        registerObserver(context)
+
+        val entries = ArrayList<Pair<String, Entry>>()
+        val cursor = try {
+            context.contentResolver.query(ContactsContract.CommonDataKinds.Phone.CONTENT_URI,
+                    arrayOf(ContactsContract.CommonDataKinds.Phone.NUMBER, ContactsContract.CommonDataKinds.Phone.CONTACT_ID,
+                            ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME, ContactsContract.CommonDataKinds.Phone.PHOTO_THUMBNAIL_URI),
+                    null, null, null)
+        } catch (e: Exception) {
+            // no permission to read the contacts yet
+            null
+        }
+
+        if (cursor == null) {
+            lastFailedLoad = TimeUtils.now
+            return null
+        }
+
+        if (cursor.moveToFirst()) {
+            do {
+                val number = cursor.getString(0) ?: continue
+                entries.add(number to Entry(cursor.getLong(1), cursor.getString(2)?.replace(",", ""),
+                        cursor.getString(3)?.replace("/photo", "")))
+            } while (cursor.moveToNext())
+        }
+
+        cursor.closeSilent()
+
+        val index = PhoneNumberIndex(entries) { it.first }
+        contacts = index
+        return index
+    }
+
+    private fun registerObserver(context: Context) {
+        if (observer != null) {
+            return
+        }
+
+        val observer = object : ContentObserver(null) {
+            override fun onChange(selfChange: Boolean) {
+                invalidate()
+                NotificationImageCache.clear()
+            }
+        }
+
+        try {
+            (context.applicationContext ?: context).contentResolver
+                    .registerContentObserver(ContactsContract.AUTHORITY_URI, true, observer)
+            this.observer = observer
+        } catch (e: Exception) {
+        }
+    }
+}
@@ -62,12 +62,22 @@ object ContactUtils {
             for (i in ids.indices) {
                 try {
                     if (ids[i] != "" || ids[i] != " ") {
-                        val number = context.contentResolver
-                                .query(Uri.parse("content://mms-sms/canonical-addresses"), null,
-                                        "_id=?", arrayOf(ids[i]), null)
+                        val address = ContactResolutionCache.findCanonicalAddress(ids[i]) {
+                            val number = context.contentResolver
+                                    .query(Uri.parse("content://mms-sms/canonical-addresses"), null,
+                                            "_id=?", arrayOf(ids[i]), null)
 
-                        if (number != null && number.moveToFirst()) {
-                            val address = number.getString(number.getColumnIndex("address"))
+                            val address = if (number != null && number.moveToFirst()) {
+                                number.getString(number.getColumnIndex("address"))
+                            } else {
+                                null
+                            }
+
+                            number?.closeSilent()
+                            address
+                        }
+
+                        if (address != null) {
                             val n = PhoneNumberUtils.clearFormatting(address)
                             if (n != null && n.isNotEmpty()) {
                                 numbers.add(n)
@@ -77,9 +87,6 @@ object ContactUtils {
                         } else {
                             numbers.add(ids[i])
                         }
-
-                        number?.closeSilent()
-
                     }
                 } catch (e: Exception) {
                     numbers.add("0")
@@ -206,40 +213,16 @@ object ContactUtils {
             val origin = number[i]
 
             try {
-                var phoneUri = Uri.withAppendedPath(ContactsContract.PhoneLookup.CONTENT_FILTER_URI,
-                        Uri.encode(origin))
-
-                var phonesCursor = context.contentResolver
-                        .query(phoneUri, arrayOf(ContactsContract.PhoneLookup.DISPLAY_NAME), null, null, null)
-
-                if (phonesCursor != null && phonesCursor.moveToFirst()) {
-                    names += ", " + phonesCursor.getString(0).replace(",".toRegex(), "")
-                } else if (useContentFilterQuery(origin)) {
-                    phoneUri = Uri.withAppendedPath(ContactsContract.CommonDataKinds.Phone.CONTENT_FILTER_URI,
-                            Uri.encode(origin))
-
-                    phonesCursor = context.contentResolver
-                            .query(phoneUri, arrayOf(ContactsContract.PhoneLookup.DISPLAY_NAME), null, null, null)
-
-                    names += if (phonesCursor != null && phonesCursor.moveToFirst()) {
-                        ", " + phonesCursor.getString(0).replace(",".toRegex(), "")
-                    } else {
-                        try {
-                            ", " + PhoneNumberUtils.format(number[i])!!
-                        } catch (e: Exception) {
-                            ", $number"
-                        }
-                    }
+                val name = findContact(origin, context)?.name
+                names += if (name != null) {
+                    ", $name"
                 } else {
-                    names += try {
+                    try {
                         ", " + PhoneNumberUtils.format(number[i])!!
                     } catch (e: Exception) {
                         ", $number"
                     }
-
                 }
-
-                phonesCursor?.closeSilent()
             } catch (e: Exception) {
                 e.printStackTrace()
             }
@@ -259,37 +242,8 @@ object ContactUtils {
      */
     @Throws(NoSuchElementException::class)
     fun findContactId(number: String, context: Context): Int {
-        try {
-            var phoneUri = Uri.withAppendedPath(ContactsContract.PhoneLookup.CONTENT_FILTER_URI,
-                    Uri.encode(number))
-
-            var phonesCursor = context.contentResolver
-                    .query(phoneUri, arrayOf(ContactsContract.PhoneLookup._ID), null, null, null)
-
-            if (phonesCursor != null && phonesCursor.moveToFirst()) {
-                val id = phonesCursor.getInt(0)
-                phonesCursor.close()
-                return id
-            } else if (useContentFilterQuery(number)) {
-                phoneUri = Uri.withAppendedPath(ContactsContract.CommonDataKinds.Phone.CONTENT_FILTER_URI,
-                        Uri.encode(number))
-
-                phonesCursor = context.contentResolver
-                        .query(phoneUri, arrayOf(ContactsContract.CommonDataKinds.Phone.CONTACT_ID), null, null, null)
-
-                if (phonesCursor != null && phonesCursor.moveToFirst()) {
-                    val id = phonesCursor.getInt(0)
-                    phonesCursor.close()
-                    return id
-                } else phonesCursor?.close()
-            } else phonesCursor?.close()
-        } catch (e: IllegalArgumentException) {
-            e.printStackTrace()
-        } catch (e: SecurityException) {
-            return -1
-        }
-
-        throw NoSuchElementException("Contact not found")
+        val contact = findContact(number, context) ?: throw NoSuchElementException("Contact not found")
+        return contact.contactId.toInt()
     }
 
     /**
@@ -304,48 +258,60 @@ object ContactUtils {
             return null
         }
 
-        var uri: String? = null
-
-        if (number == null || number.split(", ".toRegex()).dropLastWhile { it.isEmpty() }.toTypedArray().size > 1) {
-            return null
+        return if (number == null || number.split(", ").size > 1) {
+            null
         } else {
-            var phonesCursor: Cursor? = null
+            findContact(number, context, forceTryFilterQuery)?.imageUri
+        }
+    }
 
-            try {
-                var phoneUri = Uri.withAppendedPath(ContactsContract.PhoneLookup.CONTENT_FILTER_URI,
+    /**
+     * Looks the number up in the ContactResolutionCache. If it isn't one of the cached numbers, the
+     * contacts provider's phone lookup is queried, and if that doesn't match, the provider's
+     * filter, which can match part of a number.
+     */
+    private fun findContact(number: String, context: Context, forceTryFilterQuery: Boolean = false): ContactResolutionCache.Entry? {
+        val useFilter = forceTryFilterQuery || useContentFilterQuery(number)
+        return ContactResolutionCache.find(context, number, if (useFilter) "filter|$number" else number) {
+            queryContact(number, context, useFilter)
+        }
+    }
+
+    private fun queryContact(number: String, context: Context, useFilter: Boolean): ContactResolutionCache.Entry? {
+        var phonesCursor: Cursor? = null
+
+        try {
+            var phoneUri = Uri.withAppendedPath(ContactsContract.PhoneLookup.CONTENT_FILTER_URI,
+                    Uri.encode(number))
+
+            phonesCursor = context.contentResolver
+                    .query(phoneUri, arrayOf(ContactsContract.PhoneLookup._ID, ContactsContract.PhoneLookup.DISPLAY_NAME,
+                            ContactsContract.Contacts.PHOTO_THUMBNAIL_URI), null, null, null)
+
+            if (phonesCursor?.moveToFirst() == true) {
+                return ContactResolutionCache.Entry(phonesCursor.getLong(0), phonesCursor.getString(1)?.replace(",", ""),
+                        phonesCursor.getString(2)?.replace("/photo", ""))
+            } else if (useFilter) {
+                phoneUri = Uri.withAppendedPath(ContactsContract.CommonDataKinds.Phone.CONTENT_FILTER_URI,
                         Uri.encode(number))
 
+                phonesCursor?.closeSilent()
                 phonesCursor = context.contentResolver
-                        .query(phoneUri, arrayOf(ContactsContract.Contacts.PHOTO_THUMBNAIL_URI), null, null, null)
+                        .query(phoneUri, arrayOf(ContactsContract.CommonDataKinds.Phone.CONTACT_ID, ContactsContract.PhoneLookup.DISPLAY_NAME,
+                                ContactsContract.Contacts.PHOTO_THUMBNAIL_URI), null, null, null)
 
                 if (phonesCursor?.moveToFirst() == true) {
-                    uri = phonesCursor.getString(0)
-                    if (uri != null) {
-                        uri = uri.replace("/photo", "")
-                    }
-                } else if (forceTryFilterQuery || useContentFilterQuery(number)) {
-                    phoneUri = Uri.withAppendedPath(ContactsContract.CommonDataKinds.Phone.CONTENT_FILTER_URI,
-                            Uri.encode(number))
-
-                    phonesCursor?.closeSilent()
-                    phonesCursor = context.contentResolver
-                            .query(phoneUri, arrayOf(ContactsContract.Contacts.PHOTO_THUMBNAIL_URI), null, null, null)
-
-                    if (phonesCursor?.moveToFirst() == true) {
-                        uri = phonesCursor.getString(0)
-//                        if (uri != null) {
-//                            uri = uri.replace("/photo", "")
-//                        }
-                    }
+                    return ContactResolutionCache.Entry(phonesCursor.getLong(0), phonesCursor.getString(1)?.replace(",", ""),
+                            phonesCursor.getString(2))
                 }
-
-            } catch (e: Exception) {
-                e.printStackTrace()
             }
-
+        } catch (e: Exception) {
+            e.printStackTrace()
+        } finally {
             phonesCursor?.closeSilent()
-            return uri
         }
+
+        return null
     }
 
     fun shouldDisplayContactLetter(conversation: Conversation?) = try {
@@ -552,9 +518,10 @@ object ContactUtils {
                               dataSource: DataSource, context: Context): Map<String, Contact> {
         val contactMap = HashMap<String, Contact>()
         val phoneNumbers = numbers.split(", ".toRegex()).dropLastWhile { it.isEmpty() }.toTypedArray()
+        val contactIndex = PhoneNumberIndex(contacts) { it.phoneNumber }
 
         for (number in phoneNumbers) {
-            var contact = getContactFromList(contacts, number)
+            var contact = getContactFromList(contactIndex, number)
 
             if (contact == null) {
                 contact = Contact()
@@ -595,8 +562,8 @@ object ContactUtils {
         return list.firstOrNull { it.name == name }
     }
 
-    private fun getContactFromList(list: List<Contact>, number: String): Contact? {
-        return list.firstOrNull { PhoneNumberUtils.checkEquality(it.phoneNumber!!, number) }
+    private fun getContactFromList(list: PhoneNumberIndex<Contact>, number: String): Contact? {
+        return list.find(number)
     }
 
     /**
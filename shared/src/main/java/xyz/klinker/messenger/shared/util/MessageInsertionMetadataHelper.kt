@@ -60,7 +60,7 @@ class MessageInsertionMetadataHelper(private val context: Context) {
     }
 
     private fun canProcessAutoReply(message: Message, conversation: Conversation) =
-            AutoReplyParserService.createParsers(context, conversation, message).isNotEmpty()
+            AutoReplyParserService.hasParsers(context, conversation, message)
 
     private fun canProcessVcard(message: Message) =
             VcardParserService.createParsers(context, message).isNotEmpty()
@@ -79,6 +79,41 @@ class MessageListStylingHelper(context: Context?) {
         return this
     }
 
+    /**
+     * Takes the neighbouring messages from a list that has already been read out of the database,
+     * instead of moving through a cursor.
+     *
+     * @param last the message above this one in the list, if there is one.
+     * @param next the message below this one in the list, if there is one.
+     */
+    fun calculateAdjacentItems(current: Message, last: Message?, next: Message?): MessageListStylingHelper {
+        currentType = current.type
+        currentTimestamp = current.timestamp
+        currentFrom = current.from
+
+        if (last != null) {
+            lastType = last.type
+            lastTimestamp = last.timestamp
+            lastFrom = last.from
+        } else {
+            lastType = -1
+            lastTimestamp = -1
+            lastFrom = null
+        }
+
+        if (next != null) {
+            nextType = next.type
+            nextTimestamp = next.timestamp
+            nextFrom = next.from
+        } else {
+            nextType = -1
+            nextTimestamp = TimeUtils.now
+            nextFrom = null
+        }
+
+        return this
+    }
+
     fun setMargins(itemView: View): MessageListStylingHelper {
         if (itemView.layoutParams == null) {
             return this
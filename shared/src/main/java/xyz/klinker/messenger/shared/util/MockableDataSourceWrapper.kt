@@ -20,4 +20,12 @@ class MockableDataSourceWrapper(private val source: DataSource) {
     fun getConversation(context: Context, conversationId: Long): Conversation? {
         return source.getConversation(context, conversationId)
     }
+
+    fun getUnseenMessagesWithConversations(context: Context): Cursor {
+        return source.getUnseenMessagesWithConversations(context)
+    }
+
+    fun getLatestMessages(context: Context, conversationIds: Collection<Long>, count: Int): Map<Long, List<Message>> {
+        return source.getLatestMessages(context, conversationIds, count)
+    }
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.util
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.util.LruCache
+import xyz.klinker.messenger.shared.data.Settings
+import xyz.klinker.messenger.shared.data.pojo.NotificationConversation
+
+/**
+ * Images that have already been decoded and scaled for a notification. Every new message used to
+ * decode the full size contact photo again, clip it and scale it down, once for the large icon,
+ * once for the bubble and once more for the messaging style.
+ *
+ * Entries are keyed by the uri and the size they were scaled to, and the cache is bounded by the
+ * number of bytes in the bitmaps. The DataSource clears it whenever contacts or conversation
+ * images change, since the same uri can point at a new photo.
+ */
+object NotificationImageCache {
+
+    private val cache = object : LruCache<String, Bitmap>(maxSize()) {
+        override fun sizeOf(key: String, value: Bitmap) = value.byteCount
+    }
+
+    /**
+     * @return the image at the uri, clipped to a circle and scaled to the notification's large
+     * icon size.
+     */
+    fun getContactImage(context: Context, uri: String?): Bitmap? {
+        if (uri == null) {
+            return null
+        }
+
+        val width = largeIconSize(context, android.R.dimen.notification_large_icon_width)
+        val height = largeIconSize(context, android.R.dimen.notification_large_icon_height)
+
+        return getOrCreate("contact|$uri|${width}x$height") {
+            val image = ImageUtils.clipToCircle(ImageUtils.getBitmap(context, uri))
+            if (image != null && width > 0 && height > 0) {
+                try {
+                    Bitmap.createScaledBitmap(image, width, height, true)
+                } catch (e: Exception) {
+                    image
+                }
+            } else {
+                image
+            }
+        }
+    }
+
+    fun getLetterPicture(context: Context, conversation: NotificationConversation): Bitmap? {
+        val color = if (Settings.useGlobalThemeColor) Settings.mainColorSet.color else conversation.color
+        return getOrCreate("letter|${conversation.title}|$color") {
+            ContactImageCreator.getLetterPicture(context, conversation)
+        }
+    }
+
+    /**
+     * @return the image at the uri, scaled down so that neither side is larger than a notification
+     * could display.
+     */
+    fun getPicture(context: Context, uri: String?): Bitmap? {
+        if (uri == null) {
+            return null
+        }
+
+        val maxSize = DensityUtil.toDp(context, MAX_PICTURE_DP)
+        return getOrCreate("picture|$uri|$maxSize") {
+            val image = ImageUtils.getBitmap(context, uri)
+            if (image != null && maxSize > 0 && (image.width > maxSize || image.height > maxSize)) {
+                val scale = maxSize.toFloat() / Math.max(image.width, image.height)
+                try {
+                    Bitmap.createScaledBitmap(image, Math.max(1, (image.width * scale).toInt()),
+                            Math.max(1, (image.height * scale).toInt()), true)
+                } catch (e: Exception) {
+                    image
+                }
+            } else {
+                image
+            }
+        }
+    }
+
+    fun clear() {
+        cache.evictAll()
+    }
+
+    private fun getOrCreate(key: String, create: () -> Bitmap?): Bitmap? {
+        val cached = cache.get(key)
+        if (cached != null) {
+            return cached
+        }
+
+        val image = try {
+            create()
+        } catch (e: OutOfMemoryError) {
+            null
+        }
+
+        if (image != null) {
+            cache.put(key, image)
+        }
+
+        return image
+    }
+
+    private fun largeIconSize(context: Context, dimen: Int) = try {
+        context.resources.getDimension(dimen).toInt()
+    } catch (e: Exception) {
+        0
+    }
+
+    private fun maxSize(): Int {
+        val maxBytes = Runtime.getRuntime().maxMemory() / 32
+        return Math.min(maxBytes, MAX_CACHE_BYTES.toLong()).toInt()
+    }
+
+    private const val MAX_PICTURE_DP = 450
+    private const val MAX_CACHE_BYTES = 8 * 1024 * 1024
+}
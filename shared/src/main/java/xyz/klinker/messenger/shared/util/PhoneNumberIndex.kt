@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.util
+
+/**
+ * A list of items keyed by the last digits of their phone numbers, so that a number can be found
+ * without comparing it to every item in the list. Two numbers that are equal have the same last
+ * seven digits, so only the items with the same suffix need to be checked with
+ * PhoneNumberUtils.checkEquality, which is the comparison the contacts provider uses.
+ *
+ * If more than one item matches, the first one in the list is returned.
+ */
+class PhoneNumberIndex<T>(items: Iterable<T>, number: (T) -> String?) {
+
+    private val index = HashMap<String, MutableList<Pair<String, T>>>()
+
+    init {
+        for (item in items) {
+            val itemNumber = number(item) ?: continue
+            index.getOrPut(key(itemNumber)) { mutableListOf() }.add(itemNumber to item)
+        }
+    }
+
+    fun find(number: String): T? {
+        val candidates = index[key(number)] ?: return null
+        return candidates.firstOrNull { PhoneNumberUtils.checkEquality(it.first, number) }?.second
+    }
+
+    companion object {
+        private const val SUFFIX_LENGTH = 7
+
+        internal fun key(number: String): String {
+            val digits = number.filter { it in '0'..'9' }
+            return when {
+                digits.length >= SUFFIX_LENGTH -> digits.substring(digits.length - SUFFIX_LENGTH)
+                digits.isNotEmpty() -> digits
+                else -> number.toLowerCase()
+            }
+        }
+    }
+}
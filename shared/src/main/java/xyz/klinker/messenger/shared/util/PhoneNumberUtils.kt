@@ -62,7 +62,7 @@ object PhoneNumberUtils {
             return ""
         }
 
-        return if (number.matches(".*[a-zA-Z].*".toRegex())) {
+        return if (number.any { it in 'a'..'z' || it in 'A'..'Z' }) {
             number
         } else if (!isEmailAddress(number)) {
             android.telephony.PhoneNumberUtils.stripSeparators(number)
@@ -207,9 +207,9 @@ object PhoneNumberUtils {
     }
 
     fun clearFormattingAndStripStandardReplacements(number: String): String {
-        return clearFormatting(number).replace("-".toRegex(), "")
-                .replace(" ".toRegex(), "")
-                .replace("/+".toRegex(), "")
+        return clearFormatting(number).replace("-", "")
+                .replace(" ", "")
+                .replace("/", "")
                 .replace("(", "")
                 .replace(")", "")
     }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2020 Luke Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.klinker.messenger.shared.util
+
+import java.util.ArrayDeque
+
+/**
+ * Aho-Corasick automaton for finding which of a list of phrases appear in a piece of text. The
+ * text is read once, no matter how many phrases there are.
+ *
+ * Matching is exact, so lowercase both the phrases and the text for a case insensitive search.
+ */
+class PhraseAutomaton(phrases: List<String>) {
+
+    private class Node {
+        val next = HashMap<Char, Node>()
+        var fail: Node? = null
+        var matches = IntArray(0)
+    }
+
+    private val root = Node()
+
+    init {
+        phrases.forEachIndexed { index, phrase ->
+            var node = root
+            for (c in phrase) {
+                node = node.next.getOrPut(c) { Node() }
+            }
+
+            node.matches += index
+        }
+
+        // breadth first, so the fail link of a node's parent is always set before the node's
+        val queue = ArrayDeque<Node>()
+        for (child in root.next.values) {
+            child.fail = root
+            queue.add(child)
+        }
+
+        while (queue.isNotEmpty()) {
+            val node = queue.poll()
+            for ((c, child) in node.next) {
+                var fail = node.fail
+                while (fail != null && !fail.next.containsKey(c)) {
+                    fail = fail.fail
+                }
+
+                child.fail = fail?.next?.get(c) ?: root
+                child.matches += child.fail!!.matches
+                queue.add(child)
+            }
+        }
+    }
+
+    fun containsAny(text: String): Boolean {
+        if (root.matches.isNotEmpty()) {
+            return true
+        }
+
+        var node = root
+        for (c in text) {
+            node = step(node, c)
+            if (node.matches.isNotEmpty()) {
+                return true
+            }
+        }
+
+        return false
+    }
+
+    /**
+     * @return the indexes of every phrase that appears in the text.
+     */
+    fun findAll(text: String): Set<Int> {
+        val found = HashSet<Int>()
+        found.addAll(root.matches.toList())
+
+        var node = root
+        for (c in text) {
+            node = step(node, c)
+            for (index in node.matches) {
+                found.add(index)
+            }
+        }
+
+        return found
+    }
+
+    private fun step(from: Node, c: Char): Node {
+        var node = from
+        while (node !== root && !node.next.containsKey(c)) {
+            node = node.fail!!
+        }
+
+        return node.next[c] ?: root
+    }
+}
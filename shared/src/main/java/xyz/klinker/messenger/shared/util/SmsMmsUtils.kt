@@ -56,6 +56,17 @@ object SmsMmsUtils {
 
     private const val INITIAL_CONVERSATION_LIMIT = 250
     const val INITIAL_MESSAGE_LIMIT = 500
+    private const val MMS_PART_QUERY_SIZE = 250
+
+    /**
+     * A thread from the internal sms database, before any of its contacts have been looked up.
+     */
+    class SmsThread(val id: Long, val timestamp: Long, val recipientIds: String, val snippet: String?, val read: Boolean)
+
+    /**
+     * A part of an mms message, from content://mms/part.
+     */
+    class MmsPart(val id: String, val mimeType: String?, val data: String?, val text: String?)
 
     /**
      * Gets a list of conversations from the internal sms database that is ready to be inserted
@@ -69,7 +80,15 @@ object SmsMmsUtils {
             return emptyList()
         }
 
-        val conversations = ArrayList<Conversation>()
+        return queryThreads(context).map { buildConversation(it, context) }
+    }
+
+    /**
+     * Gets the newest threads from the internal sms database. Use buildConversation() to look up
+     * the contacts for each of them.
+     */
+    fun queryThreads(context: Context): List<SmsThread> {
+        val threads = ArrayList<SmsThread>()
 
         val projection = arrayOf(Telephony.ThreadsColumns._ID, Telephony.ThreadsColumns.DATE, Telephony.ThreadsColumns.MESSAGE_COUNT, Telephony.ThreadsColumns.RECIPIENT_IDS, Telephony.ThreadsColumns.SNIPPET, Telephony.ThreadsColumns.READ)
 
@@ -88,34 +107,43 @@ object SmsMmsUtils {
 
         if (cursor != null && cursor.moveToFirst()) {
             do {
-                val conversation = Conversation()
-                conversation.id = cursor.getLong(0)
-                conversation.pinned = false
-                conversation.read = cursor.getInt(5) == 1
-                conversation.timestamp = cursor.getLong(1)
-                conversation.snippet = cursor.getString(4)
-                conversation.ringtoneUri = null
-                conversation.phoneNumbers = ContactUtils.findContactNumbers(cursor.getString(3), context)
-                conversation.title = ContactUtils.findContactNames(conversation.phoneNumbers, context)
-                conversation.imageUri = ContactUtils.findImageUri(conversation.phoneNumbers, context)
-                conversation.idMatcher = createIdMatcher(conversation.phoneNumbers!!).default
-                conversation.mute = false
-                conversation.private = false
-                conversation.ledColor = Color.WHITE
-                ImageUtils.fillConversationColors(conversation, context)
-                conversation.simSubscriptionId = -1
-                conversation.folderId = -1
-
-                // I used this to hide the true contact numbers, when generating conversations
-                // for the Apple App Store tester account
-                //conversation.phoneNumbers = randomNumber()
-
-                conversations.add(conversation)
-            } while (cursor.moveToNext() && conversations.size < INITIAL_CONVERSATION_LIMIT)
+                threads.add(SmsThread(cursor.getLong(0), cursor.getLong(1), cursor.getString(3) ?: "",
+                        cursor.getString(4), cursor.getInt(5) == 1))
+            } while (cursor.moveToNext() && threads.size < INITIAL_CONVERSATION_LIMIT)
         }
 
         cursor?.closeSilent()
-        return conversations
+        return threads
+    }
+
+    /**
+     * Looks up the numbers, names, image and colors for a thread. This is a handful of queries
+     * against the contacts provider, and a palette if the contact has an image.
+     */
+    fun buildConversation(thread: SmsThread, context: Context): Conversation {
+        val conversation = Conversation()
+        conversation.id = thread.id
+        conversation.pinned = false
+        conversation.read = thread.read
+        conversation.timestamp = thread.timestamp
+        conversation.snippet = thread.snippet
+        conversation.ringtoneUri = null
+        conversation.phoneNumbers = ContactUtils.findContactNumbers(thread.recipientIds, context)
+        conversation.title = ContactUtils.findContactNames(conversation.phoneNumbers, context)
+        conversation.imageUri = ContactUtils.findImageUri(conversation.phoneNumbers, context)
+        conversation.idMatcher = createIdMatcher(conversation.phoneNumbers!!).default
+        conversation.mute = false
+        conversation.private = false
+        conversation.ledColor = Color.WHITE
+        ImageUtils.fillConversationColors(conversation, context)
+        conversation.simSubscriptionId = -1
+        conversation.folderId = -1
+
+        // I used this to hide the true contact numbers, when generating conversations
+        // for the Apple App Store tester account
+        //conversation.phoneNumbers = randomNumber()
+
+        return conversation
     }
 
     fun randomNumber(): String {
@@ -145,9 +173,10 @@ object SmsMmsUtils {
      * @return the combined string.
      */
     fun createIdMatcher(phoneNumbers: String): IdMatcher {
-        val numbers = phoneNumbers.split(", ".toRegex())
+        val numbers = phoneNumbers.split(", ")
                 .dropLastWhile { it.isEmpty() }
-                .map { it.replace("-".toRegex(), "").replace(" ".toRegex(), "").replace("/+".toRegex(), "") }
+                .map { it.replace("-", "").replace(" ", "").replace("/", "") }
+        val unformattedNumbers = numbers.map { PhoneNumberUtils.clearFormatting(it) }
 
         val fiveMatchers = ArrayList<String>()
         val sevenMatchers = ArrayList<String>()
@@ -172,14 +201,13 @@ object SmsMmsUtils {
             }
         }
 
-        numbers.map { PhoneNumberUtils.clearFormatting(it) }
-                .forEach {
-                    when {
-                        it.contains("@") -> sevenMatchersNoFormatting.add(it)
-                        it.length >= 7 -> sevenMatchersNoFormatting.add(it.substring(it.length - 7))
-                        else -> sevenMatchersNoFormatting.add(it)
-                    }
-                }
+        unformattedNumbers.forEach {
+            when {
+                it.contains("@") -> sevenMatchersNoFormatting.add(it)
+                it.length >= 7 -> sevenMatchersNoFormatting.add(it.substring(it.length - 7))
+                else -> sevenMatchersNoFormatting.add(it)
+            }
+        }
 
         numbers.forEach {
             when {
@@ -189,14 +217,13 @@ object SmsMmsUtils {
             }
         }
 
-        numbers.map { PhoneNumberUtils.clearFormatting(it) }
-                .forEach {
-                    when {
-                        it.contains("@") -> eightMatchersNoFormatting.add(it)
-                        it.length >= 8 -> eightMatchersNoFormatting.add(it.substring(it.length - 8))
-                        else -> eightMatchersNoFormatting.add(it)
-                    }
-                }
+        unformattedNumbers.forEach {
+            when {
+                it.contains("@") -> eightMatchersNoFormatting.add(it)
+                it.length >= 8 -> eightMatchersNoFormatting.add(it.substring(it.length - 8))
+                else -> eightMatchersNoFormatting.add(it)
+            }
+        }
 
         numbers.forEach {
             when {
@@ -274,9 +301,15 @@ object SmsMmsUtils {
      *
      * @param messages       the cursor holding the message.
      * @param conversationId the conversation id from our own internal database.
+     * @param parts          the parts of the message, if it is mms and they have already been
+     *                       loaded with queryMmsParts(). Otherwise, they are queried here.
+     * @param contactNames   names that have already been looked up for the senders, which the
+     *                       new ones will be added to.
      * @return the content values to insert into our database.
      */
-    fun processMessage(messages: Cursor, conversationId: Long, context: Context?): List<ContentValues> {
+    @JvmOverloads
+    fun processMessage(messages: Cursor, conversationId: Long, context: Context?, parts: List<MmsPart>? = null,
+                       contactNames: MutableMap<String, String>? = null): List<ContentValues> {
         if (context == null) {
             return emptyList()
         }
@@ -300,62 +333,88 @@ object SmsMmsUtils {
                 values.add(message)
             }
         } else {
-            val uri = Uri.parse("content://mms/" + messages.getLong(0))
+            val messageId = messages.getLong(0)
+            val uri = Uri.parse("content://mms/$messageId")
             val number = getMmsFrom(uri, context)
-            val from = ContactUtils.findContactNames(number, context)
-            val mId = "mid=" + messages.getString(0)
+            val from = contactNames?.getOrPut(number) { ContactUtils.findContactNames(number, context) }
+                    ?: ContactUtils.findContactNames(number, context)
             val type = getMmsMessageType(messages)
 
-            val query = context.contentResolver.query(Uri.parse("content://mms/part"),
-                    arrayOf(Telephony.Mms.Part._ID, Telephony.Mms.Part.CONTENT_TYPE, Telephony.Mms.Part._DATA, Telephony.Mms.Part.TEXT),
-                    mId, null, null)
-
-            if (query != null && query.moveToFirst()) {
-                do {
-                    val partId = query.getString(0)
-                    val mimeType = query.getString(1)
-
-                    if (mimeType != null && MimeType.isSupported(mimeType)) {
-                        val message = ContentValues(9)
-                        message.put(Message.COLUMN_CONVERSATION_ID, conversationId)
-                        message.put(Message.COLUMN_TYPE, type)
-                        message.put(Message.COLUMN_MIME_TYPE, mimeType)
-                        message.put(Message.COLUMN_TIMESTAMP, messages
-                                .getLong(messages.getColumnIndex(Telephony.Sms.DATE)) * 1000)
-                        message.put(Message.COLUMN_READ, messages
-                                .getInt(messages.getColumnIndex(Telephony.Sms.READ)))
-                        message.put(Message.COLUMN_SEEN, true)
-                        message.put(Message.COLUMN_FROM, from)
+            val messageParts = parts ?: queryMmsParts(context, listOf(messageId))[messageId] ?: emptyList()
+            for (part in messageParts) {
+                val partId = part.id
+                val mimeType = part.mimeType
+
+                if (mimeType != null && MimeType.isSupported(mimeType)) {
+                    val message = ContentValues(9)
+                    message.put(Message.COLUMN_CONVERSATION_ID, conversationId)
+                    message.put(Message.COLUMN_TYPE, type)
+                    message.put(Message.COLUMN_MIME_TYPE, mimeType)
+                    message.put(Message.COLUMN_TIMESTAMP, messages
+                            .getLong(messages.getColumnIndex(Telephony.Sms.DATE)) * 1000)
+                    message.put(Message.COLUMN_READ, messages
+                            .getInt(messages.getColumnIndex(Telephony.Sms.READ)))
+                    message.put(Message.COLUMN_SEEN, true)
+                    message.put(Message.COLUMN_FROM, from)
 //                        message.put(Message.COLUMN_COLOR, null)
 
-                        if (mimeType == MimeType.TEXT_PLAIN) {
-                            val data = query.getString(2)
-                            var text = if (data != null) {
-                                getMmsText(partId, context)
-                            } else {
-                                query.getString(3)
-                            }
-
-                            if (text == null) {
-                                text = ""
-                            }
-
-                            if (text.trim { it <= ' ' }.isNotEmpty()) {
-                                message.put(Message.COLUMN_DATA, text.trim { it <= ' ' })
-                                values.add(message)
-                            }
+                    if (mimeType == MimeType.TEXT_PLAIN) {
+                        var text = if (part.data != null) {
+                            getMmsText(partId, context)
                         } else {
-                            message.put(Message.COLUMN_DATA, "content://mms/part/" + partId)
+                            part.text
+                        }
+
+                        if (text == null) {
+                            text = ""
+                        }
+
+                        if (text.trim { it <= ' ' }.isNotEmpty()) {
+                            message.put(Message.COLUMN_DATA, text.trim { it <= ' ' })
                             values.add(message)
                         }
+                    } else {
+                        message.put(Message.COLUMN_DATA, "content://mms/part/" + partId)
+                        values.add(message)
                     }
+                }
+            }
+        }
+
+        return values
+    }
+
+    /**
+     * Loads the parts for a list of mms messages, with one query for every few hundred messages
+     * instead of one for each message.
+     *
+     * @return the parts for each of the message ids, in the order the provider returned them.
+     */
+    fun queryMmsParts(context: Context, messageIds: List<Long>): Map<Long, List<MmsPart>> {
+        val parts = HashMap<Long, MutableList<MmsPart>>()
+
+        for (chunk in messageIds.chunked(MMS_PART_QUERY_SIZE)) {
+            val selection = Telephony.Mms.Part.MSG_ID + " IN (" + chunk.joinToString(",") { "?" } + ")"
+            val query = try {
+                context.contentResolver.query(Uri.parse("content://mms/part"),
+                        arrayOf(Telephony.Mms.Part._ID, Telephony.Mms.Part.CONTENT_TYPE, Telephony.Mms.Part._DATA,
+                                Telephony.Mms.Part.TEXT, Telephony.Mms.Part.MSG_ID),
+                        selection, chunk.map { it.toString() }.toTypedArray(), null)
+            } catch (e: Exception) {
+                null
+            }
+
+            if (query != null && query.moveToFirst()) {
+                do {
+                    parts.getOrPut(query.getLong(4)) { mutableListOf() }
+                            .add(MmsPart(query.getString(0), query.getString(1), query.getString(2), query.getString(3)))
                 } while (query.moveToNext())
             }
 
-            query.closeSilent()
+            query?.closeSilent()
         }
 
-        return values
+        return parts
     }
 
     /**
@@ -365,7 +424,7 @@ object SmsMmsUtils {
      * @param message the message to try.
      * @return true for sms, false for mms.
      */
-    private fun isSms(message: Cursor): Boolean {
+    fun isSms(message: Cursor): Boolean {
         return message.getString(message.getColumnIndex(Telephony.Mms.MESSAGE_BOX)) == null
     }
 
@@ -81,7 +81,7 @@ class SmsReceivedHandler(private val context: Context) {
                 }
             }
 
-            Notifier(context).notify()
+            Notifier(context).notifyCoalesced()
         }
 
         return false
@@ -14,7 +14,9 @@ import xyz.klinker.messenger.api.implementation.firebase.ScheduledTokenRefreshSe
 import xyz.klinker.messenger.shared.R
 import xyz.klinker.messenger.shared.data.Settings
 import xyz.klinker.messenger.shared.data.pojo.SwipeOption
+import xyz.klinker.messenger.shared.service.ApiDownloadService
 import xyz.klinker.messenger.shared.service.ContactResyncService
+import xyz.klinker.messenger.shared.service.SyncWatermarks
 import xyz.klinker.messenger.shared.service.jobs.*
 
 class UpdateUtils(private val context: Activity) {
@@ -42,6 +44,17 @@ class UpdateUtils(private val context: Activity) {
             }
         }
 
+        if (sharedPreferences.getBoolean("seed_sync_watermarks", true)) {
+            sharedPreferences.edit().putBoolean("seed_sync_watermarks", false).commit()
+
+            // devices that downloaded their data before delta syncs existed never had a full
+            // download set the watermarks. Start them far enough back that nothing they have
+            // missed recently is skipped; changes that get applied twice are just written over.
+            if (Account.exists() && !Account.primary && !ApiDownloadService.IS_RUNNING) {
+                SyncWatermarks(context).seed(TimeUtils.now - WATERMARK_SEED_AGE)
+            }
+        }
+
         val currentAppVersion = appVersion
 
         return if (storedAppVersion != currentAppVersion) {
@@ -56,6 +69,7 @@ class UpdateUtils(private val context: Activity) {
     companion object {
 
         private const val TAG = "UpdateUtil"
+        private val WATERMARK_SEED_AGE = TimeUtils.DAY * 7
 
         fun rescheduleWork(context: Context) {
             if (Build.FINGERPRINT == "robolectric") {
@@ -72,6 +86,7 @@ class UpdateUtils(private val context: Activity) {
             SignoutJob.scheduleNextRun(context)
             ScheduledTokenRefreshService.scheduleNextRun(context)
             SyncRetryableRequestsWork.scheduleNextRun(context)
+            DeltaSyncWork.scheduleNextRun(context)
             RepostQuickComposeNotificationWork.scheduleNextRun(context)
         }
 
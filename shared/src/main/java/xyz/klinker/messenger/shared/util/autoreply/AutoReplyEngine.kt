@@ -0,0 +1,121 @@
+package xyz.klinker.messenger.shared.util.autoreply
+
+import android.content.Context
+import xyz.klinker.messenger.shared.data.MimeType
+import xyz.klinker.messenger.shared.data.model.AutoReply
+import xyz.klinker.messenger.shared.data.model.Conversation
+import xyz.klinker.messenger.shared.data.model.Message
+import xyz.klinker.messenger.shared.util.PhraseAutomaton
+import xyz.klinker.messenger.shared.util.SmsMmsUtils
+import xyz.klinker.messenger.shared.util.autoreply.parsers.ContactReplyParser
+import xyz.klinker.messenger.shared.util.autoreply.parsers.DrivingReplyParser
+import xyz.klinker.messenger.shared.util.autoreply.parsers.KeywordReplyParser
+import xyz.klinker.messenger.shared.util.autoreply.parsers.VacationReplyParser
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Every auto reply, built into parsers once and indexed so that a message can be checked against
+ * all of them at the same time. The DataSource keeps one of these until the auto replies change,
+ * or driving or vacation mode is toggled.
+ *
+ * When driving or vacation mode is on, that is the only reply that will be sent. Otherwise, contact
+ * replies are looked up by the conversation's id matcher, and all of the keywords are found in a
+ * single pass over the message.
+ */
+class AutoReplyEngine(context: Context, replies: List<AutoReply>,
+                      val drivingMode: Boolean, val vacationMode: Boolean) {
+
+    private val parsers = replies.filter { it.response?.isNotBlank() == true }
+            .mapNotNull { mapToParser(context, it) }
+
+    private val exclusive = when {
+        drivingMode && parsers.any { it is DrivingReplyParser } -> parsers.first { it is DrivingReplyParser }
+        vacationMode && parsers.any { it is VacationReplyParser } -> parsers.first { it is VacationReplyParser }
+        else -> null
+    }
+
+    private val contacts = HashMap<String, MutableList<Int>>()
+    private val keywordPositions = ArrayList<Int>()
+    private val keywords: PhraseAutomaton
+
+    // the parsers found when deciding whether to start the AutoReplyParserService, so that the
+    // service doesn't have to look for them again
+    private val evaluated = ConcurrentHashMap<Long, List<AutoReplyParser>>()
+
+    init {
+        val keywordPatterns = ArrayList<String>()
+
+        parsers.forEachIndexed { position, parser ->
+            val pattern = parser.reply.pattern ?: return@forEachIndexed
+            when (parser) {
+                is ContactReplyParser -> contacts.getOrPut(SmsMmsUtils.createIdMatcher(pattern).default) { mutableListOf() }.add(position)
+                is KeywordReplyParser -> {
+                    keywordPatterns.add(pattern.toLowerCase())
+                    keywordPositions.add(position)
+                }
+            }
+        }
+
+        keywords = PhraseAutomaton(keywordPatterns)
+    }
+
+    /**
+     * @return the parsers that should reply to the message, in the order that the replies are
+     * stored.
+     */
+    fun evaluate(conversation: Conversation, message: Message): List<AutoReplyParser> {
+        val previous = evaluated.remove(message.id)
+        if (previous != null) {
+            return previous
+        }
+
+        if (exclusive != null) {
+            return listOf(exclusive)
+        }
+
+        val positions = sortedSetOf<Int>()
+
+        val phoneNumbers = conversation.phoneNumbers
+        if (phoneNumbers != null && contacts.isNotEmpty()) {
+            contacts[SmsMmsUtils.createIdMatcher(phoneNumbers).default]?.let { positions.addAll(it) }
+        }
+
+        val text = message.data
+        if (text != null && message.mimeType == MimeType.TEXT_PLAIN && keywordPositions.isNotEmpty()) {
+            keywords.findAll(text.toLowerCase()).forEach { positions.add(keywordPositions[it]) }
+        }
+
+        return positions.map { parsers[it] }
+    }
+
+    /**
+     * Evaluates the message and holds on to the result, for the next time the same message is
+     * evaluated.
+     */
+    fun evaluateAndRemember(conversation: Conversation, message: Message): List<AutoReplyParser> {
+        val parsers = evaluate(conversation, message)
+        if (parsers.isNotEmpty()) {
+            if (evaluated.size > MAX_REMEMBERED) {
+                evaluated.clear()
+            }
+
+            evaluated[message.id] = parsers
+        }
+
+        return parsers
+    }
+
+    private fun mapToParser(context: Context, reply: AutoReply): AutoReplyParser? {
+        return when (reply.type) {
+            AutoReply.TYPE_VACATION -> VacationReplyParser(context, reply)
+            AutoReply.TYPE_DRIVING -> DrivingReplyParser(context, reply)
+            AutoReply.TYPE_CONTACT -> ContactReplyParser(context, reply)
+            AutoReply.TYPE_KEYWORD -> KeywordReplyParser(context, reply)
+            else -> null
+        }
+    }
+
+    companion object {
+        private const val MAX_REMEMBERED = 50
+    }
+}
@@ -7,7 +7,7 @@ import xyz.klinker.messenger.shared.data.model.AutoReply
 import xyz.klinker.messenger.shared.data.model.Conversation
 import xyz.klinker.messenger.shared.data.model.Message
 
-abstract class AutoReplyParser(protected var context: Context?, protected val reply: AutoReply) {
+abstract class AutoReplyParser(protected var context: Context?, val reply: AutoReply) {
 
     abstract fun canParse(conversation: Conversation, message: Message): Boolean
 
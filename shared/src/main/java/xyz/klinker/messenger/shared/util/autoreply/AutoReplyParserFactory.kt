@@ -2,46 +2,20 @@ package xyz.klinker.messenger.shared.util.autoreply
 
 import android.content.Context
 import xyz.klinker.messenger.shared.data.DataSource
-import xyz.klinker.messenger.shared.data.Settings
-import xyz.klinker.messenger.shared.data.model.AutoReply
 import xyz.klinker.messenger.shared.data.model.Conversation
 import xyz.klinker.messenger.shared.data.model.Message
-import xyz.klinker.messenger.shared.util.autoreply.parsers.ContactReplyParser
-import xyz.klinker.messenger.shared.util.autoreply.parsers.DrivingReplyParser
-import xyz.klinker.messenger.shared.util.autoreply.parsers.KeywordReplyParser
-import xyz.klinker.messenger.shared.util.autoreply.parsers.VacationReplyParser
 
 class AutoReplyParserFactory {
 
     fun getInstances(context: Context, conversation: Conversation, message: Message): List<AutoReplyParser> {
-        return buildParsers(context).filter { it.canParse(conversation, message) }
+        return DataSource.getAutoReplyEngine(context).evaluate(conversation, message)
     }
 
-    private fun buildParsers(context: Context): List<AutoReplyParser> {
-        val parsers = DataSource.getAutoRepliesAsList(context)
-                .filter { it.response!!.isNotBlank() }
-                .mapNotNull { mapToParser(context, it) }
-
-        val driving = parsers.firstOrNull { it is DrivingReplyParser }
-        if (driving != null && Settings.drivingMode) {
-            return listOf(driving)
-        }
-
-        val vacation = parsers.firstOrNull { it is VacationReplyParser }
-        if (vacation != null && Settings.vacationMode) {
-            return listOf(vacation)
-        }
-
-        return parsers
-    }
-
-    private fun mapToParser(context: Context, reply: AutoReply): AutoReplyParser? {
-        return when (reply.type) {
-            AutoReply.TYPE_VACATION -> VacationReplyParser(context, reply)
-            AutoReply.TYPE_DRIVING -> DrivingReplyParser(context, reply)
-            AutoReply.TYPE_CONTACT -> ContactReplyParser(context, reply)
-            AutoReply.TYPE_KEYWORD -> KeywordReplyParser(context, reply)
-            else -> null
-        }
+    /**
+     * Checks whether any auto reply should be sent for the message. The parsers that are found get
+     * reused by the next call to getInstances for the same message.
+     */
+    fun hasInstances(context: Context, conversation: Conversation, message: Message): Boolean {
+        return DataSource.getAutoReplyEngine(context).evaluateAndRemember(conversation, message).isNotEmpty()
     }
-}
\ No newline at end of file
+}
@@ -44,12 +44,14 @@ class MessengerApplication : FirebaseApplication(), AccountInvalidator {
 
         TimeUtils.setupNightTheme()
         NotificationUtils.createNotificationChannels(this)
+
+        Thread { DataSource.warmConversationIndex(this) }.start()
     }
 
     override fun getFirebaseMessageHandler(): FirebaseMessageHandler {
         return object : FirebaseMessageHandler {
             override fun handleMessage(application: Application, operation: String, data: String) {
-                Thread { FirebaseHandlerService.process(application, operation, data) }.start()
+                FirebaseHandlerService.enqueue(application, operation, data)
             }
 
             override fun handleDelete(application: Application) {
@@ -24,6 +24,7 @@ import xyz.klinker.messenger.shared.data.model.Contact
 import xyz.klinker.messenger.shared.data.model.Conversation
 import xyz.klinker.messenger.shared.service.ApiDownloadService
 import xyz.klinker.messenger.shared.service.ApiUploadService
+import xyz.klinker.messenger.shared.service.InitialImportPipeline
 import xyz.klinker.messenger.shared.util.*
 import xyz.klinker.messenger.shared.util.listener.ProgressUpdateListener
 
@@ -33,6 +34,7 @@ class InitialLoadWearActivity : Activity(), ProgressUpdateListener {
     private var handler: Handler? = null
     private var startUploadAfterSync = false
     private var downloadReceiver: BroadcastReceiver? = null
+    private var importPipeline: InitialImportPipeline? = null
 
     private val name: String
         get() {
@@ -126,6 +128,7 @@ class InitialLoadWearActivity : Activity(), ProgressUpdateListener {
 
     public override fun onDestroy() {
         super.onDestroy()
+        importPipeline?.cancel()
 
         if (downloadReceiver != null) {
             unregisterReceiver(downloadReceiver)
@@ -155,8 +158,14 @@ class InitialLoadWearActivity : Activity(), ProgressUpdateListener {
             account.setPhoneNumber(this@InitialLoadWearActivity, myPhoneNumber)
 
             val source = DataSource
-            val conversations = SmsMmsUtils.queryConversations(context)
-            source.insertConversations(conversations, context, this@InitialLoadWearActivity)
+
+            val pipeline = InitialImportPipeline(context, this@InitialLoadWearActivity)
+            importPipeline = pipeline
+
+            if (!pipeline.run()) {
+                source.clearTables(context)
+                return@Thread
+            }
 
             handler!!.post { progress.isIndeterminate = true }
 